@@ -0,0 +1,34 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Lanza los benchmarks del códec SIP con el perfilador de GC de JMH, para que cada
+ * resultado lleve también gc.alloc.rate.norm (bytes reservados por operación).
+ * <p>Uso: BenchMain [regex de benchmarks] [fichero de resultados JSON]
+ * <br>Sin argumentos se ejecutan todos (ParserBenchmark, SerializerBenchmark,
+ * SdpBenchmark y LogBenchmark) y los resultados quedan en bench-result.json, para comparar después
+ * las cifras antes y después de cada cambio en mensajesSIP.
+ * <p>Necesita en el classpath jmh-core y, al compilar, jmh-generator-annprocess
+ * (el proyecto Eclipse los toma de la variable JMH_LIB).
+ */
+public class BenchMain {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = (args.length > 0) ? args[0] : "bench\\..*Benchmark";
+        String resultFile = (args.length > 1) ? args[1] : "bench-result.json";
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,597 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import mensajesSIP.ACKMessage;
+import mensajesSIP.BusyHereMessage;
+import mensajesSIP.ByeMessage;
+import mensajesSIP.InviteMessage;
+import mensajesSIP.NotFoundMessage;
+import mensajesSIP.OKMessage;
+import mensajesSIP.ProxyAuthenticationMessage;
+import mensajesSIP.RegisterMessage;
+import mensajesSIP.RequestTimeoutMessage;
+import mensajesSIP.RingingMessage;
+import mensajesSIP.SDPMessage;
+import mensajesSIP.SIPException;
+import mensajesSIP.SIPMessage;
+import mensajesSIP.SIPMessageVisitor;
+import mensajesSIP.ServiceUnavailableMessage;
+import mensajesSIP.SipMethod;
+import mensajesSIP.TryingMessage;
+import mensajesSIP.UnauthorizedMessage;
+
+/**
+ * Generador de carga UDP: simula muchos UA registrados contra un proxy.
+ * <p>Todos los UA comparten unos pocos DatagramChannel: el UA i usa el socket i % N, que es
+ * también el Contact que registra. Un único hilo con un Selector recibe de todos ellos y
+ * despacha cada mensaje con el visitante, igual que las capas de transacciones reales.
+ * <p>Cada UA hace de llamante (INVITE, ACK, BYE) y de llamado (180 y 200 al INVITE,
+ * 200 al BYE); el papel lo decide el tipo de mensaje, y las llamadas en curso se
+ * buscan por Call-ID. Cómo se comporta cada lado (ritmo, duración, rechazos...) lo
+ * fija el Scenario.
+ */
+final class LoadGenerator implements SIPMessageVisitor {
+
+    private static final String LOCAL_IP = "127.0.0.1";
+    private static final int REGISTER_CHUNK = 100;
+    private static final int REGISTER_ROUNDS = 3;
+
+    private final InetSocketAddress proxy;
+    private final DatagramChannel[] channels;
+    private final String[] contacts;
+    private final Selector selector;
+    private final LoadReport report;
+    private final Scenario scenario;
+
+    private final SDPMessage sdp = new SDPMessage();
+    // BYE tras el tiempo de llamada y respuestas retrasadas del llamado
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "load-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Call-ID -> llamada en curso (desde el punto de vista del llamante)
+    private final Map<String, Call> calls = new ConcurrentHashMap<>();
+    // Call-ID de cada REGISTER pendiente -> usuario
+    private final Map<String, Integer> pendingRegisters = new ConcurrentHashMap<>();
+    private volatile CountDownLatch registerChunk;
+    private boolean[] registered;
+
+    // Limita las llamadas simultáneas; cada llamada terminada (bien o mal) devuelve su permiso
+    private Semaphore inFlight;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(64 * 1024);
+    private volatile boolean running = true;
+
+    LoadGenerator(InetSocketAddress proxy, Scenario scenario, LoadReport report) throws IOException {
+        this.proxy = proxy;
+        this.scenario = scenario;
+        this.report = report;
+        int sockets = scenario.sockets;
+        this.selector = Selector.open();
+        this.channels = new DatagramChannel[sockets];
+        this.contacts = new String[sockets];
+        for (int i = 0; i < sockets; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(LOCAL_IP, 0));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, i);
+            channels[i] = channel;
+            contacts[i] = LOCAL_IP + ":" + ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+
+        sdp.setIp(LOCAL_IP);
+        sdp.setPort(49172);
+        sdp.setOptions(new ArrayList<>(Arrays.asList(96)));
+
+        Thread receiver = new Thread(this::receiveLoop, "load-rx");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    static String userName(int user) {
+        return "load" + user;
+    }
+
+    private String userUri(int user) {
+        return "sip:" + userName(user) + "@" + scenario.domain;
+    }
+
+    // ===================== REGISTER =====================
+
+    /**
+     * Registra los usuarios del escenario en bloques de REGISTER_CHUNK, repitiendo hasta
+     * REGISTER_ROUNDS veces los que no hayan recibido respuesta.
+     *
+     * @return  los usuarios que quedaron registrados
+     */
+    List<Integer> registerAll() throws IOException, InterruptedException {
+        int users = scenario.users;
+        registered = new boolean[users];
+        for (int round = 0; round < REGISTER_ROUNDS; round++) {
+            List<Integer> missing = new ArrayList<>();
+            for (int user = 0; user < users; user++) {
+                if (!registered[user]) {
+                    missing.add(user);
+                }
+            }
+            if (missing.isEmpty()) {
+                break;
+            }
+            for (int from = 0; from < missing.size(); from += REGISTER_CHUNK) {
+                List<Integer> chunk = missing.subList(from, Math.min(from + REGISTER_CHUNK, missing.size()));
+                registerChunk = new CountDownLatch(chunk.size());
+                for (int user : chunk) {
+                    sendRegister(user, round);
+                }
+                registerChunk.await(1, TimeUnit.SECONDS);
+            }
+        }
+        pendingRegisters.clear();
+
+        List<Integer> ok = new ArrayList<>();
+        for (int user = 0; user < users; user++) {
+            if (registered[user]) {
+                ok.add(user);
+            } else {
+                report.registersFailed.increment();
+            }
+        }
+        return ok;
+    }
+
+    private void sendRegister(int user, int round) throws IOException {
+        String callId = "reg-" + user + "-" + round;
+        RegisterMessage register = new RegisterMessage();
+        register.setDestination("sip:" + scenario.domain);
+        register.setVias(new ArrayList<>(Arrays.asList(contactOf(user))));
+        register.setMaxForwards(70);
+        register.setToName(userName(user));
+        register.setToUri(userUri(user));
+        register.setFromName(userName(user));
+        register.setFromUri(userUri(user));
+        register.setCallId(callId);
+        register.setcSeqNumber(1);
+        register.setcSeqMethod(SipMethod.REGISTER);
+        register.setContact(contactOf(user));
+        register.setExpires(3600);
+        register.setContentLength(0);
+
+        pendingRegisters.put(callId, user);
+        send(channelOf(user), register);
+    }
+
+    // ===================== LLAMADAS =====================
+
+    /**
+     * Lanza las llamadas del escenario entre los usuarios registrados, al ritmo indicado
+     * y con como mucho concurrency en curso a la vez, y espera a que terminen todas
+     * (bien, con error o por timeout).
+     */
+    void runCalls(List<Integer> users) throws IOException, InterruptedException {
+        int concurrency = scenario.concurrency;
+        inFlight = new Semaphore(concurrency);
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(scenario.timeoutMs);
+        long intervalNanos = (scenario.rate > 0) ? (long) (1e9 / scenario.rate) : 0;
+        int half = Math.max(1, users.size() / 2);
+        long start = System.nanoTime();
+
+        for (int n = 0; n < scenario.calls; n++) {
+            if (intervalNanos > 0) {
+                // Ritmo fijo: la llamada n sale en start + n * intervalo, aunque alguna se retrase
+                long due = start + n * intervalNanos;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(10)));
+                    expireCalls(timeoutNanos);
+                }
+            }
+            while (!inFlight.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                expireCalls(timeoutNanos);
+            }
+            int caller = users.get(n % users.size());
+            int callee = users.get((n + half) % users.size());
+            startCall(n, caller, callee);
+        }
+
+        // Esperar a las últimas: cuando se devuelven todos los permisos no queda ninguna en curso
+        while (!inFlight.tryAcquire(concurrency, 10, TimeUnit.MILLISECONDS)) {
+            expireCalls(timeoutNanos);
+        }
+    }
+
+    private void startCall(int n, int caller, int callee) throws IOException {
+        InviteMessage invite = new InviteMessage();
+        invite.setDestination(userUri(callee));
+        invite.setVias(new ArrayList<>(Arrays.asList(contactOf(caller))));
+        invite.setMaxForwards(70);
+        invite.setToName(userName(callee));
+        invite.setToUri(userUri(callee));
+        invite.setFromName(userName(caller));
+        invite.setFromUri(userUri(caller));
+        invite.setCallId("load-" + n + "-" + System.nanoTime());
+        invite.setcSeqNumber(1);
+        invite.setcSeqMethod(SipMethod.INVITE);
+        invite.setContact(contactOf(caller));
+        invite.setContentType("application/sdp");
+        invite.setContentLength(sdp.toStringMessage().getBytes().length);
+        invite.setSdp(sdp);
+
+        Call call = new Call(invite, caller);
+        calls.put(invite.getCallId(), call);
+        report.callsStarted.increment();
+        send(channelOf(caller), invite);
+    }
+
+    private void expireCalls(long timeoutNanos) {
+        long now = System.nanoTime();
+        for (Call call : calls.values()) {
+            if (now - call.startNanos > timeoutNanos) {
+                finish(call, "timeout");
+            }
+        }
+    }
+
+    // Termina una llamada una sola vez; reason null significa que se completó bien
+    private void finish(Call call, String reason) {
+        if (!call.finished.compareAndSet(false, true)) {
+            return;
+        }
+        calls.remove(call.invite.getCallId());
+        if (reason == null) {
+            report.callsCompleted.increment();
+        } else {
+            report.recordFailure(reason);
+        }
+        inFlight.release();
+    }
+
+    void close() {
+        running = false;
+        timer.shutdownNow();
+        selector.wakeup();
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nada que hacer al cerrar
+            }
+        }
+    }
+
+    // ===================== RECEPCIÓN =====================
+
+    private void receiveLoop() {
+        while (running) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    InetSocketAddress from;
+                    while ((from = (InetSocketAddress) channel.receive(receiveBuffer)) != null) {
+                        String text = new String(receiveBuffer.array(), 0, receiveBuffer.position(),
+                                StandardCharsets.UTF_8);
+                        receiveBuffer.clear();
+                        try {
+                            SIPMessage message = SIPMessage.parseMessage(text);
+                            message.accept(this, from.getAddress().getHostAddress(), from.getPort());
+                        } catch (SIPException e) {
+                            report.recordFailure("parse");
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("[Load] Error recibiendo: " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                if (running) {
+                    System.err.println("[Load] Error procesando: " + e);
+                }
+            }
+        }
+    }
+
+    // ----- Papel de llamado -----
+
+    @Override
+    public void visitInvite(InviteMessage invite, String sourceIp, int sourcePort) throws IOException {
+        int callee = userIndex(invite.getToUri());
+
+        // Qué hace el llamado con esta llamada, según las proporciones del escenario
+        double dice = ThreadLocalRandom.current().nextDouble();
+        if (dice < scenario.rejectRatio) {
+            send(channelOf(callee), invite.createResponse(486));
+            return;
+        }
+
+        sendRinging(invite, callee);
+        if (dice < scenario.rejectRatio + scenario.noAnswerRatio) {
+            later(scenario.noAnswerMs, () -> send(channelOf(callee), invite.createResponse(408)));
+        } else if (scenario.ringMs > 0) {
+            later(scenario.ringMs, () -> sendOk(invite, callee));
+        } else {
+            sendOk(invite, callee);
+        }
+    }
+
+    private void sendRinging(InviteMessage invite, int callee) throws IOException {
+        RingingMessage ringing = new RingingMessage();
+        ringing.setVias(invite.getVias());
+        ringing.setRecordRoute(invite.getRecordRoute());
+        ringing.setToName(invite.getToName());
+        ringing.setToUri(invite.getToUri());
+        ringing.setFromName(invite.getFromName());
+        ringing.setFromUri(invite.getFromUri());
+        ringing.setCallId(invite.getCallId());
+        ringing.setcSeqNumber(invite.getcSeqNumber());
+        ringing.setcSeqMethod(SipMethod.INVITE);
+        ringing.setContact(contactOf(callee));
+        ringing.setContentLength(0);
+        send(channelOf(callee), ringing);
+    }
+
+    private void sendOk(InviteMessage invite, int callee) throws IOException {
+        OKMessage ok = new OKMessage();
+        ok.setVias(invite.getVias());
+        ok.setRecordRoute(invite.getRecordRoute());
+        ok.setToName(invite.getToName());
+        ok.setToUri(invite.getToUri());
+        ok.setFromName(invite.getFromName());
+        ok.setFromUri(invite.getFromUri());
+        ok.setCallId(invite.getCallId());
+        ok.setcSeqNumber(invite.getcSeqNumber());
+        ok.setcSeqMethod(SipMethod.INVITE);
+        ok.setContact(contactOf(callee));
+        ok.setContentLength(sdp.toStringMessage().getBytes().length);
+        ok.setSdp(sdp);
+        send(channelOf(callee), ok);
+    }
+
+    @Override
+    public void visitAck(ACKMessage ack, String sourceIp, int sourcePort) {
+        // El llamado no tiene nada que hacer con el ACK
+    }
+
+    @Override
+    public void visitBye(ByeMessage bye, String sourceIp, int sourcePort) throws IOException {
+        OKMessage ok = new OKMessage();
+        ok.setVias(bye.getVias());
+        ok.setToName(bye.getToName());
+        ok.setToUri(bye.getToUri());
+        ok.setFromName(bye.getFromName());
+        ok.setFromUri(bye.getFromUri());
+        ok.setCallId(bye.getCallId());
+        ok.setcSeqNumber(bye.getcSeqNumber());
+        ok.setcSeqMethod(SipMethod.BYE);
+        ok.setContentLength(0);
+        send(channelOf(userIndex(bye.getToUri())), ok);
+    }
+
+    @Override
+    public void visitRegister(RegisterMessage register, String sourceIp, int sourcePort) {
+        report.recordFailure("REGISTER");
+    }
+
+    // ----- Papel de llamante -----
+
+    @Override
+    public void visitTrying(TryingMessage trying, String sourceIp, int sourcePort) {
+    }
+
+    @Override
+    public void visitRinging(RingingMessage ringing, String sourceIp, int sourcePort) {
+    }
+
+    @Override
+    public void visitOK(OKMessage ok, String sourceIp, int sourcePort) throws IOException {
+        if (ok.getcSeqMethod() == SipMethod.REGISTER) {
+            onRegisterAnswer(ok.getCallId(), true);
+            return;
+        }
+
+        Call call = calls.get(ok.getCallId());
+        if (call == null) {
+            return;
+        }
+        long now = System.nanoTime();
+
+        if (ok.getcSeqMethod() == SipMethod.BYE) {
+            report.callDuration.recordValue(TimeUnit.NANOSECONDS.toMicros(now - call.startNanos));
+            finish(call, null);
+            return;
+        }
+
+        if (call.answered) {
+            // Retransmisión del 200 OK: el ACK ya se envió
+            return;
+        }
+        call.answered = true;
+        call.route = ok.getRecordRoute();
+        report.setupLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(now - call.startNanos));
+
+        sendAck(call, call.route);
+        if (scenario.holdMs > 0) {
+            timer.schedule(() -> sendBye(call), scenario.holdMs, TimeUnit.MILLISECONDS);
+        } else {
+            sendBye(call);
+        }
+    }
+
+    @Override
+    public void visitUnauthorized(UnauthorizedMessage unauthorized, String sourceIp, int sourcePort) {
+        onRegisterAnswer(unauthorized.getCallId(), false);
+    }
+
+    @Override
+    public void visitNotFound(NotFoundMessage notFound, String sourceIp, int sourcePort) throws IOException {
+        if (notFound.getcSeqMethod() == SipMethod.REGISTER) {
+            onRegisterAnswer(notFound.getCallId(), false);
+            return;
+        }
+        onInviteError(notFound.getCallId(), "404");
+    }
+
+    @Override
+    public void visitProxyAuthentication(ProxyAuthenticationMessage proxyAuthentication, String sourceIp, int sourcePort)
+            throws IOException {
+        onInviteError(proxyAuthentication.getCallId(), "407");
+    }
+
+    @Override
+    public void visitRequestTimeout(RequestTimeoutMessage requestTimeout, String sourceIp, int sourcePort)
+            throws IOException {
+        onInviteError(requestTimeout.getCallId(), "408");
+    }
+
+    @Override
+    public void visitBusyHere(BusyHereMessage busyHere, String sourceIp, int sourcePort) throws IOException {
+        onInviteError(busyHere.getCallId(), "486");
+    }
+
+    @Override
+    public void visitServiceUnavailable(ServiceUnavailableMessage serviceUnavailable, String sourceIp, int sourcePort)
+            throws IOException {
+        onInviteError(serviceUnavailable.getCallId(), "503");
+    }
+
+    private void onRegisterAnswer(String callId, boolean ok) {
+        Integer user = pendingRegisters.remove(callId);
+        if (user == null) {
+            return;
+        }
+        if (ok) {
+            registered[user] = true;
+            report.registersOk.increment();
+        }
+        registerChunk.countDown();
+    }
+
+    // Respuesta de error al INVITE: ACK, como cualquier UA, y la llamada cuenta como fallida
+    private void onInviteError(String callId, String code) throws IOException {
+        Call call = calls.get(callId);
+        if (call == null) {
+            return;
+        }
+        sendAck(call, null);
+        finish(call, code);
+    }
+
+    private void sendAck(Call call, String route) throws IOException {
+        InviteMessage invite = call.invite;
+        ACKMessage ack = new ACKMessage();
+        ack.setDestination(invite.getDestination());
+        ack.setVias(invite.getVias());
+        ack.setMaxForwards(invite.getMaxForwards());
+        ack.setToName(invite.getToName());
+        ack.setToUri(invite.getToUri());
+        ack.setFromName(invite.getFromName());
+        ack.setFromUri(invite.getFromUri());
+        ack.setCallId(invite.getCallId());
+        ack.setcSeqNumber(invite.getcSeqNumber());
+        ack.setcSeqMethod(SipMethod.ACK);
+        ack.setContentLength(0);
+        if (route != null) {
+            ack.setRoute(route);
+        }
+        send(channelOf(call.caller), ack);
+    }
+
+    private void sendBye(Call call) {
+        InviteMessage invite = call.invite;
+        ByeMessage bye = new ByeMessage();
+        bye.setDestination(invite.getToUri());
+        bye.setVias(new ArrayList<>(Arrays.asList(contactOf(call.caller))));
+        bye.setMaxForwards(70);
+        bye.setToUri(invite.getToUri());
+        bye.setFromName(invite.getFromName());
+        bye.setFromUri(invite.getFromUri());
+        bye.setCallId(invite.getCallId());
+        bye.setcSeqNumber(invite.getcSeqNumber() + 1);
+        bye.setcSeqMethod(SipMethod.BYE);
+        bye.setContentLength(0);
+        if (call.route != null) {
+            bye.setRoute(call.route);
+        }
+        try {
+            send(channelOf(call.caller), bye);
+        } catch (IOException e) {
+            finish(call, "send");
+        }
+    }
+
+    // ===================== UTILIDADES =====================
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    // Ejecuta un envío del llamado pasado delay ms, en el hilo del temporizador
+    private void later(long delayMs, Action action) {
+        timer.schedule(() -> {
+            try {
+                action.run();
+            } catch (IOException e) {
+                report.recordFailure("send");
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private DatagramChannel channelOf(int user) {
+        return channels[user % channels.length];
+    }
+
+    private String contactOf(int user) {
+        return contacts[user % contacts.length];
+    }
+
+    // "sip:load17@SMA" -> 17
+    private static int userIndex(String uri) {
+        int start = uri.indexOf("load") + "load".length();
+        int end = uri.indexOf('@', start);
+        return Integer.parseInt(uri.substring(start, end));
+    }
+
+    private void send(DatagramChannel channel, SIPMessage message) throws IOException {
+        channel.send(ByteBuffer.wrap(message.toStringMessage().getBytes(StandardCharsets.UTF_8)), proxy);
+    }
+
+    /**
+     * Estado de una llamada en el lado del llamante.
+     */
+    private static final class Call {
+        final InviteMessage invite;
+        final int caller;
+        final long startNanos = System.nanoTime();
+        final AtomicBoolean finished = new AtomicBoolean();
+        // Solo los toca el hilo de recepción
+        boolean answered;
+        volatile String route;
+
+        Call(InviteMessage invite, int caller) {
+            this.invite = invite;
+            this.caller = caller;
+        }
+    }
+}
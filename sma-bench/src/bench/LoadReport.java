@@ -0,0 +1,79 @@
+package bench;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Resultados de una ejecución de ProxyLoadBenchmark.
+ * <p>El hilo que recibe las respuestas es el único que escribe en los histogramas; los
+ * contadores son LongAdder porque los fallos por timeout se anotan desde otro hilo.
+ */
+final class LoadReport {
+
+    // Latencias en microsegundos, hasta 60 s con 3 cifras significativas
+    private static final long MAX_LATENCY_MICROS = 60_000_000L;
+
+    /** INVITE enviado → 200 OK recibido por el llamante. */
+    final Histogram setupLatency = new Histogram(MAX_LATENCY_MICROS, 3);
+    /** INVITE enviado → 200 OK al BYE recibido (incluye el tiempo de espera configurado). */
+    final Histogram callDuration = new Histogram(MAX_LATENCY_MICROS, 3);
+
+    final LongAdder registersOk = new LongAdder();
+    final LongAdder registersFailed = new LongAdder();
+    final LongAdder callsStarted = new LongAdder();
+    final LongAdder callsCompleted = new LongAdder();
+
+    // Motivo del fallo ("503", "486", "timeout"...) -> número de llamadas
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    void recordFailure(String reason) {
+        failures.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    long failedCalls() {
+        long total = 0;
+        for (LongAdder count : failures.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    void print(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        out.println("========== [PROXY LOAD] ==========");
+        out.printf("REGISTER: %d OK, %d fallidos%n", registersOk.sum(), registersFailed.sum());
+        out.printf("Llamadas: %d iniciadas, %d completas, %d fallidas en %.2f s%n",
+                callsStarted.sum(), callsCompleted.sum(), failedCalls(), seconds);
+        out.printf("CPS: %.1f llamadas completas por segundo%n", callsCompleted.sum() / seconds);
+        printLatency(out, "Establecimiento (INVITE -> 200 OK)", setupLatency);
+        printLatency(out, "Llamada completa (INVITE -> 200 OK al BYE)", callDuration);
+        if (!failures.isEmpty()) {
+            out.println("Fallos:");
+            for (Map.Entry<String, LongAdder> failure : new TreeMap<>(failures).entrySet()) {
+                out.printf("  %-8s %d%n", failure.getKey(), failure.getValue().sum());
+            }
+        }
+        out.println("==================================");
+    }
+
+    private static void printLatency(PrintStream out, String title, Histogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            out.println(title + ": sin muestras");
+            return;
+        }
+        out.printf("%s, ms: p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f media=%.3f (n=%d)%n",
+                title,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0,
+                histogram.getMean() / 1000.0,
+                histogram.getTotalCount());
+    }
+}
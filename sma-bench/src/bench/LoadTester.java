@@ -0,0 +1,41 @@
+package bench;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+
+/**
+ * Probador de carga al estilo de SIPp contra un proxy que ya está en marcha.
+ * <p>Simula en un solo proceso todos los usuarios del escenario sobre unos pocos sockets
+ * compartidos, en lugar de un proceso UA (y una configuración de lanzamiento) por usuario.
+ * El proxy tiene que aceptar los usuarios load0..loadN-1 del dominio del escenario (por
+ * ejemplo con users=fichero) y no pedir autenticación. Como todos los usuarios salen de
+ * la misma IP, el proxy tiene que arrancarse sin límites de admisión (regrate=0 maxcps=0):
+ * con los de por defecto rechaza o descarta buena parte de los REGISTER iniciales.
+ * <p>Uso: LoadTester escenario.properties ipProxy puertoProxy [clave=valor ...]
+ */
+public class LoadTester {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Uso: LoadTester escenario.properties ipProxy puertoProxy [clave=valor ...]");
+            return;
+        }
+
+        Scenario scenario = Scenario.load(Paths.get(args[0]));
+        for (int i = 3; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2 || !scenario.set(option[0], option[1])) {
+                System.out.println("[Load] Opción desconocida ignorada: " + args[i]);
+            }
+        }
+
+        InetSocketAddress proxy = new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+        LoadReport report = new LoadReport();
+        LoadGenerator generator = new LoadGenerator(proxy, scenario, report);
+        try {
+            ProxyLoadBenchmark.run(generator, scenario, report, System.out);
+        } finally {
+            generator.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import common.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Coste de una traza para el hilo que la pide: desactivada por nivel, activa (se copia
+ * al buffer de {@link Log}) y, para comparar, el System.out.println con concatenación
+ * que había antes. Con varios hilos a la vez, que es como la piden las capas del proxy.
+ * <p>La salida estándar se descarta mientras dura la medida.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LogBenchmark {
+
+    private static final Log LOG = Log.get("Bench");
+
+    private final String uri = "sip:bob@SMA";
+    private final String ip = "10.0.0.7";
+    private final int port = 9100;
+
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Log.flush(1000);
+        System.setOut(console);
+        Log.setLevel(Log.Level.INFO);
+    }
+
+    /** Nivel WARN: las trazas INFO no se escriben. */
+    @State(Scope.Benchmark)
+    public static class Quiet {
+        @Setup(Level.Trial)
+        public void setUp() {
+            Log.setLevel(Log.Level.WARN);
+        }
+    }
+
+    /** Nivel INFO: las trazas INFO pasan al buffer. */
+    @State(Scope.Benchmark)
+    public static class Verbose {
+        @Setup(Level.Trial)
+        public void setUp() {
+            Log.setLevel(Log.Level.INFO);
+        }
+    }
+
+    @Benchmark
+    public void disabled(Quiet level) {
+        LOG.info("Reenviando BYE a {} en {}:{}", uri, ip, port);
+    }
+
+    @Benchmark
+    public void enabled(Verbose level) {
+        LOG.info("Reenviando BYE a {} en {}:{}", uri, ip, port);
+    }
+
+    @Benchmark
+    public void printlnConcat() {
+        System.out.println("[Bench] Reenviando BYE a " + uri + " en " + ip + ":" + port);
+    }
+}
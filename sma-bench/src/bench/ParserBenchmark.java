@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import mensajesSIP.MessagePool;
+import mensajesSIP.SIPException;
+import mensajesSIP.SIPMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Coste de SIPMessage.parseMessage para cada tipo de mensaje y profundidad de Vias.
+ * <p>Con pooled=true el mensaje se recicla tras parsearlo, como hace el proxy con el
+ * pool activado, y gc.alloc.rate.norm muestra lo que se sigue reservando por mensaje.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({ "INVITE", "REGISTER", "ACK", "BYE", "TRYING", "RINGING", "OK", "UNAUTHORIZED",
+            "NOT_FOUND", "PROXY_AUTHENTICATION", "REQUEST_TIMEOUT", "BUSY_HERE", "SERVICE_UNAVAILABLE" })
+    public SipSamples message;
+
+    @Param({ "1", "3", "8" })
+    public int viaDepth;
+
+    @Param({ "false", "true" })
+    public boolean pooled;
+
+    private String text;
+
+    @Setup
+    public void setUp() throws SIPException {
+        MessagePool.setEnabled(pooled);
+        text = message.text(viaDepth);
+        // Falla aquí, y no midiendo, si el ejemplo no es un mensaje válido
+        MessagePool.recycle(SIPMessage.parseMessage(text));
+    }
+
+    @Benchmark
+    public SIPMessage parse() throws SIPException {
+        SIPMessage parsed = SIPMessage.parseMessage(text);
+        // Con el pool desactivado recycle() no hace nada
+        MessagePool.recycle(parsed);
+        return parsed;
+    }
+}
@@ -0,0 +1,133 @@
+package bench;
+
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.Log;
+import mensajesSIP.MessagePool;
+import mensajesSIP.SipUri;
+import proxy.InMemoryUserDirectory;
+import proxy.ProxyOptions;
+import proxy.ProxyUserLayer;
+import proxy.Subscriber;
+
+/**
+ * Benchmark de capacidad del proxy: arranca un ProxyUserLayer en este mismo proceso y le
+ * mete carga con LoadGenerator por la interfaz de loopback.
+ * <p>Primero registra users usuarios y después hace calls llamadas completas
+ * (INVITE/180/200/ACK/BYE/200), con como mucho concurrency a la vez. Al terminar muestra
+ * los percentiles de latencia de establecimiento, las llamadas por segundo y los fallos
+ * agrupados por código de respuesta.
+ * <p>Uso: ProxyLoadBenchmark [clave=valor ...]
+ * <br>  port=5090 quiet=true (solo escribe las trazas del proxy de nivel WARN o más)
+ * <br>  las claves de un Scenario: users=1000 calls=10000 concurrency=1 sockets=4 hold=0 ...
+ * <br>  y las opciones de ProxyOptions que tienen sentido aquí: batch, pool, queue y proxysockets (sockets UDP del proxy)
+ * <p>El proxy solo lleva una llamada a la vez, así que con concurrency &gt; 1 las que se
+ * solapan reciben 503; es justo lo que este benchmark tiene que dejar a la vista.
+ */
+public class ProxyLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int port = 5090;
+        boolean quiet = true;
+        Scenario scenario = new Scenario();
+
+        ProxyOptions options = new ProxyOptions();
+        // Sin límites de admisión: se quiere medir el proxy, no sus protecciones
+        options.setMaxNewRequestsPerSecond(0);
+        options.setRegisterRateLimit(0);
+        options.setTcp(false);
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                System.out.println("[Load] Opción sin valor ignorada: " + arg);
+                continue;
+            }
+            String value = option[1];
+            switch (option[0]) {
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "quiet":
+                    quiet = Boolean.parseBoolean(value);
+                    break;
+                case "batch":
+                    options.setBatchIo(Boolean.parseBoolean(value));
+                    break;
+                case "pool":
+                    MessagePool.setEnabled(Boolean.parseBoolean(value));
+                    break;
+                case "queue":
+                    options.setQueueCapacity(Integer.parseInt(value));
+                    break;
+                case "proxysockets":
+                    options.setReceiveSockets(Integer.parseInt(value));
+                    break;
+                default:
+                    if (!scenario.set(option[0], value)) {
+                        System.out.println("[Load] Opción desconocida ignorada: " + arg);
+                    }
+                    break;
+            }
+        }
+
+        PrintStream console = System.out;
+        if (quiet) {
+            Log.setLevel(Log.Level.WARN);
+        }
+
+        options.setLocalDomains(scenario.domain);
+        ProxyUserLayer proxy = new ProxyUserLayer(port, true, false, new HashMap<>(), options,
+                loadUsers(scenario.users, scenario.domain));
+        Thread proxyThread = new Thread(proxy::startListening, "proxy-main");
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+
+        LoadReport report = new LoadReport();
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress("127.0.0.1", port), scenario, report);
+        try {
+            run(generator, scenario, report, console);
+        } finally {
+            generator.close();
+        }
+    }
+
+/**
+ * Registra los usuarios, hace las llamadas y muestra el informe en out.
+ */
+    static void run(LoadGenerator generator, Scenario scenario, LoadReport report, PrintStream out)
+            throws Exception {
+        out.println("[Load] Escenario: " + scenario);
+        List<Integer> registered = generator.registerAll();
+        out.println("[Load] " + registered.size() + " de " + scenario.users + " usuarios registrados");
+        if (registered.size() < scenario.users) {
+            out.println("[Load] ¿Está el proxy arrancado con regrate=0 maxcps=0? Si no, limita los REGISTER"
+                    + " que llegan de una misma IP.");
+        }
+        if (registered.size() < 2) {
+            out.println("[Load] Hacen falta al menos dos usuarios registrados para llamar.");
+            return;
+        }
+
+        long start = System.nanoTime();
+        generator.runCalls(registered);
+        long elapsed = System.nanoTime() - start;
+
+        report.print(out, elapsed);
+    }
+
+    // Abonados load0..loadN-1 (sin autenticación no importa la contraseña)
+    private static InMemoryUserDirectory loadUsers(int users, String domain) throws Exception {
+        Map<SipUri, Subscriber> subscribers = new HashMap<>();
+        for (int i = 0; i < users; i++) {
+            Subscriber subscriber = Subscriber.withPassword(
+                    "sip:" + LoadGenerator.userName(i) + "@" + domain, LoadGenerator.userName(i));
+            subscribers.put(subscriber.getKey(), subscriber);
+        }
+        return new InMemoryUserDirectory(subscribers);
+    }
+}
@@ -0,0 +1,116 @@
+package bench;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Escenario de carga: cuántos usuarios, cuántas llamadas, a qué ritmo y cómo contesta el
+ * llamado. Se lee de un fichero clave=valor (ver scenarios/basic.properties) y cada clave
+ * se puede sobrescribir también desde la línea de comandos.
+ */
+final class Scenario {
+
+    /** Usuarios simulados (load0..loadN-1) que se registran antes de empezar. */
+    int users = 1000;
+    /** Dominio de los usuarios. */
+    String domain = "SMA";
+    /** Sockets UDP que comparten todos los usuarios simulados. */
+    int sockets = 4;
+
+    /** Llamadas a hacer en total. */
+    int calls = 10_000;
+    /** Llamadas nuevas por segundo; 0 = tan rápido como permita concurrency. */
+    double rate = 0;
+    /** Máximo de llamadas en curso a la vez. */
+    int concurrency = 1;
+
+    /** ms que dura la llamada: entre el 200 OK y el BYE. */
+    long holdMs = 0;
+    /** ms que el llamado deja sonar (entre el 180 y el 200). */
+    long ringMs = 0;
+    /** Fracción de llamadas que el llamado rechaza con 486 Busy Here. */
+    double rejectRatio = 0;
+    /** Fracción de llamadas que el llamado no contesta: 408 tras noAnswerMs. */
+    double noAnswerRatio = 0;
+    long noAnswerMs = 500;
+
+    /** ms sin respuesta final tras los que el llamante da la llamada por perdida. */
+    long timeoutMs = 2000;
+
+    static Scenario load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Scenario scenario = new Scenario();
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            if (!scenario.set(entry.getKey().toString(), entry.getValue().toString().trim())) {
+                System.out.println("[Load] Clave desconocida en " + file + ": " + entry.getKey());
+            }
+        }
+        return scenario;
+    }
+
+/**
+ * Cambia un parámetro del escenario.
+ *
+ * @param key    el nombre del parámetro (users, rate, hold...)
+ * @param value  su valor en texto
+ * @return       false si la clave no es de un escenario
+ */
+    boolean set(String key, String value) {
+        switch (key) {
+            case "users":
+                users = Integer.parseInt(value);
+                return true;
+            case "domain":
+                domain = value;
+                return true;
+            case "sockets":
+                sockets = Integer.parseInt(value);
+                return true;
+            case "calls":
+                calls = Integer.parseInt(value);
+                return true;
+            case "rate":
+                rate = Double.parseDouble(value);
+                return true;
+            case "concurrency":
+                concurrency = Integer.parseInt(value);
+                return true;
+            case "hold":
+                holdMs = Long.parseLong(value);
+                return true;
+            case "ring":
+                ringMs = Long.parseLong(value);
+                return true;
+            case "reject":
+                rejectRatio = Double.parseDouble(value);
+                return true;
+            case "noanswer":
+                noAnswerRatio = Double.parseDouble(value);
+                return true;
+            case "noanswer.time":
+                noAnswerMs = Long.parseLong(value);
+                return true;
+            case "timeout":
+                timeoutMs = Long.parseLong(value);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "users=" + users + "@" + domain + " sockets=" + sockets
+                + " calls=" + calls + " rate=" + (rate > 0 ? rate + "/s" : "max") + " concurrency=" + concurrency
+                + " hold=" + holdMs + "ms ring=" + ringMs + "ms reject=" + rejectRatio
+                + " noanswer=" + noAnswerRatio + " (" + noAnswerMs + "ms) timeout=" + timeoutMs + "ms";
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import mensajesSIP.SDPMessage;
+import mensajesSIP.SIPException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parseo y serialización del cuerpo SDP de los INVITE y 200 OK.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SdpBenchmark {
+
+    private SDPMessage sdp;
+
+    @Setup
+    public void setUp() throws SIPException {
+        sdp = new SDPMessage();
+        sdp.parseMessage(SipSamples.SDP);
+    }
+
+    @Benchmark
+    public SDPMessage parse() throws SIPException {
+        SDPMessage parsed = new SDPMessage();
+        parsed.parseMessage(SipSamples.SDP);
+        return parsed;
+    }
+
+    @Benchmark
+    public String serialize() {
+        return sdp.toStringMessage();
+    }
+}
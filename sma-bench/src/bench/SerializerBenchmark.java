@@ -0,0 +1,53 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import mensajesSIP.MessagePool;
+import mensajesSIP.SIPException;
+import mensajesSIP.SIPMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Coste de toStringMessage() en cada subclase de SIPMessage.
+ * <p>El mensaje se parsea una vez en el setup; lo que se mide es solo la serialización,
+ * que es lo que hace el proxy con cada mensaje que reenvía.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+    @Param({ "INVITE", "REGISTER", "ACK", "BYE", "TRYING", "RINGING", "OK", "UNAUTHORIZED",
+            "NOT_FOUND", "PROXY_AUTHENTICATION", "REQUEST_TIMEOUT", "BUSY_HERE", "SERVICE_UNAVAILABLE" })
+    public SipSamples message;
+
+    @Param({ "1", "3", "8" })
+    public int viaDepth;
+
+    private SIPMessage parsed;
+
+    @Setup
+    public void setUp() throws SIPException {
+        MessagePool.setEnabled(false);
+        parsed = SIPMessage.parseMessage(message.text(viaDepth));
+    }
+
+    @Benchmark
+    public String serialize() {
+        return parsed.toStringMessage();
+    }
+}
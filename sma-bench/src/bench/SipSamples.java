@@ -0,0 +1,139 @@
+package bench;
+
+/**
+ * Mensajes SIP de ejemplo para los benchmarks.
+ * <p>Son los mismos que intercambian el proxy y los UA en una llamada real (REGISTER,
+ * INVITE, 180, 200, ACK, BYE) más las respuestas de error, con tantas Vias como se pida
+ * para medir cómo escala el parser con la profundidad de la pila de Vias.
+ */
+public enum SipSamples {
+    INVITE,
+    REGISTER,
+    ACK,
+    BYE,
+    TRYING,
+    RINGING,
+    OK,
+    UNAUTHORIZED,
+    NOT_FOUND,
+    PROXY_AUTHENTICATION,
+    REQUEST_TIMEOUT,
+    BUSY_HERE,
+    SERVICE_UNAVAILABLE;
+
+    static final String SDP =
+            "c=IN IP4 239.1.2.3\n"
+            + "m=audio 49172 RTP/AVP 96 97 98\n"
+            + "a=rtpmap:96 L8/8000\n"
+            + "a=rtpmap:97 L16/8000\n"
+            + "a=rtpmap:98 L8/11025/2\n";
+
+    private static final String CALL_ID = "Call-ID: 47ed4a64-c783-433a-b1f5-274418d92e91\n";
+
+/**
+ * Construye el mensaje con el número de Vias indicado.
+ * <p>En las peticiones la Via del UA va la última; en las respuestas las de los proxies
+ * van delante, como cuando la respuesta vuelve por el camino de la petición.
+ *
+ * @param viaDepth  número de cabeceras Via (al menos 1)
+ * @return          el mensaje tal y como llega por la red
+ */
+    public String text(int viaDepth) {
+        switch (this) {
+            case INVITE:
+                return "INVITE sip:bob@SMA SIP/2.0\n"
+                        + vias(viaDepth)
+                        + "Max-Forwards: 70\n"
+                        + "To: bob <sip:bob@SMA>\n"
+                        + "From: boss <sip:boss@SMA>\n"
+                        + CALL_ID
+                        + "CSeq: 1365942980 INVITE\n"
+                        + "Contact: <sip:192.0.2.2:9000>\n"
+                        + "Content-Type: application/sdp\n"
+                        + "Content-Length: " + SDP.length() + "\n\n"
+                        + SDP;
+            case REGISTER:
+                return "REGISTER sip:SMA SIP/2.0\n"
+                        + vias(viaDepth)
+                        + "Max-Forwards: 70\n"
+                        + "To: boss <sip:boss@SMA>\n"
+                        + "From: boss <sip:boss@SMA>\n"
+                        + CALL_ID
+                        + "CSeq: 1046327842 REGISTER\n"
+                        + "Contact: <sip:192.0.2.2:9000>\n"
+                        + "Expires: 600\n"
+                        + "Content-Length: 0\n\n";
+            case ACK:
+                return "ACK sip:bob@SMA SIP/2.0\n"
+                        + vias(viaDepth)
+                        + "Route: 192.0.2.2:5060\n"
+                        + "Max-Forwards: 70\n"
+                        + "To: bob <sip:bob@SMA>\n"
+                        + "From: boss <sip:boss@SMA>\n"
+                        + CALL_ID
+                        + "CSeq: 1365942980 ACK\n\n";
+            case BYE:
+                return "BYE sip:bob@SMA SIP/2.0\n"
+                        + vias(viaDepth)
+                        + "Route: 192.0.2.2:5060\n"
+                        + "Max-Forwards: 70\n"
+                        + "To: <sip:bob@SMA>\n"
+                        + "From: boss <sip:boss@SMA>\n"
+                        + CALL_ID
+                        + "CSeq: 1365942981 BYE\n"
+                        + "Content-Length: 0\n\n";
+            case TRYING:
+                return response("100 Trying", viaDepth, "INVITE", "");
+            case RINGING:
+                return response("180 Ringing", viaDepth, "INVITE",
+                        "Record-Route: 192.0.2.2:5060\n" + "Contact: <sip:192.0.2.2:9100>\n");
+            case OK:
+                return "SIP/2.0 200 OK\n"
+                        + vias(viaDepth)
+                        + "Record-Route: 192.0.2.2:5060\n"
+                        + "To: bob <sip:bob@SMA>\n"
+                        + "From: boss <sip:boss@SMA>\n"
+                        + CALL_ID
+                        + "CSeq: 1365942980 INVITE\n"
+                        + "Contact: <sip:192.0.2.2:9100>\n"
+                        + "Content-Length: " + SDP.length() + "\n\n"
+                        + SDP;
+            case UNAUTHORIZED:
+                return response("401 Unauthorized", viaDepth, "REGISTER",
+                        "WWW-Authenticate: nonce= 5f1c2a9e7b3d4c60\n");
+            case NOT_FOUND:
+                return response("404 Not Found", viaDepth, "INVITE", "");
+            case PROXY_AUTHENTICATION:
+                return response("407 Proxy Authentication Required", viaDepth, "INVITE",
+                        "ProxyAuthenticate: nonce= 5f1c2a9e7b3d4c60\n");
+            case REQUEST_TIMEOUT:
+                return response("408 Request Timeout", viaDepth, "INVITE", "");
+            case BUSY_HERE:
+                return response("486 Busy Here", viaDepth, "INVITE", "");
+            case SERVICE_UNAVAILABLE:
+                return response("503 Service Unavailable", viaDepth, "INVITE", "Retry-After: 1\n");
+            default:
+                throw new IllegalStateException(name());
+        }
+    }
+
+    private static String response(String status, int viaDepth, String method, String extraHeaders) {
+        return "SIP/2.0 " + status + "\n"
+                + vias(viaDepth)
+                + "To: bob <sip:bob@SMA>\n"
+                + "From: boss <sip:boss@SMA>\n"
+                + CALL_ID
+                + "CSeq: 1365942980 " + method + "\n"
+                + extraHeaders
+                + "Content-Length: 0\n\n";
+    }
+
+    private static String vias(int viaDepth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = viaDepth - 1; i > 0; i--) {
+            sb.append("Via: SIP/2.0/UDP 192.0.2.").append(i + 2).append(":5060\n");
+        }
+        sb.append("Via: SIP/2.0/UDP 192.0.2.2:9000\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,345 @@
+package bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import common.Log;
+import mensajesSIP.OKMessage;
+import mensajesSIP.RegisterMessage;
+import mensajesSIP.SIPException;
+import mensajesSIP.SIPMessage;
+import mensajesSIP.SipUri;
+import ua.Call;
+import ua.RequestFailedException;
+import ua.UserAgent;
+import ua.UserAgentListener;
+
+/**
+ * Prueba de estrés de las tablas de transacciones del UA.
+ * <p>Dos UserAgent en este proceso (llamante y llamado) hablan a través de un relé SIP
+ * mínimo que hace de registrar y reenvía los mensajes sin estado. El llamante lanza
+ * INVITE desde varios hilos a la vez; el llamado acepta, rechaza o deja sonar cada llamada
+ * desde otro pool de hilos, y a veces contesta justo cuando vence el timeout de 408, de
+ * modo que compiten INVITE, ACK, timers y respuestas sobre las mismas transacciones.
+ * <p>Al acabar comprueba que ninguna operación se ha quedado sin completar y que, vencidos
+ * los temporizadores, no queda ninguna llamada ni transacción en ninguno de los dos UA.
+ * Termina con código 1 si algo se ha perdido.
+ * <p>El UA no retransmite, así que un datagrama que el sistema descarte por tener lleno el
+ * buffer de recepción también deja una llamada sin terminar; por eso se muestran los
+ * descartes UDP del sistema durante la prueba (en Linux). Si los hay, hay que bajar
+ * concurrency antes de achacar las pérdidas a las tablas de transacciones.
+ * <p>Uso: UaStress [clave=valor ...]
+ * <br>  calls=2000 threads=8 concurrency=50 port=9400 quiet=true
+ * <br>  accept=0.6 reject=0.2 (el resto no se contesta) noanswer.time=200 (ms hasta el 408)
+ */
+public class UaStress {
+
+    private int calls = 2000;
+    private int threads = 8;
+    private int concurrency = 50;
+    private int port = 9400;
+    private double acceptRatio = 0.6;
+    private double rejectRatio = 0.2;
+    private long noAnswerMs = 200;
+
+    // Resultado de cada INVITE ("200", "486", "408"...) y de las demás operaciones
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        UaStress stress = new UaStress();
+        boolean quiet = true;
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                System.out.println("[Stress] Opción sin valor ignorada: " + arg);
+                continue;
+            }
+            String value = option[1];
+            switch (option[0]) {
+                case "calls":         stress.calls = Integer.parseInt(value); break;
+                case "threads":       stress.threads = Integer.parseInt(value); break;
+                case "concurrency":   stress.concurrency = Integer.parseInt(value); break;
+                case "port":          stress.port = Integer.parseInt(value); break;
+                case "accept":        stress.acceptRatio = Double.parseDouble(value); break;
+                case "reject":        stress.rejectRatio = Double.parseDouble(value); break;
+                case "noanswer.time": stress.noAnswerMs = Long.parseLong(value); break;
+                case "quiet":         quiet = Boolean.parseBoolean(value); break;
+                default:
+                    System.out.println("[Stress] Opción desconocida ignorada: " + arg);
+                    break;
+            }
+        }
+
+        if (quiet) {
+            // Las capas del UA escriben una traza por mensaje
+            Log.setLevel(Log.Level.WARN);
+        }
+        boolean ok = stress.run(System.out);
+        System.exit(ok ? 0 : 1);
+    }
+
+    private boolean run(PrintStream out) throws Exception {
+        Relay relay = new Relay(port + 2);
+        relay.start();
+
+        UserAgent caller = new UserAgent("stressA@SMA", port, "127.0.0.1", port + 2, "stressA");
+        UserAgent callee = new UserAgent("stressB@SMA", port + 1, "127.0.0.1", port + 2, "stressB");
+        callee.setIncomingCallTimeout(noAnswerMs);
+
+        // El llamado decide fuera del hilo de red, para que sus respuestas compitan con él
+        ExecutorService answerers = Executors.newFixedThreadPool(threads);
+        ScheduledExecutorService delays = Executors.newScheduledThreadPool(2);
+        callee.addListener(new UserAgentListener() {
+            @Override
+            public void incomingCall(Call call) {
+                double dice = ThreadLocalRandom.current().nextDouble();
+                if (dice < acceptRatio) {
+                    answerers.execute(() -> count("aceptar", call.accept()));
+                } else if (dice < acceptRatio + rejectRatio) {
+                    answerers.execute(() -> count("rechazar", call.reject()));
+                } else if (dice < acceptRatio + rejectRatio + (1 - acceptRatio - rejectRatio) / 2) {
+                    // Contesta justo alrededor del timeout: unas veces gana el 200, otras el 408
+                    long delay = noAnswerMs - 5 + ThreadLocalRandom.current().nextLong(10);
+                    delays.schedule(() -> answerers.execute(() -> count("aceptar-límite", call.accept())),
+                            delay, TimeUnit.MILLISECONDS);
+                }
+                // Y el resto se deja sonar hasta el 408
+            }
+        });
+        caller.start();
+        callee.start();
+        caller.register().get(10, TimeUnit.SECONDS);
+        callee.register().get(10, TimeUnit.SECONDS);
+
+        out.println("[Stress] calls=" + calls + " threads=" + threads + " concurrency=" + concurrency
+                + " accept=" + acceptRatio + " reject=" + rejectRatio + " noanswer.time=" + noAnswerMs + "ms");
+
+        Semaphore inFlight = new Semaphore(concurrency);
+        List<CompletableFuture<?>> pending = new ArrayList<>(calls * 2);
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        long dropsBefore = udpReceiveErrors();
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> launched = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int share = calls / threads + (t < calls % threads ? 1 : 0);
+            launched.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < share; i++) {
+                    inFlight.acquireUninterruptibly();
+                    CompletableFuture<Void> done = caller.invite("stressB").handle((call, error) -> {
+                        if (error == null) {
+                            count("200");
+                            // Colgar en cuanto se establece: BYE mientras puede llegar aún el ACK
+                            return call.bye().handle((v, byeError) -> {
+                                count(byeError == null ? "bye" : "bye-failed");
+                                return (Void) null;
+                            });
+                        }
+                        count(reason(error));
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }).thenCompose(f -> f);
+                    done.whenComplete((v, e) -> inFlight.release());
+                    synchronized (pending) {
+                        pending.add(done);
+                    }
+                }
+            }, callers));
+        }
+        CompletableFuture.allOf(launched.toArray(new CompletableFuture<?>[0])).join();
+
+        // Cada llamada termina a lo sumo en noAnswerMs más el viaje de los mensajes
+        CompletableFuture<Void> all;
+        synchronized (pending) {
+            all = CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
+        }
+        long lost = 0;
+        try {
+            all.get(30, TimeUnit.SECONDS);
+        } catch (java.util.concurrent.TimeoutException e) {
+            synchronized (pending) {
+                for (CompletableFuture<?> f : pending) {
+                    if (!f.isDone()) {
+                        lost++;
+                    }
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Vencidos los temporizadores de las transacciones, las tablas deben quedar vacías
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline && leftovers(caller, callee) > 0) {
+            Thread.sleep(100);
+        }
+
+        out.println("========== [UA STRESS] ==========");
+        out.printf("%d INVITE en %.2f s%n", calls, elapsed / 1e9);
+        for (Map.Entry<String, LongAdder> outcome : new TreeMap<>(outcomes).entrySet()) {
+            out.printf("  %-16s %d%n", outcome.getKey(), outcome.getValue().sum());
+        }
+        out.println("Operaciones sin completar: " + lost);
+        out.println("Llamadas abiertas: llamante " + caller.getCalls().size() + ", llamado " + callee.getCalls().size());
+        out.println("Transacciones abiertas: llamante " + caller.getPendingTransactions()
+                + ", llamado " + callee.getPendingTransactions());
+        out.println("Mensajes reenviados por el relé: " + relay.forwarded.sum());
+        Map<String, Number> metrics = caller.getMetrics().snapshot();
+        out.printf("INVITE→180 p50/p99: %s/%s ms   INVITE→200 p50/p99: %s/%s ms%n",
+                metrics.get("invite_to_ringing_seconds.p50_ms"), metrics.get("invite_to_ringing_seconds.p99_ms"),
+                metrics.get("invite_to_ok_seconds.p50_ms"), metrics.get("invite_to_ok_seconds.p99_ms"));
+        long dropsAfter = udpReceiveErrors();
+        if (dropsBefore >= 0 && dropsAfter >= 0) {
+            out.println("Datagramas UDP descartados por el sistema: " + (dropsAfter - dropsBefore));
+        }
+        out.println("=================================");
+
+        caller.close();
+        callee.close();
+        relay.close();
+        answerers.shutdownNow();
+        delays.shutdownNow();
+        callers.shutdownNow();
+        return lost == 0 && leftovers(caller, callee) == 0;
+    }
+
+    private static int leftovers(UserAgent caller, UserAgent callee) {
+        return caller.getCalls().size() + callee.getCalls().size()
+                + caller.getPendingTransactions() + callee.getPendingTransactions();
+    }
+
+    // RcvbufErrors de /proc/net/snmp, o -1 si no se puede leer (fuera de Linux)
+    private static long udpReceiveErrors() {
+        try {
+            List<String> lines = Files.readAllLines(Paths.get("/proc/net/snmp"));
+            for (int i = 0; i + 1 < lines.size(); i++) {
+                if (lines.get(i).startsWith("Udp:") && lines.get(i + 1).startsWith("Udp:")) {
+                    List<String> names = Arrays.asList(lines.get(i).trim().split("\\s+"));
+                    String[] values = lines.get(i + 1).trim().split("\\s+");
+                    int column = names.indexOf("RcvbufErrors");
+                    return (column < 0) ? -1 : Long.parseLong(values[column]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // sin el dato
+        }
+        return -1;
+    }
+
+    private void count(String outcome) {
+        outcomes.computeIfAbsent(outcome, o -> new LongAdder()).increment();
+    }
+
+    // Resultado de accept()/reject(): "ok", o "-tarde" si la llamada ya no sonaba
+    private void count(String operation, CompletableFuture<Void> result) {
+        result.whenComplete((v, error) -> count(operation + (error == null ? "" : "-tarde")));
+    }
+
+    private static String reason(Throwable error) {
+        Throwable cause = (error instanceof CompletionException) ? error.getCause() : error;
+        if (cause instanceof RequestFailedException) {
+            return String.valueOf(((RequestFailedException) cause).getStatusCode());
+        }
+        return cause.getClass().getSimpleName();
+    }
+
+    /**
+     * Relé SIP sin estado: contesta 200 OK a los REGISTER y reenvía el resto, las peticiones
+     * al Contact registrado del To y las respuestas a la primera Via. No añade Via ni
+     * Record-Route, así que ACK y BYE a un 200 OK van directos de un UA al otro.
+     */
+    private static final class Relay extends Thread {
+
+        private final DatagramSocket socket;
+        // URI registrada -> "IP:puerto"
+        private final Map<SipUri, String> contacts = new ConcurrentHashMap<>();
+        final LongAdder forwarded = new LongAdder();
+
+        Relay(int port) throws SocketException {
+            super("stress-relay");
+            setDaemon(true);
+            socket = new DatagramSocket(port);
+        }
+
+        @Override
+        public void run() {
+            byte[] buf = new byte[65536];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buf.length);
+                    socket.receive(packet);
+                    handle(new String(packet.getData(), 0, packet.getLength()));
+                } catch (SIPException e) {
+                    System.err.println("[Stress] Mensaje no válido en el relé: " + e.getMessage());
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        System.err.println("[Stress] Error en el relé: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void handle(String text) throws SIPException, IOException {
+            SIPMessage message = SIPMessage.parseMessage(text);
+            String target;
+            if (message instanceof RegisterMessage) {
+                RegisterMessage register = (RegisterMessage) message;
+                contacts.put(register.getToSipUri().addressOfRecord(), register.getContact());
+                OKMessage ok = (OKMessage) register.createResponse(200);
+                ok.setContact(register.getContact());
+                ok.setExpires(register.getExpires());
+                send(ok.toStringMessage(), register.getVias().get(0));
+                return;
+            }
+            if (text.startsWith("SIP/2.0")) {
+                target = viaOf(text);
+            } else if (message.getToSipUri() != null) {
+                target = contacts.get(message.getToSipUri().addressOfRecord());
+            } else {
+                target = null;
+            }
+            if (target != null) {
+                send(text, target);
+                forwarded.increment();
+            }
+        }
+
+        private void send(String text, String target) throws IOException {
+            String[] hostPort = target.split(":");
+            byte[] data = text.getBytes();
+            socket.send(new DatagramPacket(data, data.length,
+                    new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]))));
+        }
+
+        private static String viaOf(String text) {
+            int start = text.indexOf("Via: SIP/2.0/UDP ") + "Via: SIP/2.0/UDP ".length();
+            int end = text.indexOf('\n', start);
+            String via = text.substring(start, end);
+            int params = via.indexOf(';');
+            return (params < 0) ? via : via.substring(0, params);
+        }
+
+        void close() {
+            socket.close();
+        }
+    }
+}
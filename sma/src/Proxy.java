@@ -1,4 +1,7 @@
+import common.Log;
+import proxy.ProxyOptions;
 import proxy.ProxyUserLayer;
+import mensajesSIP.MessagePool;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
@@ -17,16 +20,118 @@ public class Proxy {
     public static void main(String[] args) throws Exception {
 
         if (args.length < 3) {
-            System.out.println("Uso: java Proxy puertoEscucha looseRouting(true/false) debug(true/false)");
+            System.out.println("Uso: java Proxy puertoEscucha looseRouting(true/false) debug(true/false) [opcion=valor ...]");
+            System.out.println("  Opciones: pool=true|false  reciclar los mensajes SIP en lugar de crearlos en cada datagrama");
+            System.out.println("            queue=N         máximo de mensajes esperando en cada cola de recepción (1000)");
+            System.out.println("            maxcps=N        INVITE/REGISTER nuevos admitidos por segundo, 0 sin límite (200)");
+            System.out.println("            regrate=N       REGISTER admitidos por IP:puerto de origen cada 10 s, 0 sin límite (0)");
+            System.out.println("            auth=true|false autenticación Digest de REGISTER (401) e INVITE (407) (false)");
+            System.out.println("            stats=N         imprimir cada N segundos las medidas de las colas (0, nunca)");
+            System.out.println("            users=fichero   fichero de abonados (el subscribers.txt incluido)");
+            System.out.println("            userscache=N    consultar el fichero en cada búsqueda y cachear N segundos (0, cargarlo al arrancar)");
+            System.out.println("            sockets=N       sockets UDP en el puerto (SO_REUSEPORT), cada uno con su hilo de recepción; 0 = uno por núcleo (1)");
+            System.out.println("            batch=true|false recibir, procesar y enviar los datagramas por lotes (false)");
+            System.out.println("            tcp=true|false  escuchar también por TCP y usarlo para los mensajes grandes (true)");
+            System.out.println("            domains=a,b     dominios que sirve este proxy (SMA)");
+            System.out.println("            route.sufijo=IP:puerto  proxy al que se reenvían los dominios acabados en sufijo (* = por defecto)");
+            System.out.println("            log=nivel       trazas que se escriben: debug, info, warn, error u off (info; debug si debug=true)");
+            System.out.println("            capture=dir     guardar los mensajes enviados y recibidos en ficheros pcap en dir (sin captura)");
+            System.out.println("            capture.size=MB tamaño de cada fichero de captura (64)");
+            System.out.println("            capture.files=N ficheros de captura que se guardan antes de reutilizar el primero (4)");
+            System.out.println("            capture.sample=N capturar una de cada N llamadas, por Call-ID (1, todas)");
+            System.out.println("            capture.callid=a,b capturar solo estos Call-ID");
+            System.out.println("            metrics=puerto  servir las métricas en http://127.0.0.1:puerto/metrics (sin servidor)");
+            System.out.println("            jmx=true|false  publicar las métricas por JMX como sma:type=Proxy (true)");
             return;
         }
 
         int listenPort      = Integer.parseInt(args[0]);
         boolean looseRouting = Boolean.parseBoolean(args[1]);
-        boolean debug        = Boolean.parseBoolean(args[2]); // activa logs completos de SIP si es true
+        boolean debug        = Boolean.parseBoolean(args[2]); // activa una traza por mensaje enviado/recibido
+
+        if (debug) {
+            Log.setLevel(Log.Level.DEBUG);
+        }
+
+        // Opciones adicionales con formato clave=valor
+        ProxyOptions options = new ProxyOptions();
+        for (int i = 3; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            String value = (option.length == 2) ? option[1] : "true";
+            switch (option[0]) {
+                case "pool":
+                    MessagePool.setEnabled(Boolean.parseBoolean(value));
+                    break;
+                case "queue":
+                    options.setQueueCapacity(Integer.parseInt(value));
+                    break;
+                case "maxcps":
+                    options.setMaxNewRequestsPerSecond(Integer.parseInt(value));
+                    break;
+                case "regrate":
+                    options.setRegisterRateLimit(Integer.parseInt(value));
+                    break;
+                case "auth":
+                    options.setAuthentication(Boolean.parseBoolean(value));
+                    break;
+                case "stats":
+                    options.setStatsIntervalSeconds(Integer.parseInt(value));
+                    break;
+                case "users":
+                    options.setUsersFile(value);
+                    break;
+                case "userscache":
+                    options.setUsersCacheSeconds(Integer.parseInt(value));
+                    break;
+                case "sockets":
+                    options.setReceiveSockets(Integer.parseInt(value));
+                    break;
+                case "batch":
+                    options.setBatchIo(Boolean.parseBoolean(value));
+                    break;
+                case "tcp":
+                    options.setTcp(Boolean.parseBoolean(value));
+                    break;
+                case "domains":
+                    options.setLocalDomains(value);
+                    break;
+                case "log":
+                    Log.setLevel(Log.parseLevel(value));
+                    break;
+                case "capture":
+                    options.setCaptureDir(value);
+                    break;
+                case "capture.size":
+                    options.setCaptureFileSizeMb(Integer.parseInt(value));
+                    break;
+                case "capture.files":
+                    options.setCaptureFiles(Integer.parseInt(value));
+                    break;
+                case "capture.sample":
+                    options.setCaptureSample(Integer.parseInt(value));
+                    break;
+                case "capture.callid":
+                    options.setCaptureCallIds(value);
+                    break;
+                case "metrics":
+                    options.setMetricsPort(Integer.parseInt(value));
+                    break;
+                case "jmx":
+                    options.setJmx(Boolean.parseBoolean(value));
+                    break;
+                default:
+                    if (option[0].startsWith("route.")) {
+                        options.addRoute(option[0].substring("route.".length()), value);
+                        break;
+                    }
+                    System.out.println("[Proxy] Opción desconocida ignorada: " + args[i]);
+                    break;
+            }
+        }
 
         System.out.println("Proxy launching with args: " +
-                listenPort + ", " + looseRouting + ", " + debug);
+                listenPort + ", " + looseRouting + ", " + debug
+                + (MessagePool.isEnabled() ? " (pool de mensajes activo)" : ""));
         
         InputStream xml = Proxy.class.getResourceAsStream("/sipServlet/users.xml");
         if (xml == null) {
@@ -53,7 +158,7 @@ public class Proxy {
             }
         }
         
-        ProxyUserLayer userLayer = new ProxyUserLayer(listenPort, looseRouting, debug, servletByUserUri);
+        ProxyUserLayer userLayer = new ProxyUserLayer(listenPort, looseRouting, debug, servletByUserUri, options);
 userLayer.startListening();
     }
 }
@@ -1,10 +1,11 @@
+import common.Log;
 import ua.UaUserLayer;
 
 public class UA {
     public static void main(String[] args) throws Exception {
 
         if (args.length < 6) {
-            System.err.println("Uso: java UA usuarioSIP puertoEscuchaUA IPproxy puertoProxy debug(true/false) tiempo_registro");
+            System.err.println("Uso: java UA usuarioSIP puertoEscuchaUA IPproxy puertoProxy debug(true/false) tiempo_registro [contraseña]");
             return;
         }
 
@@ -16,6 +17,11 @@ public class UA {
         int proxyPort       = Integer.parseInt(args[3]);    // 5060
         boolean debug       = Boolean.parseBoolean(args[4]); // true / false
         int tiempoRegistro  = Integer.parseInt(args[5]);    // en segundos
+        if (debug) {
+            Log.setLevel(Log.Level.DEBUG);
+        }
+        // Contraseña para la autenticación Digest; por defecto, el nombre de usuario
+        String password     = (args.length > 6) ? args[6] : usuarioSip.split("@")[0];
 
         UaUserLayer userLayer = new UaUserLayer(
                 usuarioSip,
@@ -23,7 +29,8 @@ public class UA {
                 proxyAddress,
                 proxyPort,
                 debug,
-                tiempoRegistro
+                tiempoRegistro,
+                password
         );
 
         // Hilo de red
@@ -0,0 +1,212 @@
+package common;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Buffer circular de trazas con un hilo que las escribe, para {@link Log}.
+ * <p>Cualquier hilo puede añadir (varios productores) y solo el hilo "sma-log" las
+ * saca (un consumidor). Las casillas se crean al principio y se reutilizan, y cada una
+ * tiene un número de secuencia que dice de quién es el turno (cola acotada de
+ * D. Vyukov): el productor reserva la posición con un compareAndSet sobre la cola,
+ * rellena la casilla y la publica cambiando su secuencia; el consumidor la lee cuando
+ * la secuencia se lo indica y la devuelve sumándole la capacidad. No hay locks ni se
+ * crea ningún objeto por traza.
+ * <p>El hilo de escritura compone las líneas de todas las trazas disponibles y las
+ * escribe en System.out de una vez; sin trazas, duerme hasta que un productor lo
+ * despierta.
+ */
+final class AsyncAppender {
+
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // Máximo que duerme el hilo de escritura sin trazas (por si se pierde un unpark)
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Una traza pendiente; los campos los escribe el productor y los lee el consumidor. */
+    private static final class Event {
+        long timeMs;
+        Log.Level level;
+        String logger;
+        String format;
+        Object a, b, c;
+        int argc;
+        Throwable cause;
+    }
+
+    private final Event[] events;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    // Siguiente posición que reserva un productor
+    private final AtomicLong tail = new AtomicLong();
+    // Siguiente posición que lee el consumidor; solo la escribe él
+    private volatile long head;
+
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+
+    private final Thread writer;
+    private volatile boolean sleeping;
+
+    AsyncAppender(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.events = new Event[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            events[i] = new Event();
+            sequences.set(i, i);
+        }
+        writer = new Thread(this::run, "sma-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Lo que quede en el buffer al terminar el proceso
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "sma-log-flush"));
+    }
+
+    /**
+     * Añade una traza; si el buffer está lleno la descarta.
+     *
+     * @return  false si se ha descartado
+     */
+    boolean append(long timeMs, Log.Level level, String logger, String format,
+                   Object a, Object b, Object c, int argc, Throwable cause) {
+        long pos;
+        int index;
+        while (true) {
+            pos = tail.get();
+            index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // El consumidor aún no ha liberado esta casilla: buffer lleno
+                dropped.increment();
+                return false;
+            }
+            // diff > 0: otro productor se ha llevado la posición, se prueba con la siguiente
+        }
+        Event e = events[index];
+        e.timeMs = timeMs;
+        e.level  = level;
+        e.logger = logger;
+        e.format = format;
+        e.a = a;
+        e.b = b;
+        e.c = c;
+        e.argc  = argc;
+        e.cause = cause;
+        sequences.set(index, pos + 1);
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Espera a que el consumidor alcance la última posición reservada hasta ahora. */
+    void flush(long timeoutMs) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (head < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    // Hilo de escritura
+    private void run() {
+        StringBuilder out = new StringBuilder(4096);
+        while (true) {
+            long pos = head;
+            int index = (int) pos & mask;
+            if (sequences.get(index) == pos + 1) {
+                Event e = events[index];
+                format(e, out);
+                // Se sueltan las referencias antes de devolver la casilla
+                e.a = e.b = e.c = null;
+                e.cause = null;
+                sequences.set(index, pos + mask + 1);
+                head = pos + 1;
+                if (out.length() < 64 * 1024) {
+                    continue;
+                }
+            }
+            if (out.length() > 0) {
+                write(out);
+                continue;
+            }
+            reportDropped();
+            sleeping = true;
+            // Volver a mirar después de anunciar que se duerme: si un productor ha publicado
+            // justo antes, no ha visto sleeping y no va a despertarnos
+            if (sequences.get((int) head & mask) != head + 1) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.sum();
+        if (total != droppedReported) {
+            StringBuilder out = new StringBuilder();
+            out.append(TIME.format(Instant.now())).append(" WARN  [Log] ")
+               .append(total - droppedReported).append(" trazas descartadas (buffer lleno)\n");
+            droppedReported = total;
+            write(out);
+        }
+    }
+
+    // System.out se consulta en cada escritura: quien lo redirige (System.setOut) lo sigue viendo
+    private static void write(StringBuilder out) {
+        PrintStream stream = System.out;
+        stream.print(out);
+        stream.flush();
+        out.setLength(0);
+    }
+
+    // hh:mm:ss.mmm NIVEL [logger] mensaje
+    private static void format(Event e, StringBuilder out) {
+        TIME.formatTo(Instant.ofEpochMilli(e.timeMs), out);
+        out.append(' ').append(e.level.name());
+        for (int i = e.level.name().length(); i < 5; i++) {
+            out.append(' ');
+        }
+        out.append(" [").append(e.logger).append("] ");
+
+        String format = e.format;
+        int from = 0;
+        for (int arg = 0; arg < e.argc; arg++) {
+            int at = format.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            out.append(format, from, at).append(arg == 0 ? e.a : arg == 1 ? e.b : e.c);
+            from = at + 2;
+        }
+        out.append(format, from, format.length()).append('\n');
+
+        if (e.cause != null) {
+            StringWriter trace = new StringWriter();
+            e.cause.printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+}
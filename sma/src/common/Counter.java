@@ -0,0 +1,32 @@
+package common;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Contador de {@link Metrics}: solo sube.
+ * <p>Es un LongAdder, así que lo pueden incrementar muchos hilos a la vez sin
+ * pelearse por la misma línea de caché; leerlo (sumar las celdas) es lo caro, y eso
+ * solo lo hacen la exportación por HTTP y JMX.
+ */
+public final class Counter implements LongSupplier {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public long getAsLong() {
+        return value.sum();
+    }
+}
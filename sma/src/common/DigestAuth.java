@@ -0,0 +1,60 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cálculos de autenticación Digest (RFC 2617, sin qop) comunes al UA y al proxy.
+ * <p>Cada hilo reutiliza su propio MessageDigest MD5, de modo que calcular una
+ * respuesta no crea ni busca el algoritmo cada vez.
+ * <p>En las cabeceras de esta práctica las credenciales viajan como
+ * "nonce,respuesta" (ver {@link #credentials(String, String)}).
+ */
+public final class DigestAuth {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 no disponible", e);
+        }
+    });
+
+    private DigestAuth() {
+    }
+
+    /** MD5 en hexadecimal (minúsculas) del texto indicado. */
+    public static String md5Hex(String text) {
+        MessageDigest md = MD5.get();
+        md.reset();
+        return toHex(md.digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** HA1 = MD5(usuario:realm:contraseña). Es lo único que el proxy necesita guardar. */
+    public static String ha1(String user, String realm, String password) {
+        return md5Hex(user + ":" + realm + ":" + password);
+    }
+
+    /** respuesta = MD5(HA1:nonce:MD5(método:uri)). */
+    public static String response(String ha1, String method, String uri, String nonce) {
+        String ha2 = md5Hex(method + ":" + uri);
+        return md5Hex(ha1 + ":" + nonce + ":" + ha2);
+    }
+
+    /** Valor de las cabeceras Authorization / ProxyAuthentication. */
+    public static String credentials(String nonce, String response) {
+        return nonce + "," + response;
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i]     = HEX[(bytes[i] >> 4) & 0x0f];
+            out[2 * i + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(out);
+    }
+}
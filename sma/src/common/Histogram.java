@@ -0,0 +1,121 @@
+package common;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias de {@link Metrics}.
+ * <p>Los límites de los cubos son fijos (de 100 µs a 30 s, más uno para lo que pase de
+ * ahí) y cada cubo es un LongAdder: registrar una muestra es buscar su cubo y sumar
+ * uno, sin locks ni memoria nueva. Los percentiles que se calculan a partir de los
+ * cubos son aproximados: devuelven el límite superior del cubo en el que caen.
+ */
+public final class Histogram {
+
+    // Límite superior de cada cubo, en nanosegundos
+    private static final long[] BOUNDS_NANOS = {
+            100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L,
+            10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L,
+            10_000_000_000L, 30_000_000_000L
+    };
+
+    // Los límites en segundos tal como se escriben en la etiqueta le ("0.0001", no "1.0E-4")
+    private static final String[] BOUNDS_LABELS = new String[BOUNDS_NANOS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+            BOUNDS_LABELS[i] = BigDecimal.valueOf(BOUNDS_NANOS[i], 9).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    // Un cubo por límite y el último para lo que los supera todos
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /** Registra una muestra, en nanosegundos. */
+    public void observeNanos(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /** Registra el tiempo que ha pasado desde startNanos (un System.nanoTime() anterior). */
+    public void observeSince(long startNanos) {
+        observeNanos(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Media en milisegundos; 0 si no hay muestras. */
+    public double getMeanMillis() {
+        long n = count.sum();
+        return (n == 0) ? 0 : sumNanos.sum() / 1e6 / n;
+    }
+
+    /**
+     * Percentil aproximado, en milisegundos: el límite del cubo en el que cae.
+     *
+     * @param quantile  entre 0 y 1 (0.99 para el p99)
+     */
+    public double getQuantileMillis(double quantile) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS_NANOS[Math.min(i, BOUNDS_NANOS.length - 1)] / 1e6;
+            }
+        }
+        return BOUNDS_NANOS[BOUNDS_NANOS.length - 1] / 1e6;
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Escribe el histograma en el formato de texto de Prometheus: cubos acumulados
+     * con el límite en segundos, suma y número de muestras.
+     */
+    void writeText(StringBuilder out, String name) {
+        long[] counts = snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+            cumulative += counts[i];
+            out.append(name).append("_bucket{le=\"").append(BOUNDS_LABELS[i]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        cumulative += counts[BOUNDS_NANOS.length];
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
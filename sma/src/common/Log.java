@@ -0,0 +1,216 @@
+package common;
+
+/**
+ * Trazas del UA y del proxy, con nivel y escritas en segundo plano.
+ * <p>Cada capa tiene su Log con el nombre que antes ponía a mano entre corchetes
+ * ("Proxy-TX", "UA-TX"...). Los mensajes llevan el texto fijo y los datos aparte, con
+ * {} en su lugar:
+ * <pre>
+ *     LOG.info("Reenviando BYE a {} en {}:{}", toUri, ip, port);
+ * </pre>
+ * Lo primero que hace cada método es comparar el nivel, de modo que una traza
+ * desactivada no construye ningún String. Si está activa, el hilo que la pide solo
+ * copia las referencias en un buffer circular ({@link AsyncAppender}); el texto se
+ * compone y se escribe en System.out desde un hilo aparte, así que los hilos de red no
+ * se esperan unos a otros en el lock de System.out.
+ * <p>Como el texto se compone más tarde, los argumentos que no son String, números,
+ * booleanos, caracteres o enums se convierten a String en el momento de la llamada (un
+ * mensaje SIP del pool puede estar reciclado cuando se escriba la traza). Si calcular
+ * un argumento es caro, se comprueba antes {@link #isDebugEnabled()}.
+ * <p>Si el buffer se llena (el hilo de escritura no da abasto), las trazas nuevas se
+ * descartan y se cuentan, en lugar de frenar a quien las pide.
+ */
+public final class Log {
+
+    /** Niveles, de más detalle a menos. OFF no escribe nada. */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    // Trazas pendientes de escribir que caben en el buffer
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final AsyncAppender APPENDER = new AsyncAppender(BUFFER_SIZE);
+
+    // Nivel mínimo que se escribe (ordinal de Level); común a todos los Log
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    private final String name;
+
+    private Log(String name) {
+        this.name = name;
+    }
+
+    /** Log de una capa; name es lo que sale entre corchetes en cada línea. */
+    public static Log get(String name) {
+        return new Log(name);
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static Level getLevel() {
+        return Level.values()[threshold];
+    }
+
+/**
+ * Nivel a partir de su nombre, sin distinguir mayúsculas ("debug", "WARN"...).
+ *
+ * @throws IllegalArgumentException  si no es ningún nivel
+ */
+    public static Level parseLevel(String name) {
+        return Level.valueOf(name.trim().toUpperCase());
+    }
+
+    /**
+     * Espera (como mucho timeoutMs) a que se hayan escrito todas las trazas pedidas hasta
+     * ahora. Para quien va a cerrar la salida o terminar el proceso.
+     */
+    public static void flush(long timeoutMs) {
+        APPENDER.flush(timeoutMs);
+    }
+
+    /** Trazas descartadas desde el arranque por tener el buffer lleno. */
+    public static long getDropped() {
+        return APPENDER.getDropped();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDebugEnabled() {
+        return threshold <= Level.DEBUG.ordinal();
+    }
+
+    public boolean isInfoEnabled() {
+        return threshold <= Level.INFO.ordinal();
+    }
+
+    // --------- DEBUG ---------
+
+    public void debug(String message) {
+        if (threshold <= Level.DEBUG.ordinal()) {
+            log(Level.DEBUG, message, null, null, null, 0, null);
+        }
+    }
+
+    public void debug(String format, Object a) {
+        if (threshold <= Level.DEBUG.ordinal()) {
+            log(Level.DEBUG, format, a, null, null, 1, null);
+        }
+    }
+
+    public void debug(String format, Object a, Object b) {
+        if (threshold <= Level.DEBUG.ordinal()) {
+            log(Level.DEBUG, format, a, b, null, 2, null);
+        }
+    }
+
+    public void debug(String format, Object a, Object b, Object c) {
+        if (threshold <= Level.DEBUG.ordinal()) {
+            log(Level.DEBUG, format, a, b, c, 3, null);
+        }
+    }
+
+    // --------- INFO ---------
+
+    public void info(String message) {
+        if (threshold <= Level.INFO.ordinal()) {
+            log(Level.INFO, message, null, null, null, 0, null);
+        }
+    }
+
+    public void info(String format, Object a) {
+        if (threshold <= Level.INFO.ordinal()) {
+            log(Level.INFO, format, a, null, null, 1, null);
+        }
+    }
+
+    public void info(String format, Object a, Object b) {
+        if (threshold <= Level.INFO.ordinal()) {
+            log(Level.INFO, format, a, b, null, 2, null);
+        }
+    }
+
+    public void info(String format, Object a, Object b, Object c) {
+        if (threshold <= Level.INFO.ordinal()) {
+            log(Level.INFO, format, a, b, c, 3, null);
+        }
+    }
+
+    // --------- WARN ---------
+
+    public void warn(String message) {
+        if (threshold <= Level.WARN.ordinal()) {
+            log(Level.WARN, message, null, null, null, 0, null);
+        }
+    }
+
+    public void warn(String format, Object a) {
+        if (threshold <= Level.WARN.ordinal()) {
+            log(Level.WARN, format, a, null, null, 1, null);
+        }
+    }
+
+    public void warn(String format, Object a, Object b) {
+        if (threshold <= Level.WARN.ordinal()) {
+            log(Level.WARN, format, a, b, null, 2, null);
+        }
+    }
+
+    public void warn(String format, Object a, Object b, Object c) {
+        if (threshold <= Level.WARN.ordinal()) {
+            log(Level.WARN, format, a, b, c, 3, null);
+        }
+    }
+
+    // --------- ERROR ---------
+
+    public void error(String message) {
+        if (threshold <= Level.ERROR.ordinal()) {
+            log(Level.ERROR, message, null, null, null, 0, null);
+        }
+    }
+
+    public void error(String format, Object a) {
+        if (threshold <= Level.ERROR.ordinal()) {
+            log(Level.ERROR, format, a, null, null, 1, null);
+        }
+    }
+
+    public void error(String format, Object a, Object b) {
+        if (threshold <= Level.ERROR.ordinal()) {
+            log(Level.ERROR, format, a, b, null, 2, null);
+        }
+    }
+
+    /** Error con la traza de la excepción. */
+    public void error(String message, Throwable cause) {
+        if (threshold <= Level.ERROR.ordinal()) {
+            log(Level.ERROR, message, null, null, null, 0, cause);
+        }
+    }
+
+    /** Error con un dato y la traza de la excepción. */
+    public void error(String format, Object a, Throwable cause) {
+        if (threshold <= Level.ERROR.ordinal()) {
+            log(Level.ERROR, format, a, null, null, 1, cause);
+        }
+    }
+
+    private void log(Level level, String format, Object a, Object b, Object c, int argc, Throwable cause) {
+        APPENDER.append(System.currentTimeMillis(), level, name, format,
+                snapshot(a), snapshot(b), snapshot(c), argc, cause);
+    }
+
+    // Lo que puede cambiar antes de que se escriba la traza se pasa ya a String
+    private static Object snapshot(Object arg) {
+        if (arg == null || arg instanceof String || arg instanceof Number || arg instanceof Boolean
+                || arg instanceof Character || arg instanceof Enum) {
+            return arg;
+        }
+        return String.valueOf(arg);
+    }
+}
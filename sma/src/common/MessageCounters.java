@@ -0,0 +1,92 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Contadores de mensajes SIP por método (peticiones) o por código (respuestas), sacados
+ * de la primera línea del mensaje sin parsearlo ni crear Strings.
+ * <p>Los contadores de los métodos conocidos se crean al principio; los de cada código
+ * de respuesta, la primera vez que aparece. Los métodos que no están en la lista se
+ * cuentan juntos como "other".
+ */
+public final class MessageCounters {
+
+    private static final String[] METHODS = {"INVITE", "ACK", "BYE", "CANCEL", "REGISTER", "OPTIONS"};
+    private static final byte[][] METHOD_PREFIXES = new byte[METHODS.length][];
+    private static final byte[] RESPONSE = "SIP/2.0 ".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_PREFIXES[i] = (METHODS[i] + " ").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final Metrics metrics;
+    private final String name;
+    private final String help;
+    private final Counter[] byMethod = new Counter[METHODS.length];
+    private final Counter otherMethod;
+    // Por código de respuesta (100..699)
+    private final AtomicReferenceArray<Counter> byStatus = new AtomicReferenceArray<>(700);
+
+    /**
+     * @param name  nombre de la métrica en el registro, p.ej. "messages_received_total"
+     */
+    public MessageCounters(Metrics metrics, String name, String help) {
+        this.metrics = metrics;
+        this.name = name;
+        this.help = help;
+        for (int i = 0; i < METHODS.length; i++) {
+            byMethod[i] = metrics.counter(name, help, "method", METHODS[i]);
+        }
+        otherMethod = metrics.counter(name, help, "method", "other");
+    }
+
+    /** Cuenta el mensaje que hay en los primeros length bytes de data. */
+    public void count(byte[] data, int length) {
+        if (startsWith(data, length, RESPONSE)) {
+            countStatus(digit(data, length, 8), digit(data, length, 9), digit(data, length, 10));
+            return;
+        }
+        for (int i = 0; i < METHOD_PREFIXES.length; i++) {
+            if (startsWith(data, length, METHOD_PREFIXES[i])) {
+                byMethod[i].increment();
+                return;
+            }
+        }
+        otherMethod.increment();
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Valor del dígito en la posición i, o -1 si no es un dígito
+    private static int digit(byte[] data, int length, int i) {
+        return (i < length && data[i] >= '0' && data[i] <= '9') ? data[i] - '0' : -1;
+    }
+
+    private void countStatus(int hundreds, int tens, int units) {
+        if (hundreds < 1 || hundreds > 6 || tens < 0 || units < 0) {
+            otherMethod.increment();
+            return;
+        }
+        int status = hundreds * 100 + tens * 10 + units;
+        Counter counter = byStatus.get(status);
+        if (counter == null) {
+            // Si dos hilos llegan a la vez, el registro devuelve el mismo contador a los dos
+            counter = metrics.counter(name, help, "status", Integer.toString(status));
+            byStatus.set(status, counter);
+        }
+        counter.increment();
+    }
+}
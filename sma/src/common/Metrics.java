@@ -0,0 +1,233 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registro de métricas del proxy o de un UA: contadores, histogramas de latencia y
+ * valores que se leen en el momento (gauges).
+ * <p>Cada capa pide aquí sus contadores e histogramas al crearse y se los guarda en un
+ * campo, de modo que en el camino de los mensajes no se busca nada: solo se suma en un
+ * LongAdder. Las medidas que ya lleva otra clase (la profundidad de una cola, los
+ * descartes de la captura) se registran con un LongSupplier que se consulta al exportar.
+ * <p>Las métricas se pueden leer de dos formas:
+ * <ul>
+ *   <li>por JMX ({@link #registerMBean(String)}), con jconsole o VisualVM, y</li>
+ *   <li>en texto con el formato de Prometheus, en http://127.0.0.1:puerto/metrics
+ *       ({@link #startHttpServer(int)}).</li>
+ * </ul>
+ * Los nombres llevan delante el prefijo del registro ("sma_proxy_messages_received_total")
+ * y pueden tener una etiqueta ({method="INVITE"}, {queue="register"}).
+ */
+public final class Metrics {
+
+    private static final Log LOG = Log.get("Metrics");
+
+    /** Una métrica con todas sus series (una por valor de la etiqueta). */
+    private static final class Family {
+        final String help;
+        final String type;
+        // Etiqueta ("" si no tiene) -> Counter, Histogram o LongSupplier
+        final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final String prefix;
+    // Por nombre completo, para exportarlas siempre en el mismo orden
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private ObjectName mbeanName;
+    private HttpServer httpServer;
+
+    /**
+     * @param prefix  se antepone a todos los nombres, p.ej. "sma_proxy"
+     */
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    // ================== REGISTRO ==================
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /** Contador de una serie con etiqueta, p.ej. counter(..., "method", "INVITE"). */
+    public Counter counter(String name, String help, String label, String value) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(labels(label, value), k -> new Counter());
+    }
+
+    /** Contador que ya lleva otra clase; se lee de source al exportar. */
+    public void counter(String name, String help, String label, String value, LongSupplier source) {
+        family(name, help, "counter").series.put(labels(label, value), source);
+    }
+
+    public Histogram histogram(String name, String help) {
+        return (Histogram) family(name, help, "histogram").series.computeIfAbsent("", k -> new Histogram());
+    }
+
+    public void gauge(String name, String help, LongSupplier source) {
+        gauge(name, help, null, null, source);
+    }
+
+    public void gauge(String name, String help, String label, String value, LongSupplier source) {
+        family(name, help, "gauge").series.put(labels(label, value), source);
+    }
+
+    private Family family(String name, String help, String type) {
+        return families.computeIfAbsent(prefix + "_" + name, n -> new Family(help, type));
+    }
+
+    private static String labels(String label, String value) {
+        if (label == null) {
+            return "";
+        }
+        return label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    // ================== EXPORTACIÓN ==================
+
+    /**
+     * Todas las métricas en el formato de texto de Prometheus (versión 0.0.4).
+     */
+    public String toText() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    ((Histogram) metric).writeText(out, name);
+                    continue;
+                }
+                out.append(name);
+                if (!series.getKey().isEmpty()) {
+                    out.append('{').append(series.getKey()).append('}');
+                }
+                out.append(' ').append(((LongSupplier) metric).getAsLong()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Valores actuales con nombres cortos, sin prefijo ("messages_received_total.INVITE"),
+     * para JMX. De cada histograma salen el número de muestras, la media y los
+     * percentiles 50, 90 y 99 en milisegundos.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        int skip = prefix.length() + 1;
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey().substring(skip);
+            for (Map.Entry<String, Object> series : entry.getValue().series.entrySet()) {
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    values.put(name + ".count", histogram.getCount());
+                    values.put(name + ".mean_ms", histogram.getMeanMillis());
+                    values.put(name + ".p50_ms", histogram.getQuantileMillis(0.50));
+                    values.put(name + ".p90_ms", histogram.getQuantileMillis(0.90));
+                    values.put(name + ".p99_ms", histogram.getQuantileMillis(0.99));
+                    continue;
+                }
+                String key = series.getKey();
+                // method="INVITE" -> .INVITE
+                String suffix = key.isEmpty() ? "" : "." + key.substring(key.indexOf('"') + 1, key.length() - 1);
+                values.put(name + suffix, ((LongSupplier) metric).getAsLong());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Publica las métricas por JMX con el nombre indicado (p.ej. "sma:type=Proxy,port=5060").
+     * Si ya había otro registro con ese nombre en la JVM, lo sustituye.
+     */
+    public synchronized void registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(this), name);
+            mbeanName = name;
+        } catch (JMException e) {
+            LOG.warn("No se pueden publicar las métricas por JMX como {}: {}", objectName, e.getMessage());
+        }
+    }
+
+    /**
+     * Sirve las métricas en http://127.0.0.1:port/metrics. Solo escucha en la interfaz
+     * local: para sacarlas fuera está el agente de monitorización de la máquina.
+     */
+    public synchronized void startHttpServer(int port) throws IOException {
+        if (httpServer != null) {
+            return;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::serve);
+        // Con executor null las peticiones se atienden en el hilo del propio servidor
+        server.start();
+        httpServer = server;
+        LOG.info("Métricas en http://127.0.0.1:{}/metrics", port);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Para el servidor HTTP y retira el MBean, si se habían arrancado.
+     */
+    public synchronized void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                // ya no estaba registrado
+            }
+            mbeanName = null;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Separa en mensajes SIP los bytes que llegan por una conexión TCP.
+ * <p>En un stream no hay límites de datagrama: un mensaje termina en la línea en blanco
+ * de las cabeceras más los Content-Length bytes del cuerpo (RFC 3261, 18.3). Los bytes
+ * se acumulan aquí hasta que hay un mensaje completo; puede haber varios mensajes en
+ * una misma lectura, o un mensaje repartido entre varias.
+ */
+public final class SipStreamFramer {
+
+    /** Tamaño máximo de un mensaje; por encima se considera un error y se cierra la conexión. */
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+
+    private byte[] buffer = new byte[4 * 1024];
+    private int start;   // primer byte sin consumir
+    private int end;     // fin de los datos recibidos
+
+    /**
+     * Añade los bytes leídos de la conexión.
+     */
+    public void feed(ByteBuffer data) {
+        int length = data.remaining();
+        if (end + length > buffer.length) {
+            compact(length);
+        }
+        data.get(buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * Saca el siguiente mensaje completo.
+     *
+     * @return  los bytes del mensaje, o null si todavía no ha llegado entero
+     * @throws IOException si las cabeceras o el Content-Length no son válidos
+     */
+    public byte[] next() throws IOException {
+        // Los CRLF sueltos entre mensajes son keep-alives (RFC 5626); se ignoran
+        while (start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+            start++;
+        }
+        if (start == end) {
+            start = end = 0;
+            return null;
+        }
+
+        int headersEnd = findHeadersEnd();
+        if (headersEnd < 0) {
+            if (end - start > MAX_MESSAGE_SIZE) {
+                throw new IOException("Cabeceras SIP demasiado largas");
+            }
+            return null;
+        }
+
+        int bodyLength = contentLength(headersEnd);
+        int total = headersEnd - start + bodyLength;
+        if (total > MAX_MESSAGE_SIZE) {
+            throw new IOException("Mensaje SIP demasiado largo: " + total + " bytes");
+        }
+        if (end - start < total) {
+            return null;
+        }
+
+        byte[] message = Arrays.copyOfRange(buffer, start, start + total);
+        start += total;
+        return message;
+    }
+
+    // Posición siguiente a la línea en blanco ("\n\n" o "\r\n\r\n"), o -1
+    private int findHeadersEnd() {
+        for (int i = start; i < end - 1; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            if (buffer[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (buffer[i + 1] == '\r' && i + 2 < end && buffer[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    // Valor de Content-Length (o su forma compacta "l:"); 0 si no viene
+    private int contentLength(int headersEnd) throws IOException {
+        int lineStart = start;
+        while (lineStart < headersEnd) {
+            int lineEnd = lineStart;
+            while (lineEnd < headersEnd && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int colon = lineStart;
+            while (colon < lineEnd && buffer[colon] != ':') {
+                colon++;
+            }
+            if (colon < lineEnd && isContentLength(lineStart, colon)) {
+                return parseLength(colon + 1, lineEnd);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return 0;
+    }
+
+    private boolean isContentLength(int from, int colon) {
+        int to = colon;
+        while (to > from && buffer[to - 1] == ' ') {
+            to--;
+        }
+        int length = to - from;
+        if (length == 1) {
+            return buffer[from] == 'l' || buffer[from] == 'L';
+        }
+        if (length != 14) {
+            return false;
+        }
+        return new String(buffer, from, length, StandardCharsets.US_ASCII)
+                .equalsIgnoreCase("Content-Length");
+    }
+
+    private int parseLength(int from, int to) throws IOException {
+        int value = 0;
+        boolean digits = false;
+        for (int i = from; i < to; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits = true;
+                if (value > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Content-Length demasiado grande");
+                }
+            } else if (b != ' ' && b != '\t' && b != '\r') {
+                throw new IOException("Content-Length incorrecto");
+            }
+        }
+        if (!digits) {
+            throw new IOException("Content-Length incorrecto");
+        }
+        return value;
+    }
+
+    // Mueve lo pendiente al principio y, si no cabe lo nuevo, agranda el buffer
+    private void compact(int incoming) {
+        int pending = end - start;
+        byte[] target = buffer;
+        if (pending + incoming > buffer.length) {
+            target = new byte[Math.max(buffer.length * 2, pending + incoming)];
+        }
+        System.arraycopy(buffer, start, target, 0, pending);
+        buffer = target;
+        start = 0;
+        end = pending;
+    }
+}
@@ -0,0 +1,309 @@
+package common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Transporte SIP sobre TCP, común al UA y al proxy.
+ * <p>Un único hilo atiende con un Selector de NIO todas las conexiones: acepta las
+ * entrantes, lee y separa los mensajes con {@link SipStreamFramer} y escribe lo
+ * pendiente de cada conexión. Hay como mucho una conexión por extremo remoto
+ * (IP:puerto), que se reutiliza para todos los mensajes hacia él, y las conexiones sin
+ * tráfico durante {@link #IDLE_TIMEOUT_MS} se cierran.
+ * <p>La capa de transporte de cada lado sigue usando UDP para los mensajes normales y
+ * solo pasa a TCP los que superan {@link #MTU_LIMIT} (RFC 3261, 18.1.1).
+ */
+public class TcpTransport {
+
+    /**
+     * Tamaño a partir del cual un mensaje se envía por TCP: 1300 bytes, el valor que
+     * indica la RFC 3261 cuando no se conoce la MTU del camino.
+     */
+    public static final int MTU_LIMIT = 1300;
+
+    /** Tiempo sin tráfico tras el que se cierra una conexión. */
+    public static final long IDLE_TIMEOUT_MS = 60_000;
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long SELECT_TIMEOUT_MS = 1_000;
+
+    /** Quien recibe los mensajes que llegan por TCP. */
+    public interface Receiver {
+        void onMessage(byte[] message, String sourceIp, int sourcePort);
+    }
+
+    private final String name;
+    private final Log log;
+    private final Receiver receiver;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Conexiones abiertas por extremo remoto; se consulta desde los hilos que envían
+    private final Map<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    // Cambios en el Selector pedidos desde otros hilos; los aplica el hilo del Selector
+    private final Queue<Runnable> pendingChanges = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+    private long lastReapMs = System.currentTimeMillis();
+
+    /**
+     * Abre el puerto TCP de escucha (el mismo número que el de UDP).
+     *
+     * @param listenPort  puerto de escucha
+     * @param receiver    destino de los mensajes recibidos (se llama desde el hilo del Selector)
+     * @param name        nombre para el hilo y los logs ("proxy", "ua")
+     */
+    public TcpTransport(int listenPort, Receiver receiver, String name) throws IOException {
+        this.name = name;
+        this.log = Log.get(name + "-tcp");
+        this.receiver = receiver;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(listenPort));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /** Arranca el hilo del Selector. */
+    public void start() {
+        Thread thread = new Thread(this::selectLoop, name + "-tcp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Envía un mensaje por la conexión con ese extremo, abriéndola si no existe.
+     * El envío es asíncrono: los bytes se encolan y los escribe el hilo del Selector.
+     */
+    public void send(byte[] bytes, String address, int port) throws IOException {
+        InetSocketAddress remote = new InetSocketAddress(address, port);
+        Connection connection = connections.get(remote);
+        if (connection == null) {
+            connection = connect(remote);
+        }
+        connection.writeQueue.add(ByteBuffer.wrap(bytes));
+        final Connection target = connection;
+        pendingChanges.add(() -> target.interestWrite());
+        selector.wakeup();
+    }
+
+    /** Cierra el puerto de escucha y todas las conexiones. */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    private Connection connect(InetSocketAddress remote) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, remote);
+        Connection existing = connections.putIfAbsent(remote, connection);
+        if (existing != null) {
+            // Otro hilo la ha abierto a la vez
+            channel.close();
+            return existing;
+        }
+        channel.connect(remote);
+        pendingChanges.add(() -> connection.register(SelectionKey.OP_CONNECT));
+        return connection;
+    }
+
+    // ================== HILO DEL SELECTOR ==================
+
+    private void selectLoop() {
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+
+                Runnable change;
+                while ((change = pendingChanges.poll()) != null) {
+                    change.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+
+                reapIdleConnections();
+            } catch (IOException e) {
+                log.error("Error en el Selector: {}", e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void handle(SelectionKey key) {
+        if (key.attachment() == null) {
+            if (key.isValid() && key.isAcceptable()) {
+                accept();
+            }
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                if (!connection.channel.finishConnect()) {
+                    return;
+                }
+                connection.touch();
+                connection.updateInterest();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            log.warn("Conexión con {} cerrada: {}", connection.remote, e.getMessage());
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            Connection connection = new Connection(channel, remote);
+            Connection previous = connections.put(remote, connection);
+            if (previous != null) {
+                previous.close();
+            }
+            connection.register(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            log.error("Error aceptando conexión: {}", e.getMessage());
+        }
+    }
+
+    private void reapIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastReapMs < SELECT_TIMEOUT_MS) {
+            return;
+        }
+        lastReapMs = now;
+        for (Connection connection : connections.values()) {
+            if (now - connection.lastActivityMs > IDLE_TIMEOUT_MS && connection.writeQueue.isEmpty()) {
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (Connection connection : connections.values()) {
+            connection.close();
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Una conexión TCP con un extremo remoto. */
+    private final class Connection {
+        final SocketChannel channel;
+        final InetSocketAddress remote;
+        final String remoteIp;
+        final SipStreamFramer framer = new SipStreamFramer();
+        final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        SelectionKey key;
+        volatile long lastActivityMs = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, InetSocketAddress remote) {
+            this.channel = channel;
+            this.remote = remote;
+            this.remoteIp = remote.getAddress().getHostAddress();
+        }
+
+        void touch() {
+            lastActivityMs = System.currentTimeMillis();
+        }
+
+        void register(int ops) {
+            try {
+                key = channel.register(selector, ops, this);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void interestWrite() {
+            if (key != null && key.isValid() && channel.isConnected()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Tras conectar: leer siempre, y escribir si hay algo pendiente
+        void updateInterest() {
+            int ops = SelectionKey.OP_READ;
+            if (!writeQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            touch();
+            readBuffer.flip();
+            framer.feed(readBuffer);
+            byte[] message;
+            while ((message = framer.next()) != null) {
+                receiver.onMessage(message, remoteIp, remote.getPort());
+            }
+        }
+
+        void write() throws IOException {
+            ByteBuffer pendingBytes;
+            while ((pendingBytes = writeQueue.peek()) != null) {
+                channel.write(pendingBytes);
+                if (pendingBytes.hasRemaining()) {
+                    // El socket está lleno: se sigue cuando vuelva a admitir datos
+                    return;
+                }
+                writeQueue.poll();
+            }
+            touch();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            connections.remove(remote, this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -172,48 +173,48 @@ public class ACKMessage extends SIPMessage {
     }
 
 /**
- * Recupera el cSeqNumber de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqStr
- * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqStr= INVITE 
+ * Recupera el cSeqNumber de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqMethod
+ * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqMethod= INVITE 
  * 
  * @return      el cSeqNumber de la llamada
  */
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
 /**
- * Establece el cSeqNumber de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqStr
- * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqStr= INVITE 
+ * Establece el cSeqNumber de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqMethod
+ * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqMethod= INVITE 
  *
  * @param	cSeqNumber 	 el cSeqNumber de la llamada
  */
 
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
 /**
- * Recupera el cSeqStr de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqStr.
- * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqStr= INVITE 
+ * Recupera el cSeqMethod de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqMethod.
+ * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqMethod= INVITE 
  * 
- * @return      el cSeqStr de la llamada
+ * @return      el mtodo del CSeq
  */
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
 /**
- * Establece el cSeqStr de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqStr.
- * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqStr= INVITE 
+ * Establece el cSeqMethod de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqMethod.
+ * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqMethod= INVITE 
  *
- * @param	cSeqStr  el cSeqNumber de la llamada
+ * @param	cSeqMethod  el mtodo del CSeq
  */
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
 /**
@@ -294,11 +295,30 @@ public class ACKMessage extends SIPMessage {
         this.contentLength = contentLength;
     }
 
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitAck(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        destination = null;
+        route = null;
+        maxForwards = 0;
+        contentLength = 0;
+    }
+
 /**
  * Convierte el mensaje en un String. Para ello concatena la informacin de las cabeceras del mensaje.
  * El toName y el fromName son opcionales a la hora de componer las cabeceras to y from pero las URIs si han de estar presentes en las variables toUri y fromUri
  * Estas cabeceras se componen como "To: " + toName + " <" + toUri + ">\n"
- * El CSeq se compone como "CSeq: " + cSeqNumber + " " + cSeqStr + "\n"
+ * El CSeq se compone como "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n"
  * No hay contact
  * No hay carga en SDP debe tener contenido
  * la cabecera route es opcional (en funcin de si se ha especificado loose routing en el INVITE)
@@ -311,22 +331,22 @@ public class ACKMessage extends SIPMessage {
         String ack;
         ack = "ACK " + destination + " SIP/2.0\n";
         for (int i=0; i<vias.size(); i++) {
-            ack += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            ack += viaHeader(vias.get(i)) + "\n";
         }
         if (route != null) {
             ack += "Route: " + route + "\n";
         }
         ack += "Max-Forwards: " + maxForwards + "\n";
         if(getToName()!=null)
-            ack += "To: " + getToName() + " <" + toUri + ">\n";
+            ack += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            ack += "To: <" + toUri + ">\n";
+            ack += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            ack += "From: " + fromName + " <" + fromUri + ">\n";
+            ack += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            ack += "From: <" + fromUri + ">\n";
+            ack += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         ack += "Call-ID: " + callId + "\n";
-        ack += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        ack += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         ack += "\n";
 
         return ack;
@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -70,20 +71,20 @@ public class BusyHereMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
     public int getContentLength() {
@@ -94,23 +95,34 @@ public class BusyHereMessage extends SIPMessage {
         this.contentLength = contentLength;
     }
 
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitBusyHere(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        contentLength = 0;
+    }
+
     @Override
     public String toStringMessage() {
         String bh;
         bh = "SIP/2.0 486 Busy Here\n";
         for (int i=0; i<vias.size(); i++) {
-            bh += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            bh += viaHeader(vias.get(i)) + "\n";
         }
         if(getToName()!=null)
-            bh += "To: " + getToName() + " <" + toUri + ">\n";
+            bh += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            bh += "To: <" + toUri + ">\n";
+            bh += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            bh += "From: " + fromName + " <" + fromUri + ">\n";
+            bh += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            bh += "From: <" + fromUri + ">\n";
+            bh += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         bh += "Call-ID: " + callId + "\n";
-        bh += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        bh += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         bh += "Content-Length: " + contentLength + "\n";
         bh += "\n";
 
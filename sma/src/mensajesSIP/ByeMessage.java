@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -74,20 +75,20 @@ public class ByeMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
     public String getDestination() {
@@ -122,27 +123,46 @@ public class ByeMessage extends SIPMessage {
         this.contentLength = contentLength;
     }
 
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitBye(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        destination = null;
+        route = null;
+        maxForwards = 0;
+        contentLength = 0;
+    }
+
     @Override
     public String toStringMessage() {
         String bye;
         bye = "BYE " + destination + " SIP/2.0\n";
         for (int i=0; i<vias.size(); i++) {
-            bye += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            bye += viaHeader(vias.get(i)) + "\n";
         }
         if (route != null) {
             bye += "Route: " + route + "\n";
         }
         bye += "Max-Forwards: " + maxForwards + "\n";
         if(getToName()!=null)
-            bye += "To: " + getToName() + " <" + toUri + ">\n";
+            bye += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            bye += "To: <" + toUri + ">\n";
+            bye += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            bye += "From: " + fromName + " <" + fromUri + ">\n";
+            bye += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            bye += "From: <" + fromUri + ">\n";
+            bye += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         bye += "Call-ID: " + callId + "\n";
-        bye += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        bye += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         bye += "Content-Length: " + contentLength + "\n";
         bye += "\n";
 
@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -182,47 +183,47 @@ public class InviteMessage extends SIPMessage {
     }
 
 /**
- * Recupera el cSeqNumber de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqStr
- * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqStr= INVITE 
+ * Recupera el cSeqNumber de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqMethod
+ * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqMethod= INVITE 
  * 
  * @return      el cSeqNumber de la llamada
  */
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
 /**
- * Establece el cSeqNumber de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqStr
- * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqStr= INVITE 
+ * Establece el cSeqNumber de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqMethod
+ * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqMethod= INVITE 
  *
  * @param	cSeqNumber 	 el cSeqNumber de la llamada
  */
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
 /**
- * Recupera el cSeqStr de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqStr.
- * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqStr= INVITE 
+ * Recupera el cSeqMethod de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqMethod.
+ * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqMethod= INVITE 
  * 
- * @return      el cSeqStr de la llamada
+ * @return      el mtodo del CSeq
  */
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
 /**
- * Establece el cSeqStr de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqStr.
- * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqStr= INVITE 
+ * Establece el cSeqMethod de la llamada. En SIP el nmero de secuencia ser la concatenacin de cSeqNumber y cSeqMethod.
+ * Para un primer mensaje INVITE por ejemplo, el nmero de secuencia se formara como 1 INVITE, donde cSeqNumber=1 y cSeqMethod= INVITE 
  *
- * @param	cSeqStr  el cSeqNumber de la llamada
+ * @param	cSeqMethod  el mtodo del CSeq
  */
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
 /**
@@ -386,11 +387,34 @@ public class InviteMessage extends SIPMessage {
         this.sdp = sdp;
     }
 
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitInvite(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        destination = null;
+        recordRoute = null;
+        maxForwards = 0;
+        contact = null;
+        proxyAuthentication = null;
+        contentType = null;
+        contentLength = 0;
+        sdp = null;
+    }
+
 /**
  * Convierte el mensaje en un String. Para ello concatena la informacin de las cabeceras del mensaje.
  * El toName y el fromName son opcionales a la hora de componer las cabeceras to y from pero las URIs si han de estar presentes en las variables toUri y fromUri
  * Estas cabeceras se componen como "To: " + toName + " <" + toUri + ">\n"
- * El CSeq se compone como "CSeq: " + cSeqNumber + " " + cSeqStr + "\n"
+ * El CSeq se compone como "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n"
  * El Contact como "Contact: <sip:" + contact + ">\n" donde la variable contact tiene la informacin de contacto pero sin la parte sip: de la URI final
  * La carga en SDP debe tener contenido
  * 
@@ -402,22 +426,22 @@ public class InviteMessage extends SIPMessage {
         String invite;
         invite = "INVITE " + destination + " SIP/2.0\n";
         for (int i=0; i<vias.size(); i++) {
-            invite += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            invite += viaHeader(vias.get(i)) + "\n";
         }
         if (recordRoute != null) {
             invite += "Record-Route: " + recordRoute + "\n";
         }
         invite += "Max-Forwards: " + maxForwards + "\n";
         if(toName!=null)
-            invite += "To: " + toName + " <" + toUri + ">\n";
+            invite += "To: " + toName + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            invite += "To: <" + toUri + ">\n";
+            invite += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            invite += "From: " + fromName + " <" + fromUri + ">\n";
+            invite += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            invite += "From: <" + fromUri + ">\n";
+            invite += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         invite += "Call-ID: " + callId + "\n";
-        invite += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        invite += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         invite += "Contact: <sip:" + contact + ">\n";
 		if (proxyAuthentication!=null) invite += "ProxyAuthentication: auth= " + proxyAuthentication + "\n";
         invite += "Content-Type: " + contentType + "\n";
@@ -0,0 +1,97 @@
+package mensajesSIP;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Reciclado opcional de mensajes SIP.
+ * <p>Con el pool activado, el parser saca los mensajes (y sus listas de Vias) de una
+ * reserva por hilo en lugar de crearlos nuevos, y quien termina de usar un mensaje lo
+ * devuelve con {@link #recycle(SIPMessage)}. Las reservas son por hilo, así que no hay
+ * ningún bloqueo: un mensaje reciclado en un hilo solo lo vuelve a usar ese mismo hilo.
+ * <p>Está desactivado por defecto; en ese caso obtain() equivale a new y recycle() no hace nada.
+ * Solo se debe reciclar un mensaje cuando nadie guarda ya ninguna referencia a él.
+ */
+public final class MessagePool {
+
+    /** Máximo de objetos guardados por tipo y por hilo. */
+    private static final int MAX_PER_TYPE = 32;
+
+    private static volatile boolean enabled = false;
+
+    private static final ThreadLocal<IdentityHashMap<Class<?>, ArrayDeque<SIPMessage>>> FREE_MESSAGES =
+            ThreadLocal.withInitial(IdentityHashMap::new);
+
+    private static final ThreadLocal<ArrayDeque<ArrayList<String>>> FREE_VIA_LISTS =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    private MessagePool() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        MessagePool.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+/**
+ * Devuelve un mensaje vacío del tipo indicado, reciclado si hay alguno disponible.
+ *
+ * @param type     la clase concreta del mensaje
+ * @param factory  cómo crear uno nuevo si la reserva está vacía
+ * @return         un mensaje listo para rellenar
+ */
+    public static <T extends SIPMessage> T obtain(Class<T> type, Supplier<T> factory) {
+        if (!enabled) {
+            return factory.get();
+        }
+        ArrayDeque<SIPMessage> free = FREE_MESSAGES.get().get(type);
+        SIPMessage message = (free != null) ? free.pollFirst() : null;
+        if (message == null) {
+            return factory.get();
+        }
+        message.recycled = false;
+        return type.cast(message);
+    }
+
+    static ArrayList<String> obtainViaList() {
+        if (!enabled) {
+            return new ArrayList<String>();
+        }
+        ArrayList<String> vias = FREE_VIA_LISTS.get().pollFirst();
+        return (vias != null) ? vias : new ArrayList<String>();
+    }
+
+/**
+ * Devuelve un mensaje a la reserva del hilo actual. Si lo creó el parser, su lista
+ * de Vias también se reutiliza.
+ *
+ * @param message  el mensaje que ya no se va a usar (puede ser null)
+ */
+    public static void recycle(SIPMessage message) {
+        if (!enabled || message == null || message.recycled) {
+            return;
+        }
+        ArrayList<String> vias = message.ownedVias;
+        message.reset();
+        message.recycled = true;
+
+        if (vias != null) {
+            vias.clear();
+            ArrayDeque<ArrayList<String>> freeVias = FREE_VIA_LISTS.get();
+            if (freeVias.size() < MAX_PER_TYPE) {
+                freeVias.addFirst(vias);
+            }
+        }
+
+        ArrayDeque<SIPMessage> free = FREE_MESSAGES.get()
+                .computeIfAbsent(message.getClass(), k -> new ArrayDeque<SIPMessage>());
+        if (free.size() < MAX_PER_TYPE) {
+            free.addFirst(message);
+        }
+    }
+}
@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -16,7 +17,7 @@ public class OKMessage extends SIPMessage {
     private String route;
     private String recordRoute; 
     private String contact;
-    private String expires;
+    private int expires = -1; // -1 si el mensaje no lleva cabecera Expires
     private int contentLength;
     SDPMessage sdp;
 
@@ -76,20 +77,20 @@ public class OKMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
     public OKMessage() { //TODO: EAM. Warning
@@ -131,11 +132,11 @@ public class OKMessage extends SIPMessage {
         this.contact = contact;
     }
 
-    public String getExpires() {
+    public int getExpires() {
         return expires;
     }
 
-    public void setExpires(String expires) {
+    public void setExpires(int expires) {
         this.expires = expires;
     }
 
@@ -155,12 +156,28 @@ public class OKMessage extends SIPMessage {
         this.sdp = sdp;
     }
 
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitOK(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        route = null;
+        recordRoute = null;
+        contact = null;
+        expires = -1;
+        contentLength = 0;
+        sdp = null;
+    }
+
     @Override
     public String toStringMessage() {
         String ok;
         ok = "SIP/2.0 200 OK\n";
         for (int i=0; i<vias.size(); i++) {
-            ok += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            ok += viaHeader(vias.get(i)) + "\n";
         }
         if (route != null) {
             ok += "Route: " + route + "\n";
@@ -169,17 +186,17 @@ public class OKMessage extends SIPMessage {
             ok += "Record-Route: " + recordRoute + "\n";
         }
         if(getToName()!=null)
-            ok += "To: " + getToName() + " <" + toUri + ">\n";
+            ok += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            ok += "To: <" + toUri + ">\n";
+            ok += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            ok += "From: " + fromName + " <" + fromUri + ">\n";
+            ok += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            ok += "From: <" + fromUri + ">\n";
+            ok += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         ok += "Call-ID: " + callId + "\n";
-        ok += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        ok += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         ok += "Contact: <sip:" + contact + ">\n";
-        if(expires != null)
+        if(expires >= 0)
             ok += "Expires: " + expires + "\n";
         ok += "Content-Length: " + contentLength + "\n";
         ok += "\n";
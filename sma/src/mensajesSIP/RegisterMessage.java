@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -17,7 +18,7 @@ public class RegisterMessage extends SIPMessage {
     public int maxForwards;
     public String contact;
     private String authorization;
-    public String expires;
+    public int expires = -1; // -1 si el mensaje no lleva cabecera Expires
     public int contentLength;
 
     public String getDestination() {
@@ -44,11 +45,11 @@ public class RegisterMessage extends SIPMessage {
         this.contact = contact;
     }
 
-    public String getExpires() {
+    public int getExpires() {
         return expires;
     }
 
-    public void setExpires(String expires) {
+    public void setExpires(int expires) {
         this.expires = expires;
     }
     
@@ -116,20 +117,41 @@ public class RegisterMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
+    }
+
+    @Override
+    public boolean isRequest() {
+        return true;
+    }
+
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitRegister(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        destination = null;
+        maxForwards = 0;
+        contact = null;
+        authorization = null;
+        expires = -1;
+        contentLength = 0;
     }
 
     @Override
@@ -137,23 +159,24 @@ public class RegisterMessage extends SIPMessage {
         String register;
         register = "REGISTER " + destination + " SIP/2.0\n";
         for (int i=0; i<vias.size(); i++) {
-            register += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            register += viaHeader(vias.get(i)) + "\n";
         }
         register += "Max-Forwards: " + maxForwards + "\n";
         if(getToName()!=null)
-            register += "To: " + getToName() + " <" + toUri + ">\n";
+            register += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            register += "To: <" + toUri + ">\n";
+            register += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            register += "From: " + fromName + " <" + fromUri + ">\n";
+            register += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            register += "From: <" + fromUri + ">\n";
+            register += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         register += "Call-ID: " + callId + "\n";
-        register += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        register += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         register += "Contact: <sip:" + contact + ">\n";
         if(getAuthorization()!=null)
         	register += "Authorization: response= " + authorization + "\n";
-        register += "Expires: " + expires + "\n";
+        if(expires >= 0)
+            register += "Expires: " + expires + "\n";
         register += "Content-Length: " + contentLength + "\n";
         register += "\n";
 
@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -71,20 +72,20 @@ public class RequestTimeoutMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
     public int getContentLength() {
@@ -95,23 +96,34 @@ public class RequestTimeoutMessage extends SIPMessage {
         this.contentLength = contentLength;
     }
     
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitRequestTimeout(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        contentLength = 0;
+    }
+
     @Override
     public String toStringMessage() {
         String rt;
         rt = "SIP/2.0 408 Request Timeout\n";
         for (int i=0; i<vias.size(); i++) {
-            rt += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            rt += viaHeader(vias.get(i)) + "\n";
         }
         if(getToName()!=null)
-            rt += "To: " + getToName() + " <" + toUri + ">\n";
+            rt += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            rt += "To: <" + toUri + ">\n";
+            rt += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            rt += "From: " + fromName + " <" + fromUri + ">\n";
+            rt += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            rt += "From: <" + fromUri + ">\n";
+            rt += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         rt += "Call-ID: " + callId + "\n";
-        rt += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        rt += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         rt += "Content-Length: " + contentLength + "\n";
         rt += "\n";
 
@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -73,20 +74,20 @@ public class RingingMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
     public String getRecordRoute() {
@@ -113,26 +114,39 @@ public class RingingMessage extends SIPMessage {
         this.contact = contact;
     }
 
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitRinging(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        recordRoute = null;
+        contact = null;
+        contentLength = 0;
+    }
+
     @Override
     public String toStringMessage() {
         String ringing;
         ringing = "SIP/2.0 180 Ringing\n";
         for (int i=0; i<vias.size(); i++) {
-            ringing += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            ringing += viaHeader(vias.get(i)) + "\n";
         }
         if (recordRoute != null) {
             ringing += "Record-Route: " + recordRoute + "\n";
         }
         if(getToName()!=null)
-            ringing += "To: " + getToName() + " <" + toUri + ">\n";
+            ringing += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            ringing += "To: <" + toUri + ">\n";
+            ringing += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            ringing += "From: " + fromName + " <" + fromUri + ">\n";
+            ringing += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            ringing += "From: <" + fromUri + ">\n";
+            ringing += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         ringing += "Call-ID: " + callId + "\n";
-        ringing += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        ringing += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         ringing += "Contact: <sip:" + contact + ">\n";
         ringing += "Content-Length: " + contentLength + "\n";
         ringing += "\n";
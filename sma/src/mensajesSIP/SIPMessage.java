@@ -5,6 +5,8 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -16,14 +18,57 @@ import java.util.regex.Pattern;
 
 public abstract class SIPMessage {
     
+    // Cada Via sin "Via: SIP/2.0/UDP ", solo "IP:puerto". Si el transporte no es UDP va
+    // delante, separado por un espacio: "TCP IP:puerto" (ver viaHeader)
     protected ArrayList<String> vias;
     public String toName;
     protected String toUri;
     protected String fromName;
     protected String fromUri;
+    // Parámetro tag de To y From (identifican el diálogo junto con el Call-ID); null si no viene
+    protected String toTag;
+    protected String fromTag;
     protected String callId;
-    protected String cSeqNumber;
-    protected String cSeqStr;
+    protected long cSeqNumber;
+    protected SipMethod cSeqMethod;
+
+    // To y From parseadas, se calculan al pedirlas por primera vez
+    private SipUri toSipUri;
+    private SipUri fromSipUri;
+
+    // Lista de Vias que creó el parser para este mensaje; MessagePool la reutiliza al reciclarlo
+    ArrayList<String> ownedVias;
+    // Marca de mensaje devuelto al pool, para no reciclarlo dos veces
+    boolean recycled;
+
+    // Líneas de estado y final de las respuestas sin estado, precalculados en bytes
+    private static final byte[] TRYING_PREFIX = "SIP/2.0 100 Trying\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FORBIDDEN_PREFIX = "SIP/2.0 403 Forbidden\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NOT_FOUND_PREFIX = "SIP/2.0 404 Not Found\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REQUEST_TIMEOUT_PREFIX = "SIP/2.0 408 Request Timeout\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TOO_MANY_HOPS_PREFIX = "SIP/2.0 483 Too Many Hops\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BUSY_HERE_PREFIX = "SIP/2.0 486 Busy Here\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SERVICE_UNAVAILABLE_PREFIX = "SIP/2.0 503 Service Unavailable\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY_BODY_SUFFIX = "Content-Length: 0\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    // Expresiones de las cabeceras, compiladas una sola vez para todos los mensajes
+    private static final Pattern VIA_PATTERN = Pattern.compile("Via: SIP/2.0/(UDP|TCP) ([\\w\\.\\:\\;\\-\\=]+)");
+    private static final Pattern FROM_PATTERN = Pattern.compile("From: ?(?:\"([^\"]*)\"|([^<\"]*?)) *<(sips?:[^>\\s]+)>(?:;tag=([\\w\\.\\-]+))?");
+    private static final Pattern TO_PATTERN = Pattern.compile("To: ?(?:\"([^\"]*)\"|([^<\"]*?)) *<(sips?:[^>\\s]+)>(?:;tag=([\\w\\.\\-]+))?");
+    private static final Pattern CONTACT_PATTERN = Pattern.compile("Contact: <sip:([\\w\\.\\:\\;\\-\\=]+)>");
+    private static final Pattern CSEQ_PATTERN = Pattern.compile("CSeq: (\\d+) (INVITE|REGISTER|BYE|ACK)");
+    private static final Pattern CALL_ID_PATTERN = Pattern.compile("Call-ID: ([a-zA-Z0-9@\\.\\-]+)");
+    private static final Pattern CONTENT_LENGTH_PATTERN = Pattern.compile("Content-Length: (\\d+)");
+    private static final Pattern MAX_FORWARDS_PATTERN = Pattern.compile("Max-Forwards: (\\d+)");
+    private static final Pattern RECORD_ROUTE_PATTERN = Pattern.compile("Record-Route: ([\\w\\.\\:\\,\\s@]+)");
+    private static final Pattern ROUTE_PATTERN = Pattern.compile("Route: ([\\w\\.\\:\\s\\,@]+)");
+    private static final Pattern REQUEST_LINE_PATTERN = Pattern.compile("(INVITE|REGISTER|BYE|ACK) (sips?:\\S+) SIP/2.0");
+    private static final Pattern RETRY_AFTER_PATTERN = Pattern.compile("Retry-After: (\\d+)");
+    private static final Pattern EXPIRES_PATTERN = Pattern.compile("Expires: (\\d+)");
+    private static final Pattern PROXY_AUTHENTICATE_PATTERN = Pattern.compile("ProxyAuthenticate: nonce= ([\\w\\.\\:\\s\\,@]+)");
+    private static final Pattern PROXY_AUTHENTICATION_PATTERN = Pattern.compile("ProxyAuthentication: auth= ([\\w\\.\\:\\s\\,@]+)");
+    private static final Pattern AUTHORIZATION_PATTERN = Pattern.compile("Authorization: response= ([\\w\\.\\:\\s\\,@]+)");
+    private static final Pattern WWW_AUTHENTICATE_PATTERN = Pattern.compile("WWW-Authenticate: nonce= ([\\w\\.\\:\\s\\,@]+)");
     
 /**
  * Convierte el mensaje en un String. Para ello concatena la informaci�n de las cabeceras del mensaje.
@@ -32,6 +77,326 @@ public abstract class SIPMessage {
  */
 
     public abstract String toStringMessage();
+
+/**
+ * Despacha el mensaje al método del visitante que corresponde a su tipo concreto.
+ * Las capas de transacciones lo usan en lugar de comprobar el tipo con instanceof.
+ * 
+ * @param visitor     la capa que procesa el mensaje
+ * @param sourceIp    IP de la que se recibió el mensaje
+ * @param sourcePort  puerto del que se recibió el mensaje
+ */
+
+    public abstract void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException;
+    
+/**
+ * Crea la respuesta a esta petición con el código indicado.
+ * <p>La respuesta comparte con la petición las referencias de Via, To, From, Call-ID y CSeq
+ * (no se copian campo a campo); el resto de cabeceras las rellena quien la envía.
+ * Si se modifica la lista de Vias de una, se modifica también la de la otra.
+ * 
+ * @param status  código de la respuesta (100, 180, 200, 401, 404, 407, 408, 486 o 503)
+ * @return        la respuesta, que hay que convertir a su clase concreta si se quieren
+ *                rellenar cabeceras propias (Contact, Expires...)
+ */
+
+    public SIPMessage createResponse(int status) {
+        SIPMessage response;
+        switch (status) {
+            case 100: response = MessagePool.obtain(TryingMessage.class, TryingMessage::new); break;
+            case 180: response = MessagePool.obtain(RingingMessage.class, RingingMessage::new); break;
+            case 200: response = MessagePool.obtain(OKMessage.class, OKMessage::new); break;
+            case 401: response = MessagePool.obtain(UnauthorizedMessage.class, UnauthorizedMessage::new); break;
+            case 404: response = MessagePool.obtain(NotFoundMessage.class, NotFoundMessage::new); break;
+            case 407: response = MessagePool.obtain(ProxyAuthenticationMessage.class, ProxyAuthenticationMessage::new); break;
+            case 408: response = MessagePool.obtain(RequestTimeoutMessage.class, RequestTimeoutMessage::new); break;
+            case 486: response = MessagePool.obtain(BusyHereMessage.class, BusyHereMessage::new); break;
+            case 503: response = MessagePool.obtain(ServiceUnavailableMessage.class, ServiceUnavailableMessage::new); break;
+            default:
+                throw new IllegalArgumentException("Unsupported response status " + status);
+        }
+        response.vias = vias;
+        response.toName = toName;
+        response.toUri = toUri;
+        response.fromName = fromName;
+        response.fromUri = fromUri;
+        response.toTag = toTag;
+        response.fromTag = fromTag;
+        response.callId = callId;
+        response.cSeqNumber = cSeqNumber;
+        response.cSeqMethod = cSeqMethod;
+        return response;
+    }
+
+/**
+ * Genera directamente en bytes una respuesta "sin estado" a esta petición: línea de estado,
+ * Vias, To, From, Call-ID, CSeq y Content-Length 0, sin crear el objeto respuesta.
+ * <p>La línea de estado y el final del mensaje están precalculados. Primero se calcula
+ * el tamaño total y luego las cabeceras de la petición se escriben directamente en el
+ * array de salida, sin StringBuilder ni String intermedios.
+ * El resultado es idéntico al toStringMessage() de la respuesta equivalente sin Contact.
+ * 
+ * @param status  código de la respuesta (100, 403, 404, 408, 483, 486 o 503)
+ * @return        el datagrama listo para enviar
+ */
+
+    public byte[] toStatelessResponseBytes(int status) {
+        byte[] prefix = statelessPrefix(status);
+        byte[] out = new byte[prefix.length + writeCommonHeaders(null, 0) + EMPTY_BODY_SUFFIX.length];
+        System.arraycopy(prefix, 0, out, 0, prefix.length);
+        int pos = writeCommonHeaders(out, prefix.length);
+        System.arraycopy(EMPTY_BODY_SUFFIX, 0, out, pos, EMPTY_BODY_SUFFIX.length);
+        return out;
+    }
+
+/**
+ * true si para ese código se puede usar toStatelessResponseBytes().
+ */
+
+    public static boolean isStatelessStatus(int status) {
+        switch (status) {
+            case 100: case 403: case 404: case 408: case 483: case 486: case 503:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static byte[] statelessPrefix(int status) {
+        switch (status) {
+            case 100: return TRYING_PREFIX;
+            case 403: return FORBIDDEN_PREFIX;
+            case 404: return NOT_FOUND_PREFIX;
+            case 408: return REQUEST_TIMEOUT_PREFIX;
+            case 483: return TOO_MANY_HOPS_PREFIX;
+            case 486: return BUSY_HERE_PREFIX;
+            case 503: return SERVICE_UNAVAILABLE_PREFIX;
+            default:
+                throw new IllegalArgumentException("No stateless response for status " + status);
+        }
+    }
+
+    // Via, To, From, Call-ID y CSeq con el mismo formato que usan los toStringMessage(),
+    // escritas en out a partir de pos. Con out null solo se cuenta. Devuelve la posición final
+    private int writeCommonHeaders(byte[] out, int pos) {
+        for (int i = 0; i < vias.size(); i++) {
+            String via = vias.get(i);
+            pos = put(out, pos, (via.indexOf(' ') < 0) ? "Via: SIP/2.0/UDP " : "Via: SIP/2.0/");
+            pos = put(out, pos, via);
+            pos = put(out, pos, "\n");
+        }
+        pos = put(out, pos, "To: ");
+        pos = putAddress(out, pos, toName, toUri, toTag);
+        pos = put(out, pos, "From: ");
+        pos = putAddress(out, pos, fromName, fromUri, fromTag);
+        pos = put(out, pos, "Call-ID: ");
+        pos = put(out, pos, callId);
+        pos = put(out, pos, "\nCSeq: ");
+        pos = put(out, pos, cSeqNumber);
+        pos = put(out, pos, " ");
+        pos = put(out, pos, String.valueOf(cSeqMethod));
+        return put(out, pos, "\n");
+    }
+
+    // "Nombre <uri>;tag=x" o "<uri>;tag=x", y el fin de línea
+    private static int putAddress(byte[] out, int pos, String name, String uri, String tag) {
+        if (name != null) {
+            pos = put(out, pos, name);
+            pos = put(out, pos, " ");
+        }
+        pos = put(out, pos, "<");
+        pos = put(out, pos, uri);
+        pos = put(out, pos, ">");
+        if (tag != null) {
+            pos = put(out, pos, ";tag=");
+            pos = put(out, pos, tag);
+        }
+        return put(out, pos, "\n");
+    }
+
+    // Texto en US-ASCII, como getBytes(US_ASCII): lo que no es ASCII sale como '?'
+    private static int put(byte[] out, int pos, String text) {
+        text = String.valueOf(text);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                i++;
+            }
+            if (out != null) {
+                out[pos] = (c < 0x80) ? (byte) c : (byte) '?';
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int put(byte[] out, int pos, long value) {
+        if (value == Long.MIN_VALUE) {
+            return put(out, pos, Long.toString(value));
+        }
+        long v = value;
+        if (v < 0) {
+            if (out != null) {
+                out[pos] = '-';
+            }
+            pos++;
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+        if (out != null) {
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                out[i] = (byte) ('0' + v % 10);
+                v /= 10;
+            }
+        }
+        return pos + digits;
+    }
+    
+/**
+ * Deja el mensaje vacío para que MessagePool lo pueda volver a entregar.
+ * Cada subclase limpia además sus propias cabeceras.
+ */
+
+    void reset() {
+        vias = null;
+        toName = null;
+        toUri = null;
+        fromName = null;
+        fromUri = null;
+        toTag = null;
+        fromTag = null;
+        callId = null;
+        cSeqNumber = 0;
+        cSeqMethod = null;
+        ownedVias = null;
+        toSipUri = null;
+        fromSipUri = null;
+    }
+
+/**
+ * La URI del To ya parseada y normalizada. Se parsea una vez por mensaje (y las URIs
+ * repetidas se reutilizan entre mensajes, ver {@link SipUri#intern(String)}).
+ * 
+ * @return      la URI, o null si el To no es una URI SIP válida
+ */
+
+    public SipUri getToSipUri() {
+        if (toUri == null) {
+            return null;
+        }
+        if (toSipUri == null || !toSipUri.isParsedFrom(toUri)) {
+            toSipUri = internOrNull(toUri);
+        }
+        return toSipUri;
+    }
+
+/**
+ * La URI del From ya parseada y normalizada.
+ * 
+ * @return      la URI, o null si el From no es una URI SIP válida
+ */
+
+    public SipUri getFromSipUri() {
+        if (fromUri == null) {
+            return null;
+        }
+        if (fromSipUri == null || !fromSipUri.isParsedFrom(fromUri)) {
+            fromSipUri = internOrNull(fromUri);
+        }
+        return fromSipUri;
+    }
+
+/**
+ * El Call-ID, común a todos los mensajes (cada subclase lo expone también con su setter).
+ * 
+ * @return      el Call-ID
+ */
+
+    public String getCallId() {
+        return callId;
+    }
+
+/**
+ * El tag del To: lo pone quien contesta la petición que abre el diálogo.
+ * 
+ * @return      el tag, o null si el To no lleva
+ */
+
+    public String getToTag() {
+        return toTag;
+    }
+
+    public void setToTag(String toTag) {
+        this.toTag = toTag;
+    }
+
+/**
+ * El tag del From: lo pone quien envía la petición que abre el diálogo.
+ * 
+ * @return      el tag, o null si el From no lleva
+ */
+
+    public String getFromTag() {
+        return fromTag;
+    }
+
+    public void setFromTag(String fromTag) {
+        this.fromTag = fromTag;
+    }
+
+    // ";tag=xxx" para añadir tras la URI de To/From, o "" si no hay tag
+    /**
+     * Cabecera Via de una entrada de la lista: "Via: SIP/2.0/UDP IP:puerto", o con el
+     * transporte que lleve delante la entrada ("TCP IP:puerto" → "Via: SIP/2.0/TCP IP:puerto").
+     */
+    protected static String viaHeader(String via) {
+        return (via.indexOf(' ') < 0) ? "Via: SIP/2.0/UDP " + via : "Via: SIP/2.0/" + via;
+    }
+
+/**
+ * true en las peticiones (INVITE, REGISTER, ACK, BYE); false en las respuestas.
+ */
+
+    public boolean isRequest() {
+        return false;
+    }
+
+/**
+ * Marca TCP como transporte de la Via de arriba, la de quien envía la petición. La capa de
+ * transporte lo llama cuando el mensaje no cabe en un datagrama y sale por TCP: la Via
+ * tiene que decir el transporte por el que va de verdad (RFC 3261, 18.1.1). En las
+ * respuestas no hace nada, porque su Via de arriba es la de quien envió la petición.
+ * 
+ * @return  true si ha cambiado la Via y hay que volver a serializar el mensaje
+ */
+
+    public boolean useTcpInTopVia() {
+        if (!isRequest() || vias == null || vias.isEmpty()) {
+            return false;
+        }
+        String top = vias.get(0);
+        if (top.startsWith("TCP ")) {
+            return false;
+        }
+        int space = top.indexOf(' ');
+        vias.set(0, "TCP " + ((space < 0) ? top : top.substring(space + 1)));
+        return true;
+    }
+
+    protected static String tagParam(String tag) {
+        return (tag == null) ? "" : ";tag=" + tag;
+    }
+
+    private static SipUri internOrNull(String uri) {
+        try {
+            return SipUri.intern(uri);
+        } catch (SIPException e) {
+            return null;
+        }
+    }
     
 /**
  * Convierte el mensaje en un String. Para ello concatena la informaci�n de las cabeceras del mensaje.
@@ -42,84 +407,119 @@ public abstract class SIPMessage {
  */
 
     public static SIPMessage parseMessage(String message) throws SIPException{
+        ArrayList<String> vias = MessagePool.obtainViaList();
+        SIPMessage parsed = parseMessage(message, vias);
+        parsed.ownedVias = vias;
+        return parsed;
+    }
+
+    private static SIPMessage parseMessage(String message, ArrayList<String> vias) throws SIPException{
         
-        String[] lines = message.split("\n");
+        // Se recorren las líneas con indexOf en lugar de split(): sin arrays intermedios
+        // y parando en la línea vacía que separa las cabeceras del cuerpo
+        String requestLine = null;
+        int bodyStart = -1;
+        int lineStart = 0;
         
-        String recordRoute = null, route = null, maxForwards = null, callId = null, contact = null,
-                contentLength = null, expires = null, proxyAuthenticate=null, proxyAuthentication=null, authorization=null, wwwAuthenticate=null;
-        ArrayList<String> vias = new ArrayList<String>();
-        String[] to = null, from = null, cSeq = null;
-        for(int i=0; i<lines.length; i++){
-            if(lines[i].startsWith("Via")){
-                vias.add(parseVia(lines[i]));
+        String recordRoute = null, route = null, callId = null, contact = null,
+                proxyAuthenticate=null, proxyAuthentication=null, authorization=null, wwwAuthenticate=null;
+        // Cabeceras numéricas y método del CSeq: se parsean una sola vez aquí
+        int maxForwards = 70, contentLength = 0, expires = -1, retryAfter = -1;
+        long cSeqNumber = 0;
+        SipMethod cSeqMethod = null;
+        String[] to = null, from = null;
+        while(lineStart < message.length()){
+            int lineEnd = message.indexOf('\n', lineStart);
+            if(lineEnd < 0){
+                lineEnd = message.length();
             }
-            else if(lines[i].startsWith("Record-Route")){
-                recordRoute = parseRecordRoute(lines[i]);
+            if(lineEnd == lineStart){
+                bodyStart = lineEnd + 1;
+                break;
             }
-            else if(lines[i].startsWith("Route")){
-                route = parseRoute(lines[i]);
+            String line = message.substring(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+            if(requestLine == null){
+                requestLine = line;
             }
-            else if(lines[i].startsWith("Max-Forwards")){
-                maxForwards = parseMaxForwards(lines[i]);
+            if(line.startsWith("Via")){
+                vias.add(parseVia(line));
             }
-            else if(lines[i].startsWith("From")){
-                from = parseFrom(lines[i]);
+            else if(line.startsWith("Record-Route")){
+                recordRoute = parseRecordRoute(line);
             }
-            else if(lines[i].startsWith("To")){
-                to = parseTo(lines[i]);
+            else if(line.startsWith("Route")){
+                route = parseRoute(line);
             }
-            else if(lines[i].startsWith("Call-ID")){
-                callId = parseCallId(lines[i]);
+            else if(line.startsWith("Max-Forwards")){
+                maxForwards = parseMaxForwards(line);
             }
-            else if(lines[i].startsWith("CSeq")){
-                cSeq = parseCSeq(lines[i]);
+            else if(line.startsWith("From")){
+                from = parseFrom(line);
             }
-            else if(lines[i].startsWith("Contact")){
-                contact = parseContact(lines[i]);
+            else if(line.startsWith("To")){
+                to = parseTo(line);
             }
-            else if(lines[i].startsWith("Content-Length")){
-                contentLength = parseContentLength(lines[i]);
+            else if(line.startsWith("Call-ID")){
+                callId = parseCallId(line);
             }
-            else if(lines[i].startsWith("Expires")){
-                expires = parseExpires(lines[i]);
+            else if(line.startsWith("CSeq")){
+                String[] cSeq = parseCSeq(line);
+                cSeqNumber = Long.parseLong(cSeq[0]);
+                cSeqMethod = SipMethod.parse(cSeq[1]);
             }
-			else if(lines[i].startsWith("ProxyAuthenticate")){
-                proxyAuthenticate = parseProxyAuthenticate(lines[i]);
+            else if(line.startsWith("Contact")){
+                contact = parseContact(line);
             }
-			else if(lines[i].startsWith("ProxyAuthentication")){
-                proxyAuthentication = parseProxyAuthentication(lines[i]);
+            else if(line.startsWith("Content-Length")){
+                contentLength = parseContentLength(line);
             }
-			else if(lines[i].startsWith("Authorization")){
-                authorization = parseAuthorization(lines[i]);
+            else if(line.startsWith("Expires")){
+                expires = parseExpires(line);
             }
-			else if(lines[i].startsWith("WWW-Authenticate")){
-                wwwAuthenticate = parsewwwAuthenticate(lines[i]);
+            else if(line.startsWith("Retry-After")){
+                retryAfter = parseRetryAfter(line);
+            }
+			else if(line.startsWith("ProxyAuthenticate")){
+                proxyAuthenticate = parseProxyAuthenticate(line);
+            }
+			else if(line.startsWith("ProxyAuthentication")){
+                proxyAuthentication = parseProxyAuthentication(line);
+            }
+			else if(line.startsWith("Authorization")){
+                authorization = parseAuthorization(line);
+            }
+			else if(line.startsWith("WWW-Authenticate")){
+                wwwAuthenticate = parsewwwAuthenticate(line);
             }
         }
         
         
         if(message.startsWith("INVITE")){
-            InviteMessage invite = new InviteMessage();
-            String[] parts = message.split("\n\n");
-            
+            InviteMessage invite = MessagePool.obtain(InviteMessage.class, InviteMessage::new);
             //SDP message
-            String sdpMessageStr = parts[1];
+            if(bodyStart < 0 || bodyStart >= message.length()){
+                throw new SIPException("INVITE without SDP");
+            }
+            String sdpMessageStr = message.substring(bodyStart);
             
-            invite.setDestination(parseRequestHeader(lines[0]));
+            invite.setDestination(parseRequestHeader(requestLine));
             invite.setVias(vias);
 		 if (recordRoute!=null) invite.setRecordRoute(recordRoute);
-            invite.setMaxForwards(Integer.parseInt(maxForwards));
+            invite.setMaxForwards(maxForwards);
             invite.setToName(to[0]);
             invite.setToUri(to[1]);
+            invite.setToTag(to[2]);
             invite.setFromName(from[0]);
             invite.setFromUri(from[1]);
+            invite.setFromTag(from[2]);
             invite.setCallId(callId);
-            invite.setcSeqNumber(cSeq[0]);
-            invite.setcSeqStr(cSeq[1]);
+            invite.setcSeqNumber(cSeqNumber);
+            invite.setcSeqMethod(cSeqMethod);
 			invite.setContact(contact);
 			if (proxyAuthentication!=null) invite.setProxyAuthentication(proxyAuthentication);
             invite.setContentType("application/sdp");
-            invite.setContentLength(Integer.parseInt(contentLength));
+            invite.setContentLength(contentLength);
             
             SDPMessage sdp = new SDPMessage();
             sdp.parseMessage(sdpMessageStr);
@@ -128,18 +528,20 @@ public abstract class SIPMessage {
             return invite;
         }
         else if(message.startsWith("REGISTER")){
-            RegisterMessage register = new RegisterMessage();
+            RegisterMessage register = MessagePool.obtain(RegisterMessage.class, RegisterMessage::new);
             
-            register.setDestination(parseRequestHeader(lines[0]));
+            register.setDestination(parseRequestHeader(requestLine));
             register.setVias(vias);
-            register.setMaxForwards(Integer.parseInt(maxForwards));
+            register.setMaxForwards(maxForwards);
             register.setToName(to[0]);
             register.setToUri(to[1]);
+            register.setToTag(to[2]);
             register.setFromName(from[0]);
             register.setFromUri(from[1]);
+            register.setFromTag(from[2]);
             register.setCallId(callId);
-            register.setcSeqNumber(cSeq[0]);
-            register.setcSeqStr(cSeq[1]);
+            register.setcSeqNumber(cSeqNumber);
+            register.setcSeqMethod(cSeqMethod);
             register.setContact(contact);
             register.setExpires(expires);
             register.setAuthorization(authorization);
@@ -147,62 +549,68 @@ public abstract class SIPMessage {
             return register;
         }
         else if(message.startsWith("BYE")){
-            ByeMessage bye = new ByeMessage();
+            ByeMessage bye = MessagePool.obtain(ByeMessage.class, ByeMessage::new);
             
-            bye.setDestination(parseRequestHeader(lines[0]));
+            bye.setDestination(parseRequestHeader(requestLine));
             bye.setVias(vias);
             if(route!=null){
                 bye.setRoute(route);
             }
-            bye.setMaxForwards(Integer.parseInt(maxForwards));
+            bye.setMaxForwards(maxForwards);
             bye.setToName(to[0]);
             bye.setToUri(to[1]);
+            bye.setToTag(to[2]);
             bye.setFromName(from[0]);
             bye.setFromUri(from[1]);
+            bye.setFromTag(from[2]);
             bye.setCallId(callId);
-            bye.setcSeqNumber(cSeq[0]);
-            bye.setcSeqStr(cSeq[1]);
+            bye.setcSeqNumber(cSeqNumber);
+            bye.setcSeqMethod(cSeqMethod);
             bye.setContentLength(0);
             
             return bye;
         }
         else if(message.startsWith("ACK")){
-            ACKMessage ack = new ACKMessage();
+            ACKMessage ack = MessagePool.obtain(ACKMessage.class, ACKMessage::new);
             
-            ack.setDestination(parseRequestHeader(lines[0]));
+            ack.setDestination(parseRequestHeader(requestLine));
             ack.setVias(vias);
             if(route!=null){
                 ack.setRoute(route);
             }
-            ack.setMaxForwards(Integer.parseInt(maxForwards));
+            ack.setMaxForwards(maxForwards);
             ack.setToName(to[0]);
             ack.setToUri(to[1]);
+            ack.setToTag(to[2]);
             ack.setFromName(from[0]);
             ack.setFromUri(from[1]);
+            ack.setFromTag(from[2]);
             ack.setCallId(callId);
-            ack.setcSeqNumber(cSeq[0]);
-            ack.setcSeqStr(cSeq[1]);
+            ack.setcSeqNumber(cSeqNumber);
+            ack.setcSeqMethod(cSeqMethod);
             ack.setContentLength(0);
             
             return ack;
         }
         else if(message.startsWith("SIP/2.0 100 Trying")){
-            TryingMessage trying = new TryingMessage();
+            TryingMessage trying = MessagePool.obtain(TryingMessage.class, TryingMessage::new);
             
             trying.setVias(vias);
             trying.setToName(to[0]);
             trying.setToUri(to[1]);
+            trying.setToTag(to[2]);
             trying.setFromName(from[0]);
             trying.setFromUri(from[1]);
+            trying.setFromTag(from[2]);
             trying.setCallId(callId);
-            trying.setcSeqNumber(cSeq[0]);
-            trying.setcSeqStr(cSeq[1]);
+            trying.setcSeqNumber(cSeqNumber);
+            trying.setcSeqMethod(cSeqMethod);
             trying.setContentLength(0);
             
             return trying;
         }
         else if(message.startsWith("SIP/2.0 180 Ringing")){
-            RingingMessage ringing = new RingingMessage();
+            RingingMessage ringing = MessagePool.obtain(RingingMessage.class, RingingMessage::new);
             
             ringing.setVias(vias);
             if(recordRoute!=null){
@@ -210,11 +618,13 @@ public abstract class SIPMessage {
             }
             ringing.setToName(to[0]);
             ringing.setToUri(to[1]);
+            ringing.setToTag(to[2]);
             ringing.setFromName(from[0]);
             ringing.setFromUri(from[1]);
+            ringing.setFromTag(from[2]);
             ringing.setCallId(callId);
-            ringing.setcSeqNumber(cSeq[0]);
-            ringing.setcSeqStr(cSeq[1]);
+            ringing.setcSeqNumber(cSeqNumber);
+            ringing.setcSeqMethod(cSeqMethod);
             ringing.setContact(contact);
             ringing.setContentLength(0);
             
@@ -222,10 +632,7 @@ public abstract class SIPMessage {
             
         }
         else if(message.startsWith("SIP/2.0 200 OK")){
-            OKMessage ok = new OKMessage();
-            
-            String[] parts = message.split("\n\n");
-            
+            OKMessage ok = MessagePool.obtain(OKMessage.class, OKMessage::new);
             
             ok.setVias(vias);
             if(route!=null){
@@ -236,20 +643,22 @@ public abstract class SIPMessage {
             }
             ok.setToName(to[0]);
             ok.setToUri(to[1]);
+            ok.setToTag(to[2]);
             ok.setFromName(from[0]);
             ok.setFromUri(from[1]);
+            ok.setFromTag(from[2]);
             ok.setCallId(callId);
-            ok.setcSeqNumber(cSeq[0]);
-            ok.setcSeqStr(cSeq[1]);
+            ok.setcSeqNumber(cSeqNumber);
+            ok.setcSeqMethod(cSeqMethod);
             if(contact!=null){
             	ok.setContact(contact);
             }
             ok.setContentLength(0);
             
 //TODO
-            if(parts.length==2){
+            if(bodyStart > 0 && bodyStart < message.length()){
 		        //SDP message
-		        String sdpMessageStr = parts[1];
+		        String sdpMessageStr = message.substring(bodyStart);
 		        ok.setContentLength(sdpMessageStr.length());
 		        SDPMessage sdp = new SDPMessage();
 		        sdp.parseMessage(sdpMessageStr);
@@ -259,18 +668,20 @@ public abstract class SIPMessage {
             return ok;
         }
         else if(message.startsWith("SIP/2.0 404 Not Found")){
-            NotFoundMessage nf = new NotFoundMessage();
+            NotFoundMessage nf = MessagePool.obtain(NotFoundMessage.class, NotFoundMessage::new);
             
             nf.setVias(vias);
             nf.setToName(to[0]);
             nf.setToUri(to[1]);
+            nf.setToTag(to[2]);
             nf.setFromName(from[0]);
             nf.setFromUri(from[1]);
+            nf.setFromTag(from[2]);
             nf.setCallId(callId);
-            nf.setcSeqNumber(cSeq[0]);
-            nf.setcSeqStr(cSeq[1]);
+            nf.setcSeqNumber(cSeqNumber);
+            nf.setcSeqMethod(cSeqMethod);
             nf.setContact(contact);
-            if(expires!=null){
+            if(expires>=0){
                 nf.setExpires(expires);
             }
             nf.setContentLength(0);
@@ -278,77 +689,88 @@ public abstract class SIPMessage {
             return nf;
         }
         else if(message.startsWith("SIP/2.0 408 Request Timeout")){
-            RequestTimeoutMessage rt = new RequestTimeoutMessage();
+            RequestTimeoutMessage rt = MessagePool.obtain(RequestTimeoutMessage.class, RequestTimeoutMessage::new);
             
             rt.setVias(vias);
             rt.setToName(to[0]);
             rt.setToUri(to[1]);
+            rt.setToTag(to[2]);
             rt.setFromName(from[0]);
             rt.setFromUri(from[1]);
+            rt.setFromTag(from[2]);
             rt.setCallId(callId);
-            rt.setcSeqNumber(cSeq[0]);
-            rt.setcSeqStr(cSeq[1]);
+            rt.setcSeqNumber(cSeqNumber);
+            rt.setcSeqMethod(cSeqMethod);
             rt.setContentLength(0);
             
             return rt; 
         }
         else if(message.startsWith("SIP/2.0 486 Busy Here")){
-            BusyHereMessage bh = new BusyHereMessage();
+            BusyHereMessage bh = MessagePool.obtain(BusyHereMessage.class, BusyHereMessage::new);
             
             bh.setVias(vias);
             bh.setToName(to[0]);
             bh.setToUri(to[1]);
+            bh.setToTag(to[2]);
             bh.setFromName(from[0]);
             bh.setFromUri(from[1]);
+            bh.setFromTag(from[2]);
             bh.setCallId(callId);
-            bh.setcSeqNumber(cSeq[0]);
-            bh.setcSeqStr(cSeq[1]);
+            bh.setcSeqNumber(cSeqNumber);
+            bh.setcSeqMethod(cSeqMethod);
             bh.setContentLength(0);
             
             return bh;
         }
         else if(message.startsWith("SIP/2.0 503 Service Unavailable")){
-            ServiceUnavailableMessage su = new ServiceUnavailableMessage();
+            ServiceUnavailableMessage su = MessagePool.obtain(ServiceUnavailableMessage.class, ServiceUnavailableMessage::new);
             
             su.setVias(vias);
             su.setToName(to[0]);
             su.setToUri(to[1]);
+            su.setToTag(to[2]);
             su.setFromName(from[0]);
             su.setFromUri(from[1]);
+            su.setFromTag(from[2]);
             su.setCallId(callId);
-            su.setcSeqNumber(cSeq[0]);
-            su.setcSeqStr(cSeq[1]);
+            su.setcSeqNumber(cSeqNumber);
+            su.setcSeqMethod(cSeqMethod);
+            su.setRetryAfter(retryAfter);
             su.setContentLength(0);
             
             return su;
         }
 		else if(message.startsWith("SIP/2.0 407 Proxy Authentication Required")){
-            ProxyAuthenticationMessage pa = new ProxyAuthenticationMessage();
+            ProxyAuthenticationMessage pa = MessagePool.obtain(ProxyAuthenticationMessage.class, ProxyAuthenticationMessage::new);
             
             pa.setVias(vias);
             pa.setToName(to[0]);
             pa.setToUri(to[1]);
+            pa.setToTag(to[2]);
             pa.setFromName(from[0]);
             pa.setFromUri(from[1]);
+            pa.setFromTag(from[2]);
             pa.setCallId(callId);
-            pa.setcSeqNumber(cSeq[0]);
-            pa.setcSeqStr(cSeq[1]);
+            pa.setcSeqNumber(cSeqNumber);
+            pa.setcSeqMethod(cSeqMethod);
 			pa.setproxyAuthenticate(proxyAuthenticate);
             pa.setContentLength(0);
             
             return pa;
         }
 		else if(message.startsWith("SIP/2.0 401 Unauthorized")){
-			UnauthorizedMessage pa = new UnauthorizedMessage();
+			UnauthorizedMessage pa = MessagePool.obtain(UnauthorizedMessage.class, UnauthorizedMessage::new);
             
             pa.setVias(vias);
             pa.setToName(to[0]);
             pa.setToUri(to[1]);
+            pa.setToTag(to[2]);
             pa.setFromName(from[0]);
             pa.setFromUri(from[1]);
+            pa.setFromTag(from[2]);
             pa.setCallId(callId);
-            pa.setcSeqNumber(cSeq[0]);
-            pa.setcSeqStr(cSeq[1]);
+            pa.setcSeqNumber(cSeqNumber);
+            pa.setcSeqMethod(cSeqMethod);
 			pa.setwwwAuthenticate(wwwAuthenticate);
             pa.setContentLength(0);
             
@@ -369,10 +791,10 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parseVia(String via) throws SIPException{
-        Pattern pattern = Pattern.compile("Via: SIP/2.0/UDP ([\\w\\.\\:\\;\\-\\=]+)");
-        Matcher matcher = pattern.matcher(via.split(";")[0]);
+        Matcher matcher = VIA_PATTERN.matcher(via.split(";")[0]);
         if(matcher.matches()){
-            return  matcher.group(1);
+            // UDP, lo normal, no se marca; cualquier otro transporte se guarda delante
+            return "UDP".equals(matcher.group(1)) ? matcher.group(2) : matcher.group(1) + " " + matcher.group(2);
         }
         else{
             throw new SIPException("Incorrect VIA format");
@@ -385,10 +807,9 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String[] parseFrom(String toFrom) throws SIPException{
-        Pattern pattern = Pattern.compile("From: ?(\\w+)? <(sip:\\w+@[\\w\\.]+)>");
-        Matcher matcher = pattern.matcher(toFrom);
+        Matcher matcher = FROM_PATTERN.matcher(toFrom);
         if(matcher.matches()){
-            return  new String[]{matcher.group(1),matcher.group(2)};
+            return  new String[]{displayName(matcher),matcher.group(3),matcher.group(4)};
         }
         else{
             throw new SIPException("Incorrect FROM format");
@@ -401,16 +822,24 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String[] parseTo(String toFrom) throws SIPException{
-        Pattern pattern = Pattern.compile("To: ?(\\w+)? <(sip:\\w+@[\\w\\.]+)>");
-        Matcher matcher = pattern.matcher(toFrom);
+        Matcher matcher = TO_PATTERN.matcher(toFrom);
         //System.out.println(toFrom);
         if(matcher.matches()){
-            return  new String[]{matcher.group(1),matcher.group(2)};
+            return  new String[]{displayName(matcher),matcher.group(3),matcher.group(4)};
         }
         else{
             throw new SIPException("Incorrect TO format");
         } 
     }
+
+    // Nombre de To/From: entre comillas o sin ellas; null si no viene
+    private static String displayName(Matcher matcher) {
+        if (matcher.group(1) != null) {
+            return matcher.group(1);
+        }
+        String name = matcher.group(2);
+        return (name == null || name.isEmpty()) ? null : name;
+    }
     
     /**
      * 
@@ -418,9 +847,8 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parseContact(String contact) throws SIPException{
-        Pattern pattern = Pattern.compile("Contact: <sip:([\\w\\.\\:\\;\\-\\=]+)>");
-        //Matcher matcher = pattern.matcher(contact.split(";")[0]+">");
-        Matcher matcher = pattern.matcher(contact);
+        //Matcher matcher = CONTACT_PATTERN.matcher(contact.split(";")[0]+">");
+        Matcher matcher = CONTACT_PATTERN.matcher(contact);
         if(matcher.matches()){
             return  matcher.group(1);
         }
@@ -435,8 +863,7 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String[] parseCSeq(String cSeq) throws SIPException{
-        Pattern pattern = Pattern.compile("CSeq: (\\d+) (INVITE|REGISTER|BYE|ACK)");
-        Matcher matcher = pattern.matcher(cSeq);
+        Matcher matcher = CSEQ_PATTERN.matcher(cSeq);
         if(matcher.matches()){
             return  new String[]{matcher.group(1),matcher.group(2)};
         }
@@ -451,8 +878,7 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parseCallId(String callId) throws SIPException{
-        Pattern pattern = Pattern.compile("Call-ID: ([a-zA-Z0-9@\\.\\-]+)");
-        Matcher matcher = pattern.matcher(callId);
+        Matcher matcher = CALL_ID_PATTERN.matcher(callId);
         if(matcher.matches()){
             return  matcher.group(1);
         }
@@ -466,11 +892,10 @@ public abstract class SIPMessage {
      * @param contentLength
      * @return 
      */
-    private static String parseContentLength(String contentLength) throws SIPException{
-        Pattern pattern = Pattern.compile("Content-Length: (\\d+)");
-        Matcher matcher = pattern.matcher(contentLength);
+    private static int parseContentLength(String contentLength) throws SIPException{
+        Matcher matcher = CONTENT_LENGTH_PATTERN.matcher(contentLength);
         if(matcher.matches()){
-            return  matcher.group(1);
+            return  Integer.parseInt(matcher.group(1));
         }
         else{
             throw new SIPException("Incorrect CONTENT LENGTH format");
@@ -482,16 +907,15 @@ public abstract class SIPMessage {
      * @param maxForwards
      * @return 
      */
-    private static String parseMaxForwards(String maxForwards) throws SIPException{
-        Pattern pattern = Pattern.compile("Max-Forwards: (\\d+)");
-        Matcher matcher = pattern.matcher(maxForwards);
+    private static int parseMaxForwards(String maxForwards) throws SIPException{
+        Matcher matcher = MAX_FORWARDS_PATTERN.matcher(maxForwards);
         // System.out.println(maxForwards);
         if(matcher.matches()){
-            return  matcher.group(1);
+            return  Integer.parseInt(matcher.group(1));
         }
         else{
             //throw new SIPException("Incorrect MAX FORWARDS format");
-        	return "70";
+        	return 70;
         }
     }
     
@@ -501,8 +925,7 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parseRecordRoute(String recordRoute) throws SIPException{
-        Pattern pattern = Pattern.compile("Record-Route: ([\\w\\.\\:\\,\\s@]+)");
-        Matcher matcher = pattern.matcher(recordRoute);
+        Matcher matcher = RECORD_ROUTE_PATTERN.matcher(recordRoute);
         if(matcher.matches()){
             return  matcher.group(1);
         }
@@ -517,8 +940,7 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parseRoute(String route) throws SIPException{
-        Pattern pattern = Pattern.compile("Route: ([\\w\\.\\:\\s\\,@]+)");
-        Matcher matcher = pattern.matcher(route);
+        Matcher matcher = ROUTE_PATTERN.matcher(route);
         if(matcher.matches()){
             return  matcher.group(1);
         }
@@ -533,8 +955,7 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parseRequestHeader(String header) throws SIPException{
-        Pattern pattern = Pattern.compile("(INVITE|REGISTER|BYE|ACK) (sip:[\\w\\.@]+) SIP/2.0");
-        Matcher matcher = pattern.matcher(header);
+        Matcher matcher = REQUEST_LINE_PATTERN.matcher(header);
         if(matcher.matches()){
             return  matcher.group(2);
         }
@@ -548,16 +969,30 @@ public abstract class SIPMessage {
      * @param expires
      * @return 
      */
-    private static String parseExpires(String expires) throws SIPException{
-        Pattern pattern = Pattern.compile("Expires: (\\d+)");
-        Matcher matcher = pattern.matcher(expires);
+    private static int parseExpires(String expires) throws SIPException{
+        Matcher matcher = EXPIRES_PATTERN.matcher(expires);
         if(matcher.matches()){
-            return  matcher.group(1);
+            return  Integer.parseInt(matcher.group(1));
         }
         else{
             throw new SIPException("Incorrect EXPIRES format");
         }
     }
+
+    /**
+     * 
+     * @param retryAfter
+     * @return 
+     */
+    private static int parseRetryAfter(String retryAfter) throws SIPException{
+        Matcher matcher = RETRY_AFTER_PATTERN.matcher(retryAfter);
+        if(matcher.matches()){
+            return  Integer.parseInt(matcher.group(1));
+        }
+        else{
+            throw new SIPException("Incorrect RETRY AFTER format");
+        }
+    }
 	
 	/**
      * 
@@ -565,8 +1000,7 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parseProxyAuthenticate(String proxyAuthenticate) throws SIPException{
-        Pattern pattern = Pattern.compile("ProxyAuthenticate: nonce= ([\\w\\.\\:\\s\\,@]+)");
-        Matcher matcher = pattern.matcher(proxyAuthenticate);
+        Matcher matcher = PROXY_AUTHENTICATE_PATTERN.matcher(proxyAuthenticate);
         if(matcher.matches()){
             return  matcher.group(1);
         }
@@ -580,8 +1014,7 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parseProxyAuthentication(String proxyAuthentication) throws SIPException{
-        Pattern pattern = Pattern.compile("ProxyAuthentication: auth= ([\\w\\.\\:\\s\\,@]+)");
-        Matcher matcher = pattern.matcher(proxyAuthentication);
+        Matcher matcher = PROXY_AUTHENTICATION_PATTERN.matcher(proxyAuthentication);
         if(matcher.matches()){
             return  matcher.group(1);
         }
@@ -591,8 +1024,7 @@ public abstract class SIPMessage {
     }
     
     private static String parseAuthorization(String authorization) throws SIPException{
-        Pattern pattern = Pattern.compile("Authorization: response= ([\\w\\.\\:\\s\\,@]+)");
-        Matcher matcher = pattern.matcher(authorization);
+        Matcher matcher = AUTHORIZATION_PATTERN.matcher(authorization);
         if(matcher.matches()){
             return  matcher.group(1);
         }
@@ -606,8 +1038,7 @@ public abstract class SIPMessage {
      * @return 
      */
     private static String parsewwwAuthenticate(String wwwAuthenticate) throws SIPException{
-        Pattern pattern = Pattern.compile("WWW-Authenticate: nonce= ([\\w\\.\\:\\s\\,@]+)");
-        Matcher matcher = pattern.matcher(wwwAuthenticate);
+        Matcher matcher = WWW_AUTHENTICATE_PATTERN.matcher(wwwAuthenticate);
         if(matcher.matches()){
             return  matcher.group(1);
         }
@@ -0,0 +1,46 @@
+package mensajesSIP;
+
+import java.io.IOException;
+
+/**
+ * Visitante de mensajes SIP.
+ * <p>Cada subclase de SIPMessage implementa accept() llamando al método visitXxx
+ * que le corresponde, de forma que las capas de transacciones despachan un mensaje
+ * recibido con una única llamada virtual en lugar de una cadena de instanceof.
+ * <p>Si se añade un tipo de mensaje nuevo hay que añadir aquí su método, y el
+ * compilador obliga entonces a tratarlo en todas las capas que implementan la interfaz.
+ *
+ * @see SIPMessage#accept(SIPMessageVisitor, String, int)
+ */
+public interface SIPMessageVisitor {
+
+    // ----- Peticiones -----
+
+    void visitInvite(InviteMessage invite, String sourceIp, int sourcePort) throws IOException;
+
+    void visitRegister(RegisterMessage register, String sourceIp, int sourcePort) throws IOException;
+
+    void visitAck(ACKMessage ack, String sourceIp, int sourcePort) throws IOException;
+
+    void visitBye(ByeMessage bye, String sourceIp, int sourcePort) throws IOException;
+
+    // ----- Respuestas -----
+
+    void visitTrying(TryingMessage trying, String sourceIp, int sourcePort) throws IOException;
+
+    void visitRinging(RingingMessage ringing, String sourceIp, int sourcePort) throws IOException;
+
+    void visitOK(OKMessage ok, String sourceIp, int sourcePort) throws IOException;
+
+    void visitUnauthorized(UnauthorizedMessage unauthorized, String sourceIp, int sourcePort) throws IOException;
+
+    void visitNotFound(NotFoundMessage notFound, String sourceIp, int sourcePort) throws IOException;
+
+    void visitProxyAuthentication(ProxyAuthenticationMessage proxyAuthentication, String sourceIp, int sourcePort) throws IOException;
+
+    void visitRequestTimeout(RequestTimeoutMessage requestTimeout, String sourceIp, int sourcePort) throws IOException;
+
+    void visitBusyHere(BusyHereMessage busyHere, String sourceIp, int sourcePort) throws IOException;
+
+    void visitServiceUnavailable(ServiceUnavailableMessage serviceUnavailable, String sourceIp, int sourcePort) throws IOException;
+}
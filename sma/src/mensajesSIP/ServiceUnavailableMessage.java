@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -14,6 +15,15 @@ import java.util.ArrayList;
 public class ServiceUnavailableMessage extends SIPMessage {
 
     private int contentLength;
+    private int retryAfter = -1; // -1 si el mensaje no lleva cabecera Retry-After
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
 
     public int getContentLength() {
         return contentLength;
@@ -71,20 +81,32 @@ public class ServiceUnavailableMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
+    }
+
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitServiceUnavailable(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        contentLength = 0;
+        retryAfter = -1;
     }
 
     @Override
@@ -92,18 +114,20 @@ public class ServiceUnavailableMessage extends SIPMessage {
         String su;
         su = "SIP/2.0 503 Service Unavailable\n";
         for (int i=0; i<vias.size(); i++) {
-            su += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            su += viaHeader(vias.get(i)) + "\n";
         }
         if(getToName()!=null)
-            su += "To: " + getToName() + " <" + toUri + ">\n";
+            su += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            su += "To: <" + toUri + ">\n";
+            su += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            su += "From: " + fromName + " <" + fromUri + ">\n";
+            su += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            su += "From: <" + fromUri + ">\n";
+            su += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         su += "Call-ID: " + callId + "\n";
-        su += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        su += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
+        if (retryAfter >= 0)
+            su += "Retry-After: " + retryAfter + "\n";
         su += "Content-Length: " + contentLength + "\n";
         su += "\n";
 
@@ -0,0 +1,35 @@
+package mensajesSIP;
+
+/**
+ * Métodos SIP que entiende este API.
+ * <p>Se usa como valor de la cabecera CSeq: se parsea una sola vez al recibir el mensaje
+ * y después las capas comparan con == o con switch, sin comparar cadenas.
+ */
+public enum SipMethod {
+    INVITE,
+    REGISTER,
+    BYE,
+    ACK;
+
+/**
+ * Convierte el nombre del método tal y como viene en la red.
+ *
+ * @param method  el nombre del método ("INVITE", "BYE"...)
+ * @return        el SipMethod correspondiente
+ * @throws SIPException si el método no está soportado
+ */
+    public static SipMethod parse(String method) throws SIPException {
+        switch (method) {
+            case "INVITE":
+                return INVITE;
+            case "REGISTER":
+                return REGISTER;
+            case "BYE":
+                return BYE;
+            case "ACK":
+                return ACK;
+            default:
+                throw new SIPException("Unsupported method " + method);
+        }
+    }
+}
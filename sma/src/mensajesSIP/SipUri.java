@@ -0,0 +1,189 @@
+package mensajesSIP;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * URI SIP ya parseada: esquema, usuario, host, puerto y parámetros.
+ * <p>Se guarda normalizada según RFC 3261 (19.1.4): el usuario distingue mayúsculas y
+ * el resto (esquema, host, parámetros) no, así que se pasa a minúsculas al parsear.
+ * Dos SipUri son iguales si su forma normalizada es igual, y el hashCode se calcula
+ * una sola vez, por lo que sirven directamente como clave de las tablas del proxy.
+ * <p>Las URIs que se repiten en cada mensaje (To, From) se reutilizan con
+ * {@link #intern(String)}: la misma cadena recibida devuelve siempre el mismo objeto.
+ */
+public final class SipUri {
+
+    // Máximo de URIs guardadas por intern(); por encima se parsean sin guardar
+    private static final int INTERN_CAPACITY = 10_000;
+    private static final ConcurrentHashMap<String, SipUri> INTERNED = new ConcurrentHashMap<>();
+
+    private final String raw;
+    private final String scheme;
+    private final String user;     // null si la URI no tiene usuario ("sip:SMA")
+    private final String host;
+    private final int port;        // -1 si no viene
+    private final String params;   // ";clave=valor..." en minúsculas, "" si no hay
+    private final String canonical;
+    private final int hash;
+    private volatile SipUri addressOfRecord;
+
+    private SipUri(String raw, String scheme, String user, String host, int port, String params) {
+        this.raw = raw;
+        this.scheme = scheme;
+        this.user = user;
+        this.host = host;
+        this.port = port;
+        this.params = params;
+
+        StringBuilder sb = new StringBuilder(raw.length());
+        sb.append(scheme).append(':');
+        if (user != null) {
+            sb.append(user).append('@');
+        }
+        sb.append(host);
+        if (port >= 0) {
+            sb.append(':').append(port);
+        }
+        sb.append(params);
+        this.canonical = sb.toString();
+        this.hash = canonical.hashCode();
+    }
+
+    /**
+     * Parsea una URI del tipo "sip:usuario@host:puerto;parámetros".
+     *
+     * @param uri  la URI tal y como viene en el mensaje
+     * @return     la URI parseada y normalizada
+     * @throws SIPException si no es una URI sip/sips válida
+     */
+    public static SipUri parse(String uri) throws SIPException {
+        int colon = uri.indexOf(':');
+        if (colon < 0) {
+            throw new SIPException("Incorrect URI format " + uri);
+        }
+        String scheme = uri.substring(0, colon).toLowerCase(Locale.ROOT);
+        if (!scheme.equals("sip") && !scheme.equals("sips")) {
+            throw new SIPException("Unsupported URI scheme " + uri);
+        }
+
+        int semicolon = uri.indexOf(';', colon + 1);
+        int end = (semicolon < 0) ? uri.length() : semicolon;
+        int at = uri.lastIndexOf('@', end - 1);
+        String user = null;
+        int hostStart = colon + 1;
+        if (at > colon) {
+            user = uri.substring(colon + 1, at);
+            hostStart = at + 1;
+        }
+
+        String hostPort = uri.substring(hostStart, end);
+        int port = -1;
+        int portColon = hostPort.lastIndexOf(':');
+        // Las IPv6 van entre corchetes: solo hay puerto si el ':' está detrás del ']'
+        if (portColon >= 0 && portColon > hostPort.lastIndexOf(']')) {
+            try {
+                port = Integer.parseInt(hostPort.substring(portColon + 1));
+            } catch (NumberFormatException e) {
+                throw new SIPException("Incorrect URI port " + uri);
+            }
+            if (port < 0 || port > 65535) {
+                throw new SIPException("Incorrect URI port " + uri);
+            }
+            hostPort = hostPort.substring(0, portColon);
+        }
+        if (hostPort.isEmpty() || (user != null && user.isEmpty())) {
+            throw new SIPException("Incorrect URI format " + uri);
+        }
+
+        String params = (semicolon < 0) ? "" : uri.substring(semicolon).toLowerCase(Locale.ROOT);
+        return new SipUri(uri, scheme, user, hostPort.toLowerCase(Locale.ROOT), port, params);
+    }
+
+    /**
+     * Como {@link #parse(String)}, pero devuelve el mismo objeto para la misma cadena,
+     * así que las URIs que llegan una y otra vez solo se parsean la primera.
+     */
+    public static SipUri intern(String uri) throws SIPException {
+        SipUri cached = INTERNED.get(uri);
+        if (cached != null) {
+            return cached;
+        }
+        SipUri parsed = parse(uri);
+        if (INTERNED.size() < INTERN_CAPACITY) {
+            SipUri previous = INTERNED.putIfAbsent(uri, parsed);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * La URI sin puerto ni parámetros ("sip:alice@sma"): la clave del registrar.
+     */
+    public SipUri addressOfRecord() {
+        SipUri aor = addressOfRecord;
+        if (aor == null) {
+            aor = (port < 0 && params.isEmpty())
+                    ? this
+                    : new SipUri(scheme + ":" + (user != null ? user + "@" : "") + host,
+                            scheme, user, host, -1, "");
+            addressOfRecord = aor;
+        }
+        return aor;
+    }
+
+    /** true si esta URI se parseó a partir de esa misma cadena. */
+    public boolean isParsedFrom(String uri) {
+        return raw == uri || raw.equals(uri);
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    /** La cadena original, tal y como venía en el mensaje. */
+    public String getRaw() {
+        return raw;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SipUri)) {
+            return false;
+        }
+        SipUri uri = (SipUri) other;
+        return hash == uri.hash && canonical.equals(uri.canonical);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /** La forma normalizada. */
+    @Override
+    public String toString() {
+        return canonical;
+    }
+}
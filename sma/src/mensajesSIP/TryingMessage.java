@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -63,20 +64,20 @@ public class TryingMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
     public int getContentLength() {
@@ -87,23 +88,34 @@ public class TryingMessage extends SIPMessage {
         this.contentLength = contentLength;
     }
     
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitTrying(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        contentLength = 0;
+    }
+
     @Override
     public String toStringMessage() {
         String trying;
         trying = "SIP/2.0 100 Trying\n";
         for (int i=0; i<vias.size(); i++) {
-            trying += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            trying += viaHeader(vias.get(i)) + "\n";
         }
         if(getToName()!=null)
-            trying += "To: " + getToName() + " <" + toUri + ">\n";
+            trying += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            trying += "To: <" + toUri + ">\n";
+            trying += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            trying += "From: " + fromName + " <" + fromUri + ">\n";
+            trying += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            trying += "From: <" + fromUri + ">\n";
+            trying += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         trying += "Call-ID: " + callId + "\n";
-        trying += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        trying += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         trying += "Content-Length: " + contentLength + "\n";
         trying += "\n";
 
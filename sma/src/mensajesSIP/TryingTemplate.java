@@ -0,0 +1,121 @@
+package mensajesSIP;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Construye un 100 Trying directamente a partir de los bytes de un INVITE recibido,
+ * sin parsearlo.
+ * <p>El proxy lo usa en la capa de transporte para contestar en cuanto llega el datagrama,
+ * antes de consultar registros o servlets. La respuesta es la línea de estado precalculada,
+ * las líneas Via, To, From, Call-ID y CSeq del INVITE copiadas tal cual (trozos del buffer
+ * de entrada) y un Content-Length 0.
+ */
+public final class TryingTemplate {
+
+    private static final byte[] STATUS_LINE = "SIP/2.0 100 Trying\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = "Content-Length: 0\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] INVITE = "INVITE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VIA = "Via:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TO = "To:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FROM = "From:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CALL_ID = "Call-ID:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CSEQ = "CSeq:".getBytes(StandardCharsets.US_ASCII);
+
+    // Cabeceras obligatorias: se marca un bit por cada una encontrada
+    private static final int SEEN_VIA = 1, SEEN_TO = 2, SEEN_FROM = 4, SEEN_CALL_ID = 8, SEEN_CSEQ = 16;
+    private static final int SEEN_ALL = SEEN_VIA | SEEN_TO | SEEN_FROM | SEEN_CALL_ID | SEEN_CSEQ;
+
+    private TryingTemplate() {
+    }
+
+/**
+ * true si el datagrama empieza por una línea de petición INVITE.
+ */
+    public static boolean isInvite(byte[] data, int length) {
+        return startsWith(data, 0, length, INVITE);
+    }
+
+/**
+ * Escribe en out el 100 Trying que corresponde al INVITE contenido en data.
+ *
+ * @param data    el datagrama recibido
+ * @param length  bytes útiles de data
+ * @param out     buffer de salida, del mismo tamaño que el de recepción como mínimo
+ * @return        la longitud del Trying escrito, o -1 si data no es un INVITE con
+ *                todas las cabeceras necesarias (en ese caso no se debe enviar nada)
+ */
+    public static int writeTrying(byte[] data, int length, byte[] out) {
+        if (!isInvite(data, length)) {
+            return -1;
+        }
+        int pos = STATUS_LINE.length;
+        System.arraycopy(STATUS_LINE, 0, out, 0, pos);
+
+        int seen = 0;
+        // La primera línea es la de petición: se salta
+        int lineStart = indexOfNewLine(data, 0, length) + 1;
+        while (lineStart > 0 && lineStart < length) {
+            int lineEnd = indexOfNewLine(data, lineStart, length);
+            int next = (lineEnd < 0) ? length : lineEnd + 1;
+            int contentEnd = (lineEnd < 0) ? length : lineEnd;
+            if (contentEnd > lineStart && data[contentEnd - 1] == '\r') {
+                contentEnd--;
+            }
+            if (contentEnd == lineStart) {
+                break; // línea vacía: fin de cabeceras
+            }
+
+            int flag = 0;
+            if (startsWith(data, lineStart, contentEnd, VIA)) {
+                flag = SEEN_VIA;
+            } else if (startsWith(data, lineStart, contentEnd, TO)) {
+                flag = SEEN_TO;
+            } else if (startsWith(data, lineStart, contentEnd, FROM)) {
+                flag = SEEN_FROM;
+            } else if (startsWith(data, lineStart, contentEnd, CALL_ID)) {
+                flag = SEEN_CALL_ID;
+            } else if (startsWith(data, lineStart, contentEnd, CSEQ)) {
+                flag = SEEN_CSEQ;
+            }
+            if (flag != 0) {
+                int lineLength = contentEnd - lineStart;
+                if (pos + lineLength + 1 + END.length > out.length) {
+                    return -1;
+                }
+                System.arraycopy(data, lineStart, out, pos, lineLength);
+                pos += lineLength;
+                out[pos++] = '\n';
+                seen |= flag;
+            }
+            lineStart = next;
+        }
+
+        if (seen != SEEN_ALL) {
+            return -1;
+        }
+        System.arraycopy(END, 0, out, pos, END.length);
+        return pos + END.length;
+    }
+
+    private static int indexOfNewLine(byte[] data, int from, int length) {
+        for (int i = from; i < length; i++) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] data, int from, int end, byte[] prefix) {
+        if (end - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -5,6 +5,7 @@
  */
 package mensajesSIP;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -13,7 +14,7 @@ import java.util.ArrayList;
  */
 public class UnauthorizedMessage extends SIPMessage {
 
-    private String expires;
+    private int expires = -1; // -1 si el mensaje no lleva cabecera Expires
     private String wwwAuthenticate;
     private int contentLength;
 
@@ -65,20 +66,20 @@ public class UnauthorizedMessage extends SIPMessage {
         this.callId = callId;
     }
 
-    public String getcSeqNumber() {
+    public long getcSeqNumber() {
         return cSeqNumber;
     }
 
-    public void setcSeqNumber(String cSeqNumber) {
+    public void setcSeqNumber(long cSeqNumber) {
         this.cSeqNumber = cSeqNumber;
     }
 
-    public String getcSeqStr() {
-        return cSeqStr;
+    public SipMethod getcSeqMethod() {
+        return cSeqMethod;
     }
 
-    public void setcSeqStr(String cSeqStr) {
-        this.cSeqStr = cSeqStr;
+    public void setcSeqMethod(SipMethod cSeqMethod) {
+        this.cSeqMethod = cSeqMethod;
     }
 
     public String getwwwAuthenticate() {
@@ -89,11 +90,11 @@ public class UnauthorizedMessage extends SIPMessage {
         this.wwwAuthenticate = wwwAuthenticate;
     }
 
-    public String getExpires() {
+    public int getExpires() {
         return expires;
     }
 
-    public void setExpires(String expires) {
+    public void setExpires(int expires) {
         this.expires = expires;
     }
 
@@ -105,23 +106,36 @@ public class UnauthorizedMessage extends SIPMessage {
         this.contentLength = contentLength;
     }
     
+    @Override
+    public void accept(SIPMessageVisitor visitor, String sourceIp, int sourcePort) throws IOException {
+        visitor.visitUnauthorized(this, sourceIp, sourcePort);
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        expires = -1;
+        wwwAuthenticate = null;
+        contentLength = 0;
+    }
+
     @Override
     public String toStringMessage() {
         String nf;
         nf = "SIP/2.0 401 Unauthorized\n";
         for (int i=0; i<vias.size(); i++) {
-            nf += "Via: SIP/2.0/UDP " + vias.get(i) + "\n";
+            nf += viaHeader(vias.get(i)) + "\n";
         }
         if(getToName()!=null)
-            nf += "To: " + getToName() + " <" + toUri + ">\n";
+            nf += "To: " + getToName() + " <" + toUri + ">" + tagParam(toTag) + "\n";
         else
-            nf += "To: <" + toUri + ">\n";
+            nf += "To: <" + toUri + ">" + tagParam(toTag) + "\n";
         if(fromName!=null)
-            nf += "From: " + fromName + " <" + fromUri + ">\n";
+            nf += "From: " + fromName + " <" + fromUri + ">" + tagParam(fromTag) + "\n";
         else
-            nf += "From: <" + fromUri + ">\n";
+            nf += "From: <" + fromUri + ">" + tagParam(fromTag) + "\n";
         nf += "Call-ID: " + callId + "\n";
-        nf += "CSeq: " + cSeqNumber + " " + cSeqStr + "\n";
+        nf += "CSeq: " + cSeqNumber + " " + cSeqMethod + "\n";
         nf += "WWW-Authenticate: nonce= " + wwwAuthenticate + "\n";
         nf += "Content-Length: " + contentLength + "\n";
         nf += "\n";
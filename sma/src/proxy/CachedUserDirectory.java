@@ -0,0 +1,75 @@
+package proxy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mensajesSIP.SipUri;
+
+/**
+ * Caché delante de un directorio lento.
+ * <p>Cada respuesta se guarda con su caducidad: los abonados encontrados durante
+ * positiveTtlMs y los que no existen (caché negativa) durante negativeTtlMs, para que
+ * un cliente que insiste con un usuario inexistente no llegue al directorio de debajo
+ * en cada petición. Al caducar, la siguiente consulta vuelve a preguntar y refresca.
+ * <p>La lectura es un get() de ConcurrentHashMap: O(1) y sin bloqueos. Pasado el límite
+ * de entradas, las caducadas se barren como mucho una vez por TTL (el menor de los dos),
+ * no en cada fallo: el barrido recorre toda la caché.
+ */
+public class CachedUserDirectory implements UserDirectory {
+
+    // Límite de entradas: al superarlo se eliminan las caducadas (como mucho una vez por sweepIntervalMs)
+    private static final int SWEEP_THRESHOLD = 200_000;
+
+    private static final class Entry {
+        final Subscriber subscriber;   // null = el usuario no existe
+        final long expiresAtMs;
+
+        Entry(Subscriber subscriber, long expiresAtMs) {
+            this.subscriber = subscriber;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private final UserDirectory backend;
+    private final long positiveTtlMs;
+    private final long negativeTtlMs;
+    private final long sweepIntervalMs;
+    private final AtomicLong nextSweepMs = new AtomicLong();
+    private final ConcurrentHashMap<SipUri, Entry> cache = new ConcurrentHashMap<>();
+
+    public CachedUserDirectory(UserDirectory backend, long positiveTtlMs, long negativeTtlMs) {
+        this.backend = backend;
+        this.positiveTtlMs = positiveTtlMs;
+        this.negativeTtlMs = negativeTtlMs;
+        // Ninguna entrada dura menos que el menor de los dos TTL
+        this.sweepIntervalMs = Math.max(1, Math.min(positiveTtlMs, negativeTtlMs));
+    }
+
+    @Override
+    public Subscriber lookup(SipUri userUri) {
+        SipUri key = userUri.addressOfRecord();
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(key);
+        if (entry != null && now < entry.expiresAtMs) {
+            return entry.subscriber;
+        }
+
+        // Si dos hilos fallan a la vez los dos consultan el backend; el resultado es el mismo
+        Subscriber subscriber = backend.lookup(key);
+        long ttl = (subscriber != null) ? positiveTtlMs : negativeTtlMs;
+        if (cache.size() >= SWEEP_THRESHOLD) {
+            sweep(now);
+        }
+        cache.put(key, new Entry(subscriber, now + ttl));
+        return subscriber;
+    }
+
+    // Solo barre el hilo que gana el compareAndSet; los demás siguen sin esperar
+    private void sweep(long now) {
+        long next = nextSweepMs.get();
+        if (now < next || !nextSweepMs.compareAndSet(next, now + sweepIntervalMs)) {
+            return;
+        }
+        cache.values().removeIf(e -> e.expiresAtMs <= now);
+    }
+}
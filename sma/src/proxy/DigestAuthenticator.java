@@ -0,0 +1,134 @@
+package proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import common.DigestAuth;
+import mensajesSIP.SipMethod;
+import mensajesSIP.SipUri;
+
+/**
+ * Autenticación Digest del proxy (401 para REGISTER, 407 para INVITE).
+ * <p>Los nonces no se guardan al emitirlos: cada nonce es "instante.HMAC(instante)" con
+ * una clave aleatoria que solo conoce este proxy, así que basta recalcular el HMAC para
+ * saber si lo generó él y cuándo. Los nonces ya comprobados se apuntan en una caché para
+ * no repetir el HMAC mientras sigan vigentes.
+ * <p>MessageDigest y Mac se reutilizan por hilo.
+ */
+class DigestAuthenticator {
+
+    // Vida de un nonce; pasado ese tiempo se vuelve a pedir autenticación
+    private static final long NONCE_TTL_MS = 5 * 60 * 1000L;
+    // Tamaño a partir del cual se limpian de la caché los nonces caducados
+    private static final int NONCE_CACHE_SWEEP = 10_000;
+
+    private final UserDirectory users;
+    private final ThreadLocal<Mac> hmac;
+    private final ConcurrentHashMap<String, Long> verifiedNonces = new ConcurrentHashMap<>();
+
+    DigestAuthenticator(UserDirectory users) {
+        this.users = users;
+
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        final SecretKeySpec key = new SecretKeySpec(secret, "HmacSHA256");
+        this.hmac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 no disponible", e);
+            }
+        });
+    }
+
+    /** Nonce nuevo para un 401/407. */
+    String newNonce() {
+        String timestamp = Long.toHexString(System.currentTimeMillis());
+        return timestamp + "." + sign(timestamp);
+    }
+
+    /**
+     * Comprueba las credenciales de una petición.
+     *
+     * @param userUri     usuario que se autentica (To del REGISTER, From del INVITE)
+     * @param method      método de la petición
+     * @param requestUri  Request-URI de la petición
+     * @param value       valor de Authorization / ProxyAuthentication ("nonce,respuesta"), o null
+     * @return            true si el nonce es nuestro y vigente y la respuesta es correcta
+     */
+    boolean verify(SipUri userUri, SipMethod method, String requestUri, String value) {
+        if (value == null || userUri == null) {
+            return false;
+        }
+        String[] parts = value.trim().split(",");
+        if (parts.length != 2) {
+            return false;
+        }
+        String nonce = parts[0].trim();
+        String response = parts[1].trim();
+
+        if (!isNonceValid(nonce, System.currentTimeMillis())) {
+            return false;
+        }
+        Subscriber subscriber = users.lookup(userUri);
+        if (subscriber == null) {
+            return false;
+        }
+        String expected = DigestAuth.response(subscriber.getHa1(), method.name(), requestUri, nonce);
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                response.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private boolean isNonceValid(String nonce, long nowMs) {
+        Long expiresAt = verifiedNonces.get(nonce);
+        if (expiresAt != null) {
+            if (nowMs <= expiresAt) {
+                return true;
+            }
+            verifiedNonces.remove(nonce);
+            return false;
+        }
+
+        int dot = nonce.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        String timestamp = nonce.substring(0, dot);
+        long issuedAt;
+        try {
+            issuedAt = Long.parseLong(timestamp, 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (nowMs - issuedAt > NONCE_TTL_MS || issuedAt > nowMs) {
+            return false;
+        }
+        byte[] expected = sign(timestamp).getBytes(StandardCharsets.US_ASCII);
+        byte[] received = nonce.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, received)) {
+            return false;
+        }
+
+        if (verifiedNonces.size() > NONCE_CACHE_SWEEP) {
+            verifiedNonces.values().removeIf(expiry -> expiry < nowMs);
+        }
+        verifiedNonces.put(nonce, issuedAt + NONCE_TTL_MS);
+        return true;
+    }
+
+    // HMAC truncado a 16 bytes (32 caracteres hexadecimales)
+    private String sign(String timestamp) {
+        byte[] mac = hmac.get().doFinal(timestamp.getBytes(StandardCharsets.US_ASCII));
+        byte[] truncated = new byte[16];
+        System.arraycopy(mac, 0, truncated, 0, truncated.length);
+        return DigestAuth.toHex(truncated);
+    }
+}
@@ -0,0 +1,76 @@
+package proxy;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Rutas estáticas hacia dominios que no sirve este proxy: para cada sufijo de dominio,
+ * el siguiente proxy ("IP:puerto") al que se reenvían sus peticiones.
+ * <p>Los sufijos se guardan en un trie por etiquetas empezando por la derecha
+ * ("uc3m.es" es es -> uc3m), y la búsqueda devuelve la ruta del sufijo más largo que
+ * coincide: con rutas para "es" y "uc3m.es", "it.uc3m.es" va por la de "uc3m.es".
+ * <p>Las rutas se añaden al arrancar; después la tabla solo se lee, así que se puede
+ * consultar desde cualquier hilo sin bloqueos.
+ */
+class DomainRouteTable {
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>(4);
+        String nextHop;   // null si no hay ruta que termine en este nodo
+    }
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * Añade una ruta. Con sufijo "*" o "" es la ruta por defecto.
+     *
+     * @param suffix   sufijo de dominio, p.ej. "uc3m.es"
+     * @param nextHop  siguiente salto, "IP:puerto"
+     */
+    void add(String suffix, String nextHop) {
+        String domain = suffix.toLowerCase(Locale.ROOT);
+        Node node = root;
+        if (!domain.isEmpty() && !domain.equals("*")) {
+            int end = domain.length();
+            while (end > 0) {
+                int dot = domain.lastIndexOf('.', end - 1);
+                String label = domain.substring(dot + 1, end);
+                node = node.children.computeIfAbsent(label, l -> new Node());
+                end = dot;
+            }
+        }
+        if (node.nextHop == null) {
+            size++;
+        }
+        node.nextHop = nextHop;
+    }
+
+    /**
+     * Siguiente salto para un dominio (ya normalizado en minúsculas, como el host de SipUri).
+     *
+     * @return  "IP:puerto" de la ruta más específica, o null si no hay ninguna
+     */
+    String lookup(String host) {
+        Node node = root;
+        String best = root.nextHop;
+        int end = host.length();
+        while (end > 0) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                break;
+            }
+            if (node.nextHop != null) {
+                best = node.nextHop;
+            }
+            end = dot;
+        }
+        return best;
+    }
+
+    int size() {
+        return size;
+    }
+}
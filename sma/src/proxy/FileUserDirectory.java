@@ -0,0 +1,42 @@
+package proxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import common.Log;
+import mensajesSIP.SipUri;
+
+/**
+ * Directorio que consulta el fichero de abonados en cada búsqueda.
+ * <p>Es lento (recorre el fichero), pero refleja los cambios del fichero sin reiniciar
+ * el proxy. Está pensado para usarse detrás de {@link CachedUserDirectory}.
+ */
+public class FileUserDirectory implements UserDirectory {
+
+    private static final Log LOG = Log.get("Proxy-USERS");
+
+    private final Path file;
+
+    public FileUserDirectory(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public Subscriber lookup(SipUri userUri) {
+        final SipUri key = userUri.addressOfRecord();
+        final Subscriber[] found = new Subscriber[1];
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            SubscriberFile.read(reader, s -> {
+                if (s.getKey().equals(key)) {
+                    found[0] = s;
+                }
+            });
+        } catch (IOException e) {
+            LOG.error("Error leyendo {}: {}", file, e.getMessage());
+        }
+        return found[0];
+    }
+}
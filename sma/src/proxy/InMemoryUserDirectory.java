@@ -0,0 +1,69 @@
+package proxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import common.Log;
+import mensajesSIP.SipUri;
+
+/**
+ * Directorio cargado entero en memoria al arrancar.
+ * <p>El mapa se construye una vez y no se modifica después, así que las consultas son
+ * un get() de HashMap: O(1), sin bloqueos y válido para cientos de miles de abonados.
+ */
+public class InMemoryUserDirectory implements UserDirectory {
+
+    private static final Log LOG = Log.get("Proxy-USERS");
+
+    /** Fichero de abonados que se incluye con el proxy. */
+    public static final String DEFAULT_RESOURCE = "/proxy/subscribers.txt";
+
+    private final Map<SipUri, Subscriber> subscribers;
+
+    public InMemoryUserDirectory(Map<SipUri, Subscriber> subscribers) {
+        this.subscribers = Collections.unmodifiableMap(new HashMap<>(subscribers));
+    }
+
+    public static InMemoryUserDirectory fromFile(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return fromReader(reader);
+        }
+    }
+
+    /**
+     * Carga el fichero de abonados incluido en el classpath (vacío si no está).
+     */
+    public static InMemoryUserDirectory fromDefaultResource() throws IOException {
+        InputStream in = InMemoryUserDirectory.class.getResourceAsStream(DEFAULT_RESOURCE);
+        if (in == null) {
+            LOG.warn("{} no encontrado. No hay abonados.", DEFAULT_RESOURCE);
+            return new InMemoryUserDirectory(Collections.<SipUri, Subscriber>emptyMap());
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return fromReader(reader);
+        }
+    }
+
+    private static InMemoryUserDirectory fromReader(BufferedReader reader) throws IOException {
+        Map<SipUri, Subscriber> subscribers = new HashMap<>();
+        SubscriberFile.read(reader, s -> subscribers.put(s.getKey(), s));
+        return new InMemoryUserDirectory(subscribers);
+    }
+
+    @Override
+    public Subscriber lookup(SipUri userUri) {
+        return subscribers.get(userUri.addressOfRecord());
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+}
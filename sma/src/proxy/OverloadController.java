@@ -0,0 +1,141 @@
+package proxy;
+
+import common.Log;
+
+/**
+ * Control de sobrecarga del proxy.
+ * <p>Mide la cola de recepción (profundidad y tiempo que pasa cada mensaje esperando)
+ * y el tiempo de proceso de cada mensaje, y con eso decide si se admite una petición
+ * NUEVA (INVITE o REGISTER). Una petición se rechaza si:
+ * <ul>
+ *   <li>no quedan fichas en el token bucket (límite de peticiones nuevas por segundo), o</li>
+ *   <li>la cola está en estado de sobrecarga al estilo CoDel: el tiempo de espera en cola
+ *       lleva por encima del objetivo más de un intervalo completo.</li>
+ * </ul>
+ * Las peticiones dentro de diálogo (ACK, BYE) y las respuestas no pasan por aquí: se
+ * procesan siempre.
+ * <p>Solo lo usa el hilo que procesa la cola, así que no necesita sincronización;
+ * los contadores que se leen desde fuera son volatile.
+ */
+class OverloadController {
+
+    private static final Log LOG = Log.get("Proxy-OL");
+
+    // Objetivo de espera en cola y ventana que tiene que durar el exceso (valores de CoDel)
+    private static final long TARGET_NANOS   = 20_000_000L;   // 20 ms
+    private static final long INTERVAL_NANOS = 100_000_000L;  // 100 ms
+
+    private static final int MIN_RETRY_AFTER = 1;
+    private static final int MAX_RETRY_AFTER = 60;
+
+    // Token bucket
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    // Estado CoDel
+    private long aboveTargetSinceNanos = 0;  // 0 si la última espera estuvo por debajo del objetivo
+    private boolean overloaded = false;
+    private long overloadedSinceNanos;
+
+    // Medidas (medias móviles exponenciales, en ns)
+    private volatile long avgSojournNanos = 0;
+    private volatile long avgServiceNanos = 0;
+    private volatile long rejected = 0;
+
+    /**
+     * @param newRequestsPerSecond  peticiones nuevas admitidas por segundo (0 = sin límite)
+     */
+    OverloadController(int newRequestsPerSecond) {
+        this.tokensPerNano = newRequestsPerSecond / 1e9;
+        this.burst = Math.max(1, newRequestsPerSecond);
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Se llama al sacar un mensaje de la cola, con el tiempo que ha estado esperando.
+     */
+    void onDequeue(long sojournNanos, long nowNanos) {
+        avgSojournNanos = ewma(avgSojournNanos, sojournNanos);
+
+        if (sojournNanos < TARGET_NANOS) {
+            aboveTargetSinceNanos = 0;
+            if (overloaded) {
+                overloaded = false;
+                LOG.warn("Cola recuperada → se vuelven a admitir peticiones nuevas.");
+            }
+            return;
+        }
+        if (aboveTargetSinceNanos == 0) {
+            aboveTargetSinceNanos = nowNanos;
+        } else if (!overloaded && nowNanos - aboveTargetSinceNanos >= INTERVAL_NANOS) {
+            overloaded = true;
+            overloadedSinceNanos = nowNanos;
+            LOG.warn("Sobrecarga: espera en cola de {} ms → se rechazan INVITE/REGISTER nuevos con 503.",
+                    sojournNanos / 1_000_000);
+        }
+    }
+
+    /**
+     * Se llama al terminar de procesar un mensaje, con lo que ha tardado.
+     */
+    void onProcessed(long serviceNanos) {
+        avgServiceNanos = ewma(avgServiceNanos, serviceNanos);
+    }
+
+    /**
+     * Decide si se procesa una petición nueva (INVITE o REGISTER).
+     */
+    boolean admitNewRequest(long nowNanos) {
+        if (overloaded) {
+            rejected++;
+            return false;
+        }
+        if (tokensPerNano > 0) {
+            tokens = Math.min(burst, tokens + (nowNanos - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = nowNanos;
+            if (tokens < 1) {
+                rejected++;
+                return false;
+            }
+            tokens -= 1;
+        }
+        return true;
+    }
+
+    /**
+     * Segundos que se piden al cliente en el Retry-After del 503: lo que se tardaría en vaciar
+     * la cola actual, más lo que lleve durando la sobrecarga.
+     */
+    int retryAfterSeconds(int queueDepth, long nowNanos) {
+        long drainNanos = queueDepth * avgServiceNanos;
+        long seconds = 1 + drainNanos / 1_000_000_000L;
+        if (overloaded) {
+            seconds += (nowNanos - overloadedSinceNanos) / 1_000_000_000L;
+        }
+        return (int) Math.max(MIN_RETRY_AFTER, Math.min(MAX_RETRY_AFTER, seconds));
+    }
+
+    boolean isOverloaded() {
+        return overloaded;
+    }
+
+    long getAverageSojournNanos() {
+        return avgSojournNanos;
+    }
+
+    long getAverageServiceNanos() {
+        return avgServiceNanos;
+    }
+
+    long getRejected() {
+        return rejected;
+    }
+
+    // Media móvil con peso 1/8 para la muestra nueva
+    private static long ewma(long average, long sample) {
+        return (average == 0) ? sample : average + (sample - average) / 8;
+    }
+}
@@ -0,0 +1,484 @@
+package proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import common.Log;
+
+/**
+ * Captura de los mensajes SIP que recibe y envía el proxy, en ficheros pcap que se
+ * abren directamente con Wireshark o tcpdump.
+ * <p>Cada mensaje se guarda tal cual viajó (los bytes del datagrama, no el mensaje
+ * vuelto a serializar), con su hora y las direcciones de origen y destino en unas
+ * cabeceras IPv4 y UDP construidas aquí (formato LINKTYPE_RAW). Los mensajes que
+ * llegaron o salieron por TCP se guardan también como UDP.
+ * <p>Los hilos del proxy solo copian los bytes y los dejan en una cola sin locks
+ * (ConcurrentLinkedQueue); el hilo "proxy-capture" los junta en un buffer directo y lo
+ * vuelca al fichero con FileChannel.write() cuando se llena o cuando la cola se queda
+ * vacía. No se proyecta el fichero en memoria: en Windows no se puede recortar ni volver
+ * a abrir un fichero mientras siga proyectado. Cuando el fichero llega a su tamaño
+ * máximo se pasa al siguiente: hay como mucho files ficheros proxy-N.pcap en el
+ * directorio y, tras el último, se vuelve a empezar por el primero. Si la cola supera
+ * {@link #MAX_QUEUED_BYTES} los paquetes nuevos se descartan y se cuentan: la captura
+ * nunca frena al proxy.
+ * <p>Para poder tenerla activa a plena carga se puede capturar solo una de cada N
+ * llamadas (se decide por el Call-ID, así se guardan todos los mensajes de las llamadas
+ * elegidas) o solo unos Call-ID concretos; ambas cosas se pueden cambiar en marcha.
+ */
+public final class PacketCapture {
+
+    private static final Log LOG = Log.get("Proxy-CAP");
+
+    // Cabecera global de pcap: formato 2.4, hora en microsegundos, paquetes IPv4 sin enlace
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int SNAPLEN = 65535;
+    private static final int GLOBAL_HEADER = 24;
+    private static final int RECORD_HEADER = 16;
+    private static final int IP_UDP_HEADERS = 20 + 8;
+    private static final int MAX_PAYLOAD = SNAPLEN - IP_UDP_HEADERS;
+
+    // Buffer de escritura: caben varios paquetes, y siempre al menos uno del tamaño máximo
+    private static final int WRITE_BUFFER = 256 * 1024;
+
+    /** Bytes esperando en la cola como máximo; a partir de ahí se descartan paquetes. */
+    public static final int MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+    // Máximo que duerme el hilo de escritura sin paquetes (por si se pierde un unpark)
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final byte[] CALL_ID = "call-id".getBytes(StandardCharsets.US_ASCII);
+
+    /** Un paquete pendiente de escribir. */
+    private static final class Packet {
+        final long timeMicros;
+        final byte[] data;
+        final String srcIp;
+        final int srcPort;
+        final String dstIp;
+        final int dstPort;
+
+        Packet(long timeMicros, byte[] data, String srcIp, int srcPort, String dstIp, int dstPort) {
+            this.timeMicros = timeMicros;
+            this.data = data;
+            this.srcIp = srcIp;
+            this.srcPort = srcPort;
+            this.dstIp = dstIp;
+            this.dstPort = dstPort;
+        }
+    }
+
+    private final Path dir;
+    private final long fileSize;
+    private final int files;
+    private final String localIp;
+    private final int localPort;
+
+    private final Queue<Packet> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    // Filtros; se pueden cambiar desde otro hilo mientras se captura
+    private volatile int sample;
+    private volatile Set<String> callIds;
+
+    // Hora de pared en microsegundos a partir de nanoTime (monótona y sin crear objetos)
+    private final long baseMicros = System.currentTimeMillis() * 1000;
+    private final long baseNanos = System.nanoTime();
+
+    private final LongAdder captured = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+
+    // Solo los usa el hilo de escritura
+    private FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+    // Bytes del fichero actual, contando los que aún están en el buffer
+    private long fileBytes;
+    private int fileIndex = -1;
+    private long rotations;
+
+    private final Thread writer;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+
+    /**
+     * Prepara el directorio y arranca el hilo de escritura.
+     *
+     * @param dir        directorio de los ficheros proxy-N.pcap (se crea si no existe)
+     * @param fileSize   tamaño máximo de cada fichero, en bytes
+     * @param files      ficheros que se guardan antes de volver a escribir el primero
+     * @param sample     se captura una de cada sample llamadas; 1 = todas
+     * @param callIds    si no está vacío, solo se capturan estos Call-ID
+     * @param localIp    IP del proxy, para las cabeceras IPv4
+     * @param localPort  puerto del proxy
+     */
+    public PacketCapture(Path dir, long fileSize, int files, int sample, Collection<String> callIds,
+                         String localIp, int localPort) throws IOException {
+        this.dir = dir;
+        this.fileSize = Math.max(fileSize, GLOBAL_HEADER + RECORD_HEADER + SNAPLEN);
+        this.files = Math.max(1, files);
+        this.localIp = localIp;
+        this.localPort = localPort;
+        setSample(sample);
+        setCallIdFilter(callIds);
+        Files.createDirectories(dir);
+        openNextFile();
+
+        writer = new Thread(this::run, "proxy-capture");
+        writer.setDaemon(true);
+        writer.start();
+        // Al terminar el proceso se vuelca lo que quede en el buffer
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "proxy-capture-close"));
+        LOG.info("Capturando en {} ({} ficheros de {} bytes)", dir, this.files, this.fileSize);
+    }
+
+    /**
+     * @param sample  capturar una de cada sample llamadas; 1 (o menos) = todas
+     */
+    public void setSample(int sample) {
+        this.sample = Math.max(1, sample);
+    }
+
+    public int getSample() {
+        return sample;
+    }
+
+    /**
+     * Captura solo los mensajes de estos Call-ID; vacío = sin filtro.
+     */
+    public void setCallIdFilter(Collection<String> callIds) {
+        this.callIds = Set.copyOf(callIds);
+    }
+
+    public Set<String> getCallIdFilter() {
+        return callIds;
+    }
+
+    /** Datagrama (o mensaje TCP) recibido de sourceIp:sourcePort. */
+    public void received(byte[] data, int offset, int length, String sourceIp, int sourcePort) {
+        capture(data, offset, length, sourceIp, sourcePort, localIp, localPort);
+    }
+
+    /** Mensaje enviado a destIp:destPort. */
+    public void sent(byte[] data, int offset, int length, String destIp, int destPort) {
+        capture(data, offset, length, localIp, localPort, destIp, destPort);
+    }
+
+    private void capture(byte[] data, int offset, int length, String srcIp, int srcPort, String dstIp, int dstPort) {
+        if (!running) {
+            return;
+        }
+        if (!selected(data, offset, length)) {
+            filtered.increment();
+            return;
+        }
+        if (queuedBytes.addAndGet(length) > MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-length);
+            dropped.increment();
+            return;
+        }
+        // Se copia: el buffer de recepción se reutiliza en el siguiente datagrama
+        queue.offer(new Packet(nowMicros(), Arrays.copyOfRange(data, offset, offset + length),
+                srcIp, srcPort, dstIp, dstPort));
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // ¿Pasa el muestreo y el filtro de Call-ID? Sin ninguno de los dos no se mira el mensaje
+    private boolean selected(byte[] data, int offset, int length) {
+        int sample = this.sample;
+        Set<String> callIds = this.callIds;
+        if (sample <= 1 && callIds.isEmpty()) {
+            return true;
+        }
+        long bounds = findCallId(data, offset, length);
+        if (bounds < 0) {
+            return false;
+        }
+        int start = (int) (bounds >>> 32);
+        int end = (int) bounds;
+        if (!callIds.isEmpty()
+                && !callIds.contains(new String(data, start, end - start, StandardCharsets.US_ASCII))) {
+            return false;
+        }
+        if (sample > 1) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + data[i];
+            }
+            return Math.floorMod(hash, sample) == 0;
+        }
+        return true;
+    }
+
+    /**
+     * Busca el valor de la cabecera Call-ID (o su forma compacta "i") en las cabeceras
+     * del mensaje.
+     *
+     * @return  inicio en los 32 bits altos y fin en los bajos, o -1 si no está
+     */
+    static long findCallId(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int lineStart = offset;
+        while (lineStart < end) {
+            byte first = data[lineStart];
+            if (first == '\r' || first == '\n') {
+                return -1; // línea en blanco: fin de las cabeceras
+            }
+            int p = -1;
+            if (regionMatchesIgnoreCase(data, lineStart, end, CALL_ID)) {
+                p = lineStart + CALL_ID.length;
+            } else if (first == 'i' || first == 'I') {
+                p = lineStart + 1;
+            }
+            if (p >= 0) {
+                while (p < end && (data[p] == ' ' || data[p] == '\t')) {
+                    p++;
+                }
+                if (p < end && data[p] == ':') {
+                    int start = p + 1;
+                    while (start < end && (data[start] == ' ' || data[start] == '\t')) {
+                        start++;
+                    }
+                    int stop = start;
+                    while (stop < end && data[stop] != '\r' && data[stop] != '\n') {
+                        stop++;
+                    }
+                    while (stop > start && (data[stop - 1] == ' ' || data[stop - 1] == '\t')) {
+                        stop--;
+                    }
+                    return ((long) start << 32) | stop;
+                }
+            }
+            // Siguiente línea
+            while (lineStart < end && data[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return -1;
+    }
+
+    private static boolean regionMatchesIgnoreCase(byte[] data, int from, int end, byte[] lowerCase) {
+        if (end - from < lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            int b = data[from + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long nowMicros() {
+        return baseMicros + (System.nanoTime() - baseNanos) / 1000;
+    }
+
+    // ================== MEDIDAS ==================
+
+    /** Paquetes escritos en los ficheros. */
+    public long getCaptured() {
+        return captured.sum();
+    }
+
+    /** Paquetes descartados por tener la cola llena. */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Paquetes que no han pasado el muestreo o el filtro de Call-ID. */
+    public long getFiltered() {
+        return filtered.sum();
+    }
+
+    /** Bytes esperando en la cola. */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "captura: escritos=" + getCaptured() + " descartados=" + getDropped()
+                + " filtrados=" + getFiltered() + " en cola=" + getQueuedBytes() + "B";
+    }
+
+    // ================== ESCRITURA ==================
+
+    /**
+     * Termina la captura: escribe lo que quede en la cola y cierra el fichero actual.
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Hilo de escritura
+    private void run() {
+        try {
+            while (running || !queue.isEmpty()) {
+                Packet packet = queue.poll();
+                if (packet == null) {
+                    // Sin nada pendiente: al fichero, para que se pueda abrir ya con Wireshark
+                    flush();
+                    sleeping = true;
+                    // Volver a mirar tras anunciar que se duerme (ver AsyncAppender)
+                    if (running && queue.isEmpty()) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                queuedBytes.addAndGet(-packet.data.length);
+                write(packet);
+                captured.increment();
+            }
+            finishFile();
+        } catch (IOException e) {
+            running = false;
+            LOG.error("Captura detenida: error escribiendo en {}", dir, e);
+        }
+    }
+
+    private void write(Packet packet) throws IOException {
+        int payload = Math.min(packet.data.length, MAX_PAYLOAD);
+        int included = IP_UDP_HEADERS + payload;
+        if (fileBytes + RECORD_HEADER + included > fileSize) {
+            finishFile();
+            openNextFile();
+        }
+        if (buffer.remaining() < RECORD_HEADER + included) {
+            flush();
+        }
+        fileBytes += RECORD_HEADER + included;
+
+        // Cabecera del registro pcap
+        buffer.putInt((int) (packet.timeMicros / 1_000_000));
+        buffer.putInt((int) (packet.timeMicros % 1_000_000));
+        buffer.putInt(included);
+        buffer.putInt(IP_UDP_HEADERS + packet.data.length);
+
+        // IPv4 (orden de red)
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int ipStart = buffer.position();
+        buffer.put((byte) 0x45);                  // versión 4, cabecera de 20 bytes
+        buffer.put((byte) 0);
+        buffer.putShort((short) Math.min(included, 0xffff));
+        buffer.putShort((short) 0);               // identificación
+        buffer.putShort((short) 0x4000);          // no fragmentar
+        buffer.put((byte) 64);                    // TTL
+        buffer.put((byte) 17);                    // UDP
+        buffer.putShort((short) 0);               // checksum, se rellena abajo
+        buffer.putInt(ipv4(packet.srcIp));
+        buffer.putInt(ipv4(packet.dstIp));
+        buffer.putShort(ipStart + 10, ipChecksum(ipStart));
+
+        // UDP (sin checksum, permitido en IPv4)
+        buffer.putShort((short) packet.srcPort);
+        buffer.putShort((short) packet.dstPort);
+        buffer.putShort((short) Math.min(8 + packet.data.length, 0xffff));
+        buffer.putShort((short) 0);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.put(packet.data, 0, payload);
+    }
+
+    private short ipChecksum(int start) {
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += buffer.getShort(start + i) & 0xffff;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (short) ~sum;
+    }
+
+    // "a.b.c.d" a entero sin pasar por InetAddress; 0.0.0.0 si no es una IPv4
+    static int ipv4(String ip) {
+        int value = 0;
+        int octet = 0;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                value = (value << 8) | octet;
+                octet = 0;
+                dots++;
+            } else if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (octet > 255) {
+                    return 0;
+                }
+            } else {
+                return 0;
+            }
+        }
+        return (dots == 3) ? (value << 8) | octet : 0;
+    }
+
+    private void openNextFile() throws IOException {
+        fileIndex = (fileIndex + 1) % files;
+        Path path = dir.resolve("proxy-" + fileIndex + ".pcap");
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        fileBytes = GLOBAL_HEADER;
+
+        buffer.putInt(PCAP_MAGIC);
+        buffer.putShort((short) 2);  // versión 2.4
+        buffer.putShort((short) 4);
+        buffer.putInt(0);            // zona horaria: UTC
+        buffer.putInt(0);            // precisión
+        buffer.putInt(SNAPLEN);
+        buffer.putInt(LINKTYPE_RAW);
+        if (rotations++ > 0) {
+            LOG.info("Captura: se continúa en {}", path);
+        }
+    }
+
+    // Escribe en el fichero lo que haya en el buffer
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void finishFile() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        flush();
+        channel.close();
+        channel = null;
+    }
+}
@@ -0,0 +1,235 @@
+package proxy;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Opciones de arranque del proxy que no son obligatorias en la línea de comandos
+ * (se pasan como clave=valor detrás de puertoEscucha, looseRouting y debug).
+ * Cada opción tiene un valor por defecto razonable para la práctica.
+ */
+public class ProxyOptions {
+
+    // Máximo de mensajes esperando en la cola de recepción
+    private int queueCapacity = 1000;
+
+    // Peticiones nuevas (INVITE/REGISTER) admitidas por segundo; 0 = sin límite
+    private int maxNewRequestsPerSecond = 200;
+
+    // REGISTER admitidos de un mismo IP:puerto en cada ventana de 10 s; 0 = sin límite
+    private int registerRateLimit = 0;
+
+    // Pedir autenticación Digest (401 a REGISTER, 407 a INVITE)
+    private boolean authentication = false;
+
+    // Cada cuántos segundos se imprimen las medidas de las colas; 0 = nunca
+    private int statsIntervalSeconds = 0;
+
+    // Fichero de abonados; null = el subscribers.txt incluido con el proxy
+    private String usersFile = null;
+
+    // Segundos que se cachea cada consulta al fichero de abonados; 0 = cargarlo entero al arrancar
+    private int usersCacheSeconds = 0;
+
+    // Sockets UDP abiertos en el puerto con SO_REUSEPORT, cada uno con su hilo de recepción
+    // (el proceso sigue en un solo hilo); 0 = uno por núcleo
+    private int receiveSockets = 1;
+
+    // E/S UDP por lotes: vaciar el socket sin bloquear, procesar en lote y enviar al final
+    private boolean batchIo = false;
+
+    // Escuchar también por TCP y enviar por TCP los mensajes que no caben en un datagrama
+    private boolean tcp = true;
+
+    // Dominios que sirve este proxy (en minúsculas)
+    private final Set<String> localDomains = new LinkedHashSet<>(Arrays.asList("sma"));
+
+    // Rutas estáticas a otros dominios: sufijo de dominio -> "IP:puerto" del siguiente proxy
+    private final Map<String, String> routes = new LinkedHashMap<>();
+
+    // Captura de paquetes (ver PacketCapture): directorio de los ficheros pcap; null = sin captura
+    private String captureDir = null;
+    // Tamaño de cada fichero de captura y cuántos se guardan antes de reutilizar el más antiguo
+    private int captureFileSizeMb = 64;
+    private int captureFiles = 4;
+    // Se captura una de cada N llamadas (por Call-ID); 1 = todas
+    private int captureSample = 1;
+    // Si no está vacío, solo se capturan estos Call-ID
+    private final Set<String> captureCallIds = new LinkedHashSet<>();
+
+    // Métricas (ver common.Metrics): puerto local del endpoint HTTP (0 = sin él) y si se publican por JMX
+    private int metricsPort = 0;
+    private boolean jmx = true;
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getMaxNewRequestsPerSecond() {
+        return maxNewRequestsPerSecond;
+    }
+
+    public void setMaxNewRequestsPerSecond(int maxNewRequestsPerSecond) {
+        this.maxNewRequestsPerSecond = maxNewRequestsPerSecond;
+    }
+
+    public int getStatsIntervalSeconds() {
+        return statsIntervalSeconds;
+    }
+
+    public void setStatsIntervalSeconds(int statsIntervalSeconds) {
+        this.statsIntervalSeconds = statsIntervalSeconds;
+    }
+
+    public int getRegisterRateLimit() {
+        return registerRateLimit;
+    }
+
+    public void setRegisterRateLimit(int registerRateLimit) {
+        this.registerRateLimit = registerRateLimit;
+    }
+
+    public boolean isAuthentication() {
+        return authentication;
+    }
+
+    public void setAuthentication(boolean authentication) {
+        this.authentication = authentication;
+    }
+
+    public String getUsersFile() {
+        return usersFile;
+    }
+
+    public void setUsersFile(String usersFile) {
+        this.usersFile = usersFile;
+    }
+
+    public int getUsersCacheSeconds() {
+        return usersCacheSeconds;
+    }
+
+    public void setUsersCacheSeconds(int usersCacheSeconds) {
+        this.usersCacheSeconds = usersCacheSeconds;
+    }
+
+    public int getReceiveSockets() {
+        return receiveSockets;
+    }
+
+    public void setReceiveSockets(int receiveSockets) {
+        this.receiveSockets = receiveSockets;
+    }
+
+    public boolean isBatchIo() {
+        return batchIo;
+    }
+
+    public void setBatchIo(boolean batchIo) {
+        this.batchIo = batchIo;
+    }
+
+    public boolean isTcp() {
+        return tcp;
+    }
+
+    public void setTcp(boolean tcp) {
+        this.tcp = tcp;
+    }
+
+    public Set<String> getLocalDomains() {
+        return localDomains;
+    }
+
+    /**
+     * @param domains  dominios separados por comas, p.ej. "SMA,uc3m.es"
+     */
+    public void setLocalDomains(String domains) {
+        localDomains.clear();
+        for (String domain : domains.split(",")) {
+            if (!domain.trim().isEmpty()) {
+                localDomains.add(domain.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    public Map<String, String> getRoutes() {
+        return routes;
+    }
+
+    public void addRoute(String domainSuffix, String nextHop) {
+        routes.put(domainSuffix.toLowerCase(Locale.ROOT), nextHop);
+    }
+
+    public String getCaptureDir() {
+        return captureDir;
+    }
+
+    public void setCaptureDir(String captureDir) {
+        this.captureDir = captureDir;
+    }
+
+    public int getCaptureFileSizeMb() {
+        return captureFileSizeMb;
+    }
+
+    public void setCaptureFileSizeMb(int captureFileSizeMb) {
+        this.captureFileSizeMb = captureFileSizeMb;
+    }
+
+    public int getCaptureFiles() {
+        return captureFiles;
+    }
+
+    public void setCaptureFiles(int captureFiles) {
+        this.captureFiles = captureFiles;
+    }
+
+    public int getCaptureSample() {
+        return captureSample;
+    }
+
+    public void setCaptureSample(int captureSample) {
+        this.captureSample = captureSample;
+    }
+
+    public Set<String> getCaptureCallIds() {
+        return captureCallIds;
+    }
+
+    /**
+     * @param callIds  Call-ID separados por comas
+     */
+    public void setCaptureCallIds(String callIds) {
+        captureCallIds.clear();
+        for (String callId : callIds.split(",")) {
+            if (!callId.trim().isEmpty()) {
+                captureCallIds.add(callId.trim());
+            }
+        }
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+}
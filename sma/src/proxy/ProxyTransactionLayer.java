@@ -1,22 +1,33 @@
 package proxy;
 
 import java.io.IOException;
-import java.net.SocketException;
+
+import common.Counter;
+import common.Histogram;
+import common.Log;
+import common.Metrics;
 
 import mensajesSIP.ACKMessage;
 import mensajesSIP.BusyHereMessage;
 import mensajesSIP.ByeMessage;
 import mensajesSIP.InviteMessage;
+import mensajesSIP.MessagePool;
 import mensajesSIP.NotFoundMessage;
 import mensajesSIP.OKMessage;
+import mensajesSIP.ProxyAuthenticationMessage;
 import mensajesSIP.RegisterMessage;
 import mensajesSIP.RequestTimeoutMessage;
 import mensajesSIP.RingingMessage;
 import mensajesSIP.ServiceUnavailableMessage;
 import mensajesSIP.SIPMessage;
+import mensajesSIP.SIPMessageVisitor;
+import mensajesSIP.SipMethod;
 import mensajesSIP.TryingMessage;
+import mensajesSIP.UnauthorizedMessage;
+
+public class ProxyTransactionLayer implements SIPMessageVisitor {
 
-public class ProxyTransactionLayer {
+    private static final Log LOG = Log.get("Proxy-TX");
 
     // Estado muy simple para la TRANSACCIÓN INVITE
     private static final int IDLE = 0;
@@ -32,6 +43,22 @@ public class ProxyTransactionLayer {
 
     private final boolean looseRouting;
 
+    // REGISTER: respuestas ya enviadas (para las retransmisiones) y límite por IP:puerto de origen
+    private static final int REGISTER_CACHE_SIZE = 1024;
+    private static final long REGISTER_WINDOW_MS = 10_000;
+    private final RegisterResponseCache registerCache = new RegisterResponseCache(REGISTER_CACHE_SIZE);
+    private final SourceRateLimiter registerLimiter;
+    private final Counter registerThrottled;
+
+    // Métricas: 503 por motivo y tiempo del INVITE al 180 y al 200 OK de la llamada en curso
+    private final Counter rejectedBusy;
+    private final Counter rejectedOverload;
+    private final Histogram inviteToRinging;
+    private final Histogram inviteToOk;
+    // Cuándo se procesó el INVITE de la llamada en curso (System.nanoTime()); 0 = ya medido
+    private long inviteReceivedNanos = 0;
+    private boolean ringingMeasured = false;
+
     private ProxyUserLayer userLayer;
     private ProxyTransportLayer transportLayer;
     
@@ -47,10 +74,37 @@ public class ProxyTransactionLayer {
 
 public ProxyTransactionLayer(int listenPort,
                                  ProxyUserLayer userLayer,
-                                 boolean looseRouting) throws SocketException {
+                                 boolean looseRouting) throws IOException {
+        this(listenPort, userLayer, looseRouting, new ProxyOptions());
+    }
+
+    public ProxyTransactionLayer(int listenPort,
+                                 ProxyUserLayer userLayer,
+                                 boolean looseRouting,
+                                 ProxyOptions options) throws IOException {
+        this(listenPort, userLayer, looseRouting, options, new Metrics("sma_proxy"));
+    }
+
+    public ProxyTransactionLayer(int listenPort,
+                                 ProxyUserLayer userLayer,
+                                 boolean looseRouting,
+                                 ProxyOptions options,
+                                 Metrics metrics) throws IOException {
         this.userLayer     = userLayer;
         this.looseRouting  = looseRouting;
-        this.transportLayer = new ProxyTransportLayer(listenPort, this);
+        this.transportLayer = new ProxyTransportLayer(listenPort, this, options, metrics);
+        this.registerLimiter = new SourceRateLimiter(options.getRegisterRateLimit(), REGISTER_WINDOW_MS);
+
+        this.registerThrottled = metrics.counter("register_throttled_total",
+                "REGISTER descartados por superar el límite de su origen (regrate)");
+
+        String rejected = "Peticiones contestadas con 503, por motivo";
+        this.rejectedBusy     = metrics.counter("rejected_503_total", rejected, "reason", "busy");
+        this.rejectedOverload = metrics.counter("rejected_503_total", rejected, "reason", "overload");
+        this.inviteToRinging = metrics.histogram("invite_to_ringing_seconds",
+                "Tiempo desde que se procesa un INVITE hasta que llega su 180 Ringing");
+        this.inviteToOk = metrics.histogram("invite_to_ok_seconds",
+                "Tiempo desde que se procesa un INVITE hasta que llega su 200 OK");
     
         // Propaga el modo debug a la capa de transporte (para imprimir cabeceras completas)
         this.transportLayer.setDebug(this.debug);
@@ -58,111 +112,172 @@ public ProxyTransactionLayer(int listenPort,
 
     /**
      * Punto central de entrada de TODOS los mensajes que llegan al proxy.
+     * El propio mensaje llama al visitXxx que corresponde a su tipo.
      */
     public void onMessageReceived(SIPMessage sipMessage,
                                   String sourceIp,
                                   int sourcePort) throws IOException {
+        sipMessage.accept(this, sourceIp, sourcePort);
+    }
 
-        // 1) REGISTER
-        if (sipMessage instanceof RegisterMessage) {
-            userLayer.onRegisterReceived((RegisterMessage) sipMessage);
-            return;
-        }
+    // ================== DESPACHO POR TIPO DE MENSAJE ==================
 
-        // 2) INVITE
-        if (sipMessage instanceof InviteMessage) {
-            handleInvite((InviteMessage) sipMessage, sourceIp, sourcePort);
+    // 1) REGISTER
+    @Override
+    public void visitRegister(RegisterMessage register, String sourceIp, int sourcePort) throws IOException {
+        long now = System.currentTimeMillis();
+
+        // Las retransmisiones se contestan desde la caché sin gastar el cupo del origen
+        RegisterResponseCache.CachedResponse cached = registerCache.get(register.getCallId(), register.getcSeqNumber(), now);
+        if (cached != null) {
+            LOG.info("REGISTER retransmitido (Call-ID={}) → se reenvía la respuesta guardada.", register.getCallId());
+            transportLayer.send(cached.response, cached.ip, cached.port);
             return;
         }
 
-        // 3) 180 Ringing
-        if (sipMessage instanceof RingingMessage) {
-            userLayer.onRingingFromCallee((RingingMessage) sipMessage);
+        // Por IP:puerto: los UA de una misma máquina (el laboratorio) no comparten cupo
+        if (!registerLimiter.allow(sourceIp + ":" + sourcePort, now)) {
+            registerThrottled.increment();
+            LOG.debug("Demasiados REGISTER desde {}:{} → se descarta.", sourceIp, sourcePort);
             return;
         }
 
-        // 4) 200 OK (INVITE / BYE)
-        if (sipMessage instanceof OKMessage) {
-            OKMessage ok = (OKMessage) sipMessage;
-            String cseqMethod = ok.getcSeqStr();
-
-            if ("INVITE".equalsIgnoreCase(cseqMethod)) {
-                userLayer.onInviteOKFromCallee(ok);
-
-                if (looseRouting &&
-                        activeCallId != null &&
-                        activeCallId.equals(ok.getCallId())) {
-                    dialogActive = true;
-                    System.out.println("[Proxy-TX] 200 OK al INVITE → diálogo activo (loose routing).");
-                } else {
-                    // SIN loose routing: no esperamos ACK (porque va extremo-a-extremo)
-                    if (activeCallId != null && activeCallId.equals(ok.getCallId())) {
-                        state = IDLE;
-                        dialogActive = false;
-                        activeCallId = null;
-                        System.out.println("[Proxy-TX] 200 OK al INVITE (sin loose routing) → proxy vuelve a IDLE.");
-                    }
-                }
-                return;
-            }
+        userLayer.onRegisterReceived(register);
+    }
 
-            if ("BYE".equalsIgnoreCase(cseqMethod)) {
-                handleByeOk(ok);
-                return;
-            }
+    // 2) INVITE
+    @Override
+    public void visitInvite(InviteMessage invite, String sourceIp, int sourcePort) throws IOException {
+        handleInvite(invite, sourceIp, sourcePort);
+    }
+
+    // 3) 180 Ringing
+    @Override
+    public void visitRinging(RingingMessage ringing, String sourceIp, int sourcePort) throws IOException {
+        if (inviteReceivedNanos != 0 && !ringingMeasured && isActiveCall(ringing.getCallId())) {
+            inviteToRinging.observeSince(inviteReceivedNanos);
+            ringingMeasured = true;
         }
+        userLayer.onRingingFromCallee(ringing);
+    }
 
-        // 5) 404 Not Found al INVITE
-        if (sipMessage instanceof NotFoundMessage) {
-            NotFoundMessage nf = (NotFoundMessage) sipMessage;
-            String cseqMethod = nf.getcSeqStr();
-            if ("INVITE".equalsIgnoreCase(cseqMethod)) {
-                System.out.println("[Proxy-TX] 404 Not Found para INVITE → el UA llamante lo gestionará.");
-                return;
+    // 4) 200 OK (INVITE / BYE)
+    @Override
+    public void visitOK(OKMessage ok, String sourceIp, int sourcePort) throws IOException {
+        SipMethod cseqMethod = ok.getcSeqMethod();
+
+        if (cseqMethod == SipMethod.INVITE) {
+            if (inviteReceivedNanos != 0 && isActiveCall(ok.getCallId())) {
+                inviteToOk.observeSince(inviteReceivedNanos);
+                inviteReceivedNanos = 0;
             }
+            userLayer.onInviteOKFromCallee(ok);
+
+            if (looseRouting &&
+                    activeCallId != null &&
+                    activeCallId.equals(ok.getCallId())) {
+                dialogActive = true;
+                LOG.info("200 OK al INVITE → diálogo activo (loose routing).");
+            } else {
+                // SIN loose routing: no esperamos ACK (porque va extremo-a-extremo)
+                if (activeCallId != null && activeCallId.equals(ok.getCallId())) {
+                    state = IDLE;
+                    dialogActive = false;
+                    activeCallId = null;
+                    LOG.info("200 OK al INVITE (sin loose routing) → proxy vuelve a IDLE.");
+                }
+            }
+            return;
         }
 
-        // 6) ACK
-        if (sipMessage instanceof ACKMessage) {
-            handleAck((ACKMessage) sipMessage);
+        if (cseqMethod == SipMethod.BYE) {
+            handleByeOk(ok);
             return;
         }
 
-        if (sipMessage instanceof BusyHereMessage) {
-            BusyHereMessage bh = (BusyHereMessage) sipMessage;
-            userLayer.onBusyHereFromCallee(bh);
+        ignoreUnexpected(ok);
+    }
+
+    // 5) 404 Not Found al INVITE (solo llega de otro proxy al que se reenvió la llamada)
+    @Override
+    public void visitNotFound(NotFoundMessage nf, String sourceIp, int sourcePort) throws IOException {
+        if (nf.getcSeqMethod() == SipMethod.INVITE) {
+            userLayer.onNotFoundFromCallee(nf);
 
-            if (!looseRouting && activeCallId != null && activeCallId.equals(bh.getCallId())) {
+            if (!looseRouting && activeCallId != null && activeCallId.equals(nf.getCallId())) {
                 state = IDLE;
                 dialogActive = false;
                 activeCallId = null;
-                System.out.println("[Proxy-TX] 486 (sin loose routing) → proxy vuelve a IDLE.");
+                LOG.info("404 (sin loose routing) → proxy vuelve a IDLE.");
             }
             return;
         }
+        ignoreUnexpected(nf);
+    }
 
-        if (sipMessage instanceof RequestTimeoutMessage) {
-            RequestTimeoutMessage rt = (RequestTimeoutMessage) sipMessage;
-            userLayer.onRequestTimeoutFromCallee(rt);
+    // 6) ACK
+    @Override
+    public void visitAck(ACKMessage ack, String sourceIp, int sourcePort) throws IOException {
+        handleAck(ack);
+    }
 
-            if (!looseRouting && activeCallId != null && activeCallId.equals(rt.getCallId())) {
-                state = IDLE;
-                dialogActive = false;
-                activeCallId = null;
-                System.out.println("[Proxy-TX] 408 (sin loose routing) → proxy vuelve a IDLE.");
-            }
-            return;
+    // 7) 486 Busy Here
+    @Override
+    public void visitBusyHere(BusyHereMessage bh, String sourceIp, int sourcePort) throws IOException {
+        userLayer.onBusyHereFromCallee(bh);
+
+        if (!looseRouting && activeCallId != null && activeCallId.equals(bh.getCallId())) {
+            state = IDLE;
+            dialogActive = false;
+            activeCallId = null;
+            LOG.info("486 (sin loose routing) → proxy vuelve a IDLE.");
         }
+    }
 
+    // 8) 408 Request Timeout
+    @Override
+    public void visitRequestTimeout(RequestTimeoutMessage rt, String sourceIp, int sourcePort) throws IOException {
+        userLayer.onRequestTimeoutFromCallee(rt);
 
-        // 9) BYE (solo si hay loose routing)
-        if (sipMessage instanceof ByeMessage) {
-            handleBye((ByeMessage) sipMessage);
-            return;
+        if (!looseRouting && activeCallId != null && activeCallId.equals(rt.getCallId())) {
+            state = IDLE;
+            dialogActive = false;
+            activeCallId = null;
+            LOG.info("408 (sin loose routing) → proxy vuelve a IDLE.");
         }
+    }
+
+    // 9) BYE (solo si hay loose routing)
+    @Override
+    public void visitBye(ByeMessage bye, String sourceIp, int sourcePort) throws IOException {
+        handleBye(bye);
+    }
+
+    // 100 Trying del siguiente proxy: no se reenvía, el llamante ya recibió el nuestro
+    @Override
+    public void visitTrying(TryingMessage trying, String sourceIp, int sourcePort) {
+        LOG.debug("100 Trying de {}:{} → no se reenvía.", sourceIp, sourcePort);
+    }
+
+    // Mensajes que el proxy nunca debería recibir
+
+    @Override
+    public void visitUnauthorized(UnauthorizedMessage unauthorized, String sourceIp, int sourcePort) {
+        ignoreUnexpected(unauthorized);
+    }
+
+    @Override
+    public void visitProxyAuthentication(ProxyAuthenticationMessage proxyAuthentication, String sourceIp, int sourcePort) {
+        ignoreUnexpected(proxyAuthentication);
+    }
 
-        System.err.println("[Proxy-TX] Mensaje inesperado de tipo "
-                + sipMessage.getClass().getSimpleName() + ", se ignora.");
+    @Override
+    public void visitServiceUnavailable(ServiceUnavailableMessage serviceUnavailable, String sourceIp, int sourcePort) {
+        ignoreUnexpected(serviceUnavailable);
+    }
+
+    private void ignoreUnexpected(SIPMessage sipMessage) {
+        LOG.warn("Mensaje inesperado de tipo {}, se ignora.", sipMessage.getClass().getSimpleName());
     }
 
     // ================== LÓGICA DE INVITE ==================
@@ -178,9 +293,10 @@ public ProxyTransactionLayer(int listenPort,
             state        = BUSY;
             activeCallId = callId;
             dialogActive = false;
+            inviteReceivedNanos = System.nanoTime();
+            ringingMeasured = false;
 
-            System.out.println("[Proxy-TX] Nuevo INVITE (Call-ID=" + callId +
-                    ") → Proxy pasa a BUSY.");
+            LOG.info("Nuevo INVITE (Call-ID={}) → Proxy pasa a BUSY.", callId);
 
             userLayer.onInviteReceived(invite, sourceIp, sourcePort);
 
@@ -188,15 +304,20 @@ public ProxyTransactionLayer(int listenPort,
             // Ya hay llamada en curso
             if (activeCallId != null && activeCallId.equals(callId)) {
                 // Retransmisión del mismo INVITE: la ignoramos
-                System.out.println("[Proxy-TX] INVITE duplicado para Call-ID activo → ignorado.");
+                LOG.info("INVITE duplicado para Call-ID activo → ignorado.");
                 return;
             }
 
-            System.out.println("[Proxy-TX] Recibido INVITE mientras proxy está ocupado → responder 503.");
+            LOG.info("Recibido INVITE mientras proxy está ocupado → responder 503.");
             sendServiceUnavailable(invite, sourceIp, sourcePort);
         }
     }
 
+    // ¿Es de la llamada en curso?
+    private boolean isActiveCall(String callId) {
+        return activeCallId != null && activeCallId.equals(callId);
+    }
+
     /**
      * true si el proxy debe considerarse “ocupado” para nuevos INVITE.
      *  - sin loose routing: solo durante la transacción INVITE (state == BUSY)
@@ -214,14 +335,14 @@ public ProxyTransactionLayer(int listenPort,
         String callId = ack.getCallId();
 
         if (activeCallId != null && activeCallId.equals(callId)) {
-            System.out.println("[Proxy-TX] ACK recibido para Call-ID activo → reenviar al callee.");
+            LOG.info("ACK recibido para Call-ID activo → reenviar al callee.");
             userLayer.onAckFromCaller(ack);
 
             // La transacción INVITE termina aquí (éxito o error).
             state = IDLE;
-            System.out.println("[Proxy-TX] ACK procesado → Proxy vuelve a IDLE (transacción INVITE terminada).");
+            LOG.info("ACK procesado → Proxy vuelve a IDLE (transacción INVITE terminada).");
         } else {
-            System.out.println("[Proxy-TX] ACK recibido para Call-ID desconocido/antiguo → se ignora.");
+            LOG.info("ACK recibido para Call-ID desconocido/antiguo → se ignora.");
         }
     }
 
@@ -229,13 +350,13 @@ public ProxyTransactionLayer(int listenPort,
 
     private void handleBye(ByeMessage bye) throws IOException {
         if (!looseRouting) {
-            System.out.println("[Proxy-TX] BYE recibido pero loose routing desactivado → se ignora.");
+            LOG.info("BYE recibido pero loose routing desactivado → se ignora.");
             return;
         }
 
         String callId = bye.getCallId();
         if (activeCallId == null || !activeCallId.equals(callId)) {
-            System.out.println("[Proxy-TX] BYE recibido para Call-ID desconocido → se ignora.");
+            LOG.info("BYE recibido para Call-ID desconocido → se ignora.");
             return;
         }
 
@@ -244,13 +365,13 @@ public ProxyTransactionLayer(int listenPort,
 
     private void handleByeOk(OKMessage ok) throws IOException {
         if (!looseRouting) {
-            System.out.println("[Proxy-TX] 200 OK al BYE recibido pero loose routing desactivado → se ignora.");
+            LOG.info("200 OK al BYE recibido pero loose routing desactivado → se ignora.");
             return;
         }
 
         String callId = ok.getCallId();
         if (activeCallId == null || !activeCallId.equals(callId)) {
-            System.out.println("[Proxy-TX] 200 OK al BYE para Call-ID desconocido → se ignora.");
+            LOG.info("200 OK al BYE para Call-ID desconocido → se ignora.");
             return;
         }
 
@@ -260,11 +381,20 @@ public ProxyTransactionLayer(int listenPort,
         dialogActive = false;
         activeCallId = null;
         state = IDLE;
-        System.out.println("[Proxy-TX] 200 OK al BYE procesado → fin de llamada, proxy libre.");
+        LOG.info("200 OK al BYE procesado → fin de llamada, proxy libre.");
     }
 
     // ================== ENVÍO / REENVÍO ==================
 
+    /**
+     * Pide credenciales a un REGISTER: 401 con un nonce en WWW-Authenticate.
+     */
+    public void sendRegisterUnauthorized(RegisterMessage reg, String contact, String nonce) throws IOException {
+        UnauthorizedMessage unauthorized = (UnauthorizedMessage) reg.createResponse(401);
+        unauthorized.setwwwAuthenticate(nonce);
+        sendRegisterReply(reg, unauthorized, contact);
+    }
+
     public void sendRegisterResponse(RegisterMessage reg,
                                      String contact,
                                      boolean ok) throws IOException {
@@ -272,40 +402,30 @@ public ProxyTransactionLayer(int listenPort,
         SIPMessage response;
 
         if (ok) {
-            OKMessage okMsg = new OKMessage();
-            okMsg.setVias(reg.getVias());
-            okMsg.setToName(reg.getToName());
-            okMsg.setToUri(reg.getToUri());
-            okMsg.setFromName(reg.getFromName());
-            okMsg.setFromUri(reg.getFromUri());
-            okMsg.setCallId(reg.getCallId());
-            okMsg.setcSeqNumber(reg.getcSeqNumber());
-            okMsg.setcSeqStr(reg.getcSeqStr());
+            OKMessage okMsg = (OKMessage) reg.createResponse(200);
             okMsg.setContact(contact);
             okMsg.setExpires(reg.getExpires());
-            okMsg.setContentLength(0);
             response = okMsg;
         } else {
-            NotFoundMessage nf = new NotFoundMessage();
-            nf.setVias(reg.getVias());
-            nf.setToName(reg.getToName());
-            nf.setToUri(reg.getToUri());
-            nf.setFromName(reg.getFromName());
-            nf.setFromUri(reg.getFromUri());
-            nf.setCallId(reg.getCallId());
-            nf.setcSeqNumber(reg.getcSeqNumber());
-            nf.setcSeqStr(reg.getcSeqStr());
+            NotFoundMessage nf = (NotFoundMessage) reg.createResponse(404);
             nf.setContact(contact);
             nf.setExpires(reg.getExpires());
-            nf.setContentLength(0);
             response = nf;
         }
 
+        sendRegisterReply(reg, response, contact);
+    }
+
+    private void sendRegisterReply(RegisterMessage reg, SIPMessage response, String contact) throws IOException {
         String[] parts = contact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        transportLayer.send(response, ip, port);
+        // Se serializa una sola vez: los mismos bytes se envían y se guardan para las retransmisiones
+        byte[] bytes = response.toStringMessage().getBytes();
+        transportLayer.send(bytes, ip, port);
+        registerCache.put(reg.getCallId(), reg.getcSeqNumber(), bytes, ip, port, System.currentTimeMillis());
+        MessagePool.recycle(response);
     }
 
     public void forwardInvite(InviteMessage inviteMessage,
@@ -320,6 +440,10 @@ public ProxyTransactionLayer(int listenPort,
         transportLayer.send(busy, ip, port);
     }
 
+    public void forwardNotFound(NotFoundMessage nf, String ip, int port) throws IOException {
+        transportLayer.send(nf, ip, port);
+    }
+
     public void forwardRequestTimeout(RequestTimeoutMessage rt,
                                       String ip,
                                       int port) throws IOException {
@@ -329,22 +453,11 @@ public ProxyTransactionLayer(int listenPort,
     public void sendInviteNotFound(InviteMessage inviteMessage,
                                    String callerContact) throws IOException {
 
-        NotFoundMessage nf = new NotFoundMessage();
-        nf.setVias(inviteMessage.getVias());
-        nf.setToName(inviteMessage.getToName());
-        nf.setToUri(inviteMessage.getToUri());
-        nf.setFromName(inviteMessage.getFromName());
-        nf.setFromUri(inviteMessage.getFromUri());
-        nf.setCallId(inviteMessage.getCallId());
-        nf.setcSeqNumber(inviteMessage.getcSeqNumber());
-        nf.setcSeqStr(inviteMessage.getcSeqStr());
-        nf.setContentLength(0);
-
         String[] parts = callerContact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        transportLayer.send(nf, ip, port);
+        transportLayer.send(inviteMessage.toStatelessResponseBytes(404), ip, port);
     }
 
     public void forwardInviteOk(OKMessage ok,
@@ -353,20 +466,6 @@ public ProxyTransactionLayer(int listenPort,
         transportLayer.send(ok, address, port);
     }
 
-    public void sendTrying(InviteMessage invite, String ip, int port) throws IOException {
-        TryingMessage trying = new TryingMessage();
-        trying.setVias(invite.getVias());
-        trying.setToName(invite.getToName());
-        trying.setToUri(invite.getToUri());
-        trying.setFromName(invite.getFromName());
-        trying.setFromUri(invite.getFromUri());
-        trying.setCallId(invite.getCallId());
-        trying.setcSeqNumber(invite.getcSeqNumber());
-        trying.setcSeqStr(invite.getcSeqStr());
-        trying.setContentLength(0);
-        transportLayer.send(trying, ip, port);
-    }
-
     public void forwardRinging(RingingMessage ringing, String ip, int port) throws IOException {
         transportLayer.send(ringing, ip, port);
     }
@@ -384,17 +483,56 @@ public ProxyTransactionLayer(int listenPort,
     }
 
     private void sendServiceUnavailable(InviteMessage invite, String ip, int port) throws IOException {
-        ServiceUnavailableMessage su = new ServiceUnavailableMessage();
-        su.setVias(invite.getVias());
-        su.setToName(invite.getToName());
-        su.setToUri(invite.getToUri());
-        su.setFromName(invite.getFromName());
-        su.setFromUri(invite.getFromUri());
-        su.setCallId(invite.getCallId());
-        su.setcSeqNumber(invite.getcSeqNumber());
-        su.setcSeqStr(invite.getcSeqStr());
-        su.setContentLength(0);
+        rejectedBusy.increment();
+        transportLayer.send(invite.toStatelessResponseBytes(503), ip, port);
+    }
+
+    /**
+     * Pide credenciales a un INVITE: 407 con un nonce en ProxyAuthenticate.
+     * La llamada no llega a empezar, así que el proxy queda libre para el INVITE
+     * repetido con credenciales (mismo Call-ID, CSeq siguiente). El ACK del 407
+     * llega con un Call-ID que ya no está activo y se ignora.
+     */
+    public void sendProxyAuthenticationRequired(InviteMessage invite, String ip, int port, String nonce) throws IOException {
+        if (activeCallId != null && activeCallId.equals(invite.getCallId())) {
+            state = IDLE;
+            dialogActive = false;
+            activeCallId = null;
+        }
+        ProxyAuthenticationMessage pa = (ProxyAuthenticationMessage) invite.createResponse(407);
+        pa.setproxyAuthenticate(nonce);
+        transportLayer.send(pa, ip, port);
+        MessagePool.recycle(pa);
+    }
+
+    /**
+     * Rechaza un INVITE que el proxy no va a encaminar (403 si viene de un proxy que no
+     * es el de su dominio, 483 si se ha agotado Max-Forwards). Igual que con el 407, la
+     * llamada no llega a empezar y el proxy queda libre para la siguiente.
+     */
+    public void rejectInvite(InviteMessage invite, int status, String ip, int port) throws IOException {
+        if (activeCallId != null && activeCallId.equals(invite.getCallId())) {
+            state = IDLE;
+            dialogActive = false;
+            activeCallId = null;
+        }
+        transportLayer.send(invite.toStatelessResponseBytes(status), ip, port);
+    }
+
+    /**
+     * Rechaza una petición nueva por sobrecarga: 503 con Retry-After al origen.
+     */
+    public void sendOverloaded(SIPMessage request, String ip, int port, int retryAfter) throws IOException {
+        LOG.info("{} rechazado por sobrecarga → 503 (Retry-After {} s).", request.getClass().getSimpleName(), retryAfter);
+        rejectedOverload.increment();
+        ServiceUnavailableMessage su = (ServiceUnavailableMessage) request.createResponse(503);
+        su.setRetryAfter(retryAfter);
         transportLayer.send(su, ip, port);
+        MessagePool.recycle(su);
+    }
+
+    public ProxyTransportLayer getTransportLayer() {
+        return transportLayer;
     }
 
     public void startListening() {
@@ -403,47 +541,21 @@ public ProxyTransactionLayer(int listenPort,
     
     public void sendBusyHereForInviteFromProxy(InviteMessage invite, String callerContact) throws IOException {
 	
-		BusyHereMessage busy = new BusyHereMessage();
-		
-		// Copiamos los campos relevantes del INVITE, igual que en UaTransactionLayer
-		busy.setVias(invite.getVias());
-		busy.setToName(invite.getToName());
-		busy.setToUri(invite.getToUri());
-		busy.setFromName(invite.getFromName());
-		busy.setFromUri(invite.getFromUri());
-		busy.setCallId(invite.getCallId());
-		busy.setcSeqNumber(invite.getcSeqNumber());
-		busy.setcSeqStr(invite.getcSeqStr()); // "INVITE"
-		busy.setContentLength(0);
-		
 		// Sacamos IP y puerto del caller a partir del contact
 		String[] parts = callerContact.split(":");
 		String ip   = parts[0];
 		int    port = Integer.parseInt(parts[1]);
 		
-		// Reutilizamos tu lógica de reenvío de 486
-		forwardBusyHere(busy, ip, port);
+		transportLayer.send(invite.toStatelessResponseBytes(486), ip, port);
 	}
     
     public void sendRequestTimeoutForInviteFromProxy(InviteMessage invite, String callerContact) throws IOException {
 
-		RequestTimeoutMessage rt = new RequestTimeoutMessage();
-		
-		rt.setVias(invite.getVias());
-		rt.setToName(invite.getToName());
-		rt.setToUri(invite.getToUri());
-		rt.setFromName(invite.getFromName());
-		rt.setFromUri(invite.getFromUri());
-		rt.setCallId(invite.getCallId());
-		rt.setcSeqNumber(invite.getcSeqNumber());
-		rt.setcSeqStr(invite.getcSeqStr()); // "INVITE"
-		rt.setContentLength(0);
-		
 		String[] parts = callerContact.split(":");
 		String ip   = parts[0];
 		int    port = Integer.parseInt(parts[1]);
 		
-		forwardRequestTimeout(rt, ip, port);
+		transportLayer.send(invite.toStatelessResponseBytes(408), ip, port);
     }
     
 }
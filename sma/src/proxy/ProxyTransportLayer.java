@@ -4,100 +4,754 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 
+import common.Counter;
+import common.FindMyIPv4;
+import common.Log;
+import common.MessageCounters;
+import common.Metrics;
+import common.TcpTransport;
+import mensajesSIP.MessagePool;
 import mensajesSIP.SIPMessage;
+import mensajesSIP.TryingTemplate;
 
 /**
  * Capa de transporte del proxy.
- * Se encarga solo de enviar y recibir datagramas UDP.
+ * Se encarga de enviar y recibir datagramas UDP y de encolarlos para su proceso,
+ * aplicando el control de sobrecarga a las peticiones nuevas.
+ * <p>Si está activado TCP, escucha también en el mismo puerto TCP: lo recibido por las
+ * conexiones entra en las mismas colas, y los mensajes que no caben en un datagrama
+ * (más de {@link TcpTransport#MTU_LIMIT} bytes) se envían por TCP.
+ * <p>Si está activada la captura, todo lo que entra y sale pasa también por
+ * {@link PacketCapture}, con los bytes tal cual viajaron.
  */
 public class ProxyTransportLayer {
 
-    /** Tamaño del buffer de recepción. */
-    private static final int BUFSIZE = 4 * 1024;
+    private static final Log LOG = Log.get("Proxy");
+    private static final Log STATS_LOG = Log.get("Proxy-Q");
+
+    /** Tamaño del buffer de recepción: el mayor datagrama UDP posible, para no truncar nada. */
+    private static final int BUFSIZE = 64 * 1024;
+
+    private static final byte[] INVITE = "INVITE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REGISTER = "REGISTER ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ACK = "ACK ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BYE = "BYE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESPONSE = "SIP/2.0 ".getBytes(StandardCharsets.US_ASCII);
+
+    // Presupuesto de cada cola: mensajes seguidos que procesa el worker por ronda
+    private static final int IN_DIALOG_BUDGET = 32;
+    private static final int RESPONSE_BUDGET  = 16;
+    private static final int INVITE_BUDGET    = 8;
+    private static final int REGISTER_BUDGET  = 4;
+
+    // Máximo de datagramas por lote en el modo batch (recepción y proceso)
+    private static final int BATCH_SIZE = 64;
 
     private int listenPort;
-    private DatagramSocket socket;
+    // Sockets UDP en el mismo puerto (SO_REUSEPORT), cada uno con su hilo de recepción:
+    // el kernel reparte los datagramas entre ellos. Lo que va en paralelo es la lectura,
+    // la clasificación y el 100 Trying inmediato; el proceso sigue en el único hilo worker.
+    // El primero se usa también para enviar.
+    private final DatagramSocket[] sockets;
+    private final DatagramSocket socket;
+    // null si TCP está desactivado
+    private final TcpTransport tcp;
     private ProxyTransactionLayer transactionLayer;
 
-    
-    /** Activar logs completos de SIP (cabeceras). */
+    // Colas de recepción: los hilos que leen los sockets solo clasifican y encolan, y el
+    // hilo de proceso hace el resto (así el estado de transacciones sigue en un solo hilo). Por orden de prioridad: ACK/BYE de llamadas en curso,
+    // respuestas, INVITE nuevos y REGISTER, para que una avalancha de REGISTER (por
+    // ejemplo tras una caída de red) no retrase las llamadas establecidas.
+    private final ReceiveQueue<Datagram> inDialogQueue;
+    private final ReceiveQueue<Datagram> responseQueue;
+    private final ReceiveQueue<Datagram> inviteQueue;
+    private final ReceiveQueue<Datagram> registerQueue;
+    private final List<ReceiveQueue<Datagram>> queues;
+    // Un permiso por datagrama pendiente en cualquiera de las colas
+    private final Semaphore pending = new Semaphore(0);
+
+    private final OverloadController overload;
+    private final int statsIntervalSeconds;
+
+    // Modo batch: los sockets son de DatagramChannel no bloqueantes. Lo que envía el
+    // worker mientras procesa un lote se guarda en outbound y se envía todo al final.
+    private final boolean batchIo;
+    private final List<OutboundDatagram> outbound = new ArrayList<>();
+    private volatile Thread worker;
+
+    // null si la captura está desactivada
+    private final PacketCapture capture;
+
+    // Métricas: mensajes que entran y salen, por método o código, y los que no se pueden parsear
+    private final MessageCounters received;
+    private final MessageCounters sent;
+    private final Counter parseFailures;
+
+    /** Activar una traza (nivel DEBUG) por mensaje enviado o recibido. */
     private boolean debug = false;
 
     public void setDebug(boolean debug) {
         this.debug = debug;
     }
-/**
-     * Crea el socket UDP y lo deja escuchando en el puerto indicado.
+
+    /**
+     * Crea los sockets UDP y los deja escuchando en el puerto indicado.
      */
-    public ProxyTransportLayer(int listenPort, ProxyTransactionLayer transactionLayer) throws SocketException {
+    public ProxyTransportLayer(int listenPort, ProxyTransactionLayer transactionLayer, ProxyOptions options) throws IOException {
+        this(listenPort, transactionLayer, options, new Metrics("sma_proxy"));
+    }
+
+    /**
+     * Igual, registrando sus medidas (mensajes, colas, captura) en metrics.
+     */
+    public ProxyTransportLayer(int listenPort, ProxyTransactionLayer transactionLayer, ProxyOptions options,
+                               Metrics metrics) throws IOException {
         this.transactionLayer = transactionLayer;
         this.listenPort = listenPort;
-        this.socket = new DatagramSocket(listenPort);
+        this.batchIo = options.isBatchIo();
+        this.sockets = openSockets(listenPort, options.getReceiveSockets(), batchIo);
+        this.socket = sockets[0];
+        this.tcp = options.isTcp() ? new TcpTransport(listenPort, this::onStreamMessage, "proxy") : null;
+        int capacity = options.getQueueCapacity();
+        this.inDialogQueue = new ReceiveQueue<>("in-dialog", capacity, IN_DIALOG_BUDGET, ReceiveQueue.DropPolicy.DROP_NEWEST);
+        this.responseQueue = new ReceiveQueue<>("responses", capacity, RESPONSE_BUDGET, ReceiveQueue.DropPolicy.DROP_NEWEST);
+        this.inviteQueue   = new ReceiveQueue<>("invite", capacity, INVITE_BUDGET, ReceiveQueue.DropPolicy.DROP_NEWEST);
+        // De un REGISTER repetido solo interesa el último: se descartan los más antiguos
+        this.registerQueue = new ReceiveQueue<>("register", capacity, REGISTER_BUDGET, ReceiveQueue.DropPolicy.DROP_OLDEST);
+        this.queues = Arrays.asList(inDialogQueue, responseQueue, inviteQueue, registerQueue);
+        this.overload = new OverloadController(options.getMaxNewRequestsPerSecond());
+        this.statsIntervalSeconds = options.getStatsIntervalSeconds();
+        this.capture = (options.getCaptureDir() == null) ? null
+                : new PacketCapture(Paths.get(options.getCaptureDir()),
+                        options.getCaptureFileSizeMb() * 1024L * 1024L, options.getCaptureFiles(),
+                        options.getCaptureSample(), options.getCaptureCallIds(),
+                        FindMyIPv4.findMyIPv4Address().getHostAddress(), listenPort);
+
+        this.received = new MessageCounters(metrics, "messages_received_total",
+                "Mensajes SIP recibidos, por método o código de respuesta");
+        this.sent = new MessageCounters(metrics, "messages_sent_total",
+                "Mensajes SIP enviados, por método o código de respuesta");
+        this.parseFailures = metrics.counter("parse_failures_total", "Mensajes recibidos que no se han podido parsear");
+        registerGauges(metrics);
+    }
+
+    // Medidas que ya llevan las colas, el control de sobrecarga y la captura
+    private void registerGauges(Metrics metrics) {
+        for (ReceiveQueue<Datagram> queue : queues) {
+            metrics.gauge("queue_depth", "Mensajes esperando en cada cola de recepción",
+                    "queue", queue.getName(), queue::getDepth);
+            metrics.gauge("queue_wait_avg_microseconds", "Espera media en cada cola de recepción",
+                    "queue", queue.getName(), () -> queue.getAverageWaitNanos() / 1000);
+            metrics.counter("queue_dropped_total", "Mensajes descartados por encontrar su cola llena",
+                    "queue", queue.getName(), queue::getDropped);
+        }
+        metrics.gauge("processing_avg_microseconds", "Tiempo medio de proceso de un mensaje",
+                () -> getAverageProcessingNanos() / 1000);
+        metrics.gauge("overloaded", "1 mientras se rechazan peticiones nuevas por sobrecarga",
+                () -> overload.isOverloaded() ? 1 : 0);
+        metrics.counter("log_dropped_total", "Trazas descartadas por tener lleno el buffer del log",
+                null, null, Log::getDropped);
+        if (capture != null) {
+            metrics.counter("capture_packets_total", "Paquetes escritos en la captura",
+                    null, null, capture::getCaptured);
+            metrics.counter("capture_dropped_total", "Paquetes que no se han capturado por tener la cola llena",
+                    null, null, capture::getDropped);
+            metrics.gauge("capture_queue_bytes", "Bytes esperando a escribirse en la captura",
+                    capture::getQueuedBytes);
+        }
     }
 
     /**
-     * Envía un mensaje SIP a la dirección y puerto indicados.
+     * Abre count sockets UDP en el mismo puerto con SO_REUSEPORT (uno por núcleo si count
+     * es 0). Si el sistema no admite SO_REUSEPORT se abre uno solo. En modo batch los
+     * sockets salen de un DatagramChannel, para poder leerlos sin bloquear.
+     * <p>Todos los hilos de recepción encolan para el mismo worker: más sockets ayudan
+     * cuando el cuello de botella es vaciar el socket (ráfagas, búfer del kernel lleno),
+     * no cuando lo es el proceso de los mensajes.
      */
-    public void send(SIPMessage sipMessage, String address, int port) throws IOException {
-        if (debug) {
-           System.out.println("\n========== [PROXY SEND] -> " 
-        	        + address + ":" + port + " ==========");
-        	System.out.println(sipMessage.toStringMessage());
-        	System.out.println("========== [END PROXY SEND] ==========\n");
+    private static DatagramSocket[] openSockets(int listenPort, int count, boolean batch) throws IOException {
+        if (count <= 0) {
+            count = Runtime.getRuntime().availableProcessors();
+        }
+        if (count == 1) {
+            DatagramSocket single = newSocket(batch);
+            single.bind(new InetSocketAddress(listenPort));
+            return new DatagramSocket[] { single };
         }
+
+        DatagramSocket first = newSocket(batch);
+        if (!first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            LOG.warn("SO_REUSEPORT no disponible: se usa un solo socket UDP.");
+            first.bind(new InetSocketAddress(listenPort));
+            return new DatagramSocket[] { first };
+        }
+
+        DatagramSocket[] sockets = new DatagramSocket[count];
+        sockets[0] = first;
+        for (int i = 0; i < count; i++) {
+            if (sockets[i] == null) {
+                sockets[i] = newSocket(batch);
+            }
+            sockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            sockets[i].bind(new InetSocketAddress(listenPort));
+        }
+        LOG.info("{} sockets UDP en el puerto {} (SO_REUSEPORT)", count, listenPort);
+        return sockets;
+    }
+
+    // Socket sin enlazar; en modo batch, el de un DatagramChannel
+    private static DatagramSocket newSocket(boolean batch) throws IOException {
+        return batch ? DatagramChannel.open().socket() : new DatagramSocket(null);
+    }
+
+    /**
+     * Envía un mensaje SIP a la dirección y puerto indicados. Si es una petición que va a
+     * salir por TCP, su Via de arriba (la del proxy) pasa a decir TCP.
+     */
+    public void send(SIPMessage sipMessage, String address, int port) throws IOException {
         byte[] bytes = sipMessage.toStringMessage().getBytes();
+        if (tcp != null && bytes.length > TcpTransport.MTU_LIMIT && sipMessage.useTcpInTopVia()) {
+            bytes = sipMessage.toStringMessage().getBytes();
+        }
         sendSocket(bytes, address, port);
     }
 
     /**
-     * Envío genérico de un datagrama UDP.
+     * Envía un mensaje ya serializado (por ejemplo, una respuesta sin estado).
+     */
+    public void send(byte[] bytes, String address, int port) throws IOException {
+        sendSocket(bytes, address, port);
+    }
+
+    /**
+     * Envío genérico: por UDP, o por TCP si el mensaje es demasiado grande para un datagrama.
      */
     private void sendSocket(byte[] bytes, String address, int port) throws IOException {
+        if (debug && LOG.isDebugEnabled()) {
+            LOG.debug("-> {}:{} {}", address, port, firstLine(bytes, bytes.length));
+        }
+        sent.count(bytes, bytes.length);
+        if (capture != null) {
+            capture.sent(bytes, 0, bytes.length, address, port);
+        }
+        if (tcp != null && bytes.length > TcpTransport.MTU_LIMIT) {
+            tcp.send(bytes, address, port);
+            return;
+        }
         InetAddress inetAddress = InetAddress.getByName(address);
+        if (batchIo) {
+            InetSocketAddress target = new InetSocketAddress(inetAddress, port);
+            if (Thread.currentThread() == worker) {
+                // Se envía al terminar el lote (ver flushOutbound)
+                outbound.add(new OutboundDatagram(ByteBuffer.wrap(bytes), target));
+            } else {
+                socket.getChannel().send(ByteBuffer.wrap(bytes), target);
+            }
+            return;
+        }
         DatagramPacket packet = new DatagramPacket(bytes, bytes.length, inetAddress, port);
         socket.send(packet);
     }
 
     /**
-     * Bucle principal de escucha.
-     * Recibe datagramas, los parsea a SIPMessage y se los pasa
-     * a la capa de transacciones.
+     * Envía seguidos todos los datagramas que el worker ha generado durante el lote.
+     */
+    private void flushOutbound() {
+        if (outbound.isEmpty()) {
+            return;
+        }
+        DatagramChannel channel = socket.getChannel();
+        for (OutboundDatagram datagram : outbound) {
+            try {
+                // Canal no bloqueante: si el buffer de envío está lleno se pierde,
+                // como cualquier datagrama UDP, y se recupera por retransmisión
+                channel.send(datagram.data, datagram.target);
+            } catch (IOException e) {
+                LOG.error("Error en ProxyTransportLayer: {}", e.getMessage());
+            }
+        }
+        outbound.clear();
+    }
+
+    /**
+     * Si el datagrama es un INVITE, responde al origen con un 100 Trying construido
+     * a partir de sus propios bytes (ver TryingTemplate).
+     * <p>Solo se llama si el INVITE ha entrado en su cola: tras un 1xx el llamante deja
+     * de retransmitir, así que un INVITE descartado no puede haberse contestado.
+     */
+    private void sendImmediateTrying(DatagramSocket socket, DatagramPacket packet,
+                                     byte[] tryingBuf, DatagramPacket tryingPacket) throws IOException {
+        int length = TryingTemplate.writeTrying(packet.getData(), packet.getLength(), tryingBuf);
+        if (length < 0) {
+            return;
+        }
+        tryingPacket.setData(tryingBuf, 0, length);
+        tryingPacket.setSocketAddress(packet.getSocketAddress());
+        socket.send(tryingPacket);
+
+        LOG.info("100 Trying enviado al llamante");
+        sent.count(tryingBuf, length);
+        if (capture != null) {
+            capture.sent(tryingBuf, 0, length, packet.getAddress().getHostAddress(), packet.getPort());
+        }
+    }
+
+    /**
+     * Mensaje recibido por una conexión TCP (se llama desde el hilo del Selector).
+     * Se trata igual que un datagrama; el 100 Trying vuelve por la misma conexión.
+     */
+    private void onStreamMessage(byte[] message, String sourceIp, int sourcePort) {
+        if (capture != null) {
+            capture.received(message, 0, message.length, sourceIp, sourcePort);
+        }
+        ReceiveQueue.Offer result = offer(message, message.length, sourceIp, sourcePort);
+        if (result == ReceiveQueue.Offer.DROPPED) {
+            return;
+        }
+        try {
+            byte[] trying = new byte[message.length + 64];
+            int length = TryingTemplate.writeTrying(message, message.length, trying);
+            if (length > 0) {
+                tcp.send(Arrays.copyOf(trying, length), sourceIp, sourcePort);
+                LOG.info("100 Trying enviado al llamante (TCP)");
+                sent.count(trying, length);
+                if (capture != null) {
+                    capture.sent(trying, 0, length, sourceIp, sourcePort);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error en ProxyTransportLayer: {}", e.getMessage());
+        } finally {
+            signal(result);
+        }
+    }
+
+    /**
+     * Arranca el hilo de proceso y un bucle de recepción por socket. El del primer
+     * socket se ejecuta en el hilo que llama, que se queda bloqueado aquí.
      */
     public void startListening() {
-        System.out.println("Listening at " + listenPort + "...");
+        LOG.info("Listening at {}...", listenPort);
+
+        worker = new Thread(batchIo ? this::processQueuesInBatches : this::processQueues, "proxy-worker");
+        worker.start();
+
+        if (tcp != null) {
+            tcp.start();
+        }
+
+        if (statsIntervalSeconds > 0) {
+            Thread stats = new Thread(this::printStatsPeriodically, "proxy-stats");
+            stats.setDaemon(true);
+            stats.start();
+        }
+
+        if (batchIo) {
+            LOG.info("E/S UDP por lotes (hasta {} datagramas)", BATCH_SIZE);
+        }
+        for (int i = 1; i < sockets.length; i++) {
+            final DatagramSocket extra = sockets[i];
+            new Thread(() -> startReceiveLoop(extra), "proxy-udp-" + i).start();
+        }
+        startReceiveLoop(socket);
+    }
+
+    private void startReceiveLoop(DatagramSocket socket) {
+        if (batchIo) {
+            batchReceiveLoop(socket.getChannel());
+        } else {
+            receiveLoop(socket);
+        }
+    }
+
+    /**
+     * Bucle de recepción de un socket.
+     * Recibe datagramas y los deja en la cola que corresponda; el hilo de proceso
+     * los parsea y se los pasa a la capa de transacciones.
+     */
+    private void receiveLoop(DatagramSocket socket) {
+        // Buffer y paquete se reutilizan en cada recepción
+        byte[] buf = new byte[BUFSIZE];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        byte[] tryingBuf = new byte[BUFSIZE];
+        DatagramPacket tryingPacket = new DatagramPacket(tryingBuf, tryingBuf.length);
         while (true) {
             try {
-                byte[] buf = new byte[BUFSIZE];
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                packet.setLength(buf.length);
 
                 // Espera bloqueante a que llegue un datagrama
                 socket.receive(packet);
+                if (capture != null) {
+                    capture.received(packet.getData(), packet.getOffset(), packet.getLength(),
+                            packet.getAddress().getHostAddress(), packet.getPort());
+                }
+
+                ReceiveQueue.Offer result = offer(packet.getData(), packet.getLength(),
+                        packet.getAddress().getHostAddress(), packet.getPort());
+
+                // Los INVITE que han entrado en la cola se contestan con 100 Trying aquí
+                // mismo, antes de parsear y sin esperar a los registros ni a los servlets.
+                // El worker se despierta después, para que su respuesta no adelante al 100
+                try {
+                    if (result != ReceiveQueue.Offer.DROPPED) {
+                        sendImmediateTrying(socket, packet, tryingBuf, tryingPacket);
+                    }
+                } finally {
+                    signal(result);
+                }
+
+            } catch (Exception e) {
+                LOG.error("Error en ProxyTransportLayer", e);
+            }
+        }
+    }
 
-                // Construimos el String solo con la parte útil del buffer
-                String msg = new String(packet.getData(), 0, packet.getLength());
+    /**
+     * Bucle de recepción del modo batch.
+     * Espera a que el socket tenga datos y entonces lo vacía sin bloquear (hasta
+     * BATCH_SIZE datagramas), encolándolos todos y despertando al worker una sola vez.
+     */
+    private void batchReceiveLoop(DatagramChannel channel) {
+        ByteBuffer buf = ByteBuffer.allocate(BUFSIZE);
+        byte[] tryingBuf = new byte[BUFSIZE];
+        try (Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                try {
+                    selector.select();
+                    selector.selectedKeys().clear();
+
+                    int received = 0;
+                    int signals = 0;
+                    SocketAddress from;
+                    while (received < BATCH_SIZE && (from = channel.receive(buf)) != null) {
+                        InetSocketAddress source = (InetSocketAddress) from;
+                        int length = buf.position();
+                        if (capture != null) {
+                            capture.received(buf.array(), 0, length,
+                                    source.getAddress().getHostAddress(), source.getPort());
+                        }
 
-                SIPMessage sipMessage = SIPMessage.parseMessage(msg);
+                        ReceiveQueue.Offer result = offer(buf.array(), length,
+                                source.getAddress().getHostAddress(), source.getPort());
+                        if (result == ReceiveQueue.Offer.ADDED) {
+                            signals++;
+                        }
 
-                String sourceIp = packet.getAddress().getHostAddress();
-                int sourcePort = packet.getPort();
+                        int tryingLength = (result == ReceiveQueue.Offer.DROPPED) ? -1
+                                : TryingTemplate.writeTrying(buf.array(), length, tryingBuf);
+                        if (tryingLength > 0) {
+                            channel.send(ByteBuffer.wrap(tryingBuf, 0, tryingLength), source);
+                            LOG.info("100 Trying enviado al llamante");
+                            sent.count(tryingBuf, tryingLength);
+                            if (capture != null) {
+                                capture.sent(tryingBuf, 0, tryingLength,
+                                        source.getAddress().getHostAddress(), source.getPort());
+                            }
+                        }
 
-                
-                if (debug) {
-                    System.out.println("\n========== [PROXY RECV] <- " 
-                	        + sourceIp + ":" + sourcePort + " ==========");
-                	System.out.println(sipMessage.toStringMessage());
-                	System.out.println("========== [END PROXY RECV] ==========\n");
+                        buf.clear();
+                        received++;
+                    }
+                    if (signals > 0) {
+                        pending.release(signals);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Error en ProxyTransportLayer", e);
                 }
+            }
+        } catch (IOException e) {
+            LOG.error("Error en ProxyTransportLayer: no se puede crear el Selector: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Clasifica el mensaje mirando solo su primera palabra y lo encola en la cola
+     * que le corresponde. Si la cola está llena se aplica su política de descarte
+     * (el cliente retransmitirá lo descartado).
+     * <p>No avisa al worker: quien llama envía antes el 100 Trying, si toca, y luego
+     * llama a {@link #signal(ReceiveQueue.Offer)}.
+     */
+    private ReceiveQueue.Offer offer(byte[] data, int length, String sourceIp, int sourcePort) {
+        received.count(data, length);
+        ReceiveQueue<Datagram> queue;
+        if (startsWith(data, length, ACK) || startsWith(data, length, BYE)) {
+            queue = inDialogQueue;
+        } else if (startsWith(data, length, RESPONSE)) {
+            queue = responseQueue;
+        } else if (startsWith(data, length, INVITE)) {
+            queue = inviteQueue;
+        } else {
+            // REGISTER y cualquier cosa desconocida, con la prioridad más baja
+            queue = registerQueue;
+        }
+
+        // Construimos el String solo con la parte útil del buffer
+        Datagram datagram = new Datagram(queue, new String(data, 0, length),
+                sourceIp, sourcePort, System.nanoTime());
+
+        return queue.offer(datagram);
+    }
+
+    // Con ADDED hay un mensaje más en las colas: un permiso más para el worker
+    private void signal(ReceiveQueue.Offer result) {
+        if (result == ReceiveQueue.Offer.ADDED) {
+            pending.release();
+        }
+    }
 
-// Pasamos el mensaje a la capa de transacciones
-                transactionLayer.onMessageReceived(sipMessage, sourceIp, sourcePort);
+    /**
+     * Elige el siguiente datagrama: la cola de más prioridad que no esté vacía y a la
+     * que le queden fichas en esta ronda. Cuando ninguna con mensajes tiene fichas,
+     * empieza una ronda nueva. Así las colas de menos prioridad avanzan aunque las
+     * de más prioridad estén siempre llenas.
+     */
+    private Datagram nextDatagram() {
+        for (int round = 0; round < 2; round++) {
+            for (ReceiveQueue<Datagram> queue : queues) {
+                if (queue.credits > 0 && !queue.isEmpty()) {
+                    Datagram datagram = queue.poll();
+                    if (datagram != null) {
+                        queue.credits--;
+                        return datagram;
+                    }
+                }
+            }
+            for (ReceiveQueue<Datagram> queue : queues) {
+                queue.refill();
+            }
+        }
+        // Solo pasa si un DROP_OLDEST se ha llevado el mensaje de este permiso
+        return null;
+    }
 
+    /**
+     * Bucle del worker en modo batch.
+     * Toma de una vez todos los permisos disponibles (hasta BATCH_SIZE), procesa ese lote
+     * de datagramas y envía después de golpe todo lo que haya generado.
+     */
+    private void processQueuesInBatches() {
+        while (true) {
+            try {
+                pending.acquire();
+                int batch = 1 + Math.min(pending.availablePermits(), BATCH_SIZE - 1);
+                if (batch > 1 && !pending.tryAcquire(batch - 1)) {
+                    batch = 1;
+                }
+
+                for (int i = 0; i < batch; i++) {
+                    Datagram datagram = nextDatagram();
+                    if (datagram == null) {
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    long waitNanos = now - datagram.receivedAtNanos;
+                    datagram.queue.onDequeue(waitNanos);
+                    overload.onDequeue(waitNanos, now);
+                    boolean newRequest = (datagram.queue == inviteQueue || datagram.queue == registerQueue);
+                    try {
+                        process(datagram, newRequest, now);
+                    } catch (Exception e) {
+                        LOG.error("Error en ProxyTransportLayer", e);
+                    }
+                    overload.onProcessed(System.nanoTime() - now);
+                }
+                flushOutbound();
+
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Bucle del hilo de proceso: un datagrama cada vez, en el orden de {@link #nextDatagram()}.
+     */
+    private void processQueues() {
+        while (true) {
+            try {
+                pending.acquire();
+                Datagram datagram = nextDatagram();
+                if (datagram == null) {
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                long waitNanos = now - datagram.receivedAtNanos;
+                datagram.queue.onDequeue(waitNanos);
+                overload.onDequeue(waitNanos, now);
+                boolean newRequest = (datagram.queue == inviteQueue || datagram.queue == registerQueue);
+                process(datagram, newRequest, now);
+                overload.onProcessed(System.nanoTime() - now);
+
+            } catch (InterruptedException e) {
+                return;
             } catch (Exception e) {
-                System.err.println("Error en ProxyTransportLayer: " + e.getMessage());
-                e.printStackTrace();
+                LOG.error("Error en ProxyTransportLayer", e);
+            }
+        }
+    }
+
+    private void process(Datagram datagram, boolean newRequest, long now) throws Exception {
+        if (debug && LOG.isDebugEnabled()) {
+            LOG.debug("<- {}:{} {}", datagram.sourceIp, datagram.sourcePort, firstLine(datagram.text));
+        }
+        SIPMessage sipMessage;
+        try {
+            sipMessage = SIPMessage.parseMessage(datagram.text);
+        } catch (Exception e) {
+            parseFailures.increment();
+            throw e;
+        }
+        try {
+
+            if (newRequest && !overload.admitNewRequest(now)) {
+                int retryAfter = overload.retryAfterSeconds(getQueueDepth(), now);
+                transactionLayer.sendOverloaded(sipMessage, datagram.sourceIp, datagram.sourcePort, retryAfter);
+                return;
+            }
+
+            // Pasamos el mensaje a la capa de transacciones
+            transactionLayer.onMessageReceived(sipMessage, datagram.sourceIp, datagram.sourcePort);
+        } finally {
+            // El proxy no guarda los mensajes recibidos más allá de su procesado
+            MessagePool.recycle(sipMessage);
+        }
+    }
+
+    // Primera línea del mensaje (la de petición o la de estado), para las trazas
+    private static String firstLine(byte[] data, int length) {
+        int end = 0;
+        while (end < length && data[end] != '\r' && data[end] != '\n') {
+            end++;
+        }
+        return new String(data, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private static String firstLine(String text) {
+        int end = 0;
+        while (end < text.length() && text.charAt(end) != '\r' && text.charAt(end) != '\n') {
+            end++;
+        }
+        return text.substring(0, end);
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ================== MEDIDAS DE LA COLA ==================
+
+    private void printStatsPeriodically() {
+        try {
+            while (true) {
+                Thread.sleep(statsIntervalSeconds * 1000L);
+                for (ReceiveQueue<Datagram> queue : queues) {
+                    STATS_LOG.info("{}", queue);
+                }
+                STATS_LOG.info("rechazados por sobrecarga={} proceso medio={}us",
+                        getRejectedByOverload(), getAverageProcessingNanos() / 1000);
+                if (capture != null) {
+                    STATS_LOG.info("{}", capture);
+                }
             }
+        } catch (InterruptedException e) {
+            // fin del hilo
+        }
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ReceiveQueue<Datagram> queue : queues) {
+            depth += queue.getDepth();
+        }
+        return depth;
+    }
+
+    /** La captura de paquetes, o null si está desactivada. */
+    public PacketCapture getCapture() {
+        return capture;
+    }
+
+    /** Las colas de recepción por orden de prioridad, con sus medidas. */
+    public List<ReceiveQueue<Datagram>> getReceiveQueues() {
+        return queues;
+    }
+
+    /** Tiempo medio (ns) que esperan los mensajes en cola antes de procesarse. */
+    public long getAverageQueueLatencyNanos() {
+        return overload.getAverageSojournNanos();
+    }
+
+    /** Tiempo medio (ns) que se tarda en procesar un mensaje. */
+    public long getAverageProcessingNanos() {
+        return overload.getAverageServiceNanos();
+    }
+
+    /** Peticiones nuevas rechazadas con 503 por sobrecarga. */
+    public long getRejectedByOverload() {
+        return overload.getRejected();
+    }
+
+    /** Datagramas descartados por encontrar su cola llena. */
+    public long getDroppedQueueFull() {
+        long dropped = 0;
+        for (ReceiveQueue<Datagram> queue : queues) {
+            dropped += queue.getDropped();
+        }
+        return dropped;
+    }
+
+    /** Un datagrama recibido esperando en cola. */
+    static final class Datagram {
+        final ReceiveQueue<Datagram> queue;
+        final String text;
+        final String sourceIp;
+        final int sourcePort;
+        final long receivedAtNanos;
+
+        Datagram(ReceiveQueue<Datagram> queue, String text, String sourceIp, int sourcePort, long receivedAtNanos) {
+            this.queue = queue;
+            this.text = text;
+            this.sourceIp = sourceIp;
+            this.sourcePort = sourcePort;
+            this.receivedAtNanos = receivedAtNanos;
+        }
+    }
+
+    /**
+     * Datagrama pendiente de envío al final de un lote (modo batch).
+     */
+    private static final class OutboundDatagram {
+        final ByteBuffer data;
+        final InetSocketAddress target;
+
+        OutboundDatagram(ByteBuffer data, InetSocketAddress target) {
+            this.data = data;
+            this.target = target;
         }
     }
 }
@@ -1,11 +1,15 @@
 package proxy;
 
 import java.io.IOException;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import common.Counter;
 import common.FindMyIPv4;
+import common.Histogram;
+import common.Log;
+import common.Metrics;
 import mensajesSIP.ACKMessage;
 import mensajesSIP.BusyHereMessage;
 import mensajesSIP.ByeMessage;
@@ -15,9 +19,9 @@ import mensajesSIP.RegisterMessage;
 import mensajesSIP.RequestTimeoutMessage;
 import mensajesSIP.RingingMessage;
 import mensajesSIP.NotFoundMessage;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import mensajesSIP.SIPException;
+import mensajesSIP.SipMethod;
+import mensajesSIP.SipUri;
 import sipServlet.SIPServletInterface;
 import sipServlet.SipServletRequestInterface;
 import sipServlet.SipServletRequest;
@@ -27,19 +31,27 @@ import sipServlet.SipServletRequest;
  * Lógica de “usuario” del proxy:
  *  - mantiene la tabla de registros (REGISTER)
  *  - decide a qué UA hay que reenviar cada mensaje
+ * <p>El proxy puede servir varios dominios: registros y servlets se guardan en una tabla
+ * por dominio, y los mensajes para dominios que no son suyos se reenvían al proxy que
+ * indique la tabla de rutas estáticas.
+ * <p>Aquí se crea el registro de métricas del proxy, que reciben las otras dos capas, y
+ * se publica por JMX y por HTTP según las opciones.
  */
 public class ProxyUserLayer {
 
-	// Lista de usuarios permitidos (URIs completas)
-	private static final Set<String> ALLOWED_USERS = new HashSet<>(Arrays.asList(
-	        "sip:alice@SMA",
-	        "sip:bob@SMA",
-	        "sip:charlie@SMA",
-	        "sip:boss@SMA",
-	        "sip:mario@SMA"
-	));
-	
-	private final Map<String, String> servletByUserUri;
+	private static final Log LOG = Log.get("Proxy");
+
+	// Usuarios que pueden registrarse y sus credenciales
+	private final UserDirectory userDirectory;
+
+	// Servlets por dominio: dominio -> (address-of-record normalizada -> clase)
+	private final Map<String, Map<SipUri, String>> servletByUserUri;
+
+	// Siguiente proxy para los dominios que no sirve este
+	private final DomainRouteTable routes = new DomainRouteTable();
+
+    // null si el proxy no pide autenticación
+    private final DigestAuthenticator authenticator;
 
 
     private final boolean looseRouting;
@@ -54,44 +66,114 @@ private String proxyIp;
         long   expiresAtMs;  // instante (en ms) en el que caduca
     }
 
-    // Tabla: "sip:usuario@dominio" -> RegistrationInfo
+    // Tabla por dominio: dominio -> (address-of-record normalizada -> RegistrationInfo).
+    // Solo tiene entradas para los dominios locales, así que un dominio ajeno no está aquí.
     private ProxyTransactionLayer transactionLayer;
-    private Map<String, RegistrationInfo> registrations = new HashMap<>();
+    private Map<String, Map<SipUri, RegistrationInfo>> registrations = new HashMap<>();
+
+    // Duración de un registro cuyo REGISTER no trae Expires (RFC 3261, 10.2.1.1)
+    private static final int DEFAULT_EXPIRES_SEC = 3600;
+
+    // Cada cuánto se recorren los registros para quitar los caducados
+    private static final long PURGE_INTERVAL_MS = 1000;
+    private long lastPurgeMs = 0;
+
+    // Métricas. Los registros solo los toca el hilo de proceso; su número se copia en
+    // registeredCount para poder leerlo desde el hilo de JMX o HTTP
+    private final Metrics metrics = new Metrics("sma_proxy");
+    private final Counter registrarExpirations;
+    private final Histogram servletDecision;
+    private volatile int registeredCount = 0;
 
     public ProxyUserLayer(int listenPort, boolean looseRouting, Map<String, String> servletByUserUri )
-            throws SocketException, UnknownHostException {
+            throws IOException {
         this(listenPort, looseRouting, false, servletByUserUri);
     }
 
     public ProxyUserLayer(int listenPort, boolean looseRouting, boolean debug, Map<String, String> servletByUserUri )
-            throws SocketException, UnknownHostException {
+            throws IOException {
+        this(listenPort, looseRouting, debug, servletByUserUri, new ProxyOptions());
+    }
+
+    public ProxyUserLayer(int listenPort, boolean looseRouting, boolean debug, Map<String, String> servletByUserUri,
+                          ProxyOptions options)
+            throws IOException {
+        this(listenPort, looseRouting, debug, servletByUserUri, options, createUserDirectory(options));
+    }
+
+    public ProxyUserLayer(int listenPort, boolean looseRouting, boolean debug, Map<String, String> servletByUserUri,
+                          ProxyOptions options, UserDirectory userDirectory)
+            throws IOException {
         this.debug = debug;
-this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new HashMap<>();
+        this.userDirectory = userDirectory;
+        for (String domain : options.getLocalDomains()) {
+            registrations.put(domain, new HashMap<>());
+        }
+        for (Map.Entry<String, String> route : options.getRoutes().entrySet()) {
+            routes.add(route.getKey(), route.getValue());
+            LOG.info("Ruta: *.{} -> {}", route.getKey(), route.getValue());
+        }
+this.servletByUserUri = toSipUriKeys(servletByUserUri);
     	this.looseRouting = looseRouting;
         this.proxyPort    = listenPort;
         this.proxyIp      = FindMyIPv4.findMyIPv4Address().getHostAddress();
+        this.authenticator = options.isAuthentication()
+                ? new DigestAuthenticator(userDirectory)
+                : null;
+
+        this.registrarExpirations = metrics.counter("registrar_expirations_total",
+                "Registros que han caducado sin renovarse");
+        this.servletDecision = metrics.histogram("servlet_decision_seconds",
+                "Tiempo que tarda un SIPServlet en decidir qué hacer con un INVITE");
+        metrics.gauge("registrar_bindings", "Usuarios registrados ahora", () -> registeredCount);
 
-        this.transactionLayer = new ProxyTransactionLayer(listenPort, this, looseRouting);
+        this.transactionLayer = new ProxyTransactionLayer(listenPort, this, looseRouting, options, metrics);
     
         this.transactionLayer.setDebug(this.debug);
+
+        if (options.isJmx()) {
+            metrics.registerMBean("sma:type=Proxy,port=" + listenPort);
+        }
+        if (options.getMetricsPort() > 0) {
+            metrics.startHttpServer(options.getMetricsPort());
+        }
 }
 
+    /** Las métricas del proxy. */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     // ===================== INVITE / RUTA PRINCIPAL =====================
 
     public void onInviteReceived(InviteMessage inviteMessage, String sourceIp, int sourcePort) throws IOException {
 
         String callerUri = inviteMessage.getFromUri();
         String calleeUri = inviteMessage.getToUri();
+
+        SipUri caller = inviteMessage.getFromSipUri();
+        boolean fromPeer = caller != null && !isLocalDomain(caller);
+        if (fromPeer && !isPeerFor(caller, sourceIp)) {
+            LOG.info("INVITE de {} (dominio ajeno) desde {}, que no es su proxy → 403", callerUri, sourceIp);
+            transactionLayer.rejectInvite(inviteMessage, 403, sourceIp, sourcePort);
+            return;
+        }
+
+        // Las llamadas que llegan de otro proxy ya se autenticaron en su dominio
+        if (authenticator != null && !fromPeer && !authenticator.verify(caller, SipMethod.INVITE,
+                inviteMessage.getDestination(), inviteMessage.getProxyAuthentication())) {
+            LOG.info("INVITE de {} sin credenciales válidas → 407", callerUri);
+            transactionLayer.sendProxyAuthenticationRequired(inviteMessage, sourceIp, sourcePort, authenticator.newNonce());
+            return;
+        }
         
         String servletClassName = null;
 
         // 1) Prioridad al llamado
-        if (servletByUserUri != null) {
-            servletClassName = servletByUserUri.get(calleeUri);
-            if (servletClassName == null) {
-                // 2) Si el llamado no tiene servlet, miramos el llamante
-                servletClassName = servletByUserUri.get(callerUri);
-            }
+        servletClassName = servletFor(inviteMessage.getToSipUri());
+        if (servletClassName == null) {
+            // 2) Si el llamado no tiene servlet, miramos el llamante
+            servletClassName = servletFor(inviteMessage.getFromSipUri());
         }
 
         if (servletClassName != null) {
@@ -141,7 +223,7 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
     
     private void handleInviteWithServlet(InviteMessage inviteMessage, String sourceIp, int sourcePort, String callerUri, String calleeUri, String servletClassName) throws IOException {
 		try {
-			System.out.println("[Proxy] Ejecutando SIPServlet " + servletClassName + " para INVITE " + callerUri + " -> " + calleeUri);
+			LOG.info("Ejecutando SIPServlet {} para INVITE {} -> {}", servletClassName, callerUri, calleeUri);
 			
 			// 1) Instanciar el servlet por reflexión
 			Class<?> clazz = Class.forName(servletClassName);
@@ -155,27 +237,27 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
 			SipServletRequestInterface request = requestImpl;
 			
 			// 3) Invocar doInvite() del servlet
+			long start = System.nanoTime();
 			servlet.doInvite(request);
+			servletDecision.observeSince(start);
 			
 			// 4) Al volver, leemos la decisión registrada en el request
 			if (requestImpl.hasResponseDecision()) {
 				int status = requestImpl.getResponseCode();
-				System.out.println("[Proxy] SIPServlet decidió responder con " + status);
+				LOG.info("SIPServlet decidió responder con {}", status);
 				sendErrorResponseFromServlet(inviteMessage, status, callerUri);
 			} else if (requestImpl.hasProxyDecision()) {
 				String targetUri = requestImpl.getProxyTargetUri();
-				System.out.println("[Proxy] SIPServlet decidió proxyTo(" + targetUri + ")");
+				LOG.info("SIPServlet decidió proxyTo({})", targetUri);
 				processInviteAsDefault(inviteMessage, sourceIp, sourcePort, callerUri, targetUri);
 			} else {
 				// El servlet no ha hecho nada explícito
-				System.out.println("[Proxy] SIPServlet no tomó decisión → comportamiento P1 por defecto");
+				LOG.info("SIPServlet no tomó decisión → comportamiento P1 por defecto");
 				processInviteAsDefault(inviteMessage, sourceIp, sourcePort, callerUri, calleeUri);
 			}
 		
 		} catch (Exception e) {
-			System.out.println("[Proxy] ERROR ejecutando SIPServlet " + servletClassName
-			+ " → comportamiento P1 por defecto");
-			e.printStackTrace();
+			LOG.error("ERROR ejecutando SIPServlet " + servletClassName + " → comportamiento P1 por defecto", e);
 			processInviteAsDefault(inviteMessage, sourceIp, sourcePort, callerUri, calleeUri);
 		}
 	}
@@ -183,72 +265,83 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
     private void processInviteAsDefault(InviteMessage inviteMessage, String sourceIp, int sourcePort, String callerUri, String targetUri) throws IOException 
     {
 
-		RegistrationInfo callerReg = getValidRegistration(callerUri);
-		RegistrationInfo calleeReg = getValidRegistration(targetUri);
+		String callerContact = findContact(inviteMessage.getFromSipUri());
+		String calleeContact = findContact(targetUri);
 		
-		if (callerReg == null) {
-		System.out.println("[Proxy] Caller NO registrado → ignorando INVITE.");
+		if (callerContact == null) {
+		LOG.info("Caller NO registrado → ignorando INVITE.");
 		return;
 		}
 		
-		if (calleeReg == null) {
-		System.out.println("[Proxy] Callee NO registrado → enviando 404");
-		transactionLayer.sendInviteNotFound(inviteMessage, callerReg.contact);
+		if (calleeContact == null) {
+		LOG.info("Callee NO registrado → enviando 404");
+		transactionLayer.sendInviteNotFound(inviteMessage, callerContact);
 		return;
 		}
 		
-		// 1) Enviar 100 Trying al llamante (IP/puerto de donde vino el INVITE)
-		System.out.println("[Proxy] Enviando 100 Trying al llamante");
-		transactionLayer.sendTrying(inviteMessage, sourceIp, sourcePort);
+		// 1) El 100 Trying ya lo ha enviado la capa de transporte al recibir el INVITE
 		
 		// 2) Dirección real del callee a partir del REGISTER
-		String[] parts = calleeReg.contact.split(":");
+		String[] parts = calleeContact.split(":");
 		String destIp   = parts[0];
 		int    destPort = Integer.parseInt(parts[1]);
 		
+		// Cada salto descuenta uno; si llega a 0 el INVITE está dando vueltas entre proxies.
+		// Se mira antes de tocar Via y Record-Route para que el 483 lleve las Vias recibidas.
+		int maxForwards = inviteMessage.getMaxForwards() - 1;
+		if (maxForwards <= 0) {
+		LOG.info("Max-Forwards agotado → 483");
+		transactionLayer.rejectInvite(inviteMessage, 483, sourceIp, sourcePort);
+		return;
+		}
+		
 		// 3) Añadir Via del proxy arriba
 		inviteMessage.getVias().add(0, proxyIp + ":" + proxyPort);
 		
 		// 4) Si hay loose routing, añadimos Record-Route con la dirección del proxy
+		//    (delante de las de los proxies anteriores, si el INVITE viene de otro dominio)
 		if (looseRouting) {
-		inviteMessage.setRecordRoute(proxyIp + ":" + proxyPort);
+		String recordRoute = inviteMessage.getRecordRoute();
+		inviteMessage.setRecordRoute((recordRoute == null)
+		        ? proxyIp + ":" + proxyPort
+		        : proxyIp + ":" + proxyPort + ", " + recordRoute);
 		}
 		
+		inviteMessage.setMaxForwards(maxForwards);
+		
 		// 5) Reenviar el INVITE al UA llamado
-		System.out.println("[Proxy] Reenviando INVITE al callee " +
-		targetUri + " en " + destIp + ":" + destPort);
+		LOG.info("Reenviando INVITE al callee {} en {}:{}", targetUri, destIp, destPort);
 		transactionLayer.forwardInvite(inviteMessage, destIp, destPort);
 	}
     
     private void sendErrorResponseFromServlet(InviteMessage inviteMessage, int statusCode, String callerUri) throws IOException {
 
-	RegistrationInfo callerReg = getValidRegistration(callerUri);
-	if (callerReg == null) {
-		System.out.println("[Proxy] No se puede enviar respuesta " + statusCode + " porque el caller no está registrado");
+	String callerContact = findContact(inviteMessage.getFromSipUri());
+	if (callerContact == null) {
+		LOG.info("No se puede enviar respuesta {} porque el caller no está registrado", statusCode);
 		return;
 	}
 	
-	String callerContact = callerReg.contact;
 	// Para 404 reutilizamos directamente tu helper existente
 	if (statusCode == 404) {
-		System.out.println("[Proxy] Enviando 404 Not Found generado por SIPServlet");
+		LOG.info("Enviando 404 Not Found generado por SIPServlet");
 		transactionLayer.sendInviteNotFound(inviteMessage, callerContact);
 		return;
 	}
 
 	switch (statusCode) {
 	case 486: {
-		System.out.println("[Proxy] Enviando 486 Busy Here generado por SIPServlet");
+		LOG.info("Enviando 486 Busy Here generado por SIPServlet");
 		transactionLayer.sendBusyHereForInviteFromProxy(inviteMessage, callerContact);
 		break;
 	}
 	case 408: {
-		System.out.println("[Proxy] Enviando 408 Request Timeout generado por SIPServlet");
+		LOG.info("Enviando 408 Request Timeout generado por SIPServlet");
 		transactionLayer.sendRequestTimeoutForInviteFromProxy(inviteMessage, callerContact);
 		break;
 	}
 	default: {
-		System.out.println("[Proxy] Código " + statusCode +  " no soportado todavía. Enviando 486 por defecto.");
+		LOG.info("Código {} no soportado todavía. Enviando 486 por defecto.", statusCode);
 		transactionLayer.sendBusyHereForInviteFromProxy(inviteMessage, callerContact);
 		break;
 		}
@@ -258,15 +351,15 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
     public void onRingingFromCallee(RingingMessage ringing) throws IOException {
 
         String callerUri = ringing.getFromUri();
-        RegistrationInfo callerReg = getValidRegistration(callerUri);
+        String callerContact = findContact(ringing.getFromSipUri());
 
-        if (callerReg == null) return;
+        if (callerContact == null) return;
 
-        String[] parts = callerReg.contact.split(":");
+        String[] parts = callerContact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        System.out.println("[Proxy] Reenviando 180 Ringing al llamante");
+        LOG.info("Reenviando 180 Ringing al llamante");
         transactionLayer.forwardRinging(ringing, ip, port);
     }
 
@@ -274,15 +367,15 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
 
         // El llamante aparece en From del 200 OK
         String callerUri = ok.getFromUri();
-        RegistrationInfo callerReg = getValidRegistration(callerUri);
+        String callerContact = findContact(ok.getFromSipUri());
 
-        if (callerReg == null) return;
+        if (callerContact == null) return;
 
-        String[] parts = callerReg.contact.split(":");
+        String[] parts = callerContact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        System.out.println("[Proxy] Reenviando 200 OK al llamante");
+        LOG.info("Reenviando 200 OK al llamante");
         transactionLayer.forwardInviteOk(ok, ip, port);
     }
 
@@ -292,23 +385,23 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
         }
 
         String calleeUri = ack.getToUri();
-        RegistrationInfo calleeReg = getValidRegistration(calleeUri);
+        String calleeContact = findContact(ack.getToSipUri());
 
-        if (calleeReg == null) return;
+        if (calleeContact == null) return;
 
-        String[] parts = calleeReg.contact.split(":");
+        String[] parts = calleeContact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        // Requisito: el proxy elimina Route en ACK si hay loose routing
-        ack.setRoute(null);
+        // Requisito: el proxy elimina su Route en ACK si hay loose routing
+        ack.setRoute(withoutOwnRoute(ack.getRoute()));
 
         // Añadimos Via del proxy arriba (si viene lista de Vias)
         if (ack.getVias() != null) {
             ack.getVias().add(0, proxyIp + ":" + proxyPort);
         }
 
-        System.out.println("[Proxy] Reenviando ACK al callee");
+        LOG.info("Reenviando ACK al callee");
         transactionLayer.forwardAck(ack, ip, port);
     }
 
@@ -325,24 +418,24 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
         }
 
         String toUri = bye.getToUri();  // destino del BYE
-        RegistrationInfo destReg = getValidRegistration(toUri);
+        String destContact = findContact(bye.getToSipUri());
 
-        if (destReg == null) {
-            System.out.println("[Proxy] Destino del BYE NO registrado → se descarta.");
+        if (destContact == null) {
+            LOG.info("Destino del BYE NO registrado → se descarta.");
             return;
         }
 
-        String[] parts = destReg.contact.split(":");
+        String[] parts = destContact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        // Quitamos el Route (en esta práctica solo viene el del proxy)
-        bye.setRoute(null);
+        // Quitamos nuestra entrada del Route (las de otros proxies se mantienen)
+        bye.setRoute(withoutOwnRoute(bye.getRoute()));
 
         // Añadimos Via del proxy arriba
         bye.getVias().add(0, proxyIp + ":" + proxyPort);
 
-        System.out.println("[Proxy] Reenviando BYE a " + toUri + " en " + ip + ":" + port);
+        LOG.info("Reenviando BYE a {} en {}:{}", toUri, ip, port);
         transactionLayer.forwardBye(bye, ip, port);
     }
 
@@ -357,40 +450,60 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
 
         // El que envió el BYE está en el To del 200 OK
         String byeOriginUri = ok.getFromUri();
-        RegistrationInfo originReg = getValidRegistration(byeOriginUri);
+        String originContact = findContact(ok.getFromSipUri());
 
-        if (originReg == null) {
-            System.out.println("[Proxy] Origen del BYE no registrado → se descarta 200 OK.");
+        if (originContact == null) {
+            LOG.info("Origen del BYE no registrado → se descarta 200 OK.");
             return;
         }
 
-        String[] parts = originReg.contact.split(":");
+        String[] parts = originContact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        System.out.println("[Proxy] Reenviando 200 OK al BYE hacia " +
-                byeOriginUri + " en " + ip + ":" + port);
+        LOG.info("Reenviando 200 OK al BYE hacia {} en {}:{}", byeOriginUri, ip, port);
         transactionLayer.forwardByeOk(ok, ip, port);
     }
 
-    // ===================== 486 / 408  =====================
+    // ===================== 404 / 486 / 408  =====================
+
+    /**
+     * 404 que llega de otro proxy cuando el llamado no existe en su dominio.
+     */
+    public void onNotFoundFromCallee(NotFoundMessage notFound) throws IOException {
+
+        String callerUri = notFound.getFromUri();
+        String callerContact = findContact(notFound.getFromSipUri());
+
+        if (callerContact == null) {
+            LOG.info("404 Not Found: caller no registrado, se descarta.");
+            return;
+        }
+
+        String[] parts = callerContact.split(":");
+        String ip   = parts[0];
+        int    port = Integer.parseInt(parts[1]);
+
+        LOG.info("Reenviando 404 Not Found al llamante {} en {}:{}", callerUri, ip, port);
+
+        transactionLayer.forwardNotFound(notFound, ip, port);
+    }
 
     public void onBusyHereFromCallee(BusyHereMessage busy) throws IOException {
 
         String callerUri = busy.getFromUri();
-        RegistrationInfo callerReg = getValidRegistration(callerUri);
+        String callerContact = findContact(busy.getFromSipUri());
 
-        if (callerReg == null) {
-            System.out.println("[Proxy] 486 Busy Here: caller no registrado, se descarta.");
+        if (callerContact == null) {
+            LOG.info("486 Busy Here: caller no registrado, se descarta.");
             return;
         }
 
-        String[] parts = callerReg.contact.split(":");
+        String[] parts = callerContact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        System.out.println("[Proxy] Reenviando 486 Busy Here al llamante "
-                + callerUri + " en " + ip + ":" + port);
+        LOG.info("Reenviando 486 Busy Here al llamante {} en {}:{}", callerUri, ip, port);
 
         transactionLayer.forwardBusyHere(busy, ip, port);
     }
@@ -398,19 +511,18 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
     public void onRequestTimeoutFromCallee(RequestTimeoutMessage rt) throws IOException {
 
         String callerUri = rt.getFromUri();
-        RegistrationInfo callerReg = getValidRegistration(callerUri);
+        String callerContact = findContact(rt.getFromSipUri());
 
-        if (callerReg == null) {
-            System.out.println("[Proxy] 408 Request Timeout: caller no registrado, se descarta.");
+        if (callerContact == null) {
+            LOG.info("408 Request Timeout: caller no registrado, se descarta.");
             return;
         }
 
-        String[] parts = callerReg.contact.split(":");
+        String[] parts = callerContact.split(":");
         String ip   = parts[0];
         int    port = Integer.parseInt(parts[1]);
 
-        System.out.println("[Proxy] Reenviando 408 Request Timeout al llamante "
-                + callerUri + " en " + ip + ":" + port);
+        LOG.info("Reenviando 408 Request Timeout al llamante {} en {}:{}", callerUri, ip, port);
 
         transactionLayer.forwardRequestTimeout(rt, ip, port);
     }
@@ -421,23 +533,45 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
 
         String userUri  = registerMessage.getToUri();   // sip:alice@SMA
         String contact  = registerMessage.getContact(); // "IP:puerto"
-        int expiresSec  = Integer.parseInt(registerMessage.getExpires());
+        int expiresSec  = registerMessage.getExpires();
 
-        System.out.println("REGISTER recibido de " + userUri +
-                " contact=" + contact +
-                " expires=" + expiresSec + "s");
+        LOG.info("REGISTER recibido de {} contact={} expires={}s", userUri, contact, expiresSec);
 
-        boolean valido = isUserAllowed(userUri);  // ahora mismo siempre true
+        SipUri userKey = registerMessage.getToSipUri();
+        if (userKey != null && !isLocalDomain(userKey)) {
+            LOG.info("REGISTER para el dominio {}, que no sirve este proxy → 404", userKey.getHost());
+        }
+        boolean valido = userKey != null && isLocalDomain(userKey) && isUserAllowed(userKey);
 
         if (!valido) {
             transactionLayer.sendRegisterResponse(registerMessage, contact, false);
             return;
         }
 
+        if (authenticator != null && !authenticator.verify(userKey, SipMethod.REGISTER,
+                registerMessage.getDestination(), registerMessage.getAuthorization())) {
+            LOG.info("REGISTER de {} sin credenciales válidas → 401", userUri);
+            transactionLayer.sendRegisterUnauthorized(registerMessage, contact, authenticator.newNonce());
+            return;
+        }
+
+        if (expiresSec < 0) {
+            // Sin Expires: el tiempo por defecto, que también se devuelve en el 200 OK
+            expiresSec = DEFAULT_EXPIRES_SEC;
+            registerMessage.setExpires(expiresSec);
+        }
+
         RegistrationInfo info = new RegistrationInfo();
         info.contact     = contact;
         info.expiresAtMs = System.currentTimeMillis() + expiresSec * 1000L;
-        registrations.put(userUri, info);
+        if (expiresSec == 0) {
+            // Baja explícita: no cuenta como caducado
+            registrations.get(userKey.getHost()).remove(userKey.addressOfRecord());
+        } else {
+            registrations.get(userKey.getHost()).put(userKey.addressOfRecord(), info);
+        }
+        purgeExpired(System.currentTimeMillis());
+        updateRegisteredCount();
 
         transactionLayer.sendRegisterResponse(registerMessage, contact, true);
         
@@ -446,20 +580,163 @@ this.servletByUserUri = (servletByUserUri != null) ? servletByUserUri : new Hash
 
     // ===================== Utilidades registro =====================
 
-    private RegistrationInfo getValidRegistration(String userUri) {
-        RegistrationInfo info = registrations.get(userUri);
+    private RegistrationInfo getValidRegistration(SipUri userUri) {
+        if (userUri == null) {
+            return null;
+        }
+        Map<SipUri, RegistrationInfo> domain = registrations.get(userUri.getHost());
+        RegistrationInfo info = (domain == null) ? null : domain.get(userUri.addressOfRecord());
         if (info == null) {
             return null;
         }
         if (System.currentTimeMillis() > info.expiresAtMs) {
+            domain.remove(userUri.addressOfRecord());
+            registrarExpirations.increment();
+            updateRegisteredCount();
             return null;
         }
         return info;
     }
 
-    private boolean isUserAllowed(String userUri) {
-        // userUri viene tipo "sip:alice@SMA"
-        return ALLOWED_USERS.contains(userUri);
+    // Quita los registros caducados, como mucho una vez cada PURGE_INTERVAL_MS
+    private void purgeExpired(long now) {
+        if (now - lastPurgeMs < PURGE_INTERVAL_MS) {
+            return;
+        }
+        lastPurgeMs = now;
+        for (Map<SipUri, RegistrationInfo> domain : registrations.values()) {
+            Iterator<RegistrationInfo> it = domain.values().iterator();
+            while (it.hasNext()) {
+                if (now > it.next().expiresAtMs) {
+                    it.remove();
+                    registrarExpirations.increment();
+                }
+            }
+        }
+    }
+
+    private void updateRegisteredCount() {
+        int count = 0;
+        for (Map<SipUri, RegistrationInfo> domain : registrations.values()) {
+            count += domain.size();
+        }
+        registeredCount = count;
+    }
+
+    /**
+     * Dónde hay que enviar lo que va dirigido a un usuario: su contacto registrado si es
+     * de un dominio local, o el siguiente proxy según la tabla de rutas si no lo es.
+     *
+     * @return  "IP:puerto", o null si no está registrado o no hay ruta a su dominio
+     */
+    private String findContact(SipUri userUri) {
+        if (userUri == null) {
+            return null;
+        }
+        if (isLocalDomain(userUri)) {
+            RegistrationInfo info = getValidRegistration(userUri);
+            return (info == null) ? null : info.contact;
+        }
+        return routes.lookup(userUri.getHost());
+    }
+
+    // Para las URIs que no vienen de un mensaje (p.ej. la que decide un servlet con proxyTo)
+    private String findContact(String userUri) {
+        return findContact(toSipUri(userUri));
+    }
+
+    private boolean isLocalDomain(SipUri userUri) {
+        return registrations.containsKey(userUri.getHost());
+    }
+
+    // true si la petición de un usuario de otro dominio viene del proxy que tenemos como ruta a ese dominio
+    private boolean isPeerFor(SipUri userUri, String sourceIp) {
+        String nextHop = routes.lookup(userUri.getHost());
+        return nextHop != null && nextHop.substring(0, nextHop.lastIndexOf(':')).equals(sourceIp);
+    }
+
+    // Quita de un Route la entrada de este proxy; null si no queda ninguna
+    private String withoutOwnRoute(String route) {
+        if (route == null) {
+            return null;
+        }
+        String own = proxyIp + ":" + proxyPort;
+        StringBuilder rest = new StringBuilder();
+        for (String hop : route.split(",")) {
+            String trimmed = hop.trim();
+            if (trimmed.isEmpty() || trimmed.equals(own)) {
+                continue;
+            }
+            if (rest.length() > 0) {
+                rest.append(", ");
+            }
+            rest.append(trimmed);
+        }
+        return (rest.length() == 0) ? null : rest.toString();
+    }
+
+    private boolean isUserAllowed(SipUri userUri) {
+        return userDirectory.lookup(userUri) != null;
+    }
+
+    private String servletFor(SipUri userUri) {
+        if (userUri == null) {
+            return null;
+        }
+        Map<SipUri, String> domain = servletByUserUri.get(userUri.getHost());
+        return (domain == null) ? null : domain.get(userUri.addressOfRecord());
+    }
+
+    private static SipUri toSipUri(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        try {
+            return SipUri.intern(uri);
+        } catch (SIPException e) {
+            return null;
+        }
+    }
+
+    // Pasa las URIs de users.xml a claves normalizadas, agrupadas por dominio
+    private static Map<String, Map<SipUri, String>> toSipUriKeys(Map<String, String> byUri) {
+        Map<String, Map<SipUri, String>> byKey = new HashMap<>();
+        if (byUri != null) {
+            for (Map.Entry<String, String> entry : byUri.entrySet()) {
+                SipUri key = toSipUri(entry.getKey());
+                if (key == null) {
+                    LOG.info("URI de servlet incorrecta, se ignora: {}", entry.getKey());
+                    continue;
+                }
+                byKey.computeIfAbsent(key.getHost(), d -> new HashMap<>()).put(key.addressOfRecord(), entry.getValue());
+            }
+        }
+        return byKey;
+    }
+
+    /**
+     * Directorio de abonados según las opciones: el fichero entero en memoria, o
+     * consultado en cada búsqueda con una caché delante si se pide userscache=N.
+     */
+    private static UserDirectory createUserDirectory(ProxyOptions options) throws IOException {
+        String file = options.getUsersFile();
+        int cacheSeconds = options.getUsersCacheSeconds();
+
+        if (cacheSeconds > 0 && file != null) {
+            LOG.info("Abonados leídos de {} bajo demanda (caché de {} s)", file, cacheSeconds);
+            long ttlMs = cacheSeconds * 1000L;
+            // Los usuarios inexistentes se recuerdan menos tiempo para que un alta se note antes
+            return new CachedUserDirectory(new FileUserDirectory(Paths.get(file)), ttlMs, Math.max(1000L, ttlMs / 4));
+        }
+        if (cacheSeconds > 0) {
+            LOG.info("userscache necesita users=fichero; se carga el fichero incluido");
+        }
+
+        InMemoryUserDirectory directory = (file != null)
+                ? InMemoryUserDirectory.fromFile(Paths.get(file))
+                : InMemoryUserDirectory.fromDefaultResource();
+        LOG.info("{} abonados cargados", directory.size());
+        return directory;
     }
 
 
@@ -0,0 +1,147 @@
+package proxy;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Una de las colas de recepción del proxy (una por clase de tráfico).
+ * <p>Cada cola tiene su capacidad, su presupuesto (cuántos mensajes seguidos puede
+ * procesar el worker de ella en cada ronda antes de pasar a las de menor prioridad)
+ * y su política de descarte cuando está llena. Lleva además sus propias medidas:
+ * profundidad, espera media en cola, procesados y descartados.
+ */
+public class ReceiveQueue<T> {
+
+    /** Qué se hace con un mensaje que llega con la cola llena. */
+    public enum DropPolicy {
+        /** Se descarta el que llega (el cliente lo retransmitirá). */
+        DROP_NEWEST,
+        /** Se descarta el más antiguo de la cola para hacer sitio al nuevo. */
+        DROP_OLDEST
+    }
+
+    private final String name;
+    private final int budget;
+    private final DropPolicy dropPolicy;
+    private final LinkedBlockingQueue<T> queue;
+
+    // Fichas que le quedan en la ronda actual (solo las toca el worker)
+    int credits;
+
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long avgWaitNanos = 0;
+    private volatile long maxWaitNanos = 0;
+
+    ReceiveQueue(String name, int capacity, int budget, DropPolicy dropPolicy) {
+        this.name = name;
+        this.budget = budget;
+        this.dropPolicy = dropPolicy;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.credits = budget;
+    }
+
+    /** Resultado de {@link #offer}. */
+    enum Offer {
+        /** Encolado: la cola tiene un elemento más (hay que avisar al worker). */
+        ADDED,
+        /** Encolado en el sitio de otro más antiguo: el número de pendientes no cambia. */
+        REPLACED,
+        /** Descartado: la cola estaba llena y su política es DROP_NEWEST. */
+        DROPPED
+    }
+
+    /**
+     * Encola un elemento aplicando la política de descarte. Pueden llamarlo a la vez
+     * varios hilos de recepción.
+     */
+    Offer offer(T element) {
+        if (queue.offer(element)) {
+            return Offer.ADDED;
+        }
+        if (dropPolicy == DropPolicy.DROP_NEWEST) {
+            dropped.increment();
+            return Offer.DROPPED;
+        }
+        // DROP_OLDEST: se sacan los más antiguos hasta que quepa el nuevo. Otro hilo de
+        // recepción puede ocupar el hueco entre el poll y el offer, así que puede salir
+        // más de uno, y cada uno cuenta como descartado. Si entre medias el worker ha
+        // vaciado la cola, no sale ninguno y el nuevo es uno más.
+        boolean evicted = false;
+        do {
+            if (queue.poll() != null) {
+                dropped.increment();
+                evicted = true;
+            }
+        } while (!queue.offer(element));
+        return evicted ? Offer.REPLACED : Offer.ADDED;
+    }
+
+    T poll() {
+        return queue.poll();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    void refill() {
+        credits = budget;
+    }
+
+    /** Lo llama el worker al sacar un elemento, con el tiempo que ha esperado. */
+    void onDequeue(long waitNanos) {
+        processed.increment();
+        long avg = avgWaitNanos;
+        avgWaitNanos = (avg == 0) ? waitNanos : avg + (waitNanos - avg) / 8;
+        if (waitNanos > maxWaitNanos) {
+            maxWaitNanos = waitNanos;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    public DropPolicy getDropPolicy() {
+        return dropPolicy;
+    }
+
+    /** Espera media (media móvil, en ns) de los mensajes de esta cola. */
+    public long getAverageWaitNanos() {
+        return avgWaitNanos;
+    }
+
+    /** Mayor espera (ns) observada desde el arranque. */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name + " depth=" + getDepth() + "/" + getCapacity()
+                + " avgWait=" + (avgWaitNanos / 1000) + "us"
+                + " maxWait=" + (maxWaitNanos / 1000) + "us"
+                + " processed=" + getProcessed() + " dropped=" + getDropped();
+    }
+}
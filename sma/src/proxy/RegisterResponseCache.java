@@ -0,0 +1,66 @@
+package proxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caché pequeña de las últimas respuestas a REGISTER, indexada por Call-ID y CSeq.
+ * <p>Si llega otra copia de un REGISTER ya contestado (retransmisión del UA o
+ * duplicado de la red) se reenvía la respuesta guardada, sin volver a pasar por
+ * el registrar. Las entradas caducan a los 32 s (el Timer F de RFC 3261) y, si la
+ * caché se llena, se descartan las usadas hace más tiempo.
+ */
+class RegisterResponseCache {
+
+    private static final long TTL_MS = 32_000;
+
+    /** Respuesta ya enviada a un REGISTER. */
+    static final class CachedResponse {
+        final byte[] response;
+        final String ip;
+        final int port;
+        final long expiresAtMs;
+
+        CachedResponse(byte[] response, String ip, int port, long expiresAtMs) {
+            this.response = response;
+            this.ip = ip;
+            this.port = port;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private final Map<String, CachedResponse> entries;
+
+    RegisterResponseCache(final int capacity) {
+        // LinkedHashMap en orden de acceso: el más antiguo es el menos usado
+        this.entries = new LinkedHashMap<String, CachedResponse>(capacity, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Respuesta guardada para ese REGISTER, o null si no se ha contestado o ya caducó.
+     */
+    synchronized CachedResponse get(String callId, long cSeqNumber, long nowMs) {
+        String key = key(callId, cSeqNumber);
+        CachedResponse entry = entries.get(key);
+        if (entry != null && nowMs > entry.expiresAtMs) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized void put(String callId, long cSeqNumber, byte[] response, String ip, int port, long nowMs) {
+        entries.put(key(callId, cSeqNumber), new CachedResponse(response, ip, port, nowMs + TTL_MS));
+    }
+
+    private static String key(String callId, long cSeqNumber) {
+        return callId + ' ' + cSeqNumber;
+    }
+}
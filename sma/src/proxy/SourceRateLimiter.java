@@ -0,0 +1,72 @@
+package proxy;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Límite de peticiones por dirección de origen con ventana deslizante.
+ * <p>Para cada origen se cuentan las peticiones de la ventana actual y de la anterior,
+ * y se estima cuántas caen en los últimos windowMs ponderando la anterior por la parte
+ * que aún solapa. Es la aproximación habitual de ventana deslizante con dos contadores:
+ * memoria constante por origen y sin guardar marcas de tiempo de cada petición.
+ */
+class SourceRateLimiter {
+
+    // Cada cuántas llamadas se limpian los orígenes que llevan tiempo sin enviar nada
+    private static final int SWEEP_EVERY = 1024;
+
+    private static final class Window {
+        long startMs;
+        int current;
+        int previous;
+    }
+
+    private final int limit;
+    private final long windowMs;
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+    private int calls = 0;
+
+    /**
+     * @param limit     peticiones permitidas por origen en cada ventana (0 = sin límite)
+     * @param windowMs  duración de la ventana
+     */
+    SourceRateLimiter(int limit, long windowMs) {
+        this.limit = limit;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Cuenta una petición del origen y dice si se puede procesar.
+     */
+    boolean allow(String source, long nowMs) {
+        if (limit <= 0) {
+            return true;
+        }
+        if (++calls % SWEEP_EVERY == 0) {
+            windows.values().removeIf(w -> nowMs - w.startMs > 2 * windowMs);
+        }
+
+        Window window = windows.computeIfAbsent(source, k -> new Window());
+        synchronized (window) {
+            long elapsed = nowMs - window.startMs;
+            if (elapsed >= 2 * windowMs) {
+                window.startMs = nowMs;
+                window.previous = 0;
+                window.current = 0;
+                elapsed = 0;
+            } else if (elapsed >= windowMs) {
+                window.startMs += windowMs;
+                window.previous = window.current;
+                window.current = 0;
+                elapsed -= windowMs;
+            }
+
+            double overlap = 1.0 - (double) elapsed / windowMs;
+            double estimate = window.previous * overlap + window.current;
+            if (estimate >= limit) {
+                return false;
+            }
+            window.current++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package proxy;
+
+import common.DigestAuth;
+import mensajesSIP.SIPException;
+import mensajesSIP.SipUri;
+
+/**
+ * Un abonado del proxy: su URI y el HA1 de su contraseña (no se guarda la contraseña).
+ * Es inmutable, así que se puede compartir entre hilos y cachear sin copiarlo.
+ */
+public final class Subscriber {
+
+    private final String uri;
+    private final SipUri key;
+    private final String ha1;
+
+    /**
+     * @throws SIPException si la URI no es válida
+     */
+    public Subscriber(String uri, String ha1) throws SIPException {
+        this.uri = uri;
+        this.key = SipUri.parse(uri).addressOfRecord();
+        this.ha1 = ha1;
+    }
+
+    /**
+     * Crea el abonado a partir de su contraseña. El realm es el dominio de la URI.
+     */
+    public static Subscriber withPassword(String uri, String password) throws SIPException {
+        return new Subscriber(uri, DigestAuth.ha1(userOf(uri), domainOf(uri), password));
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    /** URI normalizada con la que se busca al abonado. */
+    public SipUri getKey() {
+        return key;
+    }
+
+    public String getHa1() {
+        return ha1;
+    }
+
+    // "sip:alice@SMA" -> "alice"
+    static String userOf(String uri) {
+        int start = uri.startsWith("sip:") ? 4 : 0;
+        int at = uri.indexOf('@');
+        return (at < 0) ? uri.substring(start) : uri.substring(start, at);
+    }
+
+    // "sip:alice@SMA" -> "SMA"
+    static String domainOf(String uri) {
+        int at = uri.indexOf('@');
+        return (at < 0) ? "" : uri.substring(at + 1);
+    }
+}
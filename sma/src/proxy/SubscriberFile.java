@@ -0,0 +1,58 @@
+package proxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import common.Log;
+import mensajesSIP.SIPException;
+
+/**
+ * Formato del fichero de abonados: una línea por usuario con la URI y la contraseña,
+ * separadas por espacios. Si en lugar de contraseña se pone "ha1=xxxx", se usa ese
+ * HA1 tal cual. Las líneas vacías y las que empiezan por # se ignoran.
+ * <pre>
+ * sip:alice@SMA   alice
+ * sip:bob@SMA     ha1=5f4dcc3b5aa765d61d8327deb882cf99
+ * </pre>
+ */
+final class SubscriberFile {
+
+    private static final Log LOG = Log.get("Proxy-USERS");
+
+    private SubscriberFile() {
+    }
+
+    static void read(BufferedReader reader, Consumer<Subscriber> consumer) throws IOException {
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            Subscriber subscriber = parseLine(line, number);
+            if (subscriber != null) {
+                consumer.accept(subscriber);
+            }
+        }
+    }
+
+    private static Subscriber parseLine(String line, int number) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        String[] fields = trimmed.split("\\s+");
+        if (fields.length != 2 || !fields[0].startsWith("sip:")) {
+            LOG.warn("Línea {} del fichero de abonados incorrecta: {}", number, line);
+            return null;
+        }
+        try {
+            if (fields[1].startsWith("ha1=")) {
+                return new Subscriber(fields[0], fields[1].substring(4));
+            }
+            return Subscriber.withPassword(fields[0], fields[1]);
+        } catch (SIPException e) {
+            LOG.warn("Línea {} del fichero de abonados incorrecta: {}", number, e.getMessage());
+            return null;
+        }
+    }
+}
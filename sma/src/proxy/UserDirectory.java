@@ -0,0 +1,19 @@
+package proxy;
+
+import mensajesSIP.SipUri;
+
+/**
+ * Directorio de usuarios del proxy: quién puede registrarse y con qué credenciales.
+ * <p>Las implementaciones tienen que permitir consultas concurrentes desde varios
+ * hilos sin bloquearse entre ellas.
+ */
+public interface UserDirectory {
+
+    /**
+     * Busca un abonado.
+     *
+     * @param userUri  URI del usuario (se busca por su address-of-record)
+     * @return         el abonado, o null si no existe
+     */
+    Subscriber lookup(SipUri userUri);
+}
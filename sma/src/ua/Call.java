@@ -0,0 +1,105 @@
+package ua;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+import mensajesSIP.InviteMessage;
+
+/**
+ * Una llamada de un {@link UserAgent}, entrante o saliente.
+ * <p>Un UA puede llevar muchas a la vez; cada una tiene su diálogo (Call-ID, tags, ruta,
+ * CSeq), que es lo que UserAgent guarda en su tabla. El resto de campos los modifica
+ * el UserAgent con su propio lock.
+ */
+public final class Call {
+
+    /** Estados de una llamada. */
+    public enum State {
+        /** Saliente: INVITE enviado, esperando respuesta final. */
+        CALLING,
+        /** Entrante: sonando, pendiente de aceptar o rechazar. */
+        RINGING,
+        /** Establecida (200 OK enviado o recibido). */
+        ESTABLISHED,
+        /** Terminada: colgada, rechazada o fallida. */
+        TERMINATED
+    }
+
+    private final UserAgent agent;
+    private final int number;
+    private final boolean outgoing;
+
+    // Se asigna justo después de crear la llamada (el diálogo apunta a su llamada)
+    Dialog dialog;
+    State state;
+
+    // INVITE entrante pendiente de aceptar/rechazar, y su timeout
+    InviteMessage incomingInvite;
+    ScheduledFuture<?> incomingCallTimer;
+
+    // Futuros de las operaciones en curso sobre esta llamada
+    CompletableFuture<Call> pendingInvite;
+    CompletableFuture<Void> pendingAccept;
+    CompletableFuture<Void> pendingBye;
+
+    // Métricas de una llamada saliente: cuándo se envió el INVITE (System.nanoTime()) y
+    // si ya se ha medido su primer 180
+    long invitedAtNanos;
+    boolean ringingMeasured;
+
+    Call(UserAgent agent, int number, boolean outgoing, State state) {
+        this.agent    = agent;
+        this.number   = number;
+        this.outgoing = outgoing;
+        this.state    = state;
+    }
+
+    /** Número corto de la llamada dentro de su UA (1, 2, 3...), para mostrarla al usuario. */
+    public int getNumber() {
+        return number;
+    }
+
+    /** true si la ha iniciado este UA. */
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public String getCallId() {
+        return dialog.callId;
+    }
+
+    public String getLocalTag() {
+        return dialog.localTag;
+    }
+
+    public State getState() {
+        synchronized (agent) {
+            return state;
+        }
+    }
+
+    /** URI del otro extremo (el llamado si es saliente, el llamante si es entrante). */
+    public String getRemoteUri() {
+        return dialog.remoteUri;
+    }
+
+    /** Ver {@link UserAgent#accept(Call)}. */
+    public CompletableFuture<Void> accept() {
+        return agent.accept(this);
+    }
+
+    /** Ver {@link UserAgent#reject(Call)}. */
+    public CompletableFuture<Void> reject() {
+        return agent.reject(this);
+    }
+
+    /** Ver {@link UserAgent#bye(Call)}. */
+    public CompletableFuture<Void> bye() {
+        return agent.bye(this);
+    }
+
+    @Override
+    public String toString() {
+        return "llamada " + number + (outgoing ? " a " : " de ") + getRemoteUri() + " (" + getState() + ")";
+    }
+}
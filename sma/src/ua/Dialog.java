@@ -0,0 +1,180 @@
+package ua;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mensajesSIP.ACKMessage;
+import mensajesSIP.ByeMessage;
+import mensajesSIP.OKMessage;
+import mensajesSIP.SipMethod;
+
+/**
+ * Diálogo SIP de una llamada: lo que hace falta para construir el ACK al 200 OK y los BYE
+ * sin mirar ningún otro mensaje (tags, URIs, ruta, destino remoto y números de CSeq).
+ * <p>Se identifica por Call-ID, tag local y tag remoto ({@link #id()}); UserAgent los guarda
+ * en un mapa concurrente con esa clave. En una llamada saliente el tag remoto no se conoce
+ * hasta la primera respuesta que lo trae, y mientras tanto el diálogo está en EARLY con el
+ * tag remoto vacío en la clave.
+ */
+final class Dialog {
+
+    /** Estados del diálogo; solo avanzan, igual que los de las transacciones. */
+    enum State {
+        /** Creado por el INVITE, sin respuesta 2xx todavía. */
+        EARLY,
+        /** 200 OK enviado o recibido. */
+        CONFIRMED,
+        /** BYE hecho, o INVITE rechazado. */
+        TERMINATED
+    }
+
+    final Call call;
+    final String callId;
+    final String localTag;
+    final String localUri;
+    final String localName;
+    // Via propia ("IP:puerto") para las peticiones dentro del diálogo
+    final String localVia;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.EARLY);
+
+    // Lo que se aprende del otro extremo; lo escribe un hilo y lo leen otros
+    private volatile String remoteTag;
+    volatile String remoteUri;      // sip:bob@SMA
+    volatile String remoteTarget;   // "IP:puerto" del otro UA (su Contact)
+    volatile String routeSet;       // Record-Route; null si NO hay loose routing
+
+    // CSeq de nuestras peticiones (la última usada) y de las del otro extremo
+    private final AtomicLong localCSeq;
+    volatile long remoteCSeq;
+
+    Dialog(Call call, String callId, String localTag, String localUri, String localName, String localVia,
+           long localCSeq) {
+        this.call      = call;
+        this.callId    = callId;
+        this.localTag  = localTag;
+        this.localUri  = localUri;
+        this.localName = localName;
+        this.localVia  = localVia;
+        this.localCSeq = new AtomicLong(localCSeq);
+    }
+
+/**
+ * Clave de un diálogo: Call-ID, tag local y tag remoto.
+ * Un diálogo sin tag remoto todavía se guarda con el remoto vacío.
+ */
+    static String id(String callId, String localTag, String remoteTag) {
+        return callId + ";" + localTag + ";" + (remoteTag == null ? "" : remoteTag);
+    }
+
+    String id() {
+        return id(callId, localTag, remoteTag);
+    }
+
+    String getRemoteTag() {
+        return remoteTag;
+    }
+
+/**
+ * Fija el tag remoto si aún no se conocía.
+ *
+ * @return  true si lo ha fijado esta llamada (y hay que cambiar la clave del diálogo)
+ */
+    synchronized boolean learnRemoteTag(String tag) {
+        if (remoteTag != null || tag == null) {
+            return false;
+        }
+        remoteTag = tag;
+        return true;
+    }
+
+    State getState() {
+        return state.get();
+    }
+
+    // Pasa a next si es posterior al estado actual; false si ya estaba ahí o más adelante
+    boolean advance(State next) {
+        while (true) {
+            State current = state.get();
+            if (current.compareTo(next) >= 0) {
+                return false;
+            }
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Llega el 200 OK a nuestro INVITE: el diálogo queda confirmado con el tag, el Contact
+     * y el Record-Route del otro extremo.
+     */
+    void confirm(OKMessage ok) {
+        learnRemoteTag(ok.getToTag());
+        remoteUri    = ok.getToUri();        // el que responde
+        remoteTarget = ok.getContact();      // "IP:puerto" del otro UA
+        routeSet     = ok.getRecordRoute();  // null si no hay loose routing
+        localCSeq.set(ok.getcSeqNumber());   // el del INVITE que ha triunfado (tras un 407 es otro)
+        advance(State.CONFIRMED);
+    }
+
+    /**
+     * ACK al 200 OK del INVITE: mismo CSeq que el INVITE, por el proxy si hay Route.
+     */
+    ACKMessage createAck(OKMessage ok) {
+        ACKMessage ack = new ACKMessage();
+
+        ack.setDestination(remoteUri);
+        ack.setVias(new ArrayList<>(Arrays.asList(localVia)));
+        ack.setMaxForwards(70);
+
+        ack.setToName(ok.getToName());
+        ack.setToUri(remoteUri);
+        ack.setToTag(remoteTag);
+        ack.setFromName(localName);
+        ack.setFromUri(localUri);
+        ack.setFromTag(localTag);
+        ack.setCallId(callId);
+        ack.setcSeqNumber(ok.getcSeqNumber());
+        ack.setcSeqMethod(SipMethod.ACK);
+        ack.setContentLength(0);
+
+        // *** si hubo loose routing, ponemos Route ***
+        if (routeSet != null) {
+            ack.setRoute(routeSet);
+        }
+        return ack;
+    }
+
+    /**
+     * BYE para colgar, con el CSeq siguiente al último que hemos usado.
+     */
+    ByeMessage createBye() {
+        ByeMessage bye = new ByeMessage();
+        bye.setDestination(remoteUri);  // Request-URI = remoto
+
+        // Via propia
+        bye.setVias(new ArrayList<>(Arrays.asList(localVia)));
+        bye.setMaxForwards(70);
+
+        bye.setToName(null);
+        bye.setToUri(remoteUri);
+        bye.setToTag(remoteTag);
+        bye.setFromName(localName);
+        bye.setFromUri(localUri);
+        bye.setFromTag(localTag);
+
+        bye.setCallId(callId);
+        bye.setcSeqNumber(localCSeq.incrementAndGet()); // 4 -> 5
+        bye.setcSeqMethod(SipMethod.BYE);
+        bye.setContentLength(0);
+
+        // *** LOOSEROUTING ***
+        if (routeSet != null) {
+            bye.setRoute(routeSet);
+        }
+        return bye;
+    }
+}
@@ -1,19 +1,41 @@
 package ua;
 import mensajesSIP.InviteMessage;
-import java.util.Timer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 //Transacción INVITE del lado llamante
+//El estado solo avanza (CALLING → ... → TERMINATED) y se cambia con compareAndSet:
+//si el timer y una respuesta tardía compiten, solo uno de los dos hace la transición.
+//Lleva el diálogo de la llamada para construir el ACK al 200 OK
 public class InviteClientTransaction {
  enum State { CALLING, PROCEEDING, COMPLETED, TERMINATED }
 
- 	String callId;
- 	InviteMessage invite;
- 	State state;
- 	Timer terminationTimer;
+ 	final String callId;
+ 	final InviteMessage invite;
+ 	final Dialog dialog;
+ 	private final AtomicReference<State> state = new AtomicReference<>(State.CALLING);
+ 	volatile ScheduledFuture<?> terminationTimer;
 
- InviteClientTransaction(String callId, InviteMessage invite) {
+ InviteClientTransaction(String callId, InviteMessage invite, Dialog dialog) {
      this.callId = callId;
      this.invite = invite;
-     this.state = State.CALLING;
+     this.dialog = dialog;
  }
-}
\ No newline at end of file
+
+ State getState() {
+     return state.get();
+ }
+
+ // Pasa a next si es posterior al estado actual; false si ya estaba ahí o más adelante
+ boolean advance(State next) {
+     while (true) {
+         State current = state.get();
+         if (current.compareTo(next) >= 0) {
+             return false;
+         }
+         if (state.compareAndSet(current, next)) {
+             return true;
+         }
+     }
+ }
+}
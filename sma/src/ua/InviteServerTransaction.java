@@ -1,18 +1,36 @@
 package ua;
 import mensajesSIP.InviteMessage;
-import java.util.Timer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
+//Transacción INVITE del lado llamado; mismas reglas que InviteClientTransaction
 public class InviteServerTransaction {
     enum State { PROCEEDING, COMPLETED, TERMINATED }
 
-    String callId;
-    InviteMessage invite;
-    State state;
-    Timer ackWaitTimer;
+    final String callId;
+    final InviteMessage invite;
+    private final AtomicReference<State> state = new AtomicReference<>(State.PROCEEDING);
+    volatile ScheduledFuture<?> ackWaitTimer;
 
     InviteServerTransaction(String callId, InviteMessage invite) {
         this.callId = callId;
         this.invite = invite;
-        this.state = State.PROCEEDING;
     }
-}
\ No newline at end of file
+
+    State getState() {
+        return state.get();
+    }
+
+    // Pasa a next si es posterior al estado actual; false si ya estaba ahí o más adelante
+    boolean advance(State next) {
+        while (true) {
+            State current = state.get();
+            if (current.compareTo(next) >= 0) {
+                return false;
+            }
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
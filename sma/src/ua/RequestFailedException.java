@@ -0,0 +1,22 @@
+package ua;
+
+/**
+ * Fallo de una petición de {@link UserAgent}: con él se completan los futuros de
+ * register(), invite()... cuando la respuesta es de error.
+ */
+public class RequestFailedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    // Código SIP de la respuesta de error, o 0 si no hubo respuesta
+    private final int statusCode;
+
+    public RequestFailedException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -2,26 +2,35 @@ package ua;
 
 import java.io.IOException;
 import java.net.SocketException;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import common.Log;
+import common.Metrics;
 
 import mensajesSIP.ACKMessage;
 import mensajesSIP.BusyHereMessage;
 import mensajesSIP.InviteMessage;
 import mensajesSIP.NotFoundMessage;
 import mensajesSIP.OKMessage;
+import mensajesSIP.ProxyAuthenticationMessage;
 import mensajesSIP.RegisterMessage;
 import mensajesSIP.RequestTimeoutMessage;
 import mensajesSIP.RingingMessage;
 import mensajesSIP.SDPMessage;
 import mensajesSIP.SIPMessage;
+import mensajesSIP.SIPMessageVisitor;
+import mensajesSIP.SipMethod;
 import mensajesSIP.TryingMessage;
+import mensajesSIP.UnauthorizedMessage;
 import mensajesSIP.ByeMessage;
 import mensajesSIP.ServiceUnavailableMessage; 
 
-public class UaTransactionLayer {
+public class UaTransactionLayer implements SIPMessageVisitor {
+
+    private static final Log LOG = Log.get("UA-TX");
 
     // (De momento no usamos una FSM global, pero dejamos la constante por si acaso)
     private static final int IDLE = 0;
@@ -30,13 +39,18 @@ public class UaTransactionLayer {
     // Transacciones de INVITE:
     //  - clientTxs: cuando este UA es el que llama
     //  - serverTxs: cuando este UA es el llamado
-    private Map<String, InviteClientTransaction> clientTxs = new HashMap<>();
-    private Map<String, InviteServerTransaction> serverTxs = new HashMap<>();
-
-    // Último INVITE enviado por este UA (para construir el ACK al 200 OK)
-    private InviteMessage lastInviteSent;
-
-    private UaUserLayer userLayer;
+    // Las tocan el hilo de red, el de TCP, el del usuario (invite/accept...) y los timers,
+    // así que son mapas concurrentes; las entradas se quitan con remove(callId, tx) para
+    // no borrar una transacción más nueva con el mismo Call-ID (el INVITE repetido tras un 407)
+    private final Map<String, InviteClientTransaction> clientTxs = new ConcurrentHashMap<>();
+    private final Map<String, InviteServerTransaction> serverTxs = new ConcurrentHashMap<>();
+
+    // Tiempo que la transacción cliente sigue viva tras el 200 OK, para reenviar el ACK si se repite
+    private static final long CLIENT_LINGER_MS = 1000;
+    // Tiempo máximo esperando el ACK a una respuesta final nuestra (Timer H del RFC 3261, 64*T1)
+    private static final long ACK_WAIT_MS = 32_000;
+
+    private UserAgent userLayer;
     private UaTransportLayer transportLayer;
 
     
@@ -55,9 +69,20 @@ public class UaTransactionLayer {
     public UaTransactionLayer(int listenPort,
                               String proxyAddress,
                               int proxyPort,
-                              UaUserLayer userLayer) throws SocketException {
+                              UserAgent userLayer) throws SocketException {
+        this(listenPort, proxyAddress, proxyPort, userLayer, new Metrics("sma_ua"));
+    }
+
+    /**
+     * Igual, con las métricas del UA (la capa de transporte cuenta ahí los mensajes).
+     */
+    public UaTransactionLayer(int listenPort,
+                              String proxyAddress,
+                              int proxyPort,
+                              UserAgent userLayer,
+                              Metrics metrics) throws SocketException {
         this.userLayer = userLayer;
-        this.transportLayer = new UaTransportLayer(listenPort, proxyAddress, proxyPort, this);
+        this.transportLayer = new UaTransportLayer(listenPort, proxyAddress, proxyPort, this, metrics);
     
         // Propaga el modo debug a la capa de transporte (para imprimir cabeceras completas)
         this.transportLayer.setDebug(this.debug);
@@ -72,92 +97,127 @@ public class UaTransactionLayer {
 
     /**
      * Punto de entrada de todos los mensajes SIP que llegan al UA.
-     * Decide qué hacer según el tipo de mensaje (REGISTER, INVITE, 180, 200, ACK...).
+     * El propio mensaje llama al visitXxx de su tipo (REGISTER, INVITE, 180, 200, ACK...).
      */
-    public void onMessageReceived(SIPMessage sipMessage) throws IOException {
+    public void onMessageReceived(SIPMessage sipMessage, String sourceIp, int sourcePort) throws IOException {
+        sipMessage.accept(this, sourceIp, sourcePort);
+    }
 
-        // --------- Respuestas al REGISTER ---------
-        if (sipMessage instanceof OKMessage
-                && ((OKMessage) sipMessage).getcSeqStr().equalsIgnoreCase("REGISTER")) {
-            userLayer.onRegisterOK();
-            return;
+    // --------- Respuestas: según el método del CSeq ---------
+
+    @Override
+    public void visitOK(OKMessage ok, String sourceIp, int sourcePort) throws IOException {
+        switch (ok.getcSeqMethod()) {
+            case REGISTER:
+                userLayer.onRegisterOK();
+                break;
+            case INVITE:
+                handleInviteOK(ok);
+                break;
+            case BYE:
+                // ----------- 200 OK al BYE -----------
+                userLayer.onByeOK(ok);
+                break;
+            default:
+                ignoreUnexpected(ok);
         }
+    }
 
-        if (sipMessage instanceof NotFoundMessage
-                && ((NotFoundMessage) sipMessage).getcSeqStr().equalsIgnoreCase("REGISTER")) {
-            userLayer.onRegisterNotFound();
-            return;
+    @Override
+    public void visitNotFound(NotFoundMessage nf, String sourceIp, int sourcePort) throws IOException {
+        switch (nf.getcSeqMethod()) {
+            case REGISTER:
+                userLayer.onRegisterNotFound();
+                break;
+            case INVITE:
+                handleInviteNotFound(nf);
+                break;
+            default:
+                ignoreUnexpected(nf);
         }
+    }
 
-        // --------- Lado cliente (yo llamo) ---------
+    // --------- Lado cliente (yo llamo) ---------
 
-        if (sipMessage instanceof TryingMessage) {
-            handleTrying((TryingMessage) sipMessage);
-            return;
-        }
+    @Override
+    public void visitTrying(TryingMessage trying, String sourceIp, int sourcePort) {
+        handleTrying(trying);
+    }
 
-        if (sipMessage instanceof RingingMessage) {
-            handleRinging((RingingMessage) sipMessage);
-            return;
-        }
+    @Override
+    public void visitRinging(RingingMessage ringing, String sourceIp, int sourcePort) {
+        handleRinging(ringing);
+    }
 
-        if (sipMessage instanceof OKMessage
-                && ((OKMessage) sipMessage).getcSeqStr().equalsIgnoreCase("INVITE")) {
-            handleInviteOK((OKMessage) sipMessage);
-            return;
-        }
+    @Override
+    public void visitBusyHere(BusyHereMessage busy, String sourceIp, int sourcePort) throws IOException {
+        handleBusyHere(busy);
+    }
 
-        if (sipMessage instanceof NotFoundMessage
-                && ((NotFoundMessage) sipMessage).getcSeqStr().equalsIgnoreCase("INVITE")) {
-            handleInviteNotFound((NotFoundMessage) sipMessage);
-            return;
+    @Override
+    public void visitRequestTimeout(RequestTimeoutMessage rt, String sourceIp, int sourcePort) throws IOException {
+        if (rt.getcSeqMethod() == SipMethod.INVITE) {
+            handleRequestTimeout(rt);
+        } else {
+            ignoreUnexpected(rt);
         }
+    }
 
-        if (sipMessage instanceof BusyHereMessage) {
-            handleBusyHere((BusyHereMessage) sipMessage);
+    // ----------- 503 Service Unavailable -----------
+    @Override
+    public void visitServiceUnavailable(ServiceUnavailableMessage su, String sourceIp, int sourcePort) {
+        if (su.getcSeqMethod() == SipMethod.REGISTER) {
+            userLayer.onRegisterServiceUnavailable(su.getRetryAfter());
             return;
         }
+        userLayer.onServiceUnavailable(su);
+    }
 
+    // --------- Lado servidor (me llaman) ---------
 
-        if (sipMessage instanceof RequestTimeoutMessage
-                && ((RequestTimeoutMessage) sipMessage).getcSeqStr().equalsIgnoreCase("INVITE")) {
-            handleRequestTimeout((RequestTimeoutMessage) sipMessage);
-            return;
-        }
-        
-     // ----------- 200 OK al BYE -----------
-        if (sipMessage instanceof OKMessage &&
-            ((OKMessage) sipMessage).getcSeqStr().equalsIgnoreCase("BYE")) {
-            userLayer.onByeOK();
-            return;
-        }
+    @Override
+    public void visitInvite(InviteMessage inv, String sourceIp, int sourcePort) throws IOException {
+        handleIncomingInvite(inv);
+    }
+
+    @Override
+    public void visitAck(ACKMessage ack, String sourceIp, int sourcePort) {
+        handleAck(ack);
+    }
 
-        // --------- Lado servidor (me llaman) ---------
+    // BYE: el otro extremo cuelga
+    @Override
+    public void visitBye(ByeMessage bye, String sourceIp, int sourcePort) throws IOException {
+        handleBye(bye);
+    }
 
-        if (sipMessage instanceof InviteMessage) {
-            handleIncomingInvite((InviteMessage) sipMessage);
-            return;
-        }
+    // --------- Mensajes que un UA no espera ---------
 
-        if (sipMessage instanceof ACKMessage) {
-            handleAck((ACKMessage) sipMessage);
-            return;
-        }
-          
-        // BYE: el otro extremo cuelga
-        if (sipMessage instanceof ByeMessage) {
-            handleBye((ByeMessage) sipMessage);
-            return;
-        }
+    @Override
+    public void visitRegister(RegisterMessage register, String sourceIp, int sourcePort) {
+        ignoreUnexpected(register);
+    }
 
-     // ----------- 503 Service Unavailable -----------
-        if (sipMessage instanceof ServiceUnavailableMessage) {
-            userLayer.onServiceUnavailable((ServiceUnavailableMessage) sipMessage);
-            return;
+    @Override
+    public void visitUnauthorized(UnauthorizedMessage unauthorized, String sourceIp, int sourcePort) throws IOException {
+        if (unauthorized.getcSeqMethod() == SipMethod.REGISTER) {
+            userLayer.onRegisterUnauthorized(unauthorized.getwwwAuthenticate());
+        } else {
+            ignoreUnexpected(unauthorized);
         }
+    }
 
+    @Override
+    public void visitProxyAuthentication(ProxyAuthenticationMessage proxyAuthentication, String sourceIp, int sourcePort) throws IOException {
+        if (proxyAuthentication.getcSeqMethod() == SipMethod.INVITE) {
+            handleProxyAuthentication(proxyAuthentication);
+        } else {
+            ignoreUnexpected(proxyAuthentication);
+        }
+    }
 
-        System.out.println("[UA-TX] Mensaje inesperado: " );
+    private void ignoreUnexpected(SIPMessage sipMessage) {
+        LOG.warn("Mensaje inesperado: {}", sipMessage.getClass().getSimpleName());
     }
 
     /**
@@ -169,7 +229,7 @@ public class UaTransactionLayer {
 
         if (tx == null) return;
 
-        System.out.println("[UA-TX] Recibido 100 Trying (CALLING)");
+        LOG.info("Recibido 100 Trying (CALLING)");
     }
 
     /**
@@ -180,17 +240,16 @@ public class UaTransactionLayer {
         String callId = ringing.getCallId();
         InviteClientTransaction tx = clientTxs.get(callId);
 
-        if (tx == null) return;
-
-        tx.state = InviteClientTransaction.State.PROCEEDING;
+        // Un 180 que llega después del 200 OK no hace retroceder la transacción
+        if (tx == null || !tx.advance(InviteClientTransaction.State.PROCEEDING)) return;
 
-        System.out.println("[UA-TX] Recibido 180 Ringing (PROCEEDING)");
-        userLayer.onRinging();
+        LOG.info("Recibido 180 Ringing (PROCEEDING)");
+        userLayer.onRinging(ringing);
     }
 
     /**
      * Maneja un 200 OK al INVITE cuando somos el llamante.
-     * Pone la transacción en COMPLETED, envía el ACK, y programa
+     * Pone la transacción en COMPLETED, confirma el diálogo, envía el ACK, y programa
      * un timer para pasar a TERMINATED.
      */
     private void handleInviteOK(OKMessage ok) throws IOException {
@@ -198,76 +257,84 @@ public class UaTransactionLayer {
         InviteClientTransaction tx = clientTxs.get(callId);
 
         if (tx == null) {
-            System.out.println("[UA-TX] 200 OK recibido pero no existe transacción.");
+            LOG.info("200 OK recibido pero no existe transacción.");
             return;
         }
 
-        System.out.println("[UA-TX] 200 OK al INVITE → COMPLETED → enviando ACK");
+        if (!tx.advance(InviteClientTransaction.State.COMPLETED)) {
+            // 200 OK repetido: el otro no ha recibido nuestro ACK
+            LOG.info("200 OK repetido → se reenvía el ACK");
+            sendInDialog(tx.dialog.createAck(ok), tx.dialog);
+            return;
+        }
 
-        tx.state = InviteClientTransaction.State.COMPLETED;
+        LOG.info("200 OK al INVITE → COMPLETED → enviando ACK");
 
-        // Enviar ACK al 200 OK
-        sendAck(ok);
+        // El diálogo toma del 200 OK el tag, el Contact y el Record-Route del otro,
+        // y el ACK sale ya de él
+        tx.dialog.confirm(ok);
+        sendInDialog(tx.dialog.createAck(ok), tx.dialog);
 
         // Programar paso a TERMINATED
-        tx.terminationTimer = new Timer();
-        tx.terminationTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                tx.state = InviteClientTransaction.State.TERMINATED;
-                System.out.println("[UA-TX] CLIENTE INVITE → TERMINATED");
-                clientTxs.remove(callId);
+        tx.terminationTimer = UserAgent.TIMERS.schedule(() -> {
+            if (tx.advance(InviteClientTransaction.State.TERMINATED)) {
+                LOG.info("CLIENTE INVITE → TERMINATED");
+                clientTxs.remove(callId, tx);
             }
-        }, 1000);
+        }, CLIENT_LINGER_MS, TimeUnit.MILLISECONDS);
 
         // Avisar al user layer para que establezca la llamada
         userLayer.onInviteOKFromCallee(ok);
     }
 
     /**
-     * Construye y envía el ACK para un 200 OK al INVITE.
-     * Usa los datos del OK y del último INVITE enviado.
+     * Envía una petición (ACK, BYE) o respuesta dentro de un diálogo: al proxy si hay
+     * loose routing, y si no directamente al Contact del otro UA.
+     */
+    private void sendInDialog(SIPMessage message, Dialog dialog) throws IOException {
+        if (dialog.routeSet != null) {
+            transportLayer.sendToProxy(message);
+            return;
+        }
+        String contact = dialog.remoteTarget; // "IP:PUERTO"
+        if (contact == null) {
+            LOG.info("Diálogo sin Contact remoto → no puedo enviar directo.");
+            return;
+        }
+        String[] parts = contact.split(":");
+        transportLayer.send(message, parts[0], Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * ACK a una respuesta de error al INVITE (404, 407, 486, 408): va al proxy, con la
+     * Request-URI, Vias y CSeq del INVITE de la transacción y los tags de la respuesta.
      */
-    private void sendAck(OKMessage ok) throws IOException {
+    private void sendAckForError(InviteClientTransaction tx, SIPMessage response) throws IOException {
+        InviteMessage invite = tx.invite;
         ACKMessage ack = new ACKMessage();
 
-        ack.setDestination(lastInviteSent.getDestination());
-        ack.setVias(lastInviteSent.getVias());
-        ack.setMaxForwards(lastInviteSent.getMaxForwards());
-
-        ack.setToName(ok.getToName());
-        ack.setToUri(ok.getToUri());
-        ack.setFromName(ok.getFromName());
-        ack.setFromUri(ok.getFromUri());
-        ack.setCallId(ok.getCallId());
-        ack.setcSeqNumber(ok.getcSeqNumber());
-        ack.setcSeqStr("ACK");
-        ack.setContentLength(0);
+        // Request-URI, Vias y Max-Forwards como el INVITE
+        ack.setDestination(invite.getDestination());
+        ack.setVias(invite.getVias());
+        ack.setMaxForwards(invite.getMaxForwards());
 
-     // *** si hubo loose routing, ponemos Route ***
-        String route = ok.getRecordRoute();
-        
-        if (route != null) {
-            // Loose routing: ACK por proxy + Route
-            ack.setRoute(route);
-            transportLayer.sendToProxy(ack);
-        } else {
-            // Sin loose routing: ACK extremo a extremo al Contact del 200 OK
-            String contact = ok.getContact(); // "IP:PUERTO"
-            if (contact == null) {
-                System.out.println("[UA-TX] 200 OK sin Contact → no puedo enviar ACK directo.");
-                return;
-            }
-            String[] parts = contact.split(":");
-            String ip = parts[0];
-            int port = Integer.parseInt(parts[1]);
-            transportLayer.send(ack, ip, port);
-        }
+        // To / From desde la respuesta (importante por el tag)
+        ack.setToName(invite.getToName());
+        ack.setToUri(invite.getToUri());
+        ack.setToTag(response.getToTag());
+        ack.setFromName(invite.getFromName());
+        ack.setFromUri(invite.getFromUri());
+        ack.setFromTag(invite.getFromTag());
+
+        // Call-ID y CSeq (mismo número, método ACK), sin cuerpo
+        ack.setCallId(invite.getCallId());
+        ack.setcSeqNumber(invite.getcSeqNumber());
+        ack.setcSeqMethod(SipMethod.ACK);
+        ack.setContentLength(0);
 
+        transportLayer.sendToProxy(ack);
     }
 
-
-
     /**
      * Maneja un error 404 Not Found al INVITE cuando somos el llamante.
      * Pasa la transacción a TERMINATED y avisa al user layer.
@@ -276,16 +343,12 @@ public class UaTransactionLayer {
         String callId = nf.getCallId();
         InviteClientTransaction tx = clientTxs.get(callId);
 
-        if (tx == null) return;
-
-        tx.state = InviteClientTransaction.State.COMPLETED;
+        if (tx == null || !tx.advance(InviteClientTransaction.State.TERMINATED)) return;
 
-        System.out.println("[UA-TX] Error en INVITE (404 Not Found).");
+        LOG.info("Error en INVITE (404 Not Found).");
+        clientTxs.remove(callId, tx);
 
-        userLayer.onInviteError();
-
-        tx.state = InviteClientTransaction.State.TERMINATED;
-        clientTxs.remove(callId);
+        userLayer.onInviteError(nf, 404);
     }
 
     /**
@@ -296,24 +359,27 @@ public class UaTransactionLayer {
     private void handleIncomingInvite(InviteMessage inv) throws IOException {
         String callId = inv.getCallId();
 
-        // 1) Si ya estoy en llamada, respondo 486 Busy Here y no creo transacción
-        if (userLayer.isInCall()) {
-            System.out.println("[UA-TX] Recibido INVITE mientras estoy en llamada → 486 Busy Here");
+        // 1) Si ya llevo el máximo de llamadas, respondo 486 Busy Here y no creo transacción
+        if (!userLayer.canTakeCall()) {
+            LOG.info("Recibido INVITE con el máximo de llamadas en curso → 486 Busy Here");
             sendBusyForInvite(inv);   // ya tienes este método en esta misma clase
             return;
         }
 
-        // 2) Si es un INVITE duplicado del mismo Call-ID, lo ignoro
-        if (serverTxs.containsKey(callId)) {
-            System.out.println("[UA-TX] INVITE duplicado ignorado.");
+        // 2) Caso normal: creo transacción servidor y envío 180 Ringing.
+        //    El tag del To se fija aquí, en el propio INVITE, para que todas las
+        //    respuestas a él (180, 200, 486, 408) lleven el mismo
+        inv.setToTag(UserAgent.newTag());
+        InviteServerTransaction tx = new InviteServerTransaction(callId, inv);
+
+        // 3) Si es un INVITE duplicado del mismo Call-ID, lo ignoro (comprobar y
+        //    guardar en un solo paso: dos copias a la vez no crean dos transacciones)
+        if (serverTxs.putIfAbsent(callId, tx) != null) {
+            LOG.info("INVITE duplicado ignorado.");
             return;
         }
 
-        // 3) Caso normal: creo transacción servidor y envío 180 Ringing
-        InviteServerTransaction tx = new InviteServerTransaction(callId, inv);
-        serverTxs.put(callId, tx);
-
-        System.out.println("[UA-TX] Recibido INVITE → PROCEEDING");
+        LOG.info("Recibido INVITE → PROCEEDING");
 
         RingingMessage ringing = new RingingMessage();
 
@@ -322,12 +388,14 @@ public class UaTransactionLayer {
 
         ringing.setToName(inv.getToName());
         ringing.setToUri(inv.getToUri());
+        ringing.setToTag(inv.getToTag());
         ringing.setFromName(inv.getFromName());
         ringing.setFromUri(inv.getFromUri());
+        ringing.setFromTag(inv.getFromTag());
 
         ringing.setCallId(inv.getCallId());
         ringing.setcSeqNumber(inv.getcSeqNumber());
-        ringing.setcSeqStr(inv.getcSeqStr());   // "INVITE"
+        ringing.setcSeqMethod(inv.getcSeqMethod());   // INVITE
 
         ringing.setContact(inv.getContact());
         ringing.setContentLength(0);
@@ -347,22 +415,26 @@ public class UaTransactionLayer {
         InviteServerTransaction tx = serverTxs.get(callId);
 
         if (tx == null) {
-            System.out.println("[UA-TX] ACK recibido para Call-ID desconocido -> se ignora.");
+            LOG.info("ACK recibido para Call-ID desconocido -> se ignora.");
             return;
         }
 
-        System.out.println("[UA-TX] ACK recibido -> TERMINATED");
+        if (!tx.advance(InviteServerTransaction.State.TERMINATED)) {
+            // Otro hilo (ACK repetido o el timer de espera) ya la ha cerrado
+            return;
+        }
+        LOG.info("ACK recibido -> TERMINATED");
 
-        tx.state = InviteServerTransaction.State.TERMINATED;
-        serverTxs.remove(callId);
+        cancel(tx.ackWaitTimer);
+        serverTxs.remove(callId, tx);
 
         // IMPORTANTE:
-        // Solo avisamos al UserLayer si estamos REALMENTE en llamada.
+        // Solo avisamos al UserLayer si la llamada de este ACK está REALMENTE establecida.
         // Eso solo pasa si antes hemos enviado un 200 OK (call aceptada).
-        if (userLayer.isInCall()) {
-            userLayer.onAckReceived();
+        if (userLayer.isAcceptedCall(ack)) {
+            userLayer.onAckReceived(ack);
         } else {
-            System.out.println("[UA-TX] ACK de error (404/408/486) -> no se establece llamada en UserLayer.");
+            LOG.info("ACK de error (404/408/486) -> no se establece llamada en UserLayer.");
         }
     }
 
@@ -376,19 +448,15 @@ public class UaTransactionLayer {
 
     /**
      * Inicia una llamada saliente:
-     *  - guarda el último INVITE enviado,
-     *  - crea la transacción cliente,
+     *  - crea la transacción cliente, unida al diálogo de la llamada,
      *  - envía el INVITE al proxy.
      */
-    public void call(InviteMessage inviteMessage) throws IOException {
-
-        this.lastInviteSent = inviteMessage;
-
+    void call(InviteMessage inviteMessage, Dialog dialog) throws IOException {
         String callId = inviteMessage.getCallId();
-        InviteClientTransaction tx = new InviteClientTransaction(callId, inviteMessage);
+        InviteClientTransaction tx = new InviteClientTransaction(callId, inviteMessage, dialog);
         clientTxs.put(callId, tx);
 
-        System.out.println("[UA-TX] Enviando INVITE y creando transacción CLIENT (CALLING) cSeq="+ inviteMessage.getcSeqNumber());
+        LOG.info("Enviando INVITE y creando transacción CLIENT (CALLING) cSeq={}", inviteMessage.getcSeqNumber());
 
         transportLayer.sendToProxy(inviteMessage);
     }
@@ -398,19 +466,8 @@ public class UaTransactionLayer {
      * (por ejemplo si el usuario ha rechazado la llamada).
      */
     public void sendBusyForInvite(InviteMessage invite) throws IOException {
-        BusyHereMessage busy = new BusyHereMessage();
-
-        busy.setVias(invite.getVias());
-        busy.setToName(invite.getToName());
-        busy.setToUri(invite.getToUri());
-        busy.setFromName(invite.getFromName());
-        busy.setFromUri(invite.getFromUri());
-        busy.setCallId(invite.getCallId());
-        busy.setcSeqNumber(invite.getcSeqNumber());
-        busy.setcSeqStr(invite.getcSeqStr()); // "INVITE"
-        busy.setContentLength(0);
-
-        transportLayer.sendToProxy(busy);
+        transportLayer.sendToProxy(invite.createResponse(486));
+        awaitAck(invite);
     }
 
     /**
@@ -418,19 +475,40 @@ public class UaTransactionLayer {
      * (si el usuario no acepta ni rechaza en el tiempo máximo).
      */
     public void sendRequestTimeoutForInvite(InviteMessage invite) throws IOException {
-        RequestTimeoutMessage rt = new RequestTimeoutMessage();
+        transportLayer.sendToProxy(invite.createResponse(408));
+        awaitAck(invite);
+    }
 
-        rt.setVias(invite.getVias());
-        rt.setToName(invite.getToName());
-        rt.setToUri(invite.getToUri());
-        rt.setFromName(invite.getFromName());
-        rt.setFromUri(invite.getFromUri());
-        rt.setCallId(invite.getCallId());
-        rt.setcSeqNumber(invite.getcSeqNumber());
-        rt.setcSeqStr(invite.getcSeqStr()); // "INVITE"
-        rt.setContentLength(0);
+    /**
+     * Tras enviar la respuesta final a un INVITE, la transacción servidor pasa a COMPLETED
+     * a la espera del ACK. Si no llega en ACK_WAIT_MS se da por terminada igualmente, para
+     * que no se quede para siempre en la tabla.
+     */
+    private void awaitAck(InviteMessage invite) {
+        String callId = invite.getCallId();
+        InviteServerTransaction tx = serverTxs.get(callId);
+        if (tx == null || tx.invite != invite || !tx.advance(InviteServerTransaction.State.COMPLETED)) {
+            return;
+        }
+        tx.ackWaitTimer = UserAgent.TIMERS.schedule(() -> {
+            if (tx.advance(InviteServerTransaction.State.TERMINATED)) {
+                LOG.info("Sin ACK a la respuesta final → TERMINATED");
+                serverTxs.remove(callId, tx);
+            }
+        }, ACK_WAIT_MS, TimeUnit.MILLISECONDS);
+    }
 
-        transportLayer.sendToProxy(rt);
+    /**
+     * Transacciones cliente y servidor abiertas ahora mismo.
+     */
+    int pendingTransactions() {
+        return clientTxs.size() + serverTxs.size();
+    }
+
+    private static void cancel(ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
     }
 
     /**
@@ -447,13 +525,15 @@ public class UaTransactionLayer {
 
         ok.setToName(inviteMessage.getToName());
         ok.setToUri(inviteMessage.getToUri());
+        ok.setToTag(inviteMessage.getToTag());
         ok.setFromName(inviteMessage.getFromName());
         ok.setFromUri(inviteMessage.getFromUri());
+        ok.setFromTag(inviteMessage.getFromTag());
      // *** copiar Record-Route si venía en el INVITE ***
         ok.setRecordRoute(inviteMessage.getRecordRoute());
         ok.setCallId(inviteMessage.getCallId());
         ok.setcSeqNumber(inviteMessage.getcSeqNumber());
-        ok.setcSeqStr(inviteMessage.getcSeqStr()); // "INVITE"
+        ok.setcSeqMethod(inviteMessage.getcSeqMethod()); // INVITE
 
         ok.setContact(contact);
 
@@ -461,98 +541,99 @@ public class UaTransactionLayer {
         ok.setSdp(sdpMessage);
 
         transportLayer.sendToProxy(ok);
+        awaitAck(inviteMessage);
     }
     
     private void handleBye(ByeMessage bye) throws IOException {
-        System.out.println("[UA-TX] BYE recibido → enviando 200 OK.");
+        LOG.info("BYE recibido → enviando 200 OK.");
 
         OKMessage ok = new OKMessage();
         ok.setVias(bye.getVias());
         ok.setToName(bye.getToName());
         ok.setToUri(bye.getToUri());
+        ok.setToTag(bye.getToTag());
         ok.setFromName(bye.getFromName());
         ok.setFromUri(bye.getFromUri());
+        ok.setFromTag(bye.getFromTag());
         ok.setCallId(bye.getCallId());
         ok.setcSeqNumber(bye.getcSeqNumber());
-        ok.setcSeqStr("BYE");
+        ok.setcSeqMethod(SipMethod.BYE);
         ok.setContentLength(0);
 
-        String route = userLayer.getCurrentRoute();
-
-        if (route != null) {
-            // Loose routing: devolvemos el 200 OK al proxy
-            System.out.println("[UA-TX] Enviando 200 OK al BYE vía proxy (loose routing).");
-            transportLayer.sendToProxy(ok);
+        // El 200 OK vuelve por donde va el diálogo: vía proxy si hay loose routing,
+        // si no directo al otro UA
+        Dialog dialog = userLayer.findDialog(bye);
+        if (dialog != null) {
+            sendInDialog(ok, dialog);
         } else {
-            // Sin loose routing: 200 OK directo al otro UA (como antes)
-            String contact = userLayer.getCurrentRemoteContact();
-            if (contact != null) {
-                String[] parts = contact.split(":");
-                String ip   = parts[0];
-                int    port = Integer.parseInt(parts[1]);
-                System.out.println("[UA-TX] Enviando 200 OK al BYE directo a " + ip + ":" + port);
-                transportLayer.send(ok, ip, port);
-            } else {
-                System.out.println("[UA-TX] No hay remoteContact guardado, no envío 200 OK directo.");
-            }
+            LOG.info("BYE de un diálogo desconocido, no envío 200 OK.");
         }
 
-        userLayer.onByeReceived();
+        userLayer.onByeReceived(bye);
     }
 
 
 
-    public void sendByeDirect(ByeMessage bye, String ip, int port) throws IOException {
-        transportLayer.send(bye, ip, port);
-    }
-    
- // En UaTransactionLayer, junto a los demás métodos públicos
-    public void sendBye(ByeMessage bye) throws IOException {
-        // BYE que va al proxy (loose routing)
-        transportLayer.sendToProxy(bye);
+    /**
+     * Envía el BYE de un diálogo establecido (al proxy si hay loose routing).
+     */
+    void sendBye(Dialog dialog) throws IOException {
+        sendInDialog(dialog.createBye(), dialog);
     }
-    
-    private void handleBusyHere(BusyHereMessage busy) throws IOException {
-        String callId = busy.getCallId();
+
+    /**
+     * Maneja un 407 Proxy Authentication Required al INVITE cuando somos el llamante.
+     * Se confirma el 407 con un ACK y se repite el INVITE (mismo Call-ID, CSeq siguiente)
+     * con las credenciales. Si el INVITE ya las llevaba, el proxy las ha rechazado y
+     * la llamada termina.
+     */
+    private void handleProxyAuthentication(ProxyAuthenticationMessage pa) throws IOException {
+        String callId = pa.getCallId();
         InviteClientTransaction tx = clientTxs.get(callId);
 
         if (tx == null) {
-            System.out.println("[UA-TX] 486 Busy Here recibido pero no hay transacción CLIENT.");
+            LOG.info("407 recibido pero no hay transacción CLIENT.");
             return;
         }
 
-        System.out.println("[UA-TX] 486 Busy Here recibido → enviando ACK y terminando transacción");
+        // ACK al 407, igual que para cualquier respuesta de error
+        sendAckForError(tx, pa);
 
-        // Construimos ACK igual que para el 200 OK, pero usando los campos del 486
-        ACKMessage ack = new ACKMessage();
+        // Solo el primer 407 repite el INVITE; las copias solo se confirman con el ACK
+        if (!tx.advance(InviteClientTransaction.State.TERMINATED)) return;
+        clientTxs.remove(callId, tx);
 
-        // Request-URI: igual que el INVITE original
-        ack.setDestination(lastInviteSent.getDestination());
+        if (tx.invite.getProxyAuthentication() != null) {
+            LOG.info("407 a un INVITE con credenciales → credenciales rechazadas.");
+            userLayer.onInviteError(pa, 407);
+            return;
+        }
 
-        // Vias y Max-Forwards como el INVITE
-        ack.setVias(lastInviteSent.getVias());
-        ack.setMaxForwards(lastInviteSent.getMaxForwards());
+        LOG.info("407 Proxy Authentication Required → ACK y nuevo INVITE con credenciales");
+        InviteMessage invite = tx.invite;
+        invite.setcSeqNumber(invite.getcSeqNumber() + 1);
+        invite.setProxyAuthentication(userLayer.digestCredentials(
+                SipMethod.INVITE, invite.getDestination(), pa.getproxyAuthenticate()));
+        call(invite, tx.dialog);
+    }
 
-        // To / From desde la respuesta (importante por el tag)
-        ack.setToName(busy.getToName());
-        ack.setToUri(busy.getToUri());
-        ack.setFromName(busy.getFromName());
-        ack.setFromUri(busy.getFromUri());
+    private void handleBusyHere(BusyHereMessage busy) throws IOException {
+        String callId = busy.getCallId();
+        InviteClientTransaction tx = clientTxs.get(callId);
 
-        // Call-ID y CSeq (mismo número, método ACK)
-        ack.setCallId(busy.getCallId());
-        ack.setcSeqNumber(busy.getcSeqNumber());
-        ack.setcSeqStr("ACK");
+        if (tx == null) {
+            LOG.info("486 Busy Here recibido pero no hay transacción CLIENT.");
+            return;
+        }
 
-        // Sin cuerpo
-        ack.setContentLength(0);
+        LOG.info("486 Busy Here recibido → enviando ACK y terminando transacción");
 
-        // Enviamos ACK al proxy
-        transportLayer.sendToProxy(ack);
+        sendAckForError(tx, busy);
 
         // Cerramos transacción cliente
-        tx.state = InviteClientTransaction.State.TERMINATED;
-        clientTxs.remove(callId);
+        // (solo una vez aunque la respuesta llegue repetida)
+        if (!tx.advance(InviteClientTransaction.State.TERMINATED)) return;
+        clientTxs.remove(callId, tx);
 
         // Avisamos a la capa de usuario para que muestre el mensaje y pase a IDLE
         userLayer.onBusyHereFromCallee(busy);
@@ -563,44 +644,21 @@ public class UaTransactionLayer {
         InviteClientTransaction tx = clientTxs.get(callId);
 
         if (tx == null) {
-            System.out.println("[UA-TX] 404 Not Found recibido pero no hay transacción CLIENT.");
+            LOG.info("404 Not Found recibido pero no hay transacción CLIENT.");
             return;
         }
 
-        System.out.println("[UA-TX] 404 Not Found → enviando ACK y terminando transacción");
+        LOG.info("404 Not Found → enviando ACK y terminando transacción");
 
-        // Construimos el ACK al error, igual patrón que en 486
-        ACKMessage ack = new ACKMessage();
-
-        // Request-URI igual que el INVITE original
-        ack.setDestination(lastInviteSent.getDestination());
-
-        // Vias y Max-Forwards del INVITE
-        ack.setVias(lastInviteSent.getVias());
-        ack.setMaxForwards(lastInviteSent.getMaxForwards());
-
-        // To / From desde la respuesta de error (para copiar tag correcto)
-        ack.setToName(nf.getToName());
-        ack.setToUri(nf.getToUri());
-        ack.setFromName(nf.getFromName());
-        ack.setFromUri(nf.getFromUri());
-
-        // Call-ID y CSeq
-        ack.setCallId(nf.getCallId());
-        ack.setcSeqNumber(nf.getcSeqNumber());
-        ack.setcSeqStr("ACK");
-
-        ack.setContentLength(0);
-
-        // Enviar ACK al proxy
-        transportLayer.sendToProxy(ack);
+        sendAckForError(tx, nf);
 
         // Cerrar transacción cliente
-        tx.state = InviteClientTransaction.State.TERMINATED;
-        clientTxs.remove(callId);
+        // (solo una vez aunque la respuesta llegue repetida)
+        if (!tx.advance(InviteClientTransaction.State.TERMINATED)) return;
+        clientTxs.remove(callId, tx);
 
         // Notificar al UserLayer
-        userLayer.onInviteError();
+        userLayer.onInviteError(nf, 404);
     }
 
     private void handleRequestTimeout(RequestTimeoutMessage rt) throws IOException {
@@ -608,40 +666,18 @@ public class UaTransactionLayer {
         InviteClientTransaction tx = clientTxs.get(callId);
 
         if (tx == null) {
-            System.out.println("[UA-TX] 408 Request Timeout recibido pero no hay transacción CLIENT.");
+            LOG.info("408 Request Timeout recibido pero no hay transacción CLIENT.");
             return;
         }
 
-        System.out.println("[UA-TX] 408 Request Timeout → enviando ACK y terminando transacción");
+        LOG.info("408 Request Timeout → enviando ACK y terminando transacción");
 
-        ACKMessage ack = new ACKMessage();
-
-        // Request-URI igual que el INVITE original
-        ack.setDestination(lastInviteSent.getDestination());
-
-        // Vias y Max-Forwards del INVITE
-        ack.setVias(lastInviteSent.getVias());
-        ack.setMaxForwards(lastInviteSent.getMaxForwards());
-
-        // To / From desde la respuesta 408
-        ack.setToName(rt.getToName());
-        ack.setToUri(rt.getToUri());
-        ack.setFromName(rt.getFromName());
-        ack.setFromUri(rt.getFromUri());
-
-        // Call-ID y CSeq
-        ack.setCallId(rt.getCallId());
-        ack.setcSeqNumber(rt.getcSeqNumber());
-        ack.setcSeqStr("ACK");
-
-        ack.setContentLength(0);
-
-        // Enviar ACK al proxy
-        transportLayer.sendToProxy(ack);
+        sendAckForError(tx, rt);
 
         // Cerrar transacción
-        tx.state = InviteClientTransaction.State.TERMINATED;
-        clientTxs.remove(callId);
+        // (solo una vez aunque la respuesta llegue repetida)
+        if (!tx.advance(InviteClientTransaction.State.TERMINATED)) return;
+        clientTxs.remove(callId, tx);
 
         // Notificar al UserLayer (ya tienes este callback)
         userLayer.onRequestTimeoutFromCallee(rt);
@@ -6,23 +6,38 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 
+import common.Counter;
+import common.Log;
+import common.MessageCounters;
+import common.Metrics;
+import common.TcpTransport;
 import mensajesSIP.SIPMessage;
 
 /**
  * Capa de transporte del UA.
  * Se encarga de enviar y recibir datagramas UDP.
+ * <p>También escucha por TCP en el mismo puerto, y los mensajes de más de
+ * {@link TcpTransport#MTU_LIMIT} bytes se envían por TCP en lugar de por UDP.
  */
 public class UaTransportLayer {
 
-    /** Tamaño del buffer de recepción. */
-    private static final int BUFSIZE = 4 * 1024;
+    private static final Log LOG = Log.get("UA");
+
+    /** Tamaño del buffer de recepción: el mayor datagrama UDP posible, para no truncar nada. */
+    private static final int BUFSIZE = 64 * 1024;
 
     private int listenPort;
     private String proxyAddress;
     private int proxyPort;
     private DatagramSocket socket;
+    // null si no se pudo abrir el puerto TCP; entonces todo va por UDP
+    private TcpTransport tcp;
     private UaTransactionLayer transactionLayer;
 
+    // Métricas: mensajes que entran y salen, por método o código, y los que no se pueden parsear
+    private final MessageCounters received;
+    private final MessageCounters sent;
+    private final Counter parseFailures;
     
 
     /** Activar logs completos de SIP (cabeceras). */
@@ -39,12 +54,30 @@ public class UaTransportLayer {
                             String proxyAddress,
                             int proxyPort,
                             UaTransactionLayer transactionLayer) throws SocketException {
+        this(listenPort, proxyAddress, proxyPort, transactionLayer, new Metrics("sma_ua"));
+    }
+
+    public UaTransportLayer(int listenPort,
+                            String proxyAddress,
+                            int proxyPort,
+                            UaTransactionLayer transactionLayer,
+                            Metrics metrics) throws SocketException {
 
         this.transactionLayer = transactionLayer;
+        this.received = new MessageCounters(metrics, "messages_received_total",
+                "Mensajes SIP recibidos, por método o código de respuesta");
+        this.sent = new MessageCounters(metrics, "messages_sent_total",
+                "Mensajes SIP enviados, por método o código de respuesta");
+        this.parseFailures = metrics.counter("parse_failures_total", "Mensajes recibidos que no se han podido parsear");
         this.listenPort = listenPort;
         this.proxyAddress = proxyAddress;
         this.proxyPort = proxyPort;
         this.socket = new DatagramSocket(listenPort);
+        try {
+            this.tcp = new TcpTransport(listenPort, this::deliver, "ua");
+        } catch (IOException e) {
+            LOG.warn("No se puede escuchar por TCP en {}: {}. Solo se usará UDP.", listenPort, e.getMessage());
+        }
     }
 
     /**
@@ -60,20 +93,29 @@ public class UaTransportLayer {
      * (Por si en algún momento se quiere enviar a otro UA).
      */
     public void send(SIPMessage sipMessage, String address, int port) throws IOException {
+        byte[] data = sipMessage.toStringMessage().getBytes();
+        // Una petición que va a salir por TCP lo tiene que decir en su Via (RFC 3261, 18.1.1)
+        if (tcp != null && data.length > TcpTransport.MTU_LIMIT && sipMessage.useTcpInTopVia()) {
+            data = sipMessage.toStringMessage().getBytes();
+        }
         if (debug) {
             System.out.println("\n========== [UA SEND] -> " 
         	        + address + ":" + port + " ==========");
         	System.out.println(sipMessage.toStringMessage());
         	System.out.println("========== [END UA SEND] ==========\n");
         }
-        byte[] data = sipMessage.toStringMessage().getBytes();
         send(data, address, port);
     }
 
     /**
-     * Envío genérico de un datagrama UDP.
+     * Envío genérico: por UDP, o por TCP si el mensaje es demasiado grande para un datagrama.
      */
     private void send(byte[] bytes, String address, int port) throws IOException {
+        sent.count(bytes, bytes.length);
+        if (tcp != null && bytes.length > TcpTransport.MTU_LIMIT) {
+            tcp.send(bytes, address, port);
+            return;
+        }
         InetAddress inetAddress = InetAddress.getByName(address);
         DatagramPacket packet = new DatagramPacket(bytes, bytes.length, inetAddress, port);
         socket.send(packet);
@@ -85,45 +127,73 @@ public class UaTransportLayer {
      * a la capa de transacción del UA.
      */
     public void startListening() {
-        System.out.println("Listening at " + listenPort + "...");
+        LOG.info("Listening at {}...", listenPort);
+        if (tcp != null) {
+            tcp.start();
+        }
+        // Buffer y paquete se reutilizan en cada recepción
+        byte[] buf = new byte[BUFSIZE];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
         while (true) {
             try {
-                byte[] buf = new byte[BUFSIZE];
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                packet.setLength(buf.length);
 
                 // Espera bloqueante a que llegue un datagrama
                 socket.receive(packet);
+                received.count(packet.getData(), packet.getLength());
 
                 // Construimos el String solo con la parte útil del buffer
                 String msg = new String(packet.getData(), 0, packet.getLength());
 
-                SIPMessage sipMessage = SIPMessage.parseMessage(msg);
-
-                
-                if (debug) {
-                    String sourceIp = packet.getAddress().getHostAddress();
-                    int sourcePort = packet.getPort();
-                     System.out.println("\n========== [UA RECV] <- " 
-                            + sourceIp + ":" + sourcePort + " ==========");
-                    System.out.println(sipMessage.toStringMessage());
-                    System.out.println("========== [END UA RECV] ==========\n");
-                }
-
-// Pasamos el mensaje a la capa de transacciones
-                transactionLayer.onMessageReceived(sipMessage);
+                deliver(msg, packet.getAddress().getHostAddress(), packet.getPort());
             } catch (java.net.SocketException se) {
                 // Si hemos cerrado el socket para salir, no es un error: terminamos el hilo.
                 if (socket == null || socket.isClosed()) {
                     return; // o break;
                 }
             } catch (Exception e) {
-                System.err.println("Error en UaTransportLayer: " + e.getMessage());
-                e.printStackTrace();
+                LOG.error("Error en UaTransportLayer", e);
             }
         }
     }
     
+    // Mensaje recibido por TCP (desde el hilo del Selector)
+    private void deliver(byte[] message, String sourceIp, int sourcePort) {
+        received.count(message, message.length);
+        try {
+            deliver(new String(message), sourceIp, sourcePort);
+        } catch (Exception e) {
+            LOG.error("Error en UaTransportLayer", e);
+        }
+    }
+
+    /**
+     * Parsea un mensaje recibido y lo pasa a la capa de transacción.
+     */
+    private void deliver(String msg, String sourceIp, int sourcePort) throws Exception {
+        SIPMessage sipMessage;
+        try {
+            sipMessage = SIPMessage.parseMessage(msg);
+        } catch (Exception e) {
+            parseFailures.increment();
+            throw e;
+        }
+
+        if (debug) {
+             System.out.println("\n========== [UA RECV] <- " 
+                    + sourceIp + ":" + sourcePort + " ==========");
+            System.out.println(sipMessage.toStringMessage());
+            System.out.println("========== [END UA RECV] ==========\n");
+        }
+
+        // Pasamos el mensaje a la capa de transacciones
+        transactionLayer.onMessageReceived(sipMessage, sourceIp, sourcePort);
+    }
+
     public void closeSocket() {
+        if (tcp != null) {
+            tcp.close();
+        }
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -4,74 +4,26 @@ import java.io.IOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.UUID;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-import common.FindMyIPv4;
+/**
+ * Interfaz de consola del UA: lee comandos de teclado, los traduce a operaciones de
+ * {@link UserAgent} y muestra por pantalla lo que este le va notificando.
+ */
+public class UaUserLayer implements UserAgentListener {
 
-import mensajesSIP.BusyHereMessage;
-import mensajesSIP.ByeMessage;
-import mensajesSIP.InviteMessage;
-import mensajesSIP.OKMessage;
-import mensajesSIP.RegisterMessage;
-import mensajesSIP.RequestTimeoutMessage;
-import mensajesSIP.SDPMessage;
-import mensajesSIP.ServiceUnavailableMessage;
-
-public class UaUserLayer {
-
-    // Estados de alto nivel del UA
-    private static final int IDLE              = 0;  // Sin llamada
-    private static final int OUTGOING_CALL     = 1;  // Llamada saliente en curso (esperando respuesta)
-    private static final int INCOMING_RINGING  = 2;  // Llamada entrante sonando
-    private static final int IN_CALL           = 3;  // Llamada establecida
-
-    private int state = IDLE;
-
-    // INVITE entrante pendiente de aceptar/rechazar
-    private InviteMessage currentIncomingInvite;
-
-    // Timer para colgar (408) si nadie descuelga una llamada entrante
-    private Timer incomingCallTimer;
+    private final UserAgent agent;
 
     private String usuarioSip;
     private boolean debug;
     private int tiempoRegistro;
-    private boolean registered = false;  // pasa a true cuando llega 200 OK al REGISTER
-
-    // Flujo RTP permitido (ejemplo de puertos/flows)
-    public static final ArrayList<Integer> RTPFLOWS =
-            new ArrayList<>(Arrays.asList(96, 97, 98));
-
-    private UaTransactionLayer transactionLayer;
-
-    private String myAddress = FindMyIPv4.findMyIPv4Address().getHostAddress();
-    private int rtpPort;
-    private int listenPort;
 
     // Procesos opcionales para vídeo (vitext), ahora mismo no se usan
     private Process vitextClient = null;
     private Process vitextServer = null;
-    
-    // Configuración por defecto para vitext (multicast)
-    private static final String DEFAULT_MCAST_IP = "239.1.2.3";
-    private static final int DEFAULT_VIDEO_PORT = 49172;
-    
- // Info de la llamada activa (para BYE directo UA-UA)
-    private String currentCallId;
-    private String currentRemoteUri;      // sip:bob@SMA
-    private String currentRemoteContact;  // "IP:puerto" del otro UA
-    private String currentRoute;         // null si NO hay loose routing
-    private String currentcSeqNumber;
-    
- // ¿Estoy actualmente EN llamada?
-    public boolean isInCall() {
-        return state == IN_CALL;
-    }
-
 
     /**
      * Constructor principal del UA.
@@ -83,107 +35,49 @@ public class UaUserLayer {
                        boolean debug,
                        int tiempoRegistro)
             throws SocketException, UnknownHostException {
+        this(usuarioSip, listenPort, proxyAddress, proxyPort, debug, tiempoRegistro, usuarioSip.split("@")[0]);
+    }
+
+    /**
+     * Constructor con la contraseña para la autenticación Digest.
+     */
+    public UaUserLayer(String usuarioSip,
+                       int listenPort,
+                       String proxyAddress,
+                       int proxyPort,
+                       boolean debug,
+                       int tiempoRegistro,
+                       String password)
+            throws SocketException, UnknownHostException {
 
         this.usuarioSip     = usuarioSip;
-        this.listenPort     = listenPort;
-        this.rtpPort        = listenPort + 1;
         this.debug          = debug;
         this.tiempoRegistro = tiempoRegistro;
 
-        this.transactionLayer = new UaTransactionLayer(
-                listenPort,
-                proxyAddress,
-                proxyPort,
-                this
-        );
-    
-        this.transactionLayer.setDebug(this.debug);
-}
+        this.agent = new UserAgent(usuarioSip, listenPort, proxyAddress, proxyPort, password);
+        this.agent.setDebug(this.debug);
+        this.agent.addListener(this);
+    }
 
     /**
-     * Arranca el proceso de registro en el proxy.
-     * Envía REGISTER periódicamente hasta que se recibe 200 OK.
+     * Arranca el proceso de registro en el proxy y espera a que termine.
      */
     public void startRegistration() {
         System.out.println("Iniciando registro SIP en el proxy...");
-
-        while (!registered) {
-            try {
-                sendRegisterOnce();
-
-                // Esperar un poco a ver si llega respuesta
-                Thread.sleep(2000);
-
-                if (!registered) {
-                    System.out.println("No response to REGISTER, retrying...");
-                }
-            } catch (Exception e) {
-                System.err.println("Error al enviar REGISTER: " + e.getMessage());
-                e.printStackTrace();
-            }
+        try {
+            agent.register().join();
+        } catch (CompletionException e) {
+            // El listener ya ha avisado (y cerrado el UA)
+            return;
         }
-
         System.out.println("Registro completado correctamente. Ya puedes hacer llamadas.");
     }
 
-    /**
-     * Construye y envía un único REGISTER al proxy.
-     */
-    private void sendRegisterOnce() throws IOException {
-        RegisterMessage register = new RegisterMessage();
-
-        // usuarioSip tipo "alice@SMA"
-        String[] partes = usuarioSip.split("@");
-        String user   = partes[0];
-        String domain = (partes.length > 1) ? partes[1] : "SMA";
-
-        // Request line: REGISTER sip:DOMINIO SIP/2.0
-        register.setDestination("sip:" + domain);
-
-        // Via: IP y puerto local
-        register.setVias(new ArrayList<>(
-                Arrays.asList(this.myAddress + ":" + this.listenPort)));
-
-        // Max-Forwards
-        register.setMaxForwards(70);
-
-        // To / From
-        String uriUsuario = "sip:" + user + "@" + domain;
-
-        register.setToName(user);
-        register.setToUri(uriUsuario);
-
-        register.setFromName(user);
-        register.setFromUri(uriUsuario);
-
-        // Call-ID y CSeq
-        String callId = UUID.randomUUID().toString();
-        register.setCallId(callId);
-        int cseq = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
-        register.setcSeqNumber(Integer.toString(cseq));
-        register.setcSeqStr("REGISTER");
-
-        // Contact: "IP:puerto" (sin usuario)
-        String contact = myAddress + ":" + listenPort;
-        register.setContact(contact);
-
-        // Expires en segundos y sin cuerpo
-        register.setExpires(Integer.toString(600));
-        register.setContentLength(0);
-
-        if (debug) {
-            System.out.println(">>> REGISTER a enviar:");
-            System.out.println(register.toStringMessage());
-        }
-
-        transactionLayer.sendRegister(register);
-    }
-
     /**
      * Arranca la escucha de red (UDP).
      */
     public void startListeningNetwork() {
-        transactionLayer.startListeningNetwork();
+        agent.start();
     }
 
     /**
@@ -205,290 +99,228 @@ public class UaUserLayer {
     }
 
     /**
-     * Muestra el prompt en función del estado actual del UA.
+     * Muestra el prompt con las llamadas en curso.
      */
     private void prompt() {
         System.out.println("");
-        switch (state) {
-            case IDLE:
-                System.out.println("INVITE xxx");
-                break;
-            case OUTGOING_CALL:
-                System.out.println("Llamada saliente: esperando respuesta (Ringing / 200 OK / error)...");
-                break;
-            case INCOMING_RINGING:
-                System.out.println("Llamada entrante. Comandos: ACCEPT | REJECT");
-                break;
-            case IN_CALL:
-                // De momento no mostramos nada extra
-                break;
-            default:
-                throw new IllegalStateException("Unexpected state: " + state);
+        List<Call> calls = agent.getCalls();
+        for (Call call : calls) {
+            switch (call.getState()) {
+                case CALLING:
+                    System.out.println("(" + call.getNumber() + ") Llamada saliente a " + call.getRemoteUri()
+                            + ": esperando respuesta (Ringing / 200 OK / error)...");
+                    break;
+                case RINGING:
+                    System.out.println("(" + call.getNumber() + ") Llamada entrante de " + call.getRemoteUri()
+                            + ". Comandos: ACCEPT | REJECT");
+                    break;
+                case ESTABLISHED:
+                    System.out.println("(" + call.getNumber() + ") En llamada con " + call.getRemoteUri()
+                            + ". Para colgar ➜ BYE");
+                    break;
+                default:
+                    break;
+            }
         }
+        System.out.println(calls.size() > 1 ? "INVITE xxx | ACCEPT n | REJECT n | BYE n" : "INVITE xxx");
         System.out.print("> ");
     }
 
     /**
-     * Procesa un comando de teclado según el estado.
+     * Procesa un comando de teclado. ACCEPT, REJECT y BYE admiten el número de la llamada;
+     * sin él se aplican a la única llamada en la que tienen sentido.
      */
     private void command(String line) throws IOException {
         String trimmed = line.trim();
-        String upper   = trimmed.toUpperCase();
+        String[] parts = trimmed.split("\\s+");
+        String upper   = parts[0].toUpperCase();
         if ("EXIT".equals(upper) || "SALIR".equals(upper) || "QUIT".equals(upper)) {
             exitCommand();
             return;
         }
 
-        if (state == IDLE) {
-            if (upper.startsWith("INVITE")) {
-                commandInvite(trimmed);
-            } else if ("BYE".equals(upper)) {
-                System.out.println("No hay llamada activa para colgar.");
-            } else {
-                System.out.println("Bad command");
+        switch (upper) {
+            case "INVITE":
+                commandInvite(parts);
+                break;
+            case "ACCEPT": {
+                Call call = selectCall(parts, Call.State.RINGING, "No hay llamada entrante que aceptar.");
+                if (call != null) {
+                    acceptIncomingCall(call);
+                }
+                break;
             }
-            return;
+            case "REJECT": {
+                Call call = selectCall(parts, Call.State.RINGING, "No hay llamada entrante que rechazar.");
+                if (call != null) {
+                    rejectIncomingCall(call);
+                }
+                break;
+            }
+            case "BYE": {
+                Call call = selectCall(parts, Call.State.ESTABLISHED, "No hay llamada activa para colgar.");
+                if (call != null) {
+                    sendByeCommand(call);
+                }
+                break;
+            }
+            default:
+                System.out.println("Bad command");
+                break;
         }
+    }
 
-        if (state == INCOMING_RINGING) {
-            if ("ACCEPT".equals(upper)) {
-                acceptIncomingCall();
-            } else if ("REJECT".equals(upper)) {
-                rejectIncomingCall();
-            } else {
-                System.out.println("Comandos válidos mientras suena: ACCEPT | REJECT");
+    // La llamada en el estado indicado: la del número dado, o la única que hay en ese estado
+    private Call selectCall(String[] parts, Call.State state, String none) {
+        List<Call> candidates = new ArrayList<>();
+        for (Call call : agent.getCalls()) {
+            if (call.getState() == state) {
+                candidates.add(call);
             }
-            return;
         }
-        
-        if ("BYE".equals(upper)) {
-            sendByeCommand();
-            return;
+        if (candidates.isEmpty()) {
+            System.out.println(none);
+            return null;
         }
-        if (upper.startsWith("INVITE")) {
-            System.out.println("Solo se soporta una llamada simultáneamente. Cuelga antes de iniciar otra.");
-            return;
+        if (parts.length < 2) {
+            if (candidates.size() > 1) {
+                System.out.println("Hay " + candidates.size() + " llamadas: indica su número (" + parts[0] + " n).");
+                return null;
+            }
+            return candidates.get(0);
         }
-
-        // Para OUTGOING_CALL, de momento no soportamos comandos
-        System.out.println("Comando no válido en el estado actual.");
+        try {
+            int number = Integer.parseInt(parts[1]);
+            for (Call call : candidates) {
+                if (call.getNumber() == number) {
+                    return call;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // se trata como número desconocido
+        }
+        System.out.println("No hay ninguna llamada " + parts[1] + " en la que se pueda hacer " + parts[0] + ".");
+        return null;
     }
 
     /**
      * Indica si el UA está registrado (ya ha llegado 200 OK al REGISTER).
      */
     public boolean isRegistered() {
-        return registered;
+        return agent.isRegistered();
     }
 
     /**
      * Maneja el comando INVITE xxx desde teclado.
      */
-    private void commandInvite(String line) throws IOException {
+    private void commandInvite(String[] parts) {
         if (!isRegistered()) {
             System.out.println("No puedes hacer INVITE: el UA aún no está registrado.");
             return;
         }
 
-        // Parar posibles clientes/servidores de vídeo anteriores
-        stopVitextServer();
-        stopVitextClient();
-
         // Formato esperado: "INVITE bob"
-        String[] parts = line.split("\\s+");
         if (parts.length < 2) {
             System.out.println("Uso: INVITE nombreDestino");
             return;
         }
 
-        String destName = parts[1];   // "bob"
-
-        // usuarioSip p.ej. "alice@SMA"
-        String[] userParts = usuarioSip.split("@");
-        String myUser   = userParts[0];
-        String myDomain = (userParts.length > 1) ? userParts[1] : "SMA";
-
-        // URIs SIP
-        String fromUri = "sip:" + myUser + "@" + myDomain;
-        String toUri   = "sip:" + destName + "@" + myDomain;
-
-        System.out.println("Inviting " + toUri);
-
-        // SDP: anunciamos el vídeo en multicast (vitext)
-        SDPMessage sdpMessage = new SDPMessage();
-        sdpMessage.setIp(DEFAULT_MCAST_IP);
-        sdpMessage.setPort(DEFAULT_VIDEO_PORT);
-        sdpMessage.setOptions(RTPFLOWS);
-
-        String callId = UUID.randomUUID().toString();
-        int cseq = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
-        
-        InviteMessage inviteMessage = new InviteMessage();
-        inviteMessage.setDestination(toUri);
-        inviteMessage.setVias(new ArrayList<>(
-                Arrays.asList(this.myAddress + ":" + this.listenPort)));
-        inviteMessage.setMaxForwards(70);
-
-        inviteMessage.setToName(destName);
-        inviteMessage.setToUri(toUri);
-        inviteMessage.setFromName(myUser);
-        inviteMessage.setFromUri(fromUri);
-
-        inviteMessage.setCallId(callId);
-        inviteMessage.setcSeqNumber(Integer.toString(cseq));
-        inviteMessage.setcSeqStr("INVITE");
-
-        
-        // Contact: dónde nos puede contactar el otro
-        inviteMessage.setContact(myAddress + ":" + listenPort);
-
-        // Cuerpo SDP
-        inviteMessage.setContentType("application/sdp");
-        inviteMessage.setContentLength(
-                sdpMessage.toStringMessage().getBytes().length);
-        inviteMessage.setSdp(sdpMessage);
-
-        // Mandar el INVITE mediante la capa de transacciones
-        transactionLayer.call(inviteMessage);
-        state = OUTGOING_CALL;
-        
+        // "bob", o "bob@otrodominio" para llamar fuera del dominio propio
+        System.out.println("Inviting " + parts[1]);
+        printIfRejected(agent.invite(parts[1]));
     }
 
     // =====================================================================
-    //  CALLBACKS DESDE UaTransactionLayer
+    //  AVISOS DEL UserAgent
     // =====================================================================
 
-    /**
-     * Llega 200 OK al REGISTER.
-     */
-    public void onRegisterOK() {
-        this.registered = true;
+    @Override
+    public void registered() {
         System.out.println("Recibido 200 OK al REGISTER");
     }
 
-    /**
-     * Llega 404 al REGISTER: usuario no permitido.
-     */
-    public void onRegisterNotFound() {
-        System.out.println("Recibido 404 al REGISTER. Usuario no permitido. Cerrando UA.");
-        System.exit(0);
+    @Override
+    public void registrationRetry(int statusCode, long delayMs) {
+        switch (statusCode) {
+            case 0:
+                System.out.println("No response to REGISTER, retrying...");
+                break;
+            case 401:
+                System.out.println("Recibido 401 al REGISTER → reintento con credenciales");
+                break;
+            default:
+                System.out.println("Recibido " + statusCode + " al REGISTER (proxy sobrecargado), reintento en "
+                        + (delayMs / 1000) + " s");
+                break;
+        }
     }
 
-    /**
-     * Llega 180 Ringing a la llamada saliente.
-     */
-    public void onRinging() {
-        System.out.println("[UA] El destino está sonando (180 Ringing)");
-        // Seguimos en OUTGOING_CALL
+    @Override
+    public void registrationFailed(int statusCode) {
+        if (statusCode == 404) {
+            System.out.println("Recibido 404 al REGISTER. Usuario no permitido. Cerrando UA.");
+        } else {
+            System.out.println("Recibido " + statusCode + " al REGISTER. Credenciales rechazadas. Cerrando UA.");
+        }
+        System.exit(0);
     }
 
-    /**
-     * Llega 200 OK al INVITE (somos el llamante).
-     */
-    public void onInviteOKFromCallee(OKMessage ok) {
-        System.out.println("[UA] Llamada establecida (200 OK). ACK enviado. /n");
-        System.out.println("Para colgar la llamada ➜ BYE");
-        state = IN_CALL;
-
-        // Guardamos info de la llamada
-        currentCallId         = ok.getCallId();
-        currentRemoteUri      = ok.getToUri();   // el que responde
-        currentRemoteContact  = ok.getContact();   // "IP:puerto" del otro UA
-        currentRoute          = ok.getRecordRoute(); // null si no hay loose routing
-        currentcSeqNumber     = ok.getcSeqNumber();
-        /*
-     // Arrancar vitextclient con la info SDP del 200 OK
-        try {
-            SDPMessage sdp = ok.getSdp();
-            if (sdp != null) {
-                runVitextClient(sdp.getIp(), sdp.getPort());
-            } else {
-                System.out.println("[UA] 200 OK sin SDP → no puedo arrancar vitextclient.");
-            }
-        } catch (IOException e) {
-            System.out.println("[UA] Error arrancando vitextclient: " + e.getMessage());
-        } */
+    @Override
+    public void incomingCall(Call call) {
+        System.out.println("(" + call.getNumber() + ") Invite received from " + call.getRemoteUri()
+                + ": ACCEPT | REJECT (10s time out)");
     }
 
-
-
-
-    /**
-     * Llega un INVITE cuando somos el llamado.
-     * Se guarda y se pasa a estado INCOMING_RINGING.
-     * También se arranca un timer para 408 si nadie contesta en 10 s.
-     */
-    public void onInviteReceived(InviteMessage inv) {
-        this.currentIncomingInvite = inv;
-        this.state = INCOMING_RINGING;
-        System.out.println("Invite received: ACCEPT | REJECT (10s time out)");
-     // Guardamos si el INVITE trae Record-Route (loose routing)
-        currentRoute = inv.getRecordRoute();
-        
-        // Cancelar timer anterior si existía
-        if (incomingCallTimer != null) {
-            incomingCallTimer.cancel();
-        }
-
-        // Timer: si en 10 s no se acepta/rechaza, enviamos 408
-        incomingCallTimer = new java.util.Timer(true);
-        incomingCallTimer.schedule(new java.util.TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    if (state == INCOMING_RINGING && currentIncomingInvite != null) {
-                        System.out.println("[UA] Nadie descuelga → enviando 408 Request Timeout");
-                        transactionLayer.sendRequestTimeoutForInvite(currentIncomingInvite);
-                        currentIncomingInvite = null;
-                        state = IDLE;
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }, 10_000); // 10 segundos
+    @Override
+    public void ringing(Call call) {
+        System.out.println("[UA] (" + call.getNumber() + ") El destino está sonando (180 Ringing)");
     }
 
-    /**
-     * Llega ACK cuando somos el llamado.
-     */
-    public void onAckReceived() {
-        System.out.println("[UA] ACK recibido → llamada establecida. /n");
-        System.out.println("Para colgar la llamada ➜ BYE");
-        // Si hemos aceptado una llamada, usamos el INVITE entrante
-        if (currentIncomingInvite != null) {
-            currentCallId    = currentIncomingInvite.getCallId();
-            currentRemoteUri = currentIncomingInvite.getFromUri(); // el que nos llama
-            currentcSeqNumber     = currentIncomingInvite.getcSeqNumber();
-
+    @Override
+    public void answered(Call call) {
+        if (call.isOutgoing()) {
+            System.out.println("[UA] (" + call.getNumber() + ") Llamada establecida (200 OK). ACK enviado. /n");
+        } else {
+            System.out.println("[UA] (" + call.getNumber() + ") ACK recibido → llamada establecida. /n");
         }
-
-        state = IN_CALL;
-    }
-
-
-    /**
-     * Llega un error al INVITE (404 Not Found).
-     */
-    public void onInviteError() {
-        System.out.println("[UA] Error en llamada (404 Not Found).");
-        state = IDLE;
+        System.out.println("Para colgar la llamada ➜ BYE");
     }
 
-    /**
-     * Llega 486 Busy Here desde el callee.
-     */
-    public void onBusyHereFromCallee(BusyHereMessage busy) {
-        System.out.println("[UA] Llamada rechazada por el destino (486 Busy Here).");
-        state = IDLE;
+    @Override
+    public void callFailed(Call call, int statusCode) {
+        String prefix = "[UA] (" + call.getNumber() + ") ";
+        switch (statusCode) {
+            case 486:
+                System.out.println(prefix + "Llamada rechazada por el destino (486 Busy Here).");
+                break;
+            case 408:
+                if (call.isOutgoing()) {
+                    System.out.println(prefix + "Llamada no contestada (408 Request Timeout).");
+                } else {
+                    System.out.println(prefix + "Nadie descuelga → enviado 408 Request Timeout");
+                }
+                break;
+            case 503:
+                System.out.println(prefix + "Proxy ocupado (503 Service Unavailable).");
+                break;
+            default:
+                System.out.println(prefix + "Error en llamada (" + statusCode
+                        + (statusCode == 404 ? " Not Found" : "") + ").");
+                break;
+        }
     }
 
-    /**
-     * Llega 408 Request Timeout desde el callee.
-     */
-    public void onRequestTimeoutFromCallee(RequestTimeoutMessage rt) {
-        System.out.println("[UA] Llamada no contestada (408 Request Timeout).");
-        state = IDLE;
+    @Override
+    public void callEnded(Call call, boolean byRemote) {
+        if (byRemote) {
+            System.out.println("[UA] (" + call.getNumber() + ") El otro extremo ha colgado (BYE recibido).");
+        } else {
+            System.out.println("[UA] (" + call.getNumber() + ") BYE confirmado (200 OK) → fin de llamada.");
+        }
+        if (agent.getCalls().isEmpty()) {
+            stopVitextClient();
+            stopVitextServer();
+        }
     }
 
     // =====================================================================
@@ -528,189 +360,58 @@ public class UaUserLayer {
     // =====================================================================
 
     /**
-     * Acepta la llamada entrante actual.
-     * Envía 200 OK con SDP y pasa a IN_CALL.
+     * Acepta una llamada entrante (200 OK con SDP).
      */
-    private void acceptIncomingCall() throws IOException {
-    	// Guardamos info de la llamada para BYE directo
-    	currentCallId        = currentIncomingInvite.getCallId();
-    	currentRemoteUri     = currentIncomingInvite.getFromUri();   // quién me llama
-    	currentRemoteContact = currentIncomingInvite.getContact();   // "IP:puerto" del caller
-    	currentcSeqNumber    = currentIncomingInvite.getcSeqNumber();
-    	
-    	
-
-    	
-        if (currentIncomingInvite == null) {
-            System.out.println("No hay llamada entrante que aceptar.");
-            return;
-        }
-
-        // Cancelar timer de timeout
-        if (incomingCallTimer != null) {
-            incomingCallTimer.cancel();
-            incomingCallTimer = null;
-        }
-
-     // SDP de respuesta: usamos la IP multicast y puerto ofrecidos por el caller (vitext)
-        SDPMessage sdpOffer = currentIncomingInvite.getSdp();
-        SDPMessage sdpMessage = new SDPMessage();
-        if (sdpOffer != null) {
-            sdpMessage.setIp(sdpOffer.getIp());
-            sdpMessage.setPort(sdpOffer.getPort());
-            sdpMessage.setOptions(sdpOffer.getOptions() != null ? sdpOffer.getOptions() : RTPFLOWS);
-        } else {
-            // Fallback por si el INVITE no trae SDP
-            sdpMessage.setIp(DEFAULT_MCAST_IP);
-            sdpMessage.setPort(DEFAULT_VIDEO_PORT);
-            sdpMessage.setOptions(RTPFLOWS);
-        }
-
+    private void acceptIncomingCall(Call call) {
         // Arrancar vitextserver con la info SDP
        // runVitextServer(sdpMessage.getIp(), sdpMessage.getPort());
 
-        String contact = myAddress + ":" + listenPort;
-
-        transactionLayer.sendOkForInvite(currentIncomingInvite, sdpMessage, contact);
-
-        System.out.println("[UA] Llamada aceptada → enviado 200 OK.");
-        state = IN_CALL;
+        if (printIfRejected(call.accept())) {
+            return;
+        }
+        System.out.println("[UA] (" + call.getNumber() + ") Llamada aceptada → enviado 200 OK.");
     }
 
     /**
-     * Rechaza la llamada entrante actual.
-     * Envía 486 Busy Here y vuelve a IDLE.
+     * Rechaza una llamada entrante (486 Busy Here).
      */
-    private void rejectIncomingCall() throws IOException {
-        if (currentIncomingInvite == null) {
-            System.out.println("No hay llamada entrante que rechazar.");
-            return;
-        }
-
-        // Cancelar timer de timeout
-        if (incomingCallTimer != null) {
-            incomingCallTimer.cancel();
-            incomingCallTimer = null;
-        }
-
-        System.out.println("[UA] Llamada rechazada → enviando 486 Busy Here");
-        transactionLayer.sendBusyForInvite(currentIncomingInvite);
+    private void rejectIncomingCall(Call call) {
+        System.out.println("[UA] (" + call.getNumber() + ") Llamada rechazada → enviando 486 Busy Here");
+        printIfRejected(call.reject());
+    }
 
-        currentIncomingInvite = null;
-        state = IDLE;
+    private void sendByeCommand(Call call) {
+        System.out.println("[UA] (" + call.getNumber() + ") Enviando BYE.");
+        printIfRejected(call.bye());
     }
-    
-    private void sendByeCommand() throws IOException {
-        if (state != IN_CALL) {
-            System.out.println("No hay ninguna llamada activa. No se puede enviar BYE.");
-            return;
-        }
 
-        if (currentCallId == null || currentRemoteUri == null) {
-            System.out.println("Error interno: información de llamada incompleta, no envío BYE.");
-            return;
+    // Muestra el motivo si la operación ha fallado sin llegar a enviarse nada
+    private static boolean printIfRejected(CompletableFuture<?> operation) {
+        if (!operation.isCompletedExceptionally()) {
+            return false;
         }
-
-        // Datos de este UA
-        String[] userParts = usuarioSip.split("@");
-        String myUser   = userParts[0];
-        String myDomain = (userParts.length > 1) ? userParts[1] : "SMA";
-        String fromUri  = "sip:" + myUser + "@" + myDomain;
-
-        ByeMessage bye = new ByeMessage();
-        bye.setDestination(currentRemoteUri);  // Request-URI = remoto
-
-        // Via propia
-        bye.setVias(new ArrayList<>(
-                Arrays.asList(this.myAddress + ":" + this.listenPort)));
-
-        bye.setMaxForwards(70);
-
-        bye.setToName(null);
-        bye.setToUri(currentRemoteUri);
-        bye.setFromName(myUser);
-        bye.setFromUri(fromUri);
-       
-    		
-        int n = Integer.parseInt(currentcSeqNumber); // de "4" -> 4
-        n = n + 1;                   // 4 -> 5
-        String currentcSeqNumber1 = Integer.toString(n); 
-   
-
-        bye.setCallId(currentCallId);
-        bye.setcSeqNumber(currentcSeqNumber1);
-        bye.setcSeqStr("BYE");
-        bye.setContentLength(0);
-
-        // *** LOOSEROUTING ***
-        if (currentRoute != null) {
-            // Hay Record-Route → mandamos BYE al proxy
-            bye.setRoute(currentRoute);
-            System.out.println("[UA] Enviando BYE vía proxy (loose routing). cseq=" + currentcSeqNumber1);
-            transactionLayer.sendBye(bye);           // a proxy
-        } else {
-            // Sin loose routing → BYE directo UA-UA como antes
-            if (currentRemoteContact == null) {
-                System.out.println("No conozco el contact remoto, no puedo mandar BYE directo.");
-                return;
+        try {
+            operation.join();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof RequestFailedException)) {
+                System.out.println(e.getCause().getMessage());
             }
-            String[] parts = currentRemoteContact.split(":");
-            String destIp   = parts[0];
-            int    destPort = Integer.parseInt(parts[1]);
-
-            System.out.println("[UA] Enviando BYE directo a " + destIp + ":" + destPort);
-            transactionLayer.sendByeDirect(bye, destIp, destPort);
         }
+        return true;
     }
 
-
-
-
-    // Llamado cuando llega 200 OK al BYE
-    public void onByeOK() {
-        System.out.println("[UA] BYE confirmado (200 OK) → fin de llamada.");
-        state = IDLE;
-        currentCallId        = null;
-        currentRemoteUri     = null;
-        currentRemoteContact = null;
-        currentRoute         = null;
-        currentIncomingInvite = null;
-    }
-
-
-    public String getCurrentRemoteContact() {
-        return currentRemoteContact;
-    }
-
-    public void onByeReceived() {
-        System.out.println("[UA] El otro extremo ha colgado (BYE recibido).");
-        state = IDLE;
-
-        stopVitextClient();
-        stopVitextServer();
-    }
-
-    public String getCurrentRoute() {
-        return currentRoute;
-    }
-    
-    public void onServiceUnavailable(ServiceUnavailableMessage m) {
-        System.out.println("[UA] Proxy ocupado (503 Service Unavailable).");
-        state = IDLE;   // vuelves al estado IDLE
-    }
-
-    private void exitCommand() throws IOException {
+    private void exitCommand() {
         System.out.println("[UA] Saliendo...");
 
-        // Si hay llamada activa, cuelga primero (opcional pero recomendable)
-        if (state != IDLE) {
+        // Si hay llamadas, se terminan primero (opcional pero recomendable)
+        for (Call call : agent.getCalls()) {
             try {
-                if (state == INCOMING_RINGING) {
+                if (call.getState() == Call.State.RINGING) {
                     // si está sonando, lo más limpio es rechazar
-                    rejectIncomingCall();
-                } else {
-                    // si hay llamada establecida o en curso, manda BYE
-                    sendByeCommand();
+                    rejectIncomingCall(call);
+                } else if (call.getState() == Call.State.ESTABLISHED) {
+                    // si hay llamada establecida, manda BYE
+                    sendByeCommand(call);
                 }
             } catch (Exception e) {
                 System.out.println("[UA] Aviso: no se pudo terminar la llamada limpiamente: " + e.getMessage());
@@ -723,7 +424,7 @@ public class UaUserLayer {
 
         // Cierra transporte (socket) para liberar el puerto
         try {
-            transactionLayer.stopTransport();   // te digo abajo cómo implementarlo si no existe
+            agent.close();
         } catch (Exception ignored) {}
 
         System.out.println("[UA] Cerrado.");
@@ -731,9 +432,3 @@ public class UaUserLayer {
     }
 
 }
-
-
-
-
-
-
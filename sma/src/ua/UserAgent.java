@@ -0,0 +1,920 @@
+package ua;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import common.DigestAuth;
+import common.Counter;
+import common.FindMyIPv4;
+import common.Histogram;
+import common.Log;
+import common.Metrics;
+
+import mensajesSIP.BusyHereMessage;
+import mensajesSIP.ByeMessage;
+import mensajesSIP.InviteMessage;
+import mensajesSIP.OKMessage;
+import mensajesSIP.RegisterMessage;
+import mensajesSIP.RequestTimeoutMessage;
+import mensajesSIP.SDPMessage;
+import mensajesSIP.SIPMessage;
+import mensajesSIP.ServiceUnavailableMessage;
+import mensajesSIP.SipMethod;
+
+/**
+ * UA SIP sin consola: se maneja por programa y avisa de lo que pasa con listeners.
+ * <p>Las operaciones (register, invite, accept, reject, bye) no bloquean: envían lo que
+ * toque y devuelven un CompletableFuture que se completa cuando llega la respuesta, o
+ * con {@link RequestFailedException} si la respuesta es de error. Así se pueden tener
+ * muchos UA en la misma JVM (pruebas de carga, integrarlo en otra aplicación) sin
+ * ningún Scanner, prompt ni System.exit de por medio.
+ * <p>Cada UA puede llevar muchas llamadas a la vez (ver {@link Call}); sus diálogos se
+ * guardan en un mapa concurrente por Call-ID y tags de From/To, de modo que cada mensaje
+ * encuentra el suyo con una sola búsqueda y un mismo UA puede hacer de pasarela o
+ * troncal con cientos de llamadas simultáneas.
+ * <p>Cada UA lleva sus métricas (mensajes, llamadas, tiempo hasta el 180 y el 200 OK),
+ * que se publican por JMX al arrancarlo y se pueden leer con {@link #getMetrics()}.
+ * <p>UaUserLayer es la interfaz de consola construida sobre esta clase.
+ */
+public class UserAgent {
+
+    private static final Log LOG = Log.get("UA");
+
+    // Tiempo que suena por defecto una llamada entrante antes de contestar 408
+    private static final long INCOMING_CALL_TIMEOUT_MS = 10_000;
+
+    // 401 seguidos recibidos: si las credenciales no valen, se abandona
+    private static final int MAX_AUTH_ATTEMPTS = 3;
+
+    // Espera entre intentos de REGISTER; un 503 con Retry-After la alarga para el siguiente intento
+    private static final long REGISTER_RETRY_MS = 2000;
+
+    // Flujo RTP permitido (ejemplo de puertos/flows)
+    public static final ArrayList<Integer> RTPFLOWS =
+            new ArrayList<>(Arrays.asList(96, 97, 98));
+
+    // Configuración por defecto para vitext (multicast)
+    static final String DEFAULT_MCAST_IP = "239.1.2.3";
+    static final int DEFAULT_VIDEO_PORT = 49172;
+
+    // Temporizadores (reintentos de REGISTER, timeout de llamada entrante, fin de las
+    // transacciones) compartidos por todos los UA de la JVM, para no tener un hilo por UA
+    static final ScheduledExecutorService TIMERS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ua-timers");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String usuarioSip;
+    private final String user;
+    private final String domain;
+    private final String password;
+    private final int listenPort;
+    private final String myAddress;
+    // Via propia, "IP:puerto"
+    private final String myVia;
+
+    private final UaTransactionLayer transactionLayer;
+    private final List<UserAgentListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Diálogos de las llamadas en curso, por Dialog.id(). Los lee también la capa de
+    // transacciones sin el lock del UA (para contestar a un BYE)
+    private final Map<String, Dialog> dialogs = new ConcurrentHashMap<>();
+    private int callCounter = 0;
+    // Máximo de llamadas simultáneas; 0 = sin límite
+    private int maxCalls = 0;
+    private long incomingCallTimeoutMs = INCOMING_CALL_TIMEOUT_MS;
+
+    // REGISTER en curso (se reenvía igual hasta que llega respuesta)
+    private RegisterMessage currentRegister;
+    private CompletableFuture<Void> registration;
+    private ScheduledFuture<?> registerRetry;
+    private int registerAuthAttempts = 0;
+    private volatile boolean registered = false;
+    // 404, o 401 con las credenciales rechazadas: no se reintenta más
+    private boolean registrationFailed = false;
+    private long nextRegisterDelayMs = REGISTER_RETRY_MS;
+
+    private Thread networkThread;
+
+    private final Metrics metrics = new Metrics("sma_ua");
+    private final Counter callsStarted;
+    private final Counter callsReceived;
+    private final Histogram inviteToRinging;
+    private final Histogram inviteToOk;
+    // Llamadas salientes rechazadas, por código (100..699); cada contador se crea la primera vez
+    private final AtomicReferenceArray<Counter> callsFailed = new AtomicReferenceArray<>(700);
+
+/**
+ * Crea el UA y abre su socket, pero todavía no escucha: falta llamar a {@link #start()}.
+ *
+ * @param usuarioSip    usuario y dominio, p.ej. "alice@SMA"
+ * @param listenPort    puerto UDP (y TCP) local
+ * @param proxyAddress  IP del proxy
+ * @param proxyPort     puerto del proxy
+ * @param password      contraseña para la autenticación Digest
+ */
+    public UserAgent(String usuarioSip,
+                     int listenPort,
+                     String proxyAddress,
+                     int proxyPort,
+                     String password) throws SocketException, UnknownHostException {
+        this.usuarioSip = usuarioSip;
+        String[] partes = usuarioSip.split("@");
+        this.user       = partes[0];
+        this.domain     = (partes.length > 1) ? partes[1] : "SMA";
+        this.password   = password;
+        this.listenPort = listenPort;
+        this.myAddress  = FindMyIPv4.findMyIPv4Address().getHostAddress();
+        this.myVia      = myAddress + ":" + listenPort;
+
+        this.callsStarted  = metrics.counter("calls_started_total", "Llamadas salientes iniciadas");
+        this.callsReceived = metrics.counter("calls_received_total", "Llamadas entrantes recibidas");
+        this.inviteToRinging = metrics.histogram("invite_to_ringing_seconds",
+                "Tiempo desde que se envía un INVITE hasta que llega el primer 180 Ringing");
+        this.inviteToOk = metrics.histogram("invite_to_ok_seconds",
+                "Tiempo desde que se envía un INVITE hasta que llega su 200 OK");
+        metrics.gauge("calls_active", "Llamadas en curso", dialogs::size);
+
+        this.transactionLayer = new UaTransactionLayer(listenPort, proxyAddress, proxyPort, this, metrics);
+    }
+
+    public void setDebug(boolean debug) {
+        transactionLayer.setDebug(debug);
+    }
+
+    public void addListener(UserAgentListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(UserAgentListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Arranca la escucha de red en un hilo propio.
+     */
+    public synchronized void start() {
+        if (networkThread != null) {
+            return;
+        }
+        networkThread = new Thread(transactionLayer::startListeningNetwork, "ua-" + user + "-" + listenPort);
+        networkThread.start();
+        metrics.registerMBean("sma:type=UA,user=" + user + ",port=" + listenPort);
+    }
+
+    /**
+     * Deja de escuchar y libera el puerto. Las operaciones pendientes no se completan.
+     */
+    public synchronized void close() {
+        cancel(registerRetry);
+        for (Dialog dialog : dialogs.values()) {
+            cancel(dialog.call.incomingCallTimer);
+        }
+        transactionLayer.stopTransport();
+        metrics.close();
+    }
+
+    /** Las métricas de este UA. */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public String getUsuarioSip() {
+        return usuarioSip;
+    }
+
+    public boolean isRegistered() {
+        return registered;
+    }
+
+/**
+ * Limita las llamadas simultáneas: por encima, las entrantes se contestan con 486 y
+ * {@link #invite(String)} falla.
+ *
+ * @param maxCalls  el máximo, o 0 para no limitar
+ */
+    public synchronized void setMaxCalls(int maxCalls) {
+        this.maxCalls = maxCalls;
+    }
+
+/**
+ * Cuánto suena una llamada entrante sin aceptar ni rechazar antes de contestar 408.
+ *
+ * @param timeoutMs  en milisegundos (10 s por defecto)
+ */
+    public synchronized void setIncomingCallTimeout(long timeoutMs) {
+        this.incomingCallTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Transacciones INVITE abiertas (cliente y servidor). Con todas las llamadas terminadas
+     * vuelve a 0 en cuanto vencen los temporizadores de las transacciones.
+     */
+    public int getPendingTransactions() {
+        return transactionLayer.pendingTransactions();
+    }
+
+    /**
+     * Las llamadas en curso (salientes sin contestar, sonando y establecidas), de la más
+     * antigua a la más reciente.
+     */
+    public synchronized List<Call> getCalls() {
+        List<Call> list = new ArrayList<>();
+        for (Dialog dialog : dialogs.values()) {
+            list.add(dialog.call);
+        }
+        list.sort(Comparator.comparingInt(Call::getNumber));
+        return list;
+    }
+
+    // =====================================================================
+    //  OPERACIONES
+    // =====================================================================
+
+    /**
+     * Registra el UA en el proxy.
+     * Envía REGISTER periódicamente hasta que se recibe 200 OK. Los reenvíos son
+     * retransmisiones del mismo REGISTER (mismo Call-ID y CSeq), para que el proxy
+     * los reconozca y conteste desde su caché sin volver a procesarlos.
+     *
+     * @return  se completa con el 200 OK, o con error si el proxy rechaza al usuario
+     */
+    public synchronized CompletableFuture<Void> register() {
+        if (registration == null) {
+            registration = new CompletableFuture<>();
+            currentRegister = buildRegister();
+            sendRegister();
+        }
+        return registration;
+    }
+
+    private synchronized void sendRegister() {
+        if (registered || registrationFailed) {
+            return;
+        }
+        try {
+            transactionLayer.sendRegister(currentRegister);
+        } catch (IOException e) {
+            LOG.error("Error al enviar REGISTER: {}", e.getMessage());
+        }
+        registerRetry = TIMERS.schedule(this::onRegisterTimeout, REGISTER_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Sin respuesta (o con 503) al REGISTER tras REGISTER_RETRY_MS
+    private void onRegisterTimeout() {
+        synchronized (this) {
+            if (registered || registrationFailed) {
+                return;
+            }
+            long extraDelay = nextRegisterDelayMs - REGISTER_RETRY_MS;
+            nextRegisterDelayMs = REGISTER_RETRY_MS;
+            if (extraDelay > 0) {
+                // El proxy nos ha pedido esperar (503 con Retry-After): el siguiente
+                // intento ya es una transacción nueva, con el CSeq siguiente
+                currentRegister.setcSeqNumber(currentRegister.getcSeqNumber() + 1);
+                registerRetry = TIMERS.schedule(this::sendRegister, extraDelay, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.registrationRetry(0, 0);
+        }
+        sendRegister();
+    }
+
+    /**
+     * Construye el REGISTER que se envía al proxy.
+     */
+    private RegisterMessage buildRegister() {
+        RegisterMessage register = new RegisterMessage();
+
+        // Request line: REGISTER sip:DOMINIO SIP/2.0
+        register.setDestination("sip:" + domain);
+
+        // Via: IP y puerto local
+        register.setVias(new ArrayList<>(
+                Arrays.asList(this.myAddress + ":" + this.listenPort)));
+
+        // Max-Forwards
+        register.setMaxForwards(70);
+
+        // To / From
+        String uriUsuario = "sip:" + user + "@" + domain;
+
+        register.setToName(user);
+        register.setToUri(uriUsuario);
+
+        register.setFromName(user);
+        register.setFromUri(uriUsuario);
+
+        // Call-ID y CSeq
+        String callId = UUID.randomUUID().toString();
+        register.setCallId(callId);
+        int cseq = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        register.setcSeqNumber(cseq);
+        register.setcSeqMethod(SipMethod.REGISTER);
+
+        // Contact: "IP:puerto" (sin usuario)
+        String contact = myAddress + ":" + listenPort;
+        register.setContact(contact);
+
+        // Expires en segundos y sin cuerpo
+        register.setExpires(600);
+        register.setContentLength(0);
+
+        return register;
+    }
+
+    /**
+     * Llama a otro usuario. Se pueden tener tantas llamadas a la vez como se quiera
+     * (hasta {@link #setMaxCalls(int)}).
+     *
+     * @param destination  "bob" (mismo dominio), "bob@otrodominio" o "sip:bob@otrodominio"
+     * @return             se completa con la llamada cuando queda establecida (200 OK), o con
+     *                     error si se rechaza, no se contesta o el proxy no la cursa
+     */
+    public synchronized CompletableFuture<Call> invite(String destination) {
+        if (!registered) {
+            return failed(new IllegalStateException("El UA aún no está registrado."));
+        }
+        if (maxCalls > 0 && dialogs.size() >= maxCalls) {
+            return failed(new IllegalStateException("Ya hay " + dialogs.size() + " llamadas en curso."));
+        }
+
+        String destName = destination.startsWith("sip:") ? destination.substring("sip:".length()) : destination;
+        String fromUri = "sip:" + user + "@" + domain;
+        String toUri;
+        if (destName.contains("@")) {
+            toUri    = "sip:" + destName;
+            destName = destName.substring(0, destName.indexOf('@'));
+        } else {
+            toUri    = "sip:" + destName + "@" + domain;
+        }
+
+        // SDP: anunciamos el vídeo en multicast (vitext)
+        SDPMessage sdpMessage = new SDPMessage();
+        sdpMessage.setIp(DEFAULT_MCAST_IP);
+        sdpMessage.setPort(DEFAULT_VIDEO_PORT);
+        sdpMessage.setOptions(RTPFLOWS);
+
+        String callId = UUID.randomUUID().toString();
+        int cseq = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+
+        InviteMessage inviteMessage = new InviteMessage();
+        inviteMessage.setDestination(toUri);
+        inviteMessage.setVias(new ArrayList<>(Arrays.asList(myVia)));
+        inviteMessage.setMaxForwards(70);
+
+        inviteMessage.setToName(destName);
+        inviteMessage.setToUri(toUri);
+        inviteMessage.setFromName(user);
+        inviteMessage.setFromUri(fromUri);
+        // Nuestro tag; el del otro extremo llegará en su primera respuesta
+        inviteMessage.setFromTag(newTag());
+
+        inviteMessage.setCallId(callId);
+        inviteMessage.setcSeqNumber(cseq);
+        inviteMessage.setcSeqMethod(SipMethod.INVITE);
+
+        // Contact: dónde nos puede contactar el otro
+        inviteMessage.setContact(myAddress + ":" + listenPort);
+
+        // Cuerpo SDP
+        inviteMessage.setContentType("application/sdp");
+        inviteMessage.setContentLength(
+                sdpMessage.toStringMessage().getBytes().length);
+        inviteMessage.setSdp(sdpMessage);
+
+        Call call = new Call(this, ++callCounter, true, Call.State.CALLING);
+        Dialog dialog = new Dialog(call, callId, inviteMessage.getFromTag(), fromUri, user, myVia, cseq);
+        dialog.remoteUri = toUri;
+        call.dialog = dialog;
+        call.pendingInvite = new CompletableFuture<>();
+        CompletableFuture<Call> result = call.pendingInvite;
+        dialogs.put(dialog.id(), dialog);
+        callsStarted.increment();
+        call.invitedAtNanos = System.nanoTime();
+        try {
+            // Mandar el INVITE mediante la capa de transacciones
+            transactionLayer.call(inviteMessage, dialog);
+        } catch (IOException e) {
+            terminate(call);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Acepta una llamada entrante: envía 200 OK con SDP y la pasa a ESTABLISHED.
+     *
+     * @return  se completa cuando llega el ACK del llamante
+     */
+    public synchronized CompletableFuture<Void> accept(Call call) {
+        if (call.state != Call.State.RINGING || call.incomingInvite == null) {
+            return failed(new IllegalStateException("La llamada " + call.getNumber() + " no está sonando."));
+        }
+        InviteMessage invite = call.incomingInvite;
+
+        cancel(call.incomingCallTimer);
+        call.incomingCallTimer = null;
+
+        // SDP de respuesta: usamos la IP multicast y puerto ofrecidos por el caller (vitext)
+        SDPMessage sdpOffer = invite.getSdp();
+        SDPMessage sdpMessage = new SDPMessage();
+        if (sdpOffer != null) {
+            sdpMessage.setIp(sdpOffer.getIp());
+            sdpMessage.setPort(sdpOffer.getPort());
+            sdpMessage.setOptions(sdpOffer.getOptions() != null ? sdpOffer.getOptions() : RTPFLOWS);
+        } else {
+            // Fallback por si el INVITE no trae SDP
+            sdpMessage.setIp(DEFAULT_MCAST_IP);
+            sdpMessage.setPort(DEFAULT_VIDEO_PORT);
+            sdpMessage.setOptions(RTPFLOWS);
+        }
+
+        String contact = myAddress + ":" + listenPort;
+        call.pendingAccept = new CompletableFuture<>();
+        CompletableFuture<Void> result = call.pendingAccept;
+        try {
+            transactionLayer.sendOkForInvite(invite, sdpMessage, contact);
+            call.state = Call.State.ESTABLISHED;
+            call.dialog.advance(Dialog.State.CONFIRMED);
+        } catch (IOException e) {
+            call.pendingAccept = null;
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Rechaza una llamada entrante: envía 486 Busy Here y la da por terminada.
+     */
+    public synchronized CompletableFuture<Void> reject(Call call) {
+        if (call.state != Call.State.RINGING || call.incomingInvite == null) {
+            return failed(new IllegalStateException("La llamada " + call.getNumber() + " no está sonando."));
+        }
+
+        cancel(call.incomingCallTimer);
+        call.incomingCallTimer = null;
+
+        try {
+            transactionLayer.sendBusyForInvite(call.incomingInvite);
+        } catch (IOException e) {
+            return failed(e);
+        } finally {
+            terminate(call);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Cuelga una llamada establecida.
+     *
+     * @return  se completa con el 200 OK al BYE
+     */
+    public synchronized CompletableFuture<Void> bye(Call call) {
+        if (call.state != Call.State.ESTABLISHED) {
+            return failed(new IllegalStateException("La llamada " + call.getNumber() + " no está establecida. No se puede enviar BYE."));
+        }
+
+        Dialog dialog = call.dialog;
+        if (dialog.routeSet == null && dialog.remoteTarget == null) {
+            return failed(new IllegalStateException("No conozco el contact remoto, no puedo mandar BYE directo."));
+        }
+
+        call.pendingBye = new CompletableFuture<>();
+        CompletableFuture<Void> result = call.pendingBye;
+        try {
+            // El BYE sale del diálogo: tags, Route y CSeq siguiente
+            transactionLayer.sendBye(dialog);
+        } catch (IOException e) {
+            call.pendingBye = null;
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // =====================================================================
+    //  CALLBACKS DESDE UaTransactionLayer
+    // =====================================================================
+    //
+    // El estado se cambia con el lock del UA, pero los listeners y los futures se
+    // llaman después de soltarlo: el código del usuario (y lo que encadene a los
+    // futures) puede llamar a bye(), accept() o Call.getState() desde otro hilo sin
+    // riesgo de interbloqueo.
+
+    /**
+     * Llega 200 OK al REGISTER.
+     */
+    void onRegisterOK() {
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            if (registered) {
+                return;
+            }
+            registered = true;
+            cancel(registerRetry);
+            future = registration;
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.registered();
+        }
+        future.complete(null);
+    }
+
+    /**
+     * Llega 503 al REGISTER: el proxy está sobrecargado. Si indica Retry-After,
+     * el siguiente REGISTER espera al menos ese tiempo.
+     */
+    void onRegisterServiceUnavailable(int retryAfterSec) {
+        long delayMs;
+        synchronized (this) {
+            if (retryAfterSec > 0) {
+                nextRegisterDelayMs = retryAfterSec * 1000L;
+            }
+            delayMs = Math.max(REGISTER_RETRY_MS, nextRegisterDelayMs);
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.registrationRetry(503, delayMs);
+        }
+    }
+
+    /**
+     * Llega 401 al REGISTER: se repite enseguida con las credenciales calculadas para
+     * el nonce recibido (transacción nueva, CSeq siguiente).
+     */
+    void onRegisterUnauthorized(String nonce) throws IOException {
+        Runnable failure;
+        synchronized (this) {
+            RegisterMessage register = currentRegister;
+            if (register == null || registered || registrationFailed) {
+                return;
+            }
+            if (++registerAuthAttempts > MAX_AUTH_ATTEMPTS) {
+                failure = failRegistration(401, "Credenciales rechazadas");
+            } else {
+                failure = null;
+                register.setAuthorization(digestCredentials(SipMethod.REGISTER, register.getDestination(), nonce));
+                register.setcSeqNumber(register.getcSeqNumber() + 1);
+                transactionLayer.sendRegister(register);
+            }
+        }
+        if (failure != null) {
+            failure.run();
+            return;
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.registrationRetry(401, 0);
+        }
+    }
+
+    /**
+     * Llega 404 al REGISTER: usuario no permitido.
+     */
+    void onRegisterNotFound() {
+        Runnable failure;
+        synchronized (this) {
+            failure = failRegistration(404, "Usuario no permitido");
+        }
+        run(failure);
+    }
+
+    // Con el lock: da el registro por fallido y devuelve el aviso, que se ejecuta al soltarlo
+    private Runnable failRegistration(int statusCode, String reason) {
+        if (registration == null || registered || registrationFailed) {
+            return null;
+        }
+        registrationFailed = true;
+        cancel(registerRetry);
+        CompletableFuture<Void> future = registration;
+        return () -> {
+            for (UserAgentListener listener : listeners) {
+                listener.registrationFailed(statusCode);
+            }
+            future.completeExceptionally(new RequestFailedException(statusCode, reason));
+        };
+    }
+
+    /**
+     * Valor de Authorization / ProxyAuthentication para el nonce recibido del proxy.
+     * El realm es el dominio del usuario.
+     */
+    String digestCredentials(SipMethod method, String requestUri, String nonce) {
+        String ha1 = DigestAuth.ha1(user, domain, password);
+        String nonceValue = nonce.trim();
+        return DigestAuth.credentials(nonceValue, DigestAuth.response(ha1, method.name(), requestUri, nonceValue));
+    }
+
+    /**
+     * Llega 180 Ringing a una llamada saliente.
+     */
+    void onRinging(SIPMessage ringing) {
+        Call call;
+        synchronized (this) {
+            Dialog dialog = findForResponse(ringing);
+            if (dialog == null) {
+                return;
+            }
+            call = dialog.call;
+            if (!call.ringingMeasured && call.state == Call.State.CALLING) {
+                inviteToRinging.observeSince(call.invitedAtNanos);
+                call.ringingMeasured = true;
+            }
+        }
+        // Seguimos en CALLING
+        for (UserAgentListener listener : listeners) {
+            listener.ringing(call);
+        }
+    }
+
+    /**
+     * Llega 200 OK al INVITE (somos el llamante). La capa de transacciones ya ha
+     * confirmado el diálogo con él y ha enviado el ACK.
+     */
+    void onInviteOKFromCallee(OKMessage ok) {
+        Call call;
+        CompletableFuture<Call> future;
+        synchronized (this) {
+            Dialog dialog = findForResponse(ok);
+            if (dialog == null || dialog.call.state != Call.State.CALLING) {
+                return;
+            }
+            call = dialog.call;
+            call.state = Call.State.ESTABLISHED;
+            inviteToOk.observeSince(call.invitedAtNanos);
+            future = call.pendingInvite;
+            call.pendingInvite = null;
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.answered(call);
+        }
+        future.complete(call);
+    }
+
+    /**
+     * ¿Se puede aceptar otra llamada entrante? Si no, el INVITE se contesta con 486.
+     */
+    synchronized boolean canTakeCall() {
+        return maxCalls <= 0 || dialogs.size() < maxCalls;
+    }
+
+    /**
+     * Llega un INVITE cuando somos el llamado. El INVITE ya trae en el To el tag que
+     * le ha asignado la capa de transacciones.
+     * La llamada queda en RINGING, con un timer para 408 si nadie contesta a tiempo.
+     */
+    void onInviteReceived(InviteMessage inv) {
+        Call call;
+        synchronized (this) {
+            call = new Call(this, ++callCounter, false, Call.State.RINGING);
+            callsReceived.increment();
+            // Nuestro BYE usará el CSeq siguiente al del INVITE
+            Dialog dialog = new Dialog(call, inv.getCallId(), inv.getToTag(), inv.getToUri(), user, myVia,
+                    inv.getcSeqNumber());
+            dialog.learnRemoteTag(inv.getFromTag());
+            dialog.remoteUri    = inv.getFromUri();     // quién me llama
+            dialog.remoteTarget = inv.getContact();     // "IP:puerto" del caller
+            dialog.routeSet     = inv.getRecordRoute(); // Record-Route si hay loose routing
+            dialog.remoteCSeq   = inv.getcSeqNumber();
+            call.dialog = dialog;
+            call.incomingInvite = inv;
+            dialogs.put(dialog.id(), dialog);
+
+            call.incomingCallTimer = TIMERS.schedule(() -> onIncomingCallTimeout(call),
+                    incomingCallTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.incomingCall(call);
+        }
+    }
+
+    // Nadie ha aceptado ni rechazado la llamada entrante: 408
+    private void onIncomingCallTimeout(Call call) {
+        synchronized (this) {
+            if (call.state != Call.State.RINGING) {
+                return;
+            }
+            try {
+                transactionLayer.sendRequestTimeoutForInvite(call.incomingInvite);
+            } catch (IOException e) {
+                LOG.error("Error al enviar 408 de la llamada {}: {}", call.getNumber(), e.getMessage());
+            }
+            terminate(call);
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.callFailed(call, 408);
+        }
+    }
+
+    /**
+     * ¿El ACK recibido confirma un 200 OK nuestro? (si no, es el ACK a un 486/408)
+     */
+    synchronized boolean isAcceptedCall(SIPMessage ack) {
+        Dialog dialog = findDialog(ack);
+        return dialog != null && dialog.call.state == Call.State.ESTABLISHED;
+    }
+
+    /**
+     * Llega ACK cuando somos el llamado.
+     */
+    void onAckReceived(SIPMessage ack) {
+        Call call;
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            Dialog dialog = findDialog(ack);
+            if (dialog == null || dialog.call.pendingAccept == null) {
+                return;
+            }
+            call = dialog.call;
+            call.incomingInvite = null;
+            future = call.pendingAccept;
+            call.pendingAccept = null;
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.answered(call);
+        }
+        future.complete(null);
+    }
+
+    /**
+     * Llega un error al INVITE (404 Not Found, o 407 con las credenciales rechazadas).
+     */
+    void onInviteError(SIPMessage response, int statusCode) {
+        failCall(response, statusCode, (statusCode == 404) ? "404 Not Found" : statusCode + " al INVITE");
+    }
+
+    /**
+     * Llega 486 Busy Here desde el callee.
+     */
+    void onBusyHereFromCallee(BusyHereMessage busy) {
+        failCall(busy, 486, "486 Busy Here");
+    }
+
+    /**
+     * Llega 408 Request Timeout desde el callee.
+     */
+    void onRequestTimeoutFromCallee(RequestTimeoutMessage rt) {
+        failCall(rt, 408, "408 Request Timeout");
+    }
+
+    void onServiceUnavailable(ServiceUnavailableMessage m) {
+        failCall(m, 503, "503 Service Unavailable");
+    }
+
+    private void failCall(SIPMessage response, int statusCode, String reason) {
+        Call call;
+        CompletableFuture<Call> future;
+        synchronized (this) {
+            Dialog dialog = findForResponse(response);
+            if (dialog == null || dialog.call.state != Call.State.CALLING) {
+                return;
+            }
+            call = dialog.call;
+            terminate(call);
+            future = call.pendingInvite;
+            call.pendingInvite = null;
+        }
+        callsFailedCounter(statusCode).increment();
+        for (UserAgentListener listener : listeners) {
+            listener.callFailed(call, statusCode);
+        }
+        future.completeExceptionally(new RequestFailedException(statusCode, reason));
+    }
+
+    // Llamado cuando llega 200 OK al BYE
+    void onByeOK(OKMessage ok) {
+        Call call;
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            Dialog dialog = findForResponse(ok);
+            if (dialog == null) {
+                return;
+            }
+            call = dialog.call;
+            terminate(call);
+            future = call.pendingBye;
+            call.pendingBye = null;
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.callEnded(call, false);
+        }
+        if (future != null) {
+            future.complete(null);
+        }
+    }
+
+    void onByeReceived(ByeMessage bye) {
+        Call call;
+        synchronized (this) {
+            Dialog dialog = findDialog(bye);
+            if (dialog == null) {
+                return;
+            }
+            dialog.remoteCSeq = bye.getcSeqNumber();
+            call = dialog.call;
+            terminate(call);
+        }
+        for (UserAgentListener listener : listeners) {
+            listener.callEnded(call, true);
+        }
+    }
+
+    // =====================================================================
+    //  TABLA DE DIÁLOGOS
+    // =====================================================================
+
+    /**
+     * Diálogo al que pertenece una petición recibida (ACK, BYE), o null: nuestro tag viene
+     * en el To y el del otro en el From. No necesita el lock del UA.
+     */
+    Dialog findDialog(SIPMessage request) {
+        return dialogs.get(Dialog.id(request.getCallId(), request.getToTag(), request.getFromTag()));
+    }
+
+    /** Tag nuevo para el From de un INVITE o el To de su respuesta. */
+    static String newTag() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    }
+
+    // Respuesta recibida: nuestro tag viene en el From y el del otro en el To. La primera
+    // respuesta con tag de una llamada saliente saca su diálogo de la clave provisional
+    // (sin tag remoto); si la capa de transacciones ya le ha dado el tag con el 200 OK,
+    // solo falta cambiarlo de clave
+    private Dialog findForResponse(SIPMessage response) {
+        String callId = response.getCallId();
+        String localTag = response.getFromTag();
+        String remoteTag = response.getToTag();
+        Dialog dialog = dialogs.get(Dialog.id(callId, localTag, remoteTag));
+        if (dialog != null || remoteTag == null) {
+            return (dialog != null) ? dialog : dialogs.get(Dialog.id(callId, localTag, null));
+        }
+        String earlyId = Dialog.id(callId, localTag, null);
+        dialog = dialogs.get(earlyId);
+        if (dialog != null && (dialog.learnRemoteTag(remoteTag) || remoteTag.equals(dialog.getRemoteTag()))) {
+            // Primero la clave nueva y luego quitar la vieja: findDialog nunca lo pierde
+            dialogs.put(dialog.id(), dialog);
+            dialogs.remove(earlyId, dialog);
+        }
+        return dialog;
+    }
+
+    private void terminate(Call call) {
+        Dialog dialog = call.dialog;
+        call.state = Call.State.TERMINATED;
+        call.incomingInvite = null;
+        cancel(call.incomingCallTimer);
+        dialog.advance(Dialog.State.TERMINATED);
+        dialogs.remove(dialog.id(), dialog);
+        dialogs.remove(Dialog.id(dialog.callId, dialog.localTag, null), dialog);
+    }
+
+    // =====================================================================
+    //  UTILIDADES
+    // =====================================================================
+
+    private static void cancel(ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    private Counter callsFailedCounter(int statusCode) {
+        Counter counter = callsFailed.get(statusCode);
+        if (counter == null) {
+            // Si dos hilos llegan a la vez, el registro devuelve el mismo contador a los dos
+            counter = metrics.counter("calls_failed_total", "Llamadas salientes rechazadas, por código de respuesta",
+                    "status", Integer.toString(statusCode));
+            callsFailed.set(statusCode, counter);
+        }
+        return counter;
+    }
+
+    private static void run(Runnable notification) {
+        if (notification != null) {
+            notification.run();
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+}
@@ -0,0 +1,59 @@
+package ua;
+
+/**
+ * Eventos de un {@link UserAgent}.
+ * <p>Se llaman desde el hilo de red o desde el temporizador del UA, nunca desde el hilo
+ * que hizo la petición, así que no deben bloquearse. Se llaman sin el lock del UA: desde
+ * un listener se puede contestar o colgar la llamada. Todos los métodos tienen una
+ * implementación vacía: cada listener implementa solo los que le interesan.
+ */
+public interface UserAgentListener {
+
+    /** Ha llegado el 200 OK al REGISTER. */
+    default void registered() {
+    }
+
+/**
+ * El REGISTER se va a repetir.
+ *
+ * @param statusCode  la respuesta que lo ha provocado (401, 503), o 0 si no llegó ninguna
+ * @param delayMs     cuánto se espera antes del siguiente intento
+ */
+    default void registrationRetry(int statusCode, long delayMs) {
+    }
+
+    /** El registro ha fallado definitivamente (404, o 401 con las credenciales rechazadas). */
+    default void registrationFailed(int statusCode) {
+    }
+
+    /** Llega una llamada; se contesta con {@link Call#accept()} o {@link Call#reject()}. */
+    default void incomingCall(Call call) {
+    }
+
+    /** La llamada saliente está sonando (180 Ringing). */
+    default void ringing(Call call) {
+    }
+
+    /** La llamada ha quedado establecida (200 OK al INVITE, o ACK si somos el llamado). */
+    default void answered(Call call) {
+    }
+
+/**
+ * La llamada no se ha llegado a establecer.
+ *
+ * @param call        la llamada, ya en estado TERMINATED
+ * @param statusCode  el código de error (404, 407, 486, 408, 503); 408 también cuando
+ *                    somos el llamado y nadie descuelga a tiempo
+ */
+    default void callFailed(Call call, int statusCode) {
+    }
+
+/**
+ * La llamada establecida ha terminado.
+ *
+ * @param call      la llamada, ya en estado TERMINATED
+ * @param byRemote  true si ha colgado el otro extremo, false si ha llegado el 200 OK a nuestro BYE
+ */
+    default void callEnded(Call call, boolean byRemote) {
+    }
+}